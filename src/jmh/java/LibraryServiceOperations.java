@@ -0,0 +1,77 @@
+import benchmarks.LibraryOperations;
+import java.util.ArrayList;
+import java.util.List;
+
+// Default-package side of benchmarks.LibraryOperations
+public class LibraryServiceOperations implements LibraryOperations {
+    private static final int BATCH = 10_000;
+    
+    private final LibraryService service = new LibraryService();
+    
+    @Override
+    public void populate(int bookCount, int memberCount) {
+        List<Book> books = new ArrayList<>(BATCH);
+        for (int i = 0; i < bookCount; i++) {
+            books.add(new Book("B" + i, "Title " + i, "Author " + (i % 1000)));
+            if (books.size() == BATCH) {
+                service.addBooks(books);
+                books.clear();
+            }
+        }
+        service.addBooks(books);
+        List<Member> members = new ArrayList<>(BATCH);
+        for (int i = 0; i < memberCount; i++) {
+            members.add(new Member("M" + i, "Member " + i, "member" + i + "@example.com"));
+            if (members.size() == BATCH) {
+                service.addMembers(members);
+                members.clear();
+            }
+        }
+        service.addMembers(members);
+        // Gives getAllTransactions something to copy
+        for (int i = 0; i < bookCount; i += 10) {
+            service.borrowBook("B" + i, "M" + (i % memberCount));
+            service.returnBook("B" + i);
+        }
+    }
+    
+    @Override
+    public void setMetricsEnabled(boolean enabled) {
+        service.getMetrics().setEnabled(enabled);
+    }
+    
+    @Override
+    public boolean borrowBook(String bookId, String memberId) {
+        return service.borrowBook(bookId, memberId);
+    }
+    
+    @Override
+    public boolean returnBook(String bookId) {
+        return service.returnBook(bookId);
+    }
+    
+    @Override
+    public Object findBookById(String bookId) {
+        return service.findBookById(bookId);
+    }
+    
+    @Override
+    public Object findMemberById(String memberId) {
+        return service.findMemberById(memberId);
+    }
+    
+    @Override
+    public List<?> getAllBooks() {
+        return service.getAllBooks();
+    }
+    
+    @Override
+    public List<?> getAllMembers() {
+        return service.getAllMembers();
+    }
+    
+    @Override
+    public List<?> getAllTransactions() {
+        return service.getAllTransactions();
+    }
+}
\ No newline at end of file
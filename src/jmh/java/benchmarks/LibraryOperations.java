@@ -0,0 +1,39 @@
+package benchmarks;
+
+import java.util.List;
+
+/**
+ * The LibraryService calls under benchmark. JMH will not generate code for
+ * classes in the default package, and named packages cannot refer to it, so
+ * the benchmarks reach the service through this interface, implemented by
+ * LibraryServiceOperations in the default package. The calls are monomorphic
+ * and get inlined.
+ */
+public interface LibraryOperations {
+    static LibraryOperations create() {
+        try {
+            return (LibraryOperations) Class.forName("LibraryServiceOperations").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("LibraryServiceOperations is not on the classpath", e);
+        }
+    }
+    
+    // Adds books B0.. and members M0.., then borrows and returns one book in ten
+    void populate(int bookCount, int memberCount);
+    
+    void setMetricsEnabled(boolean enabled);
+    
+    boolean borrowBook(String bookId, String memberId);
+    
+    boolean returnBook(String bookId);
+    
+    Object findBookById(String bookId);
+    
+    Object findMemberById(String memberId);
+    
+    List<?> getAllBooks();
+    
+    List<?> getAllMembers();
+    
+    List<?> getAllTransactions();
+}
\ No newline at end of file
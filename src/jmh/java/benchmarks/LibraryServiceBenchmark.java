@@ -0,0 +1,102 @@
+package benchmarks;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for LibraryService hot paths at catalog sizes from 10K to
+ * 10M books, single-threaded. {@link LibraryServiceConcurrentBenchmark} runs
+ * the same methods on every core.
+ *
+ * <p>Build with {@code mvn -P jmh package}, then run e.g.
+ * {@code java -jar target/benchmarks.jar -rf json -rff target/jmh-result.json -p catalogSize=10000}.
+ * The 10M catalog needs a large heap, e.g. {@code -jvmArgsAppend -Xmx16g}.
+ *
+ * <p>Each benchmark method runs in its own fork, so the borrows of one do not
+ * grow the history seen by another.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class LibraryServiceBenchmark {
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int catalogSize;
+    
+    LibraryOperations library;
+    int memberCount;
+    private final AtomicInteger threadCount = new AtomicInteger();
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        library = LibraryOperations.create();
+        memberCount = Math.max(1, catalogSize / 10);
+        library.populate(catalogSize, memberCount);
+    }
+    
+    @State(Scope.Thread)
+    public static class Cursor {
+        SplittableRandom random;
+        String memberId;
+        
+        @Setup(Level.Trial)
+        public void setUp(LibraryServiceBenchmark benchmark) {
+            int thread = benchmark.threadCount.getAndIncrement();
+            random = new SplittableRandom(thread);
+            // One member per thread keeps threads off each other's loan limits; they still share the service, so
+            // they contend on book stripes, the loan history and the transaction ID allocator
+            memberId = "M" + (thread % benchmark.memberCount);
+        }
+    }
+    
+    // Another thread may hold the book, in which case both calls return false
+    @Benchmark
+    public boolean borrowAndReturn(Cursor cursor) {
+        String bookId = "B" + cursor.random.nextInt(catalogSize);
+        boolean borrowed = library.borrowBook(bookId, cursor.memberId);
+        return library.returnBook(bookId) & borrowed;
+    }
+    
+    @Benchmark
+    public Object findBookById(Cursor cursor) {
+        return library.findBookById("B" + cursor.random.nextInt(catalogSize));
+    }
+    
+    @Benchmark
+    public Object findMemberById(Cursor cursor) {
+        return library.findMemberById("M" + cursor.random.nextInt(memberCount));
+    }
+    
+    @Benchmark
+    public List<?> getAllBooks() {
+        return library.getAllBooks();
+    }
+    
+    @Benchmark
+    public List<?> getAllMembers() {
+        return library.getAllMembers();
+    }
+    
+    @Benchmark
+    public List<?> getAllTransactions() {
+        return library.getAllTransactions();
+    }
+}
\ No newline at end of file
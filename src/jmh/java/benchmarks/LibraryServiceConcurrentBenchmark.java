@@ -0,0 +1,8 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Threads;
+
+// The LibraryServiceBenchmark methods with one thread per core sharing the service
+@Threads(Threads.MAX)
+public class LibraryServiceConcurrentBenchmark extends LibraryServiceBenchmark {
+}
\ No newline at end of file
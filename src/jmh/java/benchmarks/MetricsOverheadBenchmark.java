@@ -0,0 +1,60 @@
+package benchmarks;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of LibraryMetrics on the circulation paths: the same calls with the
+ * metrics on and off. Failed borrows are included since they are the
+ * cheapest calls, so the relative overhead is largest there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class MetricsOverheadBenchmark {
+    private static final int CATALOG_SIZE = 100_000;
+    
+    @Param({"true", "false"})
+    public boolean metrics;
+    
+    LibraryOperations library;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        library = LibraryOperations.create();
+        library.populate(CATALOG_SIZE, CATALOG_SIZE / 10);
+        library.setMetricsEnabled(metrics);
+    }
+    
+    @State(Scope.Thread)
+    public static class Cursor {
+        final SplittableRandom random = new SplittableRandom(1);
+    }
+    
+    @Benchmark
+    public boolean borrowAndReturn(Cursor cursor) {
+        String bookId = "B" + cursor.random.nextInt(CATALOG_SIZE);
+        boolean borrowed = library.borrowBook(bookId, "M0");
+        return library.returnBook(bookId) & borrowed;
+    }
+    
+    @Benchmark
+    public boolean borrowUnknownBook(Cursor cursor) {
+        return library.borrowBook("X" + cursor.random.nextInt(CATALOG_SIZE), "M0");
+    }
+}
\ No newline at end of file
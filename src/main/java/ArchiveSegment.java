@@ -0,0 +1,545 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * One immutable file of returned loans in ID order, part of a
+ * {@link TransactionArchive}.
+ *
+ * <p>Rows are grouped in blocks of up to {@value #BLOCK_ROWS}, each deflated
+ * on its own. Inside a block the book and member IDs go into a table of the
+ * distinct strings and rows refer to them by index, the book by the ID of
+ * the copy that was lent (see {@link Book}); transaction IDs and
+ * borrow dates are stored as the difference from the previous row, due and
+ * return dates as days from the borrow date, all as variable-length
+ * integers. A footer
+ * lists each block's first and last ID, offset, length and row count; only
+ * that index is held in memory, so a lookup or a scan from some ID inflates
+ * just the blocks it needs. Alongside it the segment keeps, for each member,
+ * the blocks holding that member's loans, built as the file is written or
+ * by one pass over the blocks when it is opened, so a member's history
+ * inflates only those blocks. The file stays open while the segment is in use,
+ * so reads keep working after a merge has deleted it; the channel is closed
+ * when the segment is garbage collected.
+ *
+ * <p>Layout: magic, version, the blocks, the footer, then the footer's
+ * offset and the magic again, which marks a complete file.
+ */
+final class ArchiveSegment {
+    static final int BLOCK_ROWS = 4096;
+    private static final long MAGIC = 0x4C49424152434831L;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = Long.BYTES + Integer.BYTES;
+    private static final int TRAILER_BYTES = 2 * Long.BYTES;
+    private static final int FOOTER_ENTRY_BYTES = 3 * Long.BYTES + 2 * Integer.BYTES;
+    
+    private final Path file;
+    private volatile FileChannel channel;
+    private final long rowCount;
+    private final long[] firstIds;
+    private final long[] lastIds;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] rowCounts;
+    private final MemberIndex memberIndex;
+    
+    private ArchiveSegment(Path file, FileChannel channel, long rowCount, long[] firstIds, long[] lastIds,
+            long[] offsets, int[] lengths, int[] rowCounts, MemberIndex memberIndex) {
+        this.file = file;
+        this.channel = channel;
+        this.rowCount = rowCount;
+        this.firstIds = firstIds;
+        this.lastIds = lastIds;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.rowCounts = rowCounts;
+        this.memberIndex = memberIndex;
+    }
+    
+    /**
+     * Writes {@code transactions}, which must come in ascending ID order, to
+     * {@code file} atomically and returns the segment. Returns null if there
+     * were none, writing nothing.
+     */
+    static ArchiveSegment write(Path file, Iterator<Transaction> transactions) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        List<long[]> index = new ArrayList<>();
+        MemberIndex.Builder members = new MemberIndex.Builder();
+        long rowCount = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            long offset = HEADER_BYTES;
+            BlockEncoder encoder = new BlockEncoder();
+            Deflater deflater = new Deflater();
+            byte[] compressed = new byte[1 << 16];
+            try {
+                while (transactions.hasNext()) {
+                    Transaction transaction = transactions.next();
+                    encoder.add(transaction);
+                    members.add(transaction.getMemberId(), index.size());
+                    if (encoder.rows == BLOCK_ROWS || !transactions.hasNext()) {
+                        byte[] raw = encoder.finish();
+                        deflater.reset();
+                        deflater.setInput(raw);
+                        deflater.finish();
+                        int length = 0;
+                        while (!deflater.finished()) {
+                            int count = deflater.deflate(compressed);
+                            out.write(compressed, 0, count);
+                            length += count;
+                        }
+                        index.add(new long[] {encoder.firstId, encoder.previousId, offset, length, encoder.rows});
+                        offset += length;
+                        rowCount += encoder.rows;
+                        encoder.reset();
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+            if (index.isEmpty()) {
+                out.close();
+                Files.deleteIfExists(temp);
+                return null;
+            }
+            out.writeInt(index.size());
+            for (long[] entry : index) {
+                out.writeLong(entry[0]);
+                out.writeLong(entry[1]);
+                out.writeLong(entry[2]);
+                out.writeInt((int) entry[3]);
+                out.writeInt((int) entry[4]);
+            }
+            out.writeLong(rowCount);
+            out.writeLong(offset);
+            out.writeLong(MAGIC);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file, members.build());
+    }
+    
+    // Opens an existing segment, reads its footer and indexes its members, which inflates every block once
+    static ArchiveSegment open(Path file) throws IOException {
+        return open(file, null);
+    }
+    
+    private static ArchiveSegment open(Path file, MemberIndex memberIndex) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_BYTES + Integer.BYTES + Long.BYTES + TRAILER_BYTES) {
+                throw new IOException("Archive segment is truncated: " + file);
+            }
+            ByteBuffer header = read(channel, 0, HEADER_BYTES);
+            if (header.getLong() != MAGIC) {
+                throw new IOException("Not an archive segment: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported archive segment version " + version + ": " + file);
+            }
+            ByteBuffer trailer = read(channel, size - TRAILER_BYTES, TRAILER_BYTES);
+            long footerOffset = trailer.getLong();
+            if (trailer.getLong() != MAGIC || footerOffset < HEADER_BYTES || footerOffset > size - TRAILER_BYTES) {
+                throw new IOException("Archive segment is incomplete: " + file);
+            }
+            ByteBuffer footer = read(channel, footerOffset, (int) (size - TRAILER_BYTES - footerOffset));
+            int blocks = footer.getInt();
+            if (blocks <= 0 || footer.remaining() != (long) blocks * FOOTER_ENTRY_BYTES + Long.BYTES) {
+                throw new IOException("Archive segment footer is corrupt: " + file);
+            }
+            long[] firstIds = new long[blocks];
+            long[] lastIds = new long[blocks];
+            long[] offsets = new long[blocks];
+            int[] lengths = new int[blocks];
+            int[] rowCounts = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                firstIds[i] = footer.getLong();
+                lastIds[i] = footer.getLong();
+                offsets[i] = footer.getLong();
+                lengths[i] = footer.getInt();
+                rowCounts[i] = footer.getInt();
+            }
+            ArchiveSegment segment = new ArchiveSegment(file, channel, footer.getLong(), firstIds, lastIds, offsets,
+                lengths, rowCounts, memberIndex);
+            return memberIndex != null ? segment : segment.withMemberIndex();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    Path getFile() {
+        return file;
+    }
+    
+    long getRowCount() {
+        return rowCount;
+    }
+    
+    long getFirstId() {
+        return firstIds[0];
+    }
+    
+    long getLastId() {
+        return lastIds[lastIds.length - 1];
+    }
+    
+    // The loan with this ID, or null; inflates at most one block
+    Transaction find(long id) throws IOException {
+        if (id < getFirstId() || id > getLastId()) {
+            return null;
+        }
+        int block = firstBlockEndingAfter(id - 1);
+        if (firstIds[block] > id) {
+            return null;
+        }
+        for (Transaction transaction : readBlock(block)) {
+            long current = TransactionIdAllocator.parse(transaction.getId());
+            if (current == id) {
+                return transaction;
+            }
+            if (current > id) {
+                break;
+            }
+        }
+        return null;
+    }
+    
+    // One member's loans in ID order; inflates only the blocks that hold them
+    List<Transaction> findByMember(String memberId) throws IOException {
+        List<Transaction> result = new ArrayList<>();
+        for (int block : memberIndex.blocksOf(memberId)) {
+            for (Transaction transaction : readBlock(block)) {
+                if (memberId.equals(transaction.getMemberId())) {
+                    result.add(transaction);
+                }
+            }
+        }
+        return result;
+    }
+    
+    // Loans with an ID above afterId, in ID order, read one block at a time
+    Iterator<Transaction> iterator(long afterId) {
+        int start = afterId < getFirstId() ? 0 : firstBlockEndingAfter(afterId);
+        return new Iterator<>() {
+            private int block = start;
+            private List<Transaction> rows = new ArrayList<>();
+            private int position;
+            
+            @Override
+            public boolean hasNext() {
+                while (position == rows.size()) {
+                    if (block == firstIds.length) {
+                        return false;
+                    }
+                    try {
+                        rows = readBlock(block++);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    position = 0;
+                    while (position < rows.size() && TransactionIdAllocator.parse(rows.get(position).getId()) <= afterId) {
+                        position++;
+                    }
+                }
+                return true;
+            }
+            
+            @Override
+            public Transaction next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return rows.get(position++);
+            }
+        };
+    }
+    
+    private ArchiveSegment withMemberIndex() throws IOException {
+        MemberIndex.Builder members = new MemberIndex.Builder();
+        for (int block = 0; block < firstIds.length; block++) {
+            for (Transaction transaction : readBlock(block)) {
+                members.add(transaction.getMemberId(), block);
+            }
+        }
+        return new ArchiveSegment(file, channel, rowCount, firstIds, lastIds, offsets, lengths, rowCounts,
+            members.build());
+    }
+    
+    // First block whose last ID is greater than id, or the block count
+    private int firstBlockEndingAfter(long id) {
+        int low = 0;
+        int high = lastIds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lastIds[middle] <= id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    private List<Transaction> readBlock(int block) throws IOException {
+        ByteBuffer compressed = readShared(offsets[block], lengths[block]);
+        Inflater inflater = new Inflater();
+        byte[] raw;
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream(lengths[block] * 4);
+            byte[] buffer = new byte[1 << 16];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Archive block " + block + " is truncated: " + file);
+                }
+                inflated.write(buffer, 0, count);
+            }
+            raw = inflated.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Archive block " + block + " is corrupt: " + file, e);
+        } finally {
+            inflater.end();
+        }
+        return decode(ByteBuffer.wrap(raw), rowCounts[block]);
+    }
+    
+    private List<Transaction> decode(ByteBuffer in, int rows) throws IOException {
+        try {
+            String[] strings = new String[(int) readVarLong(in)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[(int) readVarLong(in)];
+                in.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            List<Transaction> result = new ArrayList<>(rows);
+            long id = 0;
+            long borrowDay = 0;
+            for (int i = 0; i < rows; i++) {
+                id += readVarLong(in);
+                String copyId = strings[(int) readVarLong(in)];
+                String memberId = strings[(int) readVarLong(in)];
+                borrowDay += zigZagDecode(readVarLong(in));
+                LocalDate dueDate = readRelativeDate(in, borrowDay);
+                LocalDate returnDate = readRelativeDate(in, borrowDay);
+                Transaction transaction = new Transaction(TransactionIdAllocator.format(id), Book.titleIdOf(copyId),
+                    Book.copyNumberOf(copyId), memberId, LocalDate.ofEpochDay(borrowDay), dueDate);
+                if (returnDate != null) {
+                    transaction.setReturnDate(returnDate);
+                    transaction.setReturned(true);
+                }
+                result.add(transaction);
+            }
+            return result;
+        } catch (RuntimeException e) {
+            throw new IOException("Archive block is corrupt: " + file, e);
+        }
+    }
+    
+    private ByteBuffer readShared(long position, int length) throws IOException {
+        FileChannel current = channel;
+        try {
+            return read(current, position, length);
+        } catch (ClosedChannelException e) {
+            // An interrupt during another thread's read closes the channel for everyone; reopen it for the others
+            if (Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+            return read(reopen(current), position, length);
+        }
+    }
+    
+    private synchronized FileChannel reopen(FileChannel closed) throws IOException {
+        if (channel == closed) {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        }
+        return channel;
+    }
+    
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of archive segment");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    // 0 for no date, otherwise one more than the zigzagged distance from the borrow date
+    private static LocalDate readRelativeDate(ByteBuffer in, long borrowDay) {
+        long value = readVarLong(in);
+        return value == 0 ? null : LocalDate.ofEpochDay(borrowDay + zigZagDecode(value - 1));
+    }
+    
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+    
+    private static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    // The blocks holding each member's loans: member IDs sorted, and each one's block numbers in a shared array
+    private static final class MemberIndex {
+        private static final int[] NONE = new int[0];
+        
+        private final String[] memberIds;
+        private final int[] starts;
+        private final int[] blocks;
+        
+        private MemberIndex(String[] memberIds, int[] starts, int[] blocks) {
+            this.memberIds = memberIds;
+            this.starts = starts;
+            this.blocks = blocks;
+        }
+        
+        int[] blocksOf(String memberId) {
+            int i = Arrays.binarySearch(memberIds, memberId);
+            return i < 0 ? NONE : Arrays.copyOfRange(blocks, starts[i], starts[i + 1]);
+        }
+        
+        // Takes rows block by block, in block order
+        static final class Builder {
+            private final Map<String, List<Integer>> blocksByMemberId = new HashMap<>();
+            private int pairs;
+            
+            void add(String memberId, int block) {
+                List<Integer> memberBlocks = blocksByMemberId.computeIfAbsent(memberId, id -> new ArrayList<>());
+                if (memberBlocks.isEmpty() || memberBlocks.get(memberBlocks.size() - 1) != block) {
+                    memberBlocks.add(block);
+                    pairs++;
+                }
+            }
+            
+            MemberIndex build() {
+                String[] memberIds = blocksByMemberId.keySet().toArray(new String[0]);
+                Arrays.sort(memberIds);
+                int[] starts = new int[memberIds.length + 1];
+                int[] blocks = new int[pairs];
+                int next = 0;
+                for (int i = 0; i < memberIds.length; i++) {
+                    starts[i] = next;
+                    for (int block : blocksByMemberId.get(memberIds[i])) {
+                        blocks[next++] = block;
+                    }
+                }
+                starts[memberIds.length] = next;
+                return new MemberIndex(memberIds, starts, blocks);
+            }
+        }
+    }
+    
+    // Builds the uncompressed form of one block
+    private static final class BlockEncoder {
+        private final Map<String, Integer> stringIndexes = new HashMap<>();
+        private final ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private int rows;
+        private long firstId;
+        private long previousId;
+        private long previousBorrowDay;
+        
+        void add(Transaction transaction) {
+            long id = TransactionIdAllocator.parse(transaction.getId());
+            if (rows > 0 && id <= previousId) {
+                throw new IllegalArgumentException("Archived loans must be in ascending ID order: " + transaction.getId());
+            }
+            if (rows == 0) {
+                firstId = id;
+            }
+            long borrowDay = transaction.getBorrowDate().toEpochDay();
+            writeVarLong(body, id - previousId);
+            writeVarLong(body, indexOf(transaction.getCopyId()));
+            writeVarLong(body, indexOf(transaction.getMemberId()));
+            writeVarLong(body, zigZagEncode(borrowDay - previousBorrowDay));
+            writeRelativeDate(body, transaction.getDueDate(), borrowDay);
+            writeRelativeDate(body, transaction.isReturned() ? transaction.getReturnDate() : null, borrowDay);
+            previousId = id;
+            previousBorrowDay = borrowDay;
+            rows++;
+        }
+        
+        byte[] finish() {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(strings.size() + body.size() + 8);
+            writeVarLong(block, stringIndexes.size());
+            block.writeBytes(strings.toByteArray());
+            block.writeBytes(body.toByteArray());
+            return block.toByteArray();
+        }
+        
+        void reset() {
+            stringIndexes.clear();
+            strings.reset();
+            body.reset();
+            rows = 0;
+            previousId = 0;
+            previousBorrowDay = 0;
+        }
+        
+        private int indexOf(String value) {
+            Integer index = stringIndexes.get(value);
+            if (index == null) {
+                index = stringIndexes.size();
+                stringIndexes.put(value, index);
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarLong(strings, bytes.length);
+                strings.writeBytes(bytes);
+            }
+            return index;
+        }
+        
+        private static void writeRelativeDate(ByteArrayOutputStream out, LocalDate date, long borrowDay) {
+            writeVarLong(out, date == null ? 0 : zigZagEncode(date.toEpochDay() - borrowDay) + 1);
+        }
+        
+        private static void writeVarLong(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+        
+        private static long zigZagEncode(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+}
\ No newline at end of file
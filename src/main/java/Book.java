@@ -1,14 +1,62 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A catalog entry. Authors repeat across many books, so the service a book is
+ * added to swaps its author for the one copy of that string its catalog
+ * keeps, and the book holds a reference to the shared copy.
+ *
+ * <p>A title can have several physical copies, numbered from 1. Copy 1 goes
+ * by the title's ID and copy n by {@code id#n}, which is why a book ID may
+ * not contain '#'. Which copies are on the shelf is tracked without locks:
+ * a counter of free copies that a borrower decrements first, which reserves
+ * one, and for titles with more than one copy a bitset of free copies from
+ * which the reserved copy is then taken. Both are compare-and-set, so
+ * concurrent checkouts of a popular title do not queue behind each other.
+ */
 public class Book {
+    static final char COPY_SEPARATOR = '#';
+    
+    private static final VarHandle AVAILABLE;
+    private static final VarHandle FREE = MethodHandles.arrayElementVarHandle(long[].class);
+    
+    static {
+        try {
+            AVAILABLE = MethodHandles.lookup().findVarHandle(Book.class, "available", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
     private String id;
     private String title;
     private String author;
-    private boolean isAvailable;
+    private final int copies;
+    // Copies on the shelf and not reserved by a borrower
+    private volatile int available;
+    // Bit n - 1 is set while copy n is on the shelf; null for a single copy, which the counter covers alone
+    private final long[] free;
+    // VersionClock versions of the changes that added and removed it, for point-in-time reads; 0 when loaded
+    long addedVersion;
+    volatile long removedVersion = Long.MAX_VALUE;
+    // Its document in the search index of the catalog holding it, or -1; fits in the object's padding
+    int searchDoc = -1;
     
     public Book(String id, String title, String author) {
+        this(id, title, author, 1);
+    }
+    
+    public Book(String id, String title, String author, int copies) {
+        if (copies < 1) {
+            throw new IllegalArgumentException("A book needs at least one copy: " + copies);
+        }
         this.id = id;
         this.title = title;
         this.author = author;
-        this.isAvailable = true;
+        this.copies = copies;
+        this.free = copies == 1 ? null : new long[(copies + 63) >>> 6];
+        setAvailable(true);
     }
     
     public String getId() {
@@ -23,11 +71,145 @@ public class Book {
         return author;
     }
     
+    public int getCopies() {
+        return copies;
+    }
+    
+    public int getAvailableCopies() {
+        return available;
+    }
+    
+    // Whether any copy is on the shelf
     public boolean isAvailable() {
-        return isAvailable;
+        return available > 0;
     }
     
+    public boolean isCopyAvailable(int copy) {
+        if (copy < 1 || copy > copies) {
+            return false;
+        }
+        if (free == null) {
+            return available > 0;
+        }
+        return ((long) FREE.getVolatile(free, (copy - 1) >>> 6) & 1L << (copy - 1)) != 0;
+    }
+    
+    // Puts every copy on the shelf or takes every copy off; not atomic with borrowers, so for setting up state
     public void setAvailable(boolean available) {
-        isAvailable = available;
+        if (free != null) {
+            for (int word = 0; word < free.length; word++) {
+                long bits = 0;
+                if (available) {
+                    int inWord = Math.min(64, copies - (word << 6));
+                    bits = inWord == 64 ? -1L : (1L << inWord) - 1;
+                }
+                FREE.setVolatile(free, word, bits);
+            }
+        }
+        this.available = available ? copies : 0;
+    }
+    
+    // Replaces the author with an equal string shared by the catalog, before the book is published there
+    void shareAuthor(String shared) {
+        author = shared;
+    }
+    
+    public String getCopyId(int copy) {
+        return copy == 1 ? id : id + COPY_SEPARATOR + copy;
+    }
+    
+    // The title a copy ID belongs to; a title ID is its own first copy
+    public static String titleIdOf(String copyId) {
+        int separator = copyId.lastIndexOf(COPY_SEPARATOR);
+        return separator < 0 ? copyId : copyId.substring(0, separator);
+    }
+    
+    // The copy number in a copy ID, 1 for a title ID, or 0 if the number is malformed
+    public static int copyNumberOf(String copyId) {
+        int separator = copyId.lastIndexOf(COPY_SEPARATOR);
+        if (separator < 0) {
+            return 1;
+        }
+        try {
+            int copy = Integer.parseInt(copyId, separator + 1, copyId.length(), 10);
+            return copy > 1 ? copy : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    // Takes any copy off the shelf and returns its number, or 0 if none is free
+    int takeAnyCopy() {
+        if (!reserve()) {
+            return 0;
+        }
+        if (free == null) {
+            return 1;
+        }
+        // The reservation is backed by a set bit no other reservation takes; start at a random word to spread contention
+        int start = free.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(free.length);
+        while (true) {
+            for (int i = 0; i < free.length; i++) {
+                int word = (start + i) % free.length;
+                long bits = (long) FREE.getVolatile(free, word);
+                while (bits != 0) {
+                    long bit = Long.lowestOneBit(bits);
+                    long witness = (long) FREE.compareAndExchange(free, word, bits, bits & ~bit);
+                    if (witness == bits) {
+                        return (word << 6) + Long.numberOfTrailingZeros(bit) + 1;
+                    }
+                    bits = witness;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+    
+    // Takes this copy off the shelf; false if it is not there
+    boolean takeCopy(int copy) {
+        if (copy < 1 || copy > copies || !reserve()) {
+            return false;
+        }
+        if (free == null) {
+            return true;
+        }
+        int word = (copy - 1) >>> 6;
+        long bit = 1L << (copy - 1);
+        long bits = (long) FREE.getVolatile(free, word);
+        while ((bits & bit) != 0) {
+            long witness = (long) FREE.compareAndExchange(free, word, bits, bits & ~bit);
+            if (witness == bits) {
+                return true;
+            }
+            bits = witness;
+        }
+        // Someone else has it; hand the reservation back
+        AVAILABLE.getAndAdd(this, 1);
+        return false;
+    }
+    
+    // Puts a copy back on the shelf; false if it was there already. The bit goes first so a reservation always finds one
+    boolean releaseCopy(int copy) {
+        if (free == null) {
+            return AVAILABLE.compareAndSet(this, 0, 1);
+        }
+        long bit = 1L << (copy - 1);
+        if (((long) FREE.getAndBitwiseOr(free, (copy - 1) >>> 6, bit) & bit) != 0) {
+            return false;
+        }
+        AVAILABLE.getAndAdd(this, 1);
+        return true;
+    }
+    
+    private boolean reserve() {
+        int count = available;
+        while (count > 0) {
+            int witness = (int) AVAILABLE.compareAndExchange(this, count, count - 1);
+            if (witness == count) {
+                return true;
+            }
+            count = witness;
+        }
+        return false;
     }
 }
\ No newline at end of file
@@ -0,0 +1,293 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Inverted index over book titles and authors.
+ *
+ * <p>Each query word matches index terms exactly, by prefix (so partial words
+ * work while typing) and within one typo (insert, delete, substitute or swap
+ * two letters). Matches are weighted by how rare the term is, by the kind of
+ * match and by field (title over author); books matching more of the query
+ * words rank higher.
+ *
+ * <p>Writers are serialized; searches take no locks and see every book whose
+ * add has returned. A removed book leaves its postings behind and searches
+ * skip it.
+ */
+public class BookSearchIndex {
+    private static final float TITLE_WEIGHT = 2.0f;
+    private static final float AUTHOR_WEIGHT = 1.0f;
+    private static final float EXACT_WEIGHT = 1.0f;
+    private static final float PREFIX_WEIGHT = 0.7f;
+    private static final float FUZZY_WEIGHT = 0.5f;
+    private static final int MIN_PREFIX_LENGTH = 2;
+    private static final int MIN_FUZZY_LENGTH = 4;
+    private static final int MAX_EXPANSIONS = 64;
+    private static final String[] NO_TERMS = new String[0];
+    
+    // Term -> postings; sorted so that prefix matches are a range scan
+    private final ConcurrentNavigableMap<String, Postings> terms;
+    // One-letter deletions of each term -> terms, for typo matching
+    private final Map<String, String[]> deletions;
+    private volatile Book[] documents;
+    private volatile int documentCount;
+    private volatile int removedCount;
+    
+    public BookSearchIndex() {
+        this.terms = new ConcurrentSkipListMap<>();
+        this.deletions = new ConcurrentHashMap<>();
+        this.documents = new Book[1024];
+    }
+    
+    public synchronized void add(Book book) {
+        if (book != null) {
+            index(book);
+        }
+    }
+    
+    public synchronized void addAll(Collection<Book> books) {
+        for (Book book : books) {
+            if (book != null) {
+                index(book);
+            }
+        }
+    }
+    
+    // The book knows its doc, so no scan is needed unless it was indexed somewhere else since
+    public synchronized void remove(Book book) {
+        int doc = book.searchDoc;
+        if (doc < 0 || doc >= documentCount || documents[doc] != book) {
+            doc = documentCount - 1;
+            while (doc >= 0 && documents[doc] != book) {
+                doc--;
+            }
+        }
+        if (doc >= 0) {
+            documents[doc] = null;
+            removedCount++;
+        }
+    }
+    
+    public int size() {
+        return documentCount - removedCount;
+    }
+    
+    /**
+     * Returns up to {@code limit} books ranked by relevance to {@code query},
+     * best first. Ties keep the order in which books were added.
+     */
+    public List<Book> search(String query, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        Set<String> words = new LinkedHashSet<>(tokenize(query));
+        if (words.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int total = documentCount;
+        Book[] snapshot = documents;
+        
+        // doc -> {summed score, number of query words matched}
+        Map<Integer, float[]> scores = new HashMap<>();
+        for (String word : words) {
+            Map<Integer, Float> wordScores = new HashMap<>();
+            for (Map.Entry<String, Float> match : expand(word).entrySet()) {
+                Postings postings = terms.get(match.getKey());
+                if (postings != null) {
+                    accumulate(postings, match.getValue(), total, wordScores);
+                }
+            }
+            for (Map.Entry<Integer, Float> entry : wordScores.entrySet()) {
+                float[] score = scores.computeIfAbsent(entry.getKey(), doc -> new float[2]);
+                score[0] += entry.getValue();
+                score[1]++;
+            }
+        }
+        
+        // Min-heap of {score, doc}: the weakest candidate is evicted first, later docs lose ties
+        PriorityQueue<double[]> top = new PriorityQueue<>(limit + 1, (a, b) ->
+            a[0] != b[0] ? Double.compare(a[0], b[0]) : Double.compare(b[1], a[1]));
+        for (Map.Entry<Integer, float[]> entry : scores.entrySet()) {
+            if (snapshot[entry.getKey()] == null) {
+                continue;
+            }
+            float[] score = entry.getValue();
+            double ranked = (double) score[0] * score[1] / words.size();
+            top.add(new double[] {ranked, entry.getKey()});
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+        Book[] results = new Book[top.size()];
+        for (int i = results.length - 1; i >= 0; i--) {
+            results[i] = snapshot[(int) top.poll()[1]];
+        }
+        return Arrays.asList(results);
+    }
+    
+    // Index terms a query word matches, with the weight of the kind of match
+    private Map<String, Float> expand(String word) {
+        Map<String, Float> matches = new HashMap<>();
+        if (terms.containsKey(word)) {
+            matches.put(word, EXACT_WEIGHT);
+        }
+        if (word.length() >= MIN_PREFIX_LENGTH) {
+            int expansions = 0;
+            for (String term : terms.subMap(word, false, word + Character.MAX_VALUE, false).keySet()) {
+                if (++expansions > MAX_EXPANSIONS) {
+                    break;
+                }
+                matches.putIfAbsent(term, PREFIX_WEIGHT);
+            }
+        }
+        if (word.length() >= MIN_FUZZY_LENGTH) {
+            List<String> candidates = new ArrayList<>();
+            candidates.addAll(Arrays.asList(deletions.getOrDefault(word, NO_TERMS)));
+            for (String deleted : deletionsOf(word)) {
+                if (terms.containsKey(deleted)) {
+                    candidates.add(deleted);
+                }
+                candidates.addAll(Arrays.asList(deletions.getOrDefault(deleted, NO_TERMS)));
+            }
+            for (String candidate : candidates) {
+                if (!matches.containsKey(candidate) && withinOneEdit(word, candidate)) {
+                    matches.put(candidate, FUZZY_WEIGHT);
+                }
+            }
+        }
+        return matches;
+    }
+    
+    private static void accumulate(Postings postings, float matchWeight, int total, Map<Integer, Float> wordScores) {
+        int size = postings.size;
+        int[] entries = postings.entries;
+        float idf = (float) Math.log(1.0 + (double) total / size);
+        for (int i = 0; i < size; i++) {
+            int doc = entries[i] >>> 1;
+            if (doc >= total) {
+                // Still being indexed; not published yet
+                continue;
+            }
+            float fieldWeight = (entries[i] & 1) != 0 ? TITLE_WEIGHT : AUTHOR_WEIGHT;
+            float score = matchWeight * fieldWeight * idf;
+            // A word counts once per book, through its best match
+            wordScores.merge(doc, score, Math::max);
+        }
+    }
+    
+    private void index(Book book) {
+        int doc = documentCount;
+        if (doc == documents.length) {
+            documents = Arrays.copyOf(documents, doc * 2);
+        }
+        documents[doc] = book;
+        book.searchDoc = doc;
+        Set<String> titleTerms = new LinkedHashSet<>(tokenize(book.getTitle()));
+        Set<String> authorTerms = new LinkedHashSet<>(tokenize(book.getAuthor()));
+        for (String term : titleTerms) {
+            post(term, doc << 1 | 1);
+        }
+        for (String term : authorTerms) {
+            post(term, doc << 1);
+        }
+        // Published last so searches never see a doc whose postings are incomplete
+        documentCount = doc + 1;
+    }
+    
+    private void post(String term, int entry) {
+        Postings postings = terms.get(term);
+        if (postings == null) {
+            postings = new Postings();
+            terms.put(term, postings);
+            if (term.length() >= MIN_FUZZY_LENGTH) {
+                for (String deleted : deletionsOf(term)) {
+                    String[] existing = deletions.getOrDefault(deleted, NO_TERMS);
+                    String[] grown = Arrays.copyOf(existing, existing.length + 1);
+                    grown[existing.length] = term;
+                    deletions.put(deleted, grown);
+                }
+            }
+        }
+        postings.append(entry);
+    }
+    
+    private static Set<String> deletionsOf(String term) {
+        Set<String> result = new LinkedHashSet<>();
+        for (int i = 0; i < term.length(); i++) {
+            result.add(term.substring(0, i) + term.substring(i + 1));
+        }
+        return result;
+    }
+    
+    // Optimal string alignment distance <= 1: one insert, delete, substitution or adjacent swap
+    static boolean withinOneEdit(String a, String b) {
+        int lengthDifference = a.length() - b.length();
+        if (Math.abs(lengthDifference) > 1) {
+            return false;
+        }
+        int i = 0;
+        while (i < a.length() && i < b.length() && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        if (lengthDifference > 0) {
+            return a.regionMatches(i + 1, b, i, b.length() - i);
+        }
+        if (lengthDifference < 0) {
+            return b.regionMatches(i + 1, a, i, a.length() - i);
+        }
+        if (i == a.length()) {
+            return true;
+        }
+        if (a.regionMatches(i + 1, b, i + 1, a.length() - i - 1)) {
+            return true;
+        }
+        return i + 1 < a.length() && a.charAt(i) == b.charAt(i + 1) && a.charAt(i + 1) == b.charAt(i)
+            && a.regionMatches(i + 2, b, i + 2, a.length() - i - 2);
+    }
+    
+    // Lower-cased runs of letters and digits
+    static List<String> tokenize(String text) {
+        if (text == null) {
+            return Collections.emptyList();
+        }
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+    
+    // Append-only doc list; entries are (doc << 1 | 1 if the term is in the title)
+    private static final class Postings {
+        private volatile int[] entries = new int[2];
+        private volatile int size;
+        
+        void append(int entry) {
+            int[] current = entries;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+                entries = current;
+            }
+            current[size] = entry;
+            size = size + 1;
+        }
+    }
+}
\ No newline at end of file
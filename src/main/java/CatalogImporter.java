@@ -0,0 +1,266 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bulk loader for book and member catalogs in CSV or TSV form, one record per
+ * line as {@code id,title,author} or {@code id,name,email}; a book line may
+ * add a fourth column with the number of copies, 1 if absent. A leading header
+ * row whose first column is "id" is skipped. Files ending in .tsv or .tab are
+ * split on tabs; anything else is read as CSV with optional double quotes.
+ *
+ * <p>The reading thread hands fixed-size chunks of lines to a fork-join pool,
+ * which parses and validates them in parallel and adds each chunk to the
+ * service as one batch. At most two chunks per worker are in memory at once,
+ * so memory stays bounded however large the file is.
+ */
+public class CatalogImporter {
+    private static final int DEFAULT_CHUNK_ROWS = 20_000;
+    private static final int MAX_REPORTED_ERRORS = 20;
+    private static final int FIELDS = 3;
+    
+    private final LibraryService service;
+    private final ForkJoinPool pool;
+    private final int chunkRows;
+    
+    public CatalogImporter(LibraryService service) {
+        this(service, ForkJoinPool.commonPool(), DEFAULT_CHUNK_ROWS);
+    }
+    
+    public CatalogImporter(LibraryService service, ForkJoinPool pool, int chunkRows) {
+        if (service == null || pool == null) {
+            throw new IllegalArgumentException("service and pool must not be null");
+        }
+        if (chunkRows <= 0) {
+            throw new IllegalArgumentException("chunkRows must be positive");
+        }
+        this.service = service;
+        this.pool = pool;
+        this.chunkRows = chunkRows;
+    }
+    
+    public ImportResult importBooks(Path file) throws IOException {
+        return importFile(file, fields -> new Book(fields[0], fields[1], fields[2],
+            fields.length > FIELDS ? Integer.parseInt(fields[FIELDS]) : 1), service::addBooks, true);
+    }
+    
+    public ImportResult importMembers(Path file) throws IOException {
+        return importFile(file, fields -> new Member(fields[0], fields[1], fields[2]), service::addMembers, false);
+    }
+    
+    // Books may have a copies column and their IDs may not contain the '#' of copy IDs
+    private <T> ImportResult importFile(Path file, Function<String[], T> factory,
+            Function<List<T>, Integer> batchAdder, boolean books) throws IOException {
+        long started = System.nanoTime();
+        char delimiter = isTabSeparated(file) ? '\t' : ',';
+        Counters counters = new Counters();
+        Semaphore inFlight = new Semaphore(Math.max(2, pool.getParallelism() * 2));
+        Deque<ForkJoinTask<?>> tasks = new ArrayDeque<>();
+        
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            long lineNumber = 0;
+            long chunkStart = 1;
+            List<String> chunk = new ArrayList<>(chunkRows);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber == 1 && isHeader(line, delimiter)) {
+                    chunkStart = 2;
+                    continue;
+                }
+                chunk.add(line);
+                if (chunk.size() == chunkRows) {
+                    tasks.add(submit(chunk, chunkStart, delimiter, factory, batchAdder, books, counters, inFlight));
+                    chunk = new ArrayList<>(chunkRows);
+                    chunkStart = lineNumber + 1;
+                    joinCompleted(tasks);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                tasks.add(submit(chunk, chunkStart, delimiter, factory, batchAdder, books, counters, inFlight));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } finally {
+            for (ForkJoinTask<?> task : tasks) {
+                task.quietlyJoin();
+            }
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            rethrowFailure(task);
+        }
+        
+        long rows = counters.rows.sum();
+        long invalid = counters.invalid.sum();
+        long imported = counters.imported.sum();
+        List<String> errors;
+        synchronized (counters.errors) {
+            errors = new ArrayList<>(counters.errors);
+        }
+        Collections.sort(errors, (a, b) -> Long.compare(errorLine(a), errorLine(b)));
+        return new ImportResult(rows, imported, rows - invalid - imported, invalid, errors, System.nanoTime() - started);
+    }
+    
+    private <T> ForkJoinTask<?> submit(List<String> chunk, long firstLine, char delimiter,
+            Function<String[], T> factory, Function<List<T>, Integer> batchAdder, boolean books,
+            Counters counters, Semaphore inFlight) throws InterruptedException {
+        inFlight.acquire();
+        return pool.submit(() -> {
+            try {
+                List<T> records = new ArrayList<>(chunk.size());
+                for (int i = 0; i < chunk.size(); i++) {
+                    String line = chunk.get(i);
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    counters.rows.increment();
+                    String[] fields = parseLine(line, delimiter);
+                    String error = validate(fields, books);
+                    if (error != null) {
+                        counters.invalid.increment();
+                        counters.reportError(firstLine + i, error);
+                    } else {
+                        records.add(factory.apply(fields));
+                    }
+                }
+                counters.imported.add(batchAdder.apply(records));
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+    
+    private static void joinCompleted(Deque<ForkJoinTask<?>> tasks) throws IOException {
+        while (!tasks.isEmpty() && tasks.peekFirst().isDone()) {
+            rethrowFailure(tasks.pollFirst());
+        }
+    }
+    
+    private static void rethrowFailure(ForkJoinTask<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Import failed", e.getCause());
+        }
+    }
+    
+    private static String validate(String[] fields, boolean books) {
+        if (fields == null) {
+            return "unterminated quote";
+        }
+        if (fields.length != FIELDS && !(books && fields.length == FIELDS + 1)) {
+            return "expected " + (books ? FIELDS + " or " + (FIELDS + 1) : FIELDS) + " fields but found "
+                + fields.length;
+        }
+        if (fields[0].isEmpty()) {
+            return "missing id";
+        }
+        if (books && fields[0].indexOf(Book.COPY_SEPARATOR) >= 0) {
+            return "id must not contain '" + Book.COPY_SEPARATOR + "'";
+        }
+        if (fields.length > FIELDS && !isPositiveInt(fields[FIELDS])) {
+            return "copies must be a positive integer";
+        }
+        return null;
+    }
+    
+    private static boolean isPositiveInt(String value) {
+        try {
+            return Integer.parseInt(value) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+    
+    // Splits one line; returns null for a malformed quoted field. Fields are trimmed.
+    static String[] parseLine(String line, char delimiter) {
+        List<String> fields = new ArrayList<>(FIELDS);
+        if (delimiter == '\t') {
+            int start = 0;
+            int end;
+            while ((end = line.indexOf('\t', start)) >= 0) {
+                fields.add(line.substring(start, end).trim());
+                start = end + 1;
+            }
+            fields.add(line.substring(start).trim());
+            return fields.toArray(new String[0]);
+        }
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"' && field.toString().trim().isEmpty()) {
+                field.setLength(0);
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString().trim());
+        return fields.toArray(new String[0]);
+    }
+    
+    private static boolean isHeader(String line, char delimiter) {
+        String[] fields = parseLine(line, delimiter);
+        return fields != null && fields.length > 0 && "id".equalsIgnoreCase(fields[0]);
+    }
+    
+    private static boolean isTabSeparated(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        return name.endsWith(".tsv") || name.endsWith(".tab");
+    }
+    
+    private static long errorLine(String error) {
+        return Long.parseLong(error.substring("line ".length(), error.indexOf(':')));
+    }
+    
+    private static final class Counters {
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder imported = new LongAdder();
+        private final LongAdder invalid = new LongAdder();
+        private final List<String> errors = new ArrayList<>();
+        
+        void reportError(long line, String reason) {
+            synchronized (errors) {
+                if (errors.size() < MAX_REPORTED_ERRORS) {
+                    errors.add("line " + line + ": " + reason);
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,83 @@
+import java.time.LocalDate;
+
+/**
+ * One change published by {@link CirculationEventFeed}. Instances are slots
+ * of the feed's ring buffer and of each subscription, overwritten in place,
+ * so a handler must copy out what it wants to keep.
+ */
+public final class CirculationEvent {
+    public enum Type { BOOK_ADDED, MEMBER_ADDED, BORROWED, RETURNED }
+    
+    // Slot state written by producers; see CirculationEventFeed
+    volatile long sequence;
+    private Type type;
+    private String bookId;
+    private String memberId;
+    private String transactionId;
+    private String name;
+    private LocalDate date;
+    private long publishedSequence;
+    
+    CirculationEvent() {
+    }
+    
+    public Type getType() {
+        return type;
+    }
+    
+    // Position in the feed, counting from 0 with no gaps
+    public long getSequence() {
+        return publishedSequence;
+    }
+    
+    // Null for MEMBER_ADDED
+    public String getBookId() {
+        return bookId;
+    }
+    
+    // Null for BOOK_ADDED
+    public String getMemberId() {
+        return memberId;
+    }
+    
+    // Set for BORROWED and RETURNED
+    public String getTransactionId() {
+        return transactionId;
+    }
+    
+    // The book's title or the member's name for the ADDED events
+    public String getName() {
+        return name;
+    }
+    
+    // The borrow date for BORROWED, the return date for RETURNED
+    public LocalDate getDate() {
+        return date;
+    }
+    
+    void set(long sequence, Type type, String bookId, String memberId, String transactionId, String name,
+            LocalDate date) {
+        this.publishedSequence = sequence;
+        this.type = type;
+        this.bookId = bookId;
+        this.memberId = memberId;
+        this.transactionId = transactionId;
+        this.name = name;
+        this.date = date;
+    }
+    
+    void copyFrom(CirculationEvent other) {
+        copyFrom(other, other.publishedSequence);
+    }
+    
+    // A copy placed at the given position in the feed
+    void copyFrom(CirculationEvent other, long sequence) {
+        set(sequence, other.type, other.bookId, other.memberId, other.transactionId, other.name, other.date);
+    }
+    
+    @Override
+    public String toString() {
+        return publishedSequence + " " + type + " book=" + bookId + " member=" + memberId
+            + (transactionId == null ? "" : " transaction=" + transactionId);
+    }
+}
\ No newline at end of file
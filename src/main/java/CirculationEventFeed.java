@@ -0,0 +1,279 @@
+import java.lang.invoke.VarHandle;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Publishes circulation changes to any number of downstream readers through
+ * a ring buffer allocated up front. Register it with
+ * {@link LibraryService#addListener}. A change's events are staged on the
+ * thread making it and published once it commits, so a change that another
+ * listener vetoes, before or after this one, is never seen by readers.
+ *
+ * <p>Producers are the threads making changes. Each claims the next
+ * sequence number with one atomic operation and copies the change into that
+ * slot; nothing is allocated per event once a thread's staging area has
+ * grown to the largest change it makes. Every {@link Subscription} reads the
+ * events in sequence order at its own pace, copying each into an event of
+ * its own. A slot is stamped with its sequence once written, which is how a
+ * reader knows the event is there and, after copying it, that it was not
+ * overwritten meanwhile.
+ *
+ * <p>When a subscription falls a whole ring behind, the policy decides:
+ * {@link OverflowPolicy#BLOCK} makes producers wait for it, holding up the
+ * change being made; {@link OverflowPolicy#DROP_OLDEST} overwrites events it
+ * has not read, which it then skips and counts; {@link OverflowPolicy#REJECT}
+ * throws while the change is being made, which aborts it. A change that
+ * passed that check but finds the ring full when it commits, because others
+ * committed first, waits as with BLOCK.
+ */
+public class CirculationEventFeed implements CirculationListener {
+    public enum OverflowPolicy { BLOCK, DROP_OLDEST, REJECT }
+    
+    // Stamped on a slot while a producer writes it
+    private static final long BUSY = Long.MIN_VALUE;
+    private static final int SPINS_BEFORE_PARKING = 100;
+    private static final long PARK_NANOS = 10_000;
+    
+    private final CirculationEvent[] ring;
+    private final int mask;
+    private final OverflowPolicy policy;
+    // Next sequence to hand out; every lower one is claimed, if not yet written
+    private final AtomicLong claimed;
+    private final List<Subscription> subscriptions;
+    // Events of the change the thread is making, waiting for it to commit
+    private final ThreadLocal<Staged> staged;
+    // Position of the slowest subscription when producers last looked; it only lags the real one
+    private volatile long slowestSeen;
+    
+    // The capacity is rounded up to a power of two
+    public CirculationEventFeed(int capacity, OverflowPolicy policy) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.ring = new CirculationEvent[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new CirculationEvent();
+            // As if written one lap ago, so the first lap needs no special case
+            ring[i].sequence = i - size;
+        }
+        this.mask = size - 1;
+        this.policy = policy;
+        this.claimed = new AtomicLong();
+        this.subscriptions = new CopyOnWriteArrayList<>();
+        this.staged = ThreadLocal.withInitial(Staged::new);
+    }
+    
+    // A reader starting with the next event published
+    public Subscription subscribe() {
+        Subscription subscription = new Subscription(claimed.get());
+        subscriptions.add(subscription);
+        return subscription;
+    }
+    
+    public int getCapacity() {
+        return ring.length;
+    }
+    
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+    
+    // Events published so far, counting any still being written
+    public long getEventCount() {
+        return claimed.get();
+    }
+    
+    @Override
+    public void bookAdded(Book book) {
+        stage(CirculationEvent.Type.BOOK_ADDED, book.getId(), null, null, book.getTitle(), null);
+    }
+    
+    @Override
+    public void memberAdded(Member member) {
+        stage(CirculationEvent.Type.MEMBER_ADDED, null, member.getId(), null, member.getName(), null);
+    }
+    
+    @Override
+    public void bookBorrowed(Transaction transaction) {
+        stage(CirculationEvent.Type.BORROWED, transaction.getBookId(), transaction.getMemberId(),
+            transaction.getId(), null, transaction.getBorrowDate());
+    }
+    
+    @Override
+    public void bookReturned(Transaction transaction) {
+        stage(CirculationEvent.Type.RETURNED, transaction.getBookId(), transaction.getMemberId(),
+            transaction.getId(), null, transaction.getReturnDate());
+    }
+    
+    @Override
+    public void changeCommitted() {
+        Staged change = staged.get();
+        for (int i = 0; i < change.size; i++) {
+            publish(change.events[i]);
+        }
+        change.size = 0;
+    }
+    
+    @Override
+    public void changeAborted() {
+        staged.get().size = 0;
+    }
+    
+    private void stage(CirculationEvent.Type type, String bookId, String memberId, String transactionId,
+            String name, LocalDate date) {
+        Staged change = staged.get();
+        // Checked here, where throwing still vetoes the change, counting the events it has staged so far
+        if (policy == OverflowPolicy.REJECT && isFull(claimed.get() + change.size)) {
+            throw new IllegalStateException("Circulation event feed is full: a subscriber is "
+                + ring.length + " events behind");
+        }
+        change.next().set(-1, type, bookId, memberId, transactionId, name, date);
+    }
+    
+    private void publish(CirculationEvent event) {
+        long sequence = claim();
+        CirculationEvent slot = ring[(int) sequence & mask];
+        // With DROP_OLDEST a producer a lap behind may still be writing this slot; it is nearly done
+        while (slot.sequence != sequence - ring.length) {
+            Thread.onSpinWait();
+        }
+        slot.sequence = BUSY;
+        VarHandle.storeStoreFence();
+        slot.copyFrom(event, sequence);
+        slot.sequence = sequence;
+    }
+    
+    private long claim() {
+        if (policy == OverflowPolicy.DROP_OLDEST) {
+            return claimed.getAndIncrement();
+        }
+        int spins = 0;
+        while (true) {
+            long sequence = claimed.get();
+            if (isFull(sequence)) {
+                if (spins++ < SPINS_BEFORE_PARKING) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+                continue;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+    
+    // Whether the event with this sequence would overwrite one that some subscription has not read yet
+    private boolean isFull(long sequence) {
+        long overwritten = sequence - ring.length;
+        if (overwritten < slowestSeen) {
+            return false;
+        }
+        long slowest = slowestPosition(sequence);
+        slowestSeen = slowest;
+        return overwritten >= slowest;
+    }
+    
+    private long slowestPosition(long sequence) {
+        long slowest = sequence;
+        for (Subscription subscription : subscriptions) {
+            slowest = Math.min(slowest, subscription.position.get());
+        }
+        return slowest;
+    }
+    
+    // Grows to the largest change the thread makes and is then reused
+    private static final class Staged {
+        private CirculationEvent[] events = new CirculationEvent[0];
+        private int size;
+        
+        CirculationEvent next() {
+            if (size == events.length) {
+                events = Arrays.copyOf(events, Math.max(4, size * 2));
+                for (int i = size; i < events.length; i++) {
+                    events[i] = new CirculationEvent();
+                }
+            }
+            return events[size++];
+        }
+    }
+    
+    /**
+     * One reader of the feed, to be polled from one thread at a time. Close
+     * it when done, or with BLOCK and REJECT it holds producers back once
+     * they get a ring ahead of it.
+     */
+    public final class Subscription implements AutoCloseable {
+        // Next sequence to read; producers may reuse the slots of everything below it
+        private final AtomicLong position;
+        private final CirculationEvent event;
+        private volatile long dropped;
+        
+        private Subscription(long start) {
+            this.position = new AtomicLong(start);
+            this.event = new CirculationEvent();
+        }
+        
+        /**
+         * Hands up to {@code maxEvents} of the events published since the
+         * last poll to the handler, oldest first, and returns how many; 0
+         * if there are none yet. The event passed to the handler is reused
+         * for the next one. With BLOCK, a handler must not make changes
+         * through the service, which could wait on this very subscription.
+         */
+        public int poll(Consumer<? super CirculationEvent> handler, int maxEvents) {
+            long next = position.get();
+            int count = 0;
+            while (count < maxEvents) {
+                CirculationEvent slot = ring[(int) next & mask];
+                if (slot.sequence == next) {
+                    event.copyFrom(slot);
+                    VarHandle.loadLoadFence();
+                    if (slot.sequence == next) {
+                        next++;
+                        position.lazySet(next);
+                        count++;
+                        handler.accept(event);
+                        continue;
+                    }
+                }
+                // A slot that does not hold the event either is still being written or has been lapped
+                long oldest = claimed.get() - ring.length;
+                if (oldest <= next) {
+                    break;
+                }
+                dropped += oldest - next;
+                next = oldest;
+                position.set(next);
+            }
+            return count;
+        }
+        
+        // Sequence of the next event this subscription will read
+        public long getPosition() {
+            return position.get();
+        }
+        
+        // Events published but not yet read
+        public long getLag() {
+            return Math.max(0, claimed.get() - position.get());
+        }
+        
+        // Events overwritten before this subscription read them; only DROP_OLDEST drops events
+        public long getDroppedCount() {
+            return dropped;
+        }
+        
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+        }
+    }
+}
\ No newline at end of file
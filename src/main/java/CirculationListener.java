@@ -0,0 +1,98 @@
+import java.util.List;
+
+/**
+ * Observes every change committed by {@link LibraryService}. Callbacks run on
+ * the calling thread while the change is being committed: the record passed
+ * in already carries its final state, but other callers cannot see the change
+ * until the callback returns. Changes to the same book therefore reach a
+ * listener in the order they happened. Throwing aborts the change.
+ *
+ * <p>Each change's callbacks are followed by {@link #changeCommitted} once
+ * it has been made, or by {@link #changeAborted} if a listener threw, so a
+ * listener that must only pass on changes that went through can hold its
+ * callbacks until then. Both come on the same thread as the callbacks.
+ */
+public interface CirculationListener {
+    default void bookAdded(Book book) {
+    }
+    
+    default void memberAdded(Member member) {
+    }
+    
+    // Batch adds arrive as one call per batch; override to handle them in one go
+    default void booksAdded(List<Book> books) {
+        for (Book book : books) {
+            bookAdded(book);
+        }
+    }
+    
+    default void membersAdded(List<Member> members) {
+        for (Member member : members) {
+            memberAdded(member);
+        }
+    }
+    
+    // Taken out of the catalog with every copy on the shelf and nobody waiting for it
+    default void bookRemoved(Book book) {
+    }
+    
+    default void bookBorrowed(Transaction transaction) {
+    }
+    
+    default void bookReturned(Transaction transaction) {
+    }
+    
+    // Raised by LibraryService.checkOverdue, once per loan; throwing leaves this loan and later ones to fire again
+    default void loanOverdue(Transaction transaction) {
+    }
+    
+    // A batch checkout or return is all-or-nothing: throwing aborts every loan in it
+    default void booksBorrowed(List<Transaction> transactions) {
+        for (Transaction transaction : transactions) {
+            bookBorrowed(transaction);
+        }
+    }
+    
+    default void booksReturned(List<Transaction> transactions) {
+        for (Transaction transaction : transactions) {
+            bookReturned(transaction);
+        }
+    }
+    
+    default void holdPlaced(Hold hold) {
+    }
+    
+    // Cancelled by the member, or passed over because they were at the loan limit when a copy came back
+    default void holdCancelled(Hold hold) {
+    }
+    
+    /**
+     * A return whose copies went straight to members waiting for them: one
+     * new loan per filled hold, in the same order as {@code holds}, whose
+     * pickup deadlines are already set. {@code returned} has every loan the
+     * return closed, including ones with nobody waiting. Throwing aborts the
+     * return and the loans together.
+     */
+    default void holdsFilled(List<Transaction> returned, List<Transaction> loans, List<Hold> holds) {
+        if (returned.size() == 1) {
+            bookReturned(returned.get(0));
+        } else {
+            booksReturned(returned);
+        }
+        for (Transaction loan : loans) {
+            bookBorrowed(loan);
+        }
+    }
+    
+    // The member came for a copy lent to them off their hold
+    default void holdCollected(Hold hold) {
+    }
+    
+    // The change since the last of these calls on this thread has been made and can be seen; must not throw
+    default void changeCommitted() {
+    }
+    
+    // A listener threw, so the change since the last of these calls on this thread was not made
+    default void changeAborted() {
+    }
+}
\ No newline at end of file
@@ -0,0 +1,165 @@
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Dashboard figures for a LibraryService, kept up to date as loans open and
+ * close instead of being worked out from the whole history on each request:
+ * how often each book has been borrowed, how many loans each member has
+ * made, how many books by each author are out, and loans per day.
+ *
+ * <p>The service updates these under the book's stripe lock once a change
+ * has gone through, so they always equal a recount of the committed
+ * history. Point lookups are O(1), rankings O(k) and a range of days O(days
+ * with loans). {@link #rebuild} recounts from the history, for recovery.
+ */
+public class CirculationStatistics {
+    private static final int STRIPES = 16;
+    
+    private final RankedCounter borrowsByBookId;
+    private final RankedCounter loansByMemberId;
+    private final RankedCounter activeLoansByAuthor;
+    private final ConcurrentSkipListMap<LocalDate, LongAdder> loansByDay;
+    private final LongAdder totalLoans;
+    private final LongAdder activeLoans;
+    
+    public CirculationStatistics() {
+        this.borrowsByBookId = new RankedCounter(STRIPES);
+        this.loansByMemberId = new RankedCounter(STRIPES);
+        this.activeLoansByAuthor = new RankedCounter(STRIPES);
+        this.loansByDay = new ConcurrentSkipListMap<>();
+        this.totalLoans = new LongAdder();
+        this.activeLoans = new LongAdder();
+    }
+    
+    // Counts every loan in the history; bookLookup finds each loan's book, or null if it is gone
+    public static CirculationStatistics rebuild(Iterator<Transaction> history, Function<String, Book> bookLookup) {
+        // Tallied in plain maps and loaded into the rankings once, rather than stepped up loan by loan
+        Map<String, Long> borrows = new HashMap<>();
+        Map<String, Long> loans = new HashMap<>();
+        Map<String, Long> outByAuthor = new HashMap<>();
+        Map<LocalDate, Long> perDay = new HashMap<>();
+        long total = 0;
+        long active = 0;
+        while (history.hasNext()) {
+            Transaction transaction = history.next();
+            borrows.merge(transaction.getBookId(), 1L, Long::sum);
+            loans.merge(transaction.getMemberId(), 1L, Long::sum);
+            perDay.merge(transaction.getBorrowDate(), 1L, Long::sum);
+            total++;
+            if (!transaction.isReturned()) {
+                active++;
+                Book book = bookLookup.apply(transaction.getBookId());
+                if (book != null && book.getAuthor() != null) {
+                    outByAuthor.merge(book.getAuthor(), 1L, Long::sum);
+                }
+            }
+        }
+        CirculationStatistics statistics = new CirculationStatistics();
+        statistics.borrowsByBookId.load(borrows);
+        statistics.loansByMemberId.load(loans);
+        statistics.activeLoansByAuthor.load(outByAuthor);
+        perDay.forEach((day, count) -> {
+            LongAdder adder = new LongAdder();
+            adder.add(count);
+            statistics.loansByDay.put(day, adder);
+        });
+        statistics.totalLoans.add(total);
+        statistics.activeLoans.add(active);
+        return statistics;
+    }
+    
+    // The book may be null when restoring loans of a book that is no longer in the catalog
+    void loanOpened(Transaction transaction, Book book) {
+        borrowsByBookId.increment(transaction.getBookId());
+        loansByMemberId.increment(transaction.getMemberId());
+        if (book != null && book.getAuthor() != null) {
+            activeLoansByAuthor.increment(book.getAuthor());
+        }
+        loansByDay.computeIfAbsent(transaction.getBorrowDate(), day -> new LongAdder()).increment();
+        totalLoans.increment();
+        activeLoans.increment();
+    }
+    
+    void loanClosed(Book book) {
+        if (book != null && book.getAuthor() != null) {
+            activeLoansByAuthor.decrement(book.getAuthor());
+        }
+        activeLoans.decrement();
+    }
+    
+    public long getTotalLoans() {
+        return totalLoans.sum();
+    }
+    
+    public long getActiveLoans() {
+        return activeLoans.sum();
+    }
+    
+    public long getBorrowCount(String bookId) {
+        return borrowsByBookId.get(bookId);
+    }
+    
+    // Book IDs by times borrowed, most first
+    public List<Map.Entry<String, Long>> getMostBorrowedBooks(int k) {
+        return borrowsByBookId.top(k);
+    }
+    
+    public long getLoanCount(String memberId) {
+        return loansByMemberId.get(memberId);
+    }
+    
+    // Member IDs by loans made, most first
+    public List<Map.Entry<String, Long>> getMostActiveMembers(int k) {
+        return loansByMemberId.top(k);
+    }
+    
+    public long getActiveLoansByAuthor(String author) {
+        return activeLoansByAuthor.get(author);
+    }
+    
+    // Authors by books currently out, most first; authors with none out are left out
+    public List<Map.Entry<String, Long>> getAuthorsByActiveLoans(int k) {
+        return activeLoansByAuthor.top(k);
+    }
+    
+    public long getLoansOn(LocalDate day) {
+        LongAdder loans = loansByDay.get(day);
+        return loans == null ? 0 : loans.sum();
+    }
+    
+    // Loans made on each day from first to last inclusive, in date order; days without loans are left out
+    public NavigableMap<LocalDate, Long> getLoansPerDay(LocalDate first, LocalDate last) {
+        NavigableMap<LocalDate, Long> result = new TreeMap<>();
+        loansByDay.subMap(first, true, last, true).forEach((day, loans) -> result.put(day, loans.sum()));
+        return result;
+    }
+    
+    public String report(int k, LocalDate first, LocalDate last) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "Loans made: %d, out now: %d%n", getTotalLoans(), getActiveLoans()));
+        appendRanking(report, "Most borrowed books", getMostBorrowedBooks(k));
+        appendRanking(report, "Most active members", getMostActiveMembers(k));
+        appendRanking(report, "Authors with most books out", getAuthorsByActiveLoans(k));
+        Map<String, Long> days = new LinkedHashMap<>();
+        getLoansPerDay(first, last).forEach((day, loans) -> days.put(day.toString(), loans));
+        appendRanking(report, "Loans per day", days.entrySet());
+        return report.toString();
+    }
+    
+    private static void appendRanking(StringBuilder report, String heading, Iterable<Map.Entry<String, Long>> rows) {
+        report.append(heading).append(':').append(System.lineSeparator());
+        for (Map.Entry<String, Long> row : rows) {
+            report.append(String.format(Locale.ROOT, "  %-32s %10d%n", row.getKey(), row.getValue()));
+        }
+    }
+}
\ No newline at end of file
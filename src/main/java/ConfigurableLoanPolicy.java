@@ -0,0 +1,61 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Loan periods by member and by book class. A per-member period wins over the
+ * period of the book's class, which wins over the default. Books are sorted
+ * into classes by a caller-supplied classifier (for example by ID prefix or
+ * by a catalog lookup); a null class uses the default.
+ */
+public class ConfigurableLoanPolicy implements LoanPolicy {
+    private final int defaultDays;
+    private final Function<Book, String> bookClassifier;
+    private final Map<String, Integer> daysByBookClass;
+    private final Map<String, Integer> daysByMemberId;
+    
+    public ConfigurableLoanPolicy(int defaultDays) {
+        this(defaultDays, book -> null);
+    }
+    
+    public ConfigurableLoanPolicy(int defaultDays, Function<Book, String> bookClassifier) {
+        if (defaultDays <= 0) {
+            throw new IllegalArgumentException("defaultDays must be positive");
+        }
+        if (bookClassifier == null) {
+            throw new IllegalArgumentException("bookClassifier must not be null");
+        }
+        this.defaultDays = defaultDays;
+        this.bookClassifier = bookClassifier;
+        this.daysByBookClass = new ConcurrentHashMap<>();
+        this.daysByMemberId = new ConcurrentHashMap<>();
+    }
+    
+    public void setBookClassDays(String bookClass, int days) {
+        daysByBookClass.put(bookClass, checkDays(days));
+    }
+    
+    public void setMemberDays(String memberId, int days) {
+        daysByMemberId.put(memberId, checkDays(days));
+    }
+    
+    @Override
+    public int loanDays(Book book, Member member) {
+        Integer days = daysByMemberId.get(member.getId());
+        if (days != null) {
+            return days;
+        }
+        String bookClass = bookClassifier.apply(book);
+        if (bookClass != null) {
+            days = daysByBookClass.get(bookClass);
+        }
+        return days != null ? days : defaultDays;
+    }
+    
+    private static int checkDays(int days) {
+        if (days <= 0) {
+            throw new IllegalArgumentException("days must be positive");
+        }
+        return days;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,53 @@
+import java.time.LocalDate;
+
+public class Hold {
+    private final String bookId;
+    private final String memberId;
+    private final LocalDate placedDate;
+    private volatile int copy = 1;
+    private volatile LocalDate pickupDeadline;
+    
+    public Hold(String bookId, String memberId, LocalDate placedDate) {
+        this.bookId = bookId;
+        this.memberId = memberId;
+        this.placedDate = placedDate;
+    }
+    
+    public String getBookId() {
+        return bookId;
+    }
+    
+    public String getMemberId() {
+        return memberId;
+    }
+    
+    public LocalDate getPlacedDate() {
+        return placedDate;
+    }
+    
+    // Null while the member is still waiting; set once a returned copy has been lent to them
+    public LocalDate getPickupDeadline() {
+        return pickupDeadline;
+    }
+    
+    // The copy lent off this hold once it is ready
+    public int getCopy() {
+        return copy;
+    }
+    
+    public String getCopyId() {
+        return copy == 1 ? bookId : bookId + Book.COPY_SEPARATOR + copy;
+    }
+    
+    public void setCopy(int copy) {
+        this.copy = copy;
+    }
+    
+    public boolean isReady() {
+        return pickupDeadline != null;
+    }
+    
+    public void setPickupDeadline(LocalDate pickupDeadline) {
+        this.pickupDeadline = pickupDeadline;
+    }
+}
\ No newline at end of file
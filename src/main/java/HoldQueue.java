@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * First-come, first-served queue of the holds waiting for one book.
+ *
+ * <p>Holds sit in an array in arrival order, so taking the head is O(1).
+ * A hold cancelled from the middle leaves an empty slot, which the head
+ * skips when it gets there, and is counted in a Fenwick tree over the slots.
+ * A member's position is then their distance from the head minus the
+ * cancelled slots in between, in O(log n) without walking the queue. The
+ * array is compacted once the head has passed half of it.
+ *
+ * <p>All methods are synchronized and hold the lock for O(log n) work,
+ * amortized, except {@link #list}.
+ */
+public class HoldQueue {
+    private Hold[] slots;
+    // Fenwick tree (1-based) counting cancelled slots, so gaps can be skipped when counting positions
+    private int[] cancelled;
+    private final Map<String, Integer> slotsByMemberId;
+    private int head;
+    private int tail;
+    
+    public HoldQueue() {
+        this.slots = new Hold[4];
+        this.cancelled = new int[slots.length + 1];
+        this.slotsByMemberId = new HashMap<>();
+    }
+    
+    // Returns false if the member already has a hold in this queue
+    public synchronized boolean add(Hold hold) {
+        if (slotsByMemberId.containsKey(hold.getMemberId())) {
+            return false;
+        }
+        if (tail == slots.length) {
+            compact();
+        }
+        slots[tail] = hold;
+        slotsByMemberId.put(hold.getMemberId(), tail);
+        tail++;
+        return true;
+    }
+    
+    // The hold at the front of the queue, or null if it is empty
+    public synchronized Hold peek() {
+        while (head < tail && slots[head] == null) {
+            head++;
+        }
+        return head < tail ? slots[head] : null;
+    }
+    
+    public synchronized Hold poll() {
+        Hold hold = peek();
+        if (hold != null) {
+            slots[head++] = null;
+            slotsByMemberId.remove(hold.getMemberId());
+        }
+        return hold;
+    }
+    
+    public synchronized Hold find(String memberId) {
+        Integer slot = slotsByMemberId.get(memberId);
+        return slot == null ? null : slots[slot];
+    }
+    
+    public synchronized Hold remove(String memberId) {
+        Integer slot = slotsByMemberId.remove(memberId);
+        if (slot == null) {
+            return null;
+        }
+        Hold hold = slots[slot];
+        slots[slot] = null;
+        for (int i = slot + 1; i < cancelled.length; i += i & -i) {
+            cancelled[i]++;
+        }
+        return hold;
+    }
+    
+    // 1 for the member at the front, 0 if the member has no hold here
+    public synchronized int position(String memberId) {
+        Integer slot = slotsByMemberId.get(memberId);
+        if (slot == null) {
+            return 0;
+        }
+        return slot - head - (cancelledBefore(slot) - cancelledBefore(head)) + 1;
+    }
+    
+    public synchronized int size() {
+        return slotsByMemberId.size();
+    }
+    
+    public synchronized boolean isEmpty() {
+        return slotsByMemberId.isEmpty();
+    }
+    
+    // Waiting holds, front first
+    public synchronized List<Hold> list() {
+        List<Hold> holds = new ArrayList<>(slotsByMemberId.size());
+        for (int slot = head; slot < tail; slot++) {
+            if (slots[slot] != null) {
+                holds.add(slots[slot]);
+            }
+        }
+        return holds;
+    }
+    
+    // Cancelled slots among the first {@code slot} slots
+    private int cancelledBefore(int slot) {
+        int count = 0;
+        for (int i = slot; i > 0; i -= i & -i) {
+            count += cancelled[i];
+        }
+        return count;
+    }
+    
+    // Moves the waiting holds to the front, doubling the array if they fill more than half of it
+    private void compact() {
+        int live = slotsByMemberId.size();
+        Hold[] next = live * 2 > slots.length ? new Hold[slots.length * 2] : slots;
+        int count = 0;
+        for (int slot = head; slot < tail; slot++) {
+            if (slots[slot] != null) {
+                next[count] = slots[slot];
+                slotsByMemberId.put(slots[slot].getMemberId(), count);
+                count++;
+            }
+        }
+        if (next == slots) {
+            Arrays.fill(slots, count, tail, null);
+        }
+        slots = next;
+        cancelled = new int[slots.length + 1];
+        head = 0;
+        tail = count;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,50 @@
+import java.util.Collections;
+import java.util.List;
+
+public class ImportResult {
+    private final long rowsRead;
+    private final long imported;
+    private final long duplicates;
+    private final long invalid;
+    private final List<String> errors;
+    private final long elapsedNanos;
+    
+    public ImportResult(long rowsRead, long imported, long duplicates, long invalid,
+            List<String> errors, long elapsedNanos) {
+        this.rowsRead = rowsRead;
+        this.imported = imported;
+        this.duplicates = duplicates;
+        this.invalid = invalid;
+        this.errors = Collections.unmodifiableList(errors);
+        this.elapsedNanos = elapsedNanos;
+    }
+    
+    public long getRowsRead() {
+        return rowsRead;
+    }
+    
+    public long getImported() {
+        return imported;
+    }
+    
+    public long getDuplicates() {
+        return duplicates;
+    }
+    
+    public long getInvalid() {
+        return invalid;
+    }
+    
+    // The first few validation errors, as "line N: reason"
+    public List<String> getErrors() {
+        return errors;
+    }
+    
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+    
+    public double getRowsPerSecond() {
+        return elapsedNanos == 0 ? 0 : rowsRead * 1e9 / elapsedNanos;
+    }
+}
\ No newline at end of file
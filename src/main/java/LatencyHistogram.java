@@ -0,0 +1,115 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram: values below 128
+ * get a bucket each, and every power of two above that is split into 64
+ * buckets, so any recorded value, and the mean and maximum, are reported
+ * within about 1.6%. Values are in nanoseconds and capped at 2^40 (about 18
+ * minutes); the 2,240 buckets take under 18 KB.
+ *
+ * <p>Recording is a single atomic increment. Reads scan the buckets and are
+ * not a consistent snapshot while values are being recorded, which is fine
+ * for monitoring.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_BITS - SUB_BUCKET_BITS) * HALF;
+    
+    private final AtomicLongArray counts;
+    
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+    }
+    
+    public void record(long nanos) {
+        counts.getAndIncrement(bucketOf(Math.min(Math.max(nanos, 0), MAX_VALUE)));
+    }
+    
+    public long getCount() {
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            count += counts.get(bucket);
+        }
+        return count;
+    }
+    
+    // Top of the highest bucket in use
+    public long getMax() {
+        for (int bucket = BUCKETS - 1; bucket >= 0; bucket--) {
+            if (counts.get(bucket) > 0) {
+                return highestValueIn(bucket);
+            }
+        }
+        return 0;
+    }
+    
+    // Taking each value as the middle of its bucket
+    public double getMean() {
+        long count = 0;
+        double total = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            long inBucket = counts.get(bucket);
+            if (inBucket > 0) {
+                count += inBucket;
+                total += inBucket * (lowestValueIn(bucket) + highestValueIn(bucket)) / 2.0;
+            }
+        }
+        return count == 0 ? 0 : total / count;
+    }
+    
+    /**
+     * Smallest value such that at least {@code percentile} percent of the
+     * recorded values are no greater, rounded up to the top of its bucket;
+     * 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return highestValueIn(bucket);
+            }
+        }
+        return getMax();
+    }
+    
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts.set(bucket, 0);
+        }
+    }
+    
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Shift so the value keeps its top seven bits, i.e. lands in [64, 128)
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+    
+    static long lowestValueIn(int bucket) {
+        return bucket == 0 ? 0 : highestValueIn(bucket - 1) + 1;
+    }
+    
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+        long subBucket = (bucket - SUB_BUCKETS) % HALF + HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
\ No newline at end of file
@@ -1,20 +1,91 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.logging.Logger;
 import java.util.logging.Level;
+import javax.management.JMException;
 
 public class LibraryApp {
     private static final LibraryService LIBRARY_SERVICE = new LibraryService();
     private static Scanner scanner = new Scanner(System.in);
     private static boolean isTestMode = false;
     private static final Logger LOGGER = Logger.getLogger(LibraryApp.class.getName());
+    private static final int PAGE_SIZE = 500;
+    private static final int STATISTICS_RANKING = 10;
+    private static final int STATISTICS_DAYS = 14;
+    private static final int SEARCH_RESULTS = 10;
+    private static final String DATA_DIR_PROPERTY = "library.data.dir";
+    private static final String DURABILITY_PROPERTY = "library.wal.durability";
+    private static final String BATCH_MILLIS_PROPERTY = "library.wal.batch.millis";
+    private static final String SNAPSHOT_SECONDS_PROPERTY = "library.snapshot.interval.seconds";
+    private static final String LOAN_LIMIT_PROPERTY = "library.member.loan.limit";
+    private static final String LOAN_DAYS_PROPERTY = "library.loan.days";
+    private static final String HTTP_PORT_PROPERTY = "library.http.port";
+    private static final String HTTP_HOST_PROPERTY = "library.http.host";
+    private static final String HTTP_HEADLESS_PROPERTY = "library.http.headless";
+    private static final String REPLICATION_PORT_PROPERTY = "library.replication.port";
+    private static final String SCRIPT_USAGE = "Usage: LibraryApp [--script FILE|-] [--format csv|jsonl] [--output FILE]";
+    private static final int SCRIPT_BUFFER_CHARS = 1 << 20;
+    private static LibraryStore libraryStore;
+    private static LibraryHttpServer httpServer;
+    private static ReplicationPrimary replicationPrimary;
     
     private LibraryApp() {
         // Private constructor to hide implicit public one
     }
     
     public static void main(String[] args) {
-        initializeData();
+        LIBRARY_SERVICE.setMemberLoanLimit(Integer.getInteger(LOAN_LIMIT_PROPERTY, 10));
+        LIBRARY_SERVICE.setLoanPolicy(LoanPolicy.fixed(Integer.getInteger(LOAN_DAYS_PROPERTY, 14)));
+        try {
+            LIBRARY_SERVICE.getMetrics().registerMBean();
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register metrics MBean", e);
+        }
+        String dataDir = System.getProperty(DATA_DIR_PROPERTY);
+        if (dataDir == null) {
+            initializeData();
+        } else {
+            openDataDirectory(Paths.get(dataDir));
+        }
+        Integer replicationPort = Integer.getInteger(REPLICATION_PORT_PROPERTY);
+        if (replicationPort != null) {
+            startReplication(dataDir, replicationPort);
+        }
+        if (args.length > 0) {
+            int status = runScript(args);
+            shutDown();
+            System.exit(status);
+        }
+        Integer httpPort = Integer.getInteger(HTTP_PORT_PROPERTY);
+        if (httpPort != null) {
+            startHttpServer(System.getProperty(HTTP_HOST_PROPERTY, "127.0.0.1"), httpPort);
+            if (Boolean.getBoolean(HTTP_HEADLESS_PROPERTY)) {
+                // No console: serve until the process is stopped
+                Runtime.getRuntime().addShutdownHook(new Thread(LibraryApp::shutDown));
+                awaitShutdown();
+                return;
+            }
+        }
         showMenu();
+        shutDown();
     }
     
     // Package-private method for testing
@@ -23,6 +94,135 @@ public class LibraryApp {
         isTestMode = true;
     }
     
+    /**
+     * Batch mode: runs a command script (see LibraryScript) instead of the
+     * menu and returns the exit status. Output goes to stdout or the given
+     * file through one large buffer; only errors go to stderr.
+     */
+    static int runScript(String[] args) {
+        String script = "-";
+        String output = null;
+        LibraryScript.Format format = LibraryScript.Format.CSV;
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                switch (args[i]) {
+                    case "--script":
+                        script = args[i + 1];
+                        break;
+                    case "--format":
+                        format = LibraryScript.parseFormat(args[i + 1]);
+                        break;
+                    case "--output":
+                        output = args[i + 1];
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(SCRIPT_USAGE);
+            return LibraryScript.BAD_SCRIPT;
+        }
+        
+        try (BufferedReader in = "-".equals(script)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(script), StandardCharsets.UTF_8);
+             OutputStream target = output == null ? null : Files.newOutputStream(Paths.get(output))) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(target == null ? System.out : target,
+                StandardCharsets.UTF_8), SCRIPT_BUFFER_CHARS);
+            LibraryScript runner = new LibraryScript(LIBRARY_SERVICE, out, format);
+            int status = runner.run(in);
+            if (runner.getError() != null) {
+                System.err.println(runner.getError());
+            }
+            return status;
+        } catch (IOException e) {
+            System.err.println("Script failed: " + e.getMessage());
+            return LibraryScript.BAD_SCRIPT;
+        }
+    }
+    
+    // Restores the newest snapshot plus the log written after it; only a fresh directory gets the demo data
+    private static void openDataDirectory(Path dataDir) {
+        WriteAheadLog.Durability durability = WriteAheadLog.Durability.valueOf(
+            System.getProperty(DURABILITY_PROPERTY, WriteAheadLog.Durability.BATCHED.name()));
+        long batchMillis = Long.getLong(BATCH_MILLIS_PROPERTY, 10L);
+        long snapshotSeconds = Long.getLong(SNAPSHOT_SECONDS_PROPERTY, 300L);
+        try {
+            libraryStore = LibraryStore.open(dataDir, LIBRARY_SERVICE, durability, batchMillis);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open data directory " + dataDir, e);
+        }
+        if (libraryStore.isFresh()) {
+            initializeData();
+        }
+        if (snapshotSeconds > 0) {
+            libraryStore.scheduleSnapshots(snapshotSeconds, TimeUnit.SECONDS);
+        }
+    }
+    
+    private static void startHttpServer(String host, int port) {
+        try {
+            httpServer = LibraryHttpServer.start(LIBRARY_SERVICE, new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to start HTTP server on " + host + ":" + port, e);
+        }
+        System.out.println("HTTP API listening on http://" + host + ":" + httpServer.getPort());
+    }
+    
+    // Started after the data directory, so the log has accepted every change before it is shipped
+    private static void startReplication(String dataDir, int port) {
+        try {
+            Path snapshotDirectory = dataDir == null ? Files.createTempDirectory("library-replication")
+                : Paths.get(dataDir).resolve("replication");
+            replicationPrimary = ReplicationPrimary.start(LIBRARY_SERVICE, port, snapshotDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to start replication on port " + port, e);
+        }
+        System.out.println("Replication listening on port " + replicationPrimary.getPort());
+    }
+    
+    private static void awaitShutdown() {
+        try {
+            new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static synchronized void shutDown() {
+        if (httpServer != null) {
+            httpServer.stop();
+            httpServer = null;
+        }
+        if (replicationPrimary != null) {
+            try {
+                replicationPrimary.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to stop replication", e);
+            }
+            replicationPrimary = null;
+        }
+        closeDataDirectory();
+    }
+    
+    private static void closeDataDirectory() {
+        if (libraryStore == null) {
+            return;
+        }
+        try {
+            libraryStore.snapshot();
+            libraryStore.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to close data directory", e);
+        }
+        libraryStore = null;
+    }
+    
     private static void initializeData() {
         // Add books
         LIBRARY_SERVICE.addBook(new Book("B001", "Java Programming", "John Doe"));
@@ -87,6 +287,27 @@ public class LibraryApp {
                     running = false;
                     System.out.println("Goodbye!");
                     break;
+                case 9:
+                    importCatalog();
+                    break;
+                case 10:
+                    searchBooks();
+                    break;
+                case 11:
+                    viewMemberLoans();
+                    break;
+                case 12:
+                    viewOverdueLoans();
+                    break;
+                case 13:
+                    viewMetrics();
+                    break;
+                case 14:
+                    viewStatistics();
+                    break;
+                case 15:
+                    checkOverdueLoans();
+                    break;
                 default:
                     System.out.println("Invalid option. Please try again.");
             }
@@ -105,6 +326,13 @@ public class LibraryApp {
         System.out.println("5. View All Books");
         System.out.println("6. View All Members");
         System.out.println("7. View All Transactions");
+        System.out.println("9. Import Catalog File (CSV/TSV)");
+        System.out.println("10. Search Books");
+        System.out.println("11. View Member Loans");
+        System.out.println("12. View Overdue Loans");
+        System.out.println("13. View Metrics");
+        System.out.println("14. View Circulation Statistics");
+        System.out.println("15. Check For Newly Overdue Loans");
         System.out.println("8. Exit");
         System.out.print("Choose an option: ");
     }
@@ -117,8 +345,13 @@ public class LibraryApp {
         System.out.print("Enter Book Author: ");
         String author = scanner.nextLine();
         
-        LIBRARY_SERVICE.addBook(new Book(id, title, author));
-        System.out.println("Book added successfully!");
+        boolean success = LIBRARY_SERVICE.addBook(new Book(id, title, author));
+        if (success) {
+            System.out.println("Book added successfully!");
+        } else {
+            System.out.println("Failed to add book. Check that the ID is not taken and does not contain '"
+                + Book.COPY_SEPARATOR + "'.");
+        }
     }
     
     private static void addMember() {
@@ -129,8 +362,12 @@ public class LibraryApp {
         System.out.print("Enter Member Email: ");
         String email = scanner.nextLine();
         
-        LIBRARY_SERVICE.addMember(new Member(id, name, email));
-        System.out.println("Member added successfully!");
+        boolean success = LIBRARY_SERVICE.addMember(new Member(id, name, email));
+        if (success) {
+            System.out.println("Member added successfully!");
+        } else {
+            System.out.println("Failed to add member. Check that the ID is not taken.");
+        }
     }
     
     private static void borrowBook() {
@@ -143,7 +380,8 @@ public class LibraryApp {
         if (success) {
             System.out.println("Book borrowed successfully!");
         } else {
-            System.out.println("Failed to borrow book. Check if book exists and is available.");
+            System.out.println("Failed to borrow book. Check if book exists and is available, "
+                + "and that the member is under the loan limit.");
         }
     }
     
@@ -159,31 +397,140 @@ public class LibraryApp {
         }
     }
     
+    private static void importCatalog() {
+        System.out.print("Import books or members? (b/m): ");
+        String kind = scanner.nextLine().trim();
+        System.out.print("Enter file path: ");
+        Path file = Paths.get(scanner.nextLine().trim());
+        
+        CatalogImporter importer = new CatalogImporter(LIBRARY_SERVICE);
+        try {
+            ImportResult result = "m".equalsIgnoreCase(kind)
+                ? importer.importMembers(file)
+                : importer.importBooks(file);
+            System.out.printf("Imported %d of %d rows (%d duplicates, %d invalid) at %.0f rows/sec%n",
+                result.getImported(), result.getRowsRead(), result.getDuplicates(),
+                result.getInvalid(), result.getRowsPerSecond());
+            for (String error : result.getErrors()) {
+                System.out.println("  " + error);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Catalog import failed", e);
+            System.out.println("Failed to import catalog: " + e.getMessage());
+        }
+    }
+    
+    private static void searchBooks() {
+        System.out.print("Enter search terms: ");
+        String query = scanner.nextLine();
+        
+        List<Book> results = LIBRARY_SERVICE.searchBooks(query, SEARCH_RESULTS);
+        if (results.isEmpty()) {
+            System.out.println("No matching books found.");
+            return;
+        }
+        System.out.println("\n=== Search Results ===");
+        for (Book book : results) {
+            System.out.printf("%s - %s by %s (Available: %s)%n",
+                book.getId(), book.getTitle(), book.getAuthor(), book.isAvailable());
+        }
+    }
+    
+    private static void viewMemberLoans() {
+        System.out.print("Enter Member ID: ");
+        String memberId = scanner.nextLine();
+        
+        List<Transaction> active = LIBRARY_SERVICE.getActiveLoans(memberId);
+        System.out.printf("%n=== Books Out (%d of %d allowed) ===%n", active.size(), LIBRARY_SERVICE.getMemberLoanLimit());
+        for (Transaction transaction : active) {
+            System.out.printf("%s - Book: %s, Borrowed: %s, Due: %s%n",
+                transaction.getId(), transaction.getCopyId(), transaction.getBorrowDate(), transaction.getDueDate());
+        }
+        System.out.println("\n=== Loan History ===");
+        for (Transaction transaction : LIBRARY_SERVICE.getLoanHistory(memberId)) {
+            System.out.printf("%s - Book: %s, Borrowed: %s, Returned: %s%n",
+                transaction.getId(), transaction.getCopyId(), transaction.getBorrowDate(),
+                transaction.isReturned() ? transaction.getReturnDate() : "not yet");
+        }
+    }
+    
+    // As of the last check; option 15 runs the check
+    private static void viewOverdueLoans() {
+        printOverdueLoans("Overdue Loans", LIBRARY_SERVICE.getOverdueLoans());
+    }
+    
+    private static void checkOverdueLoans() {
+        printOverdueLoans("Newly Overdue Loans", LIBRARY_SERVICE.checkOverdue());
+    }
+    
+    private static void printOverdueLoans(String heading, List<Transaction> overdue) {
+        if (overdue.isEmpty()) {
+            System.out.println("No overdue loans.");
+            return;
+        }
+        System.out.println("\n=== " + heading + " ===");
+        for (Transaction transaction : overdue) {
+            System.out.printf("%s - Book: %s, Member: %s, Due: %s%n",
+                transaction.getId(), transaction.getCopyId(), transaction.getMemberId(), transaction.getDueDate());
+        }
+    }
+    
+    private static void viewMetrics() {
+        System.out.println("\n=== Metrics (latencies in microseconds) ===");
+        System.out.print(LIBRARY_SERVICE.getMetrics().report());
+    }
+    
+    private static void viewStatistics() {
+        System.out.println("\n=== Circulation Statistics (last " + STATISTICS_DAYS + " days) ===");
+        LocalDate today = LocalDate.now(LIBRARY_SERVICE.getClock());
+        System.out.print(LIBRARY_SERVICE.getStatistics().report(STATISTICS_RANKING,
+            today.minusDays(STATISTICS_DAYS - 1L), today));
+    }
+    
     private static void viewAllBooks() {
         System.out.println("\n=== All Books ===");
-        for (Book book : LIBRARY_SERVICE.getAllBooks()) {
-            System.out.printf("%s - %s by %s (Available: %s)%n", 
-                book.getId(), book.getTitle(), book.getAuthor(), book.isAvailable());
+        try (LibrarySnapshot snapshot = LIBRARY_SERVICE.openSnapshot()) {
+            printPaged(snapshot::getBooksPage, book ->
+                String.format("%s - %s by %s (Available: %s)%n", 
+                    book.getId(), book.getTitle(), book.getAuthor(), book.isAvailable()));
         }
     }
     
     private static void viewAllMembers() {
         System.out.println("\n=== All Members ===");
-        for (Member member : LIBRARY_SERVICE.getAllMembers()) {
-            System.out.printf("%s - %s (%s)%n", 
-                member.getId(), member.getName(), member.getEmail());
+        try (LibrarySnapshot snapshot = LIBRARY_SERVICE.openSnapshot()) {
+            printPaged(snapshot::getMembersPage, member ->
+                String.format("%s - %s (%s)%n", 
+                    member.getId(), member.getName(), member.getEmail()));
         }
     }
     
     private static void viewAllTransactions() {
         System.out.println("\n=== All Transactions ===");
-        for (Transaction transaction : LIBRARY_SERVICE.getAllTransactions()) {
-            System.out.printf("%s - Book: %s, Member: %s, Borrowed: %s, Returned: %s%n",
-                transaction.getId(), transaction.getBookId(), transaction.getMemberId(),
-                transaction.getBorrowDate(), transaction.isReturned());
+        try (LibrarySnapshot snapshot = LIBRARY_SERVICE.openSnapshot()) {
+            printPaged(snapshot::getTransactionsPage, transaction ->
+                String.format("%s - Book: %s, Member: %s, Borrowed: %s, Returned: %s%n",
+                    transaction.getId(), transaction.getCopyId(), transaction.getMemberId(),
+                    transaction.getBorrowDate(), transaction.isReturned()));
         }
     }
     
+    // Walks the listing one page at a time so only PAGE_SIZE rows are held at once, printing each page in one call.
+    // The listings page through a snapshot, so a long one is consistent without holding up circulation
+    private static <T> void printPaged(BiFunction<String, Integer, Page<T>> pager, Function<T, String> formatter) {
+        StringBuilder text = new StringBuilder();
+        String cursor = null;
+        do {
+            Page<T> page = pager.apply(cursor, PAGE_SIZE);
+            text.setLength(0);
+            for (T item : page.getItems()) {
+                text.append(formatter.apply(item));
+            }
+            System.out.print(text);
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+    }
+    
     private static int getIntInput() {
         try {
             return Integer.parseInt(scanner.nextLine());
@@ -0,0 +1,608 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JSON over HTTP in front of a LibraryService, on the JDK's built-in server.
+ *
+ * <pre>
+ * GET  /books?after=&amp;limit=        page of books; "next" is the cursor for the following page
+ * GET  /books/{id}
+ * POST /books                      one book object, or an array of them; "copies" defaults to 1
+ * GET  /members?after=&amp;limit=
+ * GET  /members/{id}
+ * GET  /members/{id}/loans         books the member has out
+ * GET  /members/{id}/holds         the member's holds, with their place in line
+ * POST /members                    one member object, or an array of them
+ * POST /loans                      {"memberId", "bookId"} or {"memberId", "bookIds": [...]}; a title ID lends any free copy
+ * POST /returns                    {"bookId"} or {"bookIds": [...]}, by copy ID such as "B001#2"
+ * POST /holds                      {"memberId", "bookId"}
+ * GET  /holds/{bookId}/{memberId}  one hold and its place in line, cheap enough to poll
+ * DELETE /holds/{bookId}/{memberId}
+ * GET  /transactions?after=&amp;limit=
+ * GET  /search?q=&amp;limit=
+ * GET  /overdue                    loans overdue as of the last check
+ * POST /overdue/check              brings overdue tracking up to today and notifies listeners; the loans newly overdue
+ * GET  /metrics
+ * GET  /stats?limit=&amp;days=           dashboard rankings of the top {limit} and loans on each of the last {days} days
+ * </pre>
+ *
+ * <p>Errors come back as {@code {"error": reason}} with 400 for a malformed
+ * request, 404 for an unknown book or member and 409 when the library's
+ * state does not allow the change. Each request runs on its own virtual
+ * thread when the JVM has them (Java 21 and later), else on a cached pool of
+ * platform threads.
+ */
+public class LibraryHttpServer {
+    private static final Logger LOGGER = Logger.getLogger(LibraryHttpServer.class.getName());
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int DEFAULT_STATS_RANKING = 10;
+    private static final int DEFAULT_STATS_DAYS = 30;
+    private static final int MAX_PAGE_SIZE = 1_000;
+    private static final int BACKLOG = 10_000;
+    
+    static {
+        // The built-in server leaves Nagle's algorithm on, which together with delayed ACKs stalls each
+        // response on a keep-alive connection by about 40 ms. Only read when the first server is created.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+    
+    private final LibraryService service;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    
+    private LibraryHttpServer(LibraryService service, HttpServer server, ExecutorService executor) {
+        this.service = service;
+        this.server = server;
+        this.executor = executor;
+    }
+    
+    // Port 0 picks a free port; see getPort
+    public static LibraryHttpServer start(LibraryService service, InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, BACKLOG);
+        ExecutorService executor = newRequestExecutor();
+        LibraryHttpServer httpServer = new LibraryHttpServer(service, server, executor);
+        httpServer.route("books", httpServer::books);
+        httpServer.route("members", httpServer::members);
+        httpServer.route("loans", httpServer::loans);
+        httpServer.route("returns", httpServer::returns);
+        httpServer.route("holds", httpServer::holds);
+        httpServer.route("transactions", httpServer::transactions);
+        httpServer.route("search", httpServer::search);
+        httpServer.route("overdue", httpServer::overdue);
+        httpServer.route("metrics", httpServer::metrics);
+        httpServer.route("stats", httpServer::stats);
+        server.setExecutor(executor);
+        server.start();
+        return httpServer;
+    }
+    
+    private void route(String context, Function<Request, Response> handler) {
+        server.createContext("/" + context, exchange -> handle(exchange, context, handler));
+    }
+    
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    // Stops accepting, gives requests in flight up to a second to finish, then stops their threads
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // One virtual thread per request where available; looked up reflectively since the build targets Java 17
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Before Java 21, or a preview build without --enable-preview
+            LOGGER.log(Level.WARNING, "Virtual threads are not available on Java {0}; serving requests on a cached "
+                + "thread pool instead", Runtime.version().feature());
+            return Executors.newCachedThreadPool();
+        }
+    }
+    
+    private Response books(Request request) {
+        if (request.path.length == 1 && "GET".equals(request.method)) {
+            return page(request, service::getBooksPage, LibraryHttpServer::bookJson);
+        }
+        if (request.path.length == 1 && "POST".equals(request.method)) {
+            return add(request.body(), LibraryHttpServer::parseBook, service::addBook, service::addBooks,
+                LibraryHttpServer::bookJson);
+        }
+        if (request.path.length == 2 && "GET".equals(request.method)) {
+            Book book = service.findBookById(request.path[1]);
+            return book == null ? Response.error(404, "BOOK_NOT_FOUND") : Response.ok(bookJson(book));
+        }
+        return request.unsupported();
+    }
+    
+    private Response members(Request request) {
+        if (request.path.length == 1 && "GET".equals(request.method)) {
+            return page(request, service::getMembersPage, LibraryHttpServer::memberJson);
+        }
+        if (request.path.length == 1 && "POST".equals(request.method)) {
+            return add(request.body(), LibraryHttpServer::parseMember, service::addMember, service::addMembers,
+                LibraryHttpServer::memberJson);
+        }
+        if (request.path.length >= 2 && "GET".equals(request.method)) {
+            Member member = service.findMemberById(request.path[1]);
+            if (member == null) {
+                return Response.error(404, "MEMBER_NOT_FOUND");
+            }
+            if (request.path.length == 2) {
+                return Response.ok(memberJson(member));
+            }
+            if (request.path.length == 3 && "loans".equals(request.path[2])) {
+                return Response.ok(list(service.getActiveLoans(member.getId()), LibraryHttpServer::transactionJson));
+            }
+            if (request.path.length == 3 && "holds".equals(request.path[2])) {
+                return Response.ok(list(service.getHolds(member.getId()), this::holdJson));
+            }
+        }
+        return request.unsupported();
+    }
+    
+    private Response loans(Request request) {
+        if (request.path.length != 1 || !"POST".equals(request.method)) {
+            return request.unsupported();
+        }
+        Map<String, Object> body = object(request.body());
+        String memberId = string(body, "memberId");
+        if (body.containsKey("bookIds")) {
+            List<String> bookIds = strings(body, "bookIds");
+            LibraryMetrics.Failure failure = service.tryBorrowBooks(memberId, bookIds);
+            return failure == null ? Response.created(loansOf(memberId, bookIds)) : Response.error(failure);
+        }
+        String bookId = string(body, "bookId");
+        LibraryMetrics.Failure failure = service.tryBorrowBook(bookId, memberId);
+        if (failure != null) {
+            return Response.error(failure);
+        }
+        List<Object> loans = loansOf(memberId, List.of(bookId));
+        return Response.created(loans.isEmpty() ? Map.of("bookId", bookId, "memberId", memberId) : loans.get(0));
+    }
+    
+    private Response returns(Request request) {
+        if (request.path.length != 1 || !"POST".equals(request.method)) {
+            return request.unsupported();
+        }
+        Map<String, Object> body = object(request.body());
+        if (body.containsKey("bookIds")) {
+            List<String> bookIds = strings(body, "bookIds");
+            LibraryMetrics.Failure failure = service.tryReturnBooks(bookIds);
+            return failure == null ? Response.ok(Map.of("returned", bookIds)) : Response.error(failure);
+        }
+        String bookId = string(body, "bookId");
+        LibraryMetrics.Failure failure = service.tryReturnBook(bookId);
+        return failure == null ? Response.ok(Map.of("returned", List.of(bookId))) : Response.error(failure);
+    }
+    
+    private Response holds(Request request) {
+        if (request.path.length == 1 && "POST".equals(request.method)) {
+            Map<String, Object> body = object(request.body());
+            String bookId = string(body, "bookId");
+            String memberId = string(body, "memberId");
+            LibraryMetrics.Failure failure = service.tryPlaceHold(bookId, memberId);
+            if (failure != null) {
+                return Response.error(failure);
+            }
+            Hold hold = service.getHold(bookId, memberId);
+            return Response.created(hold == null ? Map.of("bookId", bookId, "memberId", memberId) : holdJson(hold));
+        }
+        if (request.path.length != 3) {
+            return request.unsupported();
+        }
+        String bookId = request.path[1];
+        String memberId = request.path[2];
+        if ("GET".equals(request.method)) {
+            Hold hold = service.getHold(bookId, memberId);
+            return hold == null ? Response.error(404, "NO_HOLD") : Response.ok(holdJson(hold));
+        }
+        if ("DELETE".equals(request.method)) {
+            return service.cancelHold(bookId, memberId)
+                ? Response.ok(Map.of("cancelled", true))
+                : Response.error(404, "NO_HOLD");
+        }
+        return request.unsupported();
+    }
+    
+    private Response transactions(Request request) {
+        if (request.path.length != 1 || !"GET".equals(request.method)) {
+            return request.unsupported();
+        }
+        return page(request, service::getTransactionsPage, LibraryHttpServer::transactionJson);
+    }
+    
+    private Response search(Request request) {
+        if (request.path.length != 1 || !"GET".equals(request.method)) {
+            return request.unsupported();
+        }
+        String query = request.query.get("q");
+        if (query == null) {
+            throw new IllegalArgumentException("q is required");
+        }
+        return Response.ok(list(service.searchBooks(query, request.limit()), LibraryHttpServer::bookJson));
+    }
+    
+    private Response overdue(Request request) {
+        if (request.path.length == 1 && "GET".equals(request.method)) {
+            return Response.ok(list(service.getOverdueLoans(), LibraryHttpServer::transactionJson));
+        }
+        if (request.path.length == 2 && "check".equals(request.path[1]) && "POST".equals(request.method)) {
+            return Response.ok(list(service.checkOverdue(), LibraryHttpServer::transactionJson));
+        }
+        return request.unsupported();
+    }
+    
+    private Response metrics(Request request) {
+        if (request.path.length != 1 || !"GET".equals(request.method)) {
+            return request.unsupported();
+        }
+        LibraryMetrics metrics = service.getMetrics();
+        Map<String, Object> latencies = new LinkedHashMap<>();
+        metrics.getLatencies().forEach((operation, summary) -> {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("sampled", summary.getCount());
+            json.put("meanNanos", Math.round(summary.getMeanNanos()));
+            json.put("p50Nanos", summary.getP50Nanos());
+            json.put("p99Nanos", summary.getP99Nanos());
+            json.put("p999Nanos", summary.getP999Nanos());
+            json.put("maxNanos", summary.getMaxNanos());
+            latencies.put(operation, json);
+        });
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("successes", metrics.getSuccessCounts());
+        json.put("failures", metrics.getFailureCounts());
+        json.put("latencies", latencies);
+        return Response.ok(json);
+    }
+    
+    private Response stats(Request request) {
+        if (request.path.length != 1 || !"GET".equals(request.method)) {
+            return request.unsupported();
+        }
+        int top = request.query.containsKey("limit") ? request.limit() : DEFAULT_STATS_RANKING;
+        int days = positiveInt(request.query.getOrDefault("days", String.valueOf(DEFAULT_STATS_DAYS)), "days");
+        CirculationStatistics statistics = service.getStatistics();
+        List<Object> books = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : statistics.getMostBorrowedBooks(top)) {
+            Book book = service.findBookById(entry.getKey());
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("bookId", entry.getKey());
+            json.put("title", book == null ? null : book.getTitle());
+            json.put("loans", entry.getValue());
+            books.add(json);
+        }
+        LocalDate today = LocalDate.now(service.getClock());
+        Map<String, Object> perDay = new LinkedHashMap<>();
+        statistics.getLoansPerDay(today.minusDays(days - 1L), today).forEach((day, loans) -> perDay.put(day.toString(), loans));
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("totalLoans", statistics.getTotalLoans());
+        json.put("activeLoans", statistics.getActiveLoans());
+        json.put("mostBorrowedBooks", books);
+        json.put("mostActiveMembers", ranking(statistics.getMostActiveMembers(top), "memberId", "loans"));
+        json.put("authorsByActiveLoans", ranking(statistics.getAuthorsByActiveLoans(top), "author", "activeLoans"));
+        json.put("loansPerDay", perDay);
+        return Response.ok(json);
+    }
+    
+    private static int positiveInt(String value, String name) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(name + " must be a positive integer");
+    }
+    
+    private static List<Object> ranking(List<Map.Entry<String, Long>> entries, String keyName, String countName) {
+        List<Object> ranking = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Long> entry : entries) {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put(keyName, entry.getKey());
+            json.put(countName, entry.getValue());
+            ranking.add(json);
+        }
+        return ranking;
+    }
+    
+    // Loans just made: the member's newest loan of each title or copy; one returned again in the meantime is left out
+    private List<Object> loansOf(String memberId, List<String> bookIds) {
+        List<Transaction> active = service.getActiveLoans(memberId);
+        Set<String> found = new HashSet<>();
+        List<Object> loans = new ArrayList<>(bookIds.size());
+        for (String bookId : bookIds) {
+            for (int i = active.size() - 1; i >= 0; i--) {
+                Transaction transaction = active.get(i);
+                boolean matches = bookId.equals(transaction.getBookId()) || bookId.equals(transaction.getCopyId());
+                if (matches && found.add(transaction.getId())) {
+                    loans.add(transactionJson(transaction));
+                    break;
+                }
+            }
+        }
+        return loans;
+    }
+    
+    private static <T> Response add(String body, Function<Map<String, Object>, T> parser, Predicate<T> addOne,
+            ToIntFunction<Collection<T>> addMany, Function<T, Object> toJson) {
+        Object parsed = Json.parse(body);
+        if (parsed instanceof List) {
+            List<T> items = new ArrayList<>();
+            for (Object item : (List<?>) parsed) {
+                items.add(parser.apply(object(item)));
+            }
+            return Response.created(Map.of("added", addMany.applyAsInt(items)));
+        }
+        T item = parser.apply(object(parsed));
+        return addOne.test(item) ? Response.created(toJson.apply(item)) : Response.error(409, "ALREADY_EXISTS");
+    }
+    
+    private static <T> Response page(Request request, PageSource<T> source, Function<T, Object> toJson) {
+        Page<T> page = source.page(request.query.get("after"), request.limit());
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("items", list(page.getItems(), toJson));
+        json.put("next", page.getNextCursor());
+        return Response.ok(json);
+    }
+    
+    private static <T> List<Object> list(List<T> items, Function<T, Object> toJson) {
+        List<Object> json = new ArrayList<>(items.size());
+        for (T item : items) {
+            json.add(toJson.apply(item));
+        }
+        return json;
+    }
+    
+    private static Book parseBook(Map<String, Object> json) {
+        return new Book(string(json, "id"), string(json, "title"), string(json, "author"), copies(json));
+    }
+    
+    private static int copies(Map<String, Object> json) {
+        Object value = json.get("copies");
+        if (value == null) {
+            return 1;
+        }
+        if (value instanceof BigDecimal) {
+            try {
+                int copies = ((BigDecimal) value).intValueExact();
+                if (copies > 0) {
+                    return copies;
+                }
+            } catch (ArithmeticException e) {
+                // Reported below
+            }
+        }
+        throw new IllegalArgumentException("copies must be a positive integer");
+    }
+    
+    private static Member parseMember(Map<String, Object> json) {
+        return new Member(string(json, "id"), string(json, "name"), string(json, "email"));
+    }
+    
+    static Map<String, Object> bookJson(Book book) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", book.getId());
+        json.put("title", book.getTitle());
+        json.put("author", book.getAuthor());
+        json.put("available", book.isAvailable());
+        json.put("copies", book.getCopies());
+        json.put("availableCopies", book.getAvailableCopies());
+        return json;
+    }
+    
+    static Map<String, Object> memberJson(Member member) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", member.getId());
+        json.put("name", member.getName());
+        json.put("email", member.getEmail());
+        return json;
+    }
+    
+    static Map<String, Object> transactionJson(Transaction transaction) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", transaction.getId());
+        json.put("bookId", transaction.getBookId());
+        json.put("copyId", transaction.getCopyId());
+        json.put("memberId", transaction.getMemberId());
+        json.put("borrowDate", transaction.getBorrowDate());
+        json.put("dueDate", transaction.getDueDate());
+        json.put("returnDate", transaction.getReturnDate());
+        json.put("returned", transaction.isReturned());
+        return json;
+    }
+    
+    // Position is 0 once a copy is lent off the hold and awaits pickup
+    Map<String, Object> holdJson(Hold hold) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("bookId", hold.getBookId());
+        json.put("memberId", hold.getMemberId());
+        json.put("placedDate", hold.getPlacedDate());
+        json.put("position", service.getHoldPosition(hold.getBookId(), hold.getMemberId()));
+        json.put("ready", hold.isReady());
+        json.put("pickupDeadline", hold.getPickupDeadline());
+        json.put("copyId", hold.isReady() ? hold.getCopyId() : null);
+        return json;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> object(Object json) {
+        if (!(json instanceof Map)) {
+            throw new IllegalArgumentException("Expected a JSON object");
+        }
+        return (Map<String, Object>) json;
+    }
+    
+    private static Map<String, Object> object(String body) {
+        return object(Json.parse(body));
+    }
+    
+    private static String string(Map<String, Object> json, String key) {
+        Object value = json.get(key);
+        if (!(value instanceof String) || ((String) value).isEmpty()) {
+            throw new IllegalArgumentException(key + " must be a non-empty string");
+        }
+        return (String) value;
+    }
+    
+    private static List<String> strings(Map<String, Object> json, String key) {
+        Object value = json.get(key);
+        if (!(value instanceof List)) {
+            throw new IllegalArgumentException(key + " must be an array of strings");
+        }
+        List<String> strings = new ArrayList<>();
+        for (Object item : (List<?>) value) {
+            if (!(item instanceof String)) {
+                throw new IllegalArgumentException(key + " must be an array of strings");
+            }
+            strings.add((String) item);
+        }
+        return strings;
+    }
+    
+    private void handle(HttpExchange exchange, String context, Function<Request, Response> route) throws IOException {
+        Response response;
+        try {
+            Request request = new Request(exchange);
+            // Contexts match by prefix, so "/booksX" lands in "/books" too
+            response = context.equals(request.path[0]) ? route.apply(request) : request.unsupported();
+        } catch (IllegalArgumentException e) {
+            // Some JDK parsers throw without a message
+            response = Response.error(400, e.getMessage() == null ? "BAD_REQUEST" : e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Request failed: " + exchange.getRequestMethod() + " "
+                + exchange.getRequestURI(), e);
+            response = Response.error(500, "INTERNAL_ERROR");
+        }
+        byte[] bytes = Json.write(response.body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(response.status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+    
+    interface PageSource<T> {
+        Page<T> page(String afterId, int limit);
+    }
+    
+    private static final class Request {
+        final String method;
+        // Decoded path segments, starting with the context, e.g. ["members", "M001", "loans"]
+        final String[] path;
+        final Map<String, String> query;
+        private final HttpExchange exchange;
+        
+        Request(HttpExchange exchange) {
+            this.exchange = exchange;
+            this.method = exchange.getRequestMethod();
+            String rawPath = exchange.getRequestURI().getPath();
+            this.path = rawPath.replaceAll("^/+|/+$", "").split("/+");
+            this.query = parseQuery(exchange.getRequestURI().getRawQuery());
+        }
+        
+        String body() {
+            try (InputStream in = exchange.getRequestBody()) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not read the request body", e);
+            }
+        }
+        
+        int limit() {
+            String limit = query.get("limit");
+            return limit == null ? DEFAULT_PAGE_SIZE : Math.min(positiveInt(limit, "limit"), MAX_PAGE_SIZE);
+        }
+        
+        Response unsupported() {
+            return Response.error(404, "No route for " + method + " " + exchange.getRequestURI().getPath());
+        }
+        
+        private static Map<String, String> parseQuery(String rawQuery) {
+            Map<String, String> query = new HashMap<>();
+            if (rawQuery == null || rawQuery.isEmpty()) {
+                return query;
+            }
+            for (String pair : rawQuery.split("&")) {
+                int equals = pair.indexOf('=');
+                String key = equals < 0 ? pair : pair.substring(0, equals);
+                String value = equals < 0 ? "" : pair.substring(equals + 1);
+                query.put(URLDecoder.decode(key, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+            return query;
+        }
+    }
+    
+    private static final class Response {
+        final int status;
+        final Object body;
+        
+        private Response(int status, Object body) {
+            this.status = status;
+            this.body = body;
+        }
+        
+        static Response ok(Object body) {
+            return new Response(200, body);
+        }
+        
+        static Response created(Object body) {
+            return new Response(201, body);
+        }
+        
+        static Response error(int status, String reason) {
+            return new Response(status, Map.of("error", reason));
+        }
+        
+        static Response error(LibraryMetrics.Failure failure) {
+            switch (failure) {
+                case INVALID_REQUEST:
+                    return error(400, failure.name());
+                case BOOK_NOT_FOUND:
+                case MEMBER_NOT_FOUND:
+                    return error(404, failure.name());
+                default:
+                    return error(409, failure.name());
+            }
+        }
+    }
+}
\ No newline at end of file
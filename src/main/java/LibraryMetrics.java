@@ -0,0 +1,263 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the circulation operations of a
+ * LibraryService. Counters are LongAdders, so threads recording at the same
+ * time do not contend; see {@link LatencyHistogram} for the histograms.
+ *
+ * <p>Every call is counted, but by default only a random one in eight is
+ * timed: reading the clock twice costs more than the rest of the
+ * bookkeeping, and sampling keeps it within a few percent of a borrow. Set
+ * the sample interval to 1 to time every call. Turning the metrics off makes
+ * recording a single volatile read.
+ */
+public class LibraryMetrics implements LibraryMetricsMXBean {
+    public static final String OBJECT_NAME = "library:type=LibraryMetrics";
+    public static final int DEFAULT_LATENCY_SAMPLE_INTERVAL = 8;
+    private static final long DISABLED = Long.MIN_VALUE;
+    private static final long NOT_TIMED = Long.MIN_VALUE + 1;
+    
+    public enum Operation {
+        BORROW,
+        RETURN,
+        BATCH_BORROW,
+        BATCH_RETURN,
+        HOLD
+    }
+    
+    // Why an operation returned false or threw
+    public enum Failure {
+        // Null ID, empty batch or an ID repeated within a batch
+        INVALID_REQUEST,
+        BOOK_NOT_FOUND,
+        MEMBER_NOT_FOUND,
+        NOT_AVAILABLE,
+        LOAN_LIMIT_REACHED,
+        NO_ACTIVE_LOAN,
+        // A hold on a book that is on the shelf; borrow it instead
+        BOOK_AVAILABLE,
+        // The member already has a hold on the book, or has it out
+        ALREADY_HELD,
+        // A listener, e.g. the write-ahead log, threw and the change was rolled back
+        REJECTED
+    }
+    
+    private final LongAdder[] successes;
+    private final LongAdder[][] failures;
+    private final LatencyHistogram[] latencies;
+    private volatile boolean enabled;
+    private volatile int latencySampleInterval;
+    
+    public LibraryMetrics() {
+        int operations = Operation.values().length;
+        this.successes = new LongAdder[operations];
+        this.failures = new LongAdder[operations][Failure.values().length];
+        this.latencies = new LatencyHistogram[operations];
+        for (int op = 0; op < operations; op++) {
+            successes[op] = new LongAdder();
+            for (int reason = 0; reason < failures[op].length; reason++) {
+                failures[op][reason] = new LongAdder();
+            }
+            latencies[op] = new LatencyHistogram();
+        }
+        this.enabled = true;
+        this.latencySampleInterval = DEFAULT_LATENCY_SAMPLE_INTERVAL;
+    }
+    
+    // Start time to pass to record
+    long start() {
+        if (!enabled) {
+            return DISABLED;
+        }
+        int interval = latencySampleInterval;
+        if (interval > 1 && ThreadLocalRandom.current().nextInt(interval) != 0) {
+            return NOT_TIMED;
+        }
+        return System.nanoTime();
+    }
+    
+    // Records a call that began at start; a null failure means it succeeded
+    void record(Operation operation, Failure failure, long start) {
+        if (start == DISABLED) {
+            return;
+        }
+        if (start != NOT_TIMED) {
+            latencies[operation.ordinal()].record(System.nanoTime() - start);
+        }
+        if (failure == null) {
+            successes[operation.ordinal()].increment();
+        } else {
+            failures[operation.ordinal()][failure.ordinal()].increment();
+        }
+    }
+    
+    public long getSuccessCount(Operation operation) {
+        return successes[operation.ordinal()].sum();
+    }
+    
+    public long getFailureCount(Operation operation, Failure failure) {
+        return failures[operation.ordinal()][failure.ordinal()].sum();
+    }
+    
+    public long getFailureCount(Operation operation) {
+        long count = 0;
+        for (LongAdder adder : failures[operation.ordinal()]) {
+            count += adder.sum();
+        }
+        return count;
+    }
+    
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+    
+    @Override
+    public Map<String, Long> getSuccessCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            counts.put(operation.name(), getSuccessCount(operation));
+        }
+        return counts;
+    }
+    
+    @Override
+    public Map<String, Long> getFailureCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            for (Failure failure : Failure.values()) {
+                long count = getFailureCount(operation, failure);
+                if (count > 0) {
+                    counts.put(operation.name() + "." + failure.name(), count);
+                }
+            }
+        }
+        return counts;
+    }
+    
+    @Override
+    public Map<String, LatencySummary> getLatencies() {
+        Map<String, LatencySummary> summaries = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            summaries.put(operation.name(), new LatencySummary(getLatency(operation)));
+        }
+        return summaries;
+    }
+    
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    // Calls already in flight when the metrics are turned off are still recorded
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    @Override
+    public int getLatencySampleInterval() {
+        return latencySampleInterval;
+    }
+    
+    @Override
+    public void setLatencySampleInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval must be at least 1");
+        }
+        this.latencySampleInterval = interval;
+    }
+    
+    @Override
+    public void reset() {
+        for (int op = 0; op < successes.length; op++) {
+            successes[op].reset();
+            for (LongAdder adder : failures[op]) {
+                adder.reset();
+            }
+            latencies[op].reset();
+        }
+    }
+    
+    // Human-readable dump of every counter and histogram, latencies in microseconds; the mean is of the sample
+    @Override
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%-13s %10s %10s %9s %9s %9s %9s %9s%n",
+            "Operation", "OK", "Failed", "Mean", "p50", "p99", "p99.9", "Max"));
+        for (Operation operation : Operation.values()) {
+            LatencySummary latency = new LatencySummary(getLatency(operation));
+            report.append(String.format(Locale.ROOT, "%-13s %10d %10d %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+                operation, getSuccessCount(operation), getFailureCount(operation),
+                latency.getMeanNanos() / 1_000.0, latency.getP50Nanos() / 1_000.0, latency.getP99Nanos() / 1_000.0,
+                latency.getP999Nanos() / 1_000.0, latency.getMaxNanos() / 1_000.0));
+        }
+        Map<String, Long> failureCounts = getFailureCounts();
+        if (!failureCounts.isEmpty()) {
+            report.append("Failures:").append(System.lineSeparator());
+            failureCounts.forEach((key, count) ->
+                report.append(String.format(Locale.ROOT, "  %-32s %10d%n", key, count)));
+        }
+        return report.toString();
+    }
+    
+    // Registers with the platform MBean server under OBJECT_NAME, replacing any earlier registration
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+    
+    // Point-in-time view of one histogram; a bean so JMX can show it as composite data
+    public static final class LatencySummary {
+        private final long count;
+        private final double meanNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long p999Nanos;
+        private final long maxNanos;
+        
+        LatencySummary(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.meanNanos = histogram.getMean();
+            this.p50Nanos = histogram.getValueAtPercentile(50);
+            this.p99Nanos = histogram.getValueAtPercentile(99);
+            this.p999Nanos = histogram.getValueAtPercentile(99.9);
+            this.maxNanos = histogram.getMax();
+        }
+        
+        public long getCount() {
+            return count;
+        }
+        
+        public double getMeanNanos() {
+            return meanNanos;
+        }
+        
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+        
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+        
+        public long getP999Nanos() {
+            return p999Nanos;
+        }
+        
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+    }
+}
\ No newline at end of file
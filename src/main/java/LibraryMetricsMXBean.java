@@ -0,0 +1,26 @@
+import java.util.Map;
+
+// JMX view of LibraryMetrics; maps show up as tables in JConsole and VisualVM
+public interface LibraryMetricsMXBean {
+    // Successful calls by operation, e.g. "BORROW"
+    Map<String, Long> getSuccessCounts();
+    
+    // Failed calls by operation and reason, e.g. "BORROW.NOT_AVAILABLE"; reasons never seen are left out
+    Map<String, Long> getFailureCounts();
+    
+    // Latency of the sampled calls, successful or not, by operation
+    Map<String, LibraryMetrics.LatencySummary> getLatencies();
+    
+    // One call in this many is timed
+    int getLatencySampleInterval();
+    
+    void setLatencySampleInterval(int interval);
+    
+    boolean isEnabled();
+    
+    void setEnabled(boolean enabled);
+    
+    void reset();
+    
+    String report();
+}
\ No newline at end of file
@@ -0,0 +1,389 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs LibraryApp commands from a script, one per line, with no menu or
+ * prompts. Every result and every listed record becomes one CSV or
+ * JSON-lines row. Rows are formatted into a reused StringBuilder and handed
+ * to the caller's writer, which should be a large buffered one, so dumping
+ * millions of transactions is bound by I/O rather than by a console call per
+ * row. Listings read a {@link LibrarySnapshot}, so a dump is consistent even
+ * while the service keeps changing.
+ *
+ * <p>Commands: {@code add-book ID TITLE AUTHOR [COPIES]}, {@code add-member ID NAME
+ * EMAIL}, {@code borrow BOOK_ID MEMBER_ID}, {@code return BOOK_ID},
+ * {@code books}, {@code members}, {@code transactions}, {@code loans
+ * MEMBER_ID}, {@code overdue}, {@code search TERMS...}, {@code import
+ * books|members FILE}, {@code hold BOOK_ID MEMBER_ID}, {@code cancel-hold
+ * BOOK_ID MEMBER_ID}, {@code holds MEMBER_ID} and {@code expire-holds}.
+ * Arguments are separated by whitespace; quote one that contains spaces,
+ * doubling any quote inside it. Blank lines and lines starting with # are
+ * skipped.
+ *
+ * <p>The first column of a CSV row, and the "type" field of a JSON line, is
+ * the record type: book, member, transaction, hold, result or import.
+ */
+public class LibraryScript {
+    public enum Format { CSV, JSONL }
+    
+    // Exit statuses: all commands succeeded, some were refused, or the script could not be run
+    public static final int OK = 0;
+    public static final int FAILED = 1;
+    public static final int BAD_SCRIPT = 2;
+    
+    private static final int SEARCH_RESULTS = 10;
+    
+    private final LibraryService service;
+    private final Writer out;
+    private final Format format;
+    private final StringBuilder row = new StringBuilder(256);
+    private boolean firstField;
+    private String error;
+    
+    public LibraryScript(LibraryService service, Writer out, Format format) {
+        this.service = service;
+        this.out = out;
+        this.format = format;
+    }
+    
+    public static Format parseFormat(String name) {
+        try {
+            return Format.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown format: " + name + " (expected csv or jsonl)", e);
+        }
+    }
+    
+    /**
+     * Runs every command in the script and flushes the output. A refused
+     * command is reported in its result row and the script carries on; a
+     * line that cannot be understood stops it with {@link #BAD_SCRIPT}, and
+     * {@link #getError()} says which line and why.
+     */
+    public int run(BufferedReader script) throws IOException {
+        int status = OK;
+        int lineNumber = 0;
+        try {
+            String line;
+            while ((line = script.readLine()) != null) {
+                lineNumber++;
+                String command = line.trim();
+                if (command.isEmpty() || command.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    if (!execute(tokenize(command))) {
+                        status = FAILED;
+                    }
+                } catch (IllegalArgumentException e) {
+                    error = "line " + lineNumber + ": " + e.getMessage();
+                    return BAD_SCRIPT;
+                }
+            }
+            return status;
+        } finally {
+            out.flush();
+        }
+    }
+    
+    // Why the last run stopped with BAD_SCRIPT, or null
+    public String getError() {
+        return error;
+    }
+    
+    // Returns false if the command was refused
+    private boolean execute(List<String> tokens) throws IOException {
+        String command = tokens.get(0);
+        switch (command) {
+            case "add-book": {
+                if (tokens.size() != 5) {
+                    expectArguments(tokens, 3);
+                }
+                int copies = tokens.size() == 5 ? positiveInt(tokens.get(4), "COPIES") : 1;
+                return result(command, "id", tokens.get(1),
+                    service.addBook(new Book(tokens.get(1), tokens.get(2), tokens.get(3), copies)) ? null : "DUPLICATE");
+            }
+            case "add-member":
+                expectArguments(tokens, 3);
+                return result(command, "id", tokens.get(1),
+                    service.addMember(new Member(tokens.get(1), tokens.get(2), tokens.get(3))) ? null : "DUPLICATE");
+            case "borrow": {
+                expectArguments(tokens, 2);
+                LibraryMetrics.Failure failure = service.tryBorrowBook(tokens.get(1), tokens.get(2));
+                return memberResult(command, tokens.get(1), tokens.get(2), failure == null ? null : failure.name());
+            }
+            case "return": {
+                expectArguments(tokens, 1);
+                LibraryMetrics.Failure failure = service.tryReturnBook(tokens.get(1));
+                return result(command, "bookId", tokens.get(1), failure == null ? null : failure.name());
+            }
+            case "books":
+                expectArguments(tokens, 0);
+                try (LibrarySnapshot snapshot = service.openSnapshot()) {
+                    writeBooks(snapshot.streamBooks().iterator());
+                }
+                return true;
+            case "members":
+                expectArguments(tokens, 0);
+                try (LibrarySnapshot snapshot = service.openSnapshot()) {
+                    writeMembers(snapshot.streamMembers().iterator());
+                }
+                return true;
+            case "transactions":
+                expectArguments(tokens, 0);
+                try (LibrarySnapshot snapshot = service.openSnapshot()) {
+                    writeTransactions(snapshot.streamTransactions().iterator());
+                }
+                return true;
+            case "loans":
+                expectArguments(tokens, 1);
+                writeTransactions(service.getLoanHistory(tokens.get(1)).iterator());
+                return true;
+            case "overdue":
+                expectArguments(tokens, 0);
+                service.checkOverdue();
+                writeTransactions(service.getOverdueLoans().iterator());
+                return true;
+            case "search":
+                if (tokens.size() < 2) {
+                    throw new IllegalArgumentException("search needs at least one term");
+                }
+                writeBooks(service.searchBooks(String.join(" ", tokens.subList(1, tokens.size())), SEARCH_RESULTS)
+                    .iterator());
+                return true;
+            case "hold": {
+                expectArguments(tokens, 2);
+                LibraryMetrics.Failure failure = service.tryPlaceHold(tokens.get(1), tokens.get(2));
+                return memberResult(command, tokens.get(1), tokens.get(2), failure == null ? null : failure.name());
+            }
+            case "cancel-hold":
+                expectArguments(tokens, 2);
+                return memberResult(command, tokens.get(1), tokens.get(2),
+                    service.cancelHold(tokens.get(1), tokens.get(2)) ? null : "NO_HOLD");
+            case "holds":
+                expectArguments(tokens, 1);
+                writeHolds(service.getHolds(tokens.get(1)).iterator());
+                return true;
+            case "expire-holds":
+                expectArguments(tokens, 0);
+                writeHolds(service.expireUncollectedHolds().iterator());
+                return true;
+            case "import":
+                expectArguments(tokens, 2);
+                return importCatalog(tokens.get(1), tokens.get(2));
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+    
+    private boolean importCatalog(String kind, String file) throws IOException {
+        if (!"books".equals(kind) && !"members".equals(kind)) {
+            throw new IllegalArgumentException("import needs books or members, not " + kind);
+        }
+        CatalogImporter importer = new CatalogImporter(service);
+        ImportResult result;
+        try {
+            result = "books".equals(kind) ? importer.importBooks(Paths.get(file)) : importer.importMembers(Paths.get(file));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot import " + file + ": " + e.getMessage(), e);
+        }
+        begin("import");
+        field("kind", kind);
+        field("file", file);
+        field("rowsRead", result.getRowsRead());
+        field("imported", result.getImported());
+        field("duplicates", result.getDuplicates());
+        field("invalid", result.getInvalid());
+        field("status", result.getInvalid() == 0 ? "OK" : "INVALID_ROWS");
+        end();
+        return result.getInvalid() == 0;
+    }
+    
+    private boolean result(String command, String key, String id, String failure) throws IOException {
+        begin("result");
+        field("command", command);
+        field(key, id);
+        field("status", failure == null ? "OK" : failure);
+        end();
+        return failure == null;
+    }
+    
+    private boolean memberResult(String command, String bookId, String memberId, String failure) throws IOException {
+        begin("result");
+        field("command", command);
+        field("bookId", bookId);
+        field("memberId", memberId);
+        field("status", failure == null ? "OK" : failure);
+        end();
+        return failure == null;
+    }
+    
+    private void writeBooks(Iterator<Book> books) throws IOException {
+        while (books.hasNext()) {
+            Book book = books.next();
+            begin("book");
+            field("id", book.getId());
+            field("title", book.getTitle());
+            field("author", book.getAuthor());
+            field("available", book.isAvailable());
+            field("copies", book.getCopies());
+            field("availableCopies", book.getAvailableCopies());
+            end();
+        }
+    }
+    
+    private void writeMembers(Iterator<Member> members) throws IOException {
+        while (members.hasNext()) {
+            Member member = members.next();
+            begin("member");
+            field("id", member.getId());
+            field("name", member.getName());
+            field("email", member.getEmail());
+            end();
+        }
+    }
+    
+    private void writeHolds(Iterator<Hold> holds) throws IOException {
+        while (holds.hasNext()) {
+            Hold hold = holds.next();
+            begin("hold");
+            field("bookId", hold.getBookId());
+            field("memberId", hold.getMemberId());
+            field("placedDate", hold.getPlacedDate());
+            field("position", service.getHoldPosition(hold.getBookId(), hold.getMemberId()));
+            field("pickupDeadline", hold.getPickupDeadline());
+            end();
+        }
+    }
+    
+    private void writeTransactions(Iterator<Transaction> transactions) throws IOException {
+        while (transactions.hasNext()) {
+            Transaction transaction = transactions.next();
+            begin("transaction");
+            field("id", transaction.getId());
+            field("bookId", transaction.getBookId());
+            field("copyId", transaction.getCopyId());
+            field("memberId", transaction.getMemberId());
+            field("borrowDate", transaction.getBorrowDate());
+            field("dueDate", transaction.getDueDate());
+            field("returnDate", transaction.getReturnDate());
+            field("returned", transaction.isReturned());
+            end();
+        }
+    }
+    
+    private void begin(String type) {
+        row.setLength(0);
+        firstField = true;
+        if (format == Format.JSONL) {
+            row.append('{');
+        }
+        field("type", type);
+    }
+    
+    // Null becomes an empty CSV column or a JSON null
+    private void field(String name, Object value) {
+        if (!firstField) {
+            row.append(',');
+        }
+        firstField = false;
+        if (format == Format.JSONL) {
+            // Names are fixed identifiers here and need no escaping
+            row.append('"').append(name).append("\":");
+            Json.write(value, row);
+        } else if (value != null) {
+            appendCsv(value.toString());
+        }
+    }
+    
+    private void end() throws IOException {
+        if (format == Format.JSONL) {
+            row.append('}');
+        }
+        row.append('\n');
+        out.append(row);
+    }
+    
+    private void appendCsv(String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            row.append(value);
+            return;
+        }
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                row.append('"');
+            }
+            row.append(c);
+        }
+        row.append('"');
+    }
+    
+    private static int positiveInt(String value, String name) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(name + " must be a positive integer, got " + value);
+    }
+    
+    private static void expectArguments(List<String> tokens, int count) {
+        if (tokens.size() - 1 != count) {
+            throw new IllegalArgumentException(tokens.get(0) + " takes " + count + " argument(s), got "
+                + (tokens.size() - 1));
+        }
+    }
+    
+    // Splits on whitespace; "quoted text" is one token and "" inside quotes is a literal quote
+    static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        int position = 0;
+        while (true) {
+            while (position < line.length() && Character.isWhitespace(line.charAt(position))) {
+                position++;
+            }
+            if (position == line.length()) {
+                return tokens;
+            }
+            StringBuilder token = new StringBuilder();
+            if (line.charAt(position) == '"') {
+                position++;
+                while (true) {
+                    if (position == line.length()) {
+                        throw new IllegalArgumentException("Unterminated quote");
+                    }
+                    char c = line.charAt(position++);
+                    if (c != '"') {
+                        token.append(c);
+                    } else if (position < line.length() && line.charAt(position) == '"') {
+                        token.append('"');
+                        position++;
+                    } else {
+                        break;
+                    }
+                }
+            } else {
+                while (position < line.length() && !Character.isWhitespace(line.charAt(position))) {
+                    token.append(line.charAt(position++));
+                }
+            }
+            tokens.add(token.toString());
+        }
+    }
+}
\ No newline at end of file
@@ -1,116 +1,1781 @@
+import java.io.IOException;
+import java.time.Clock;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class LibraryService {
-    private final List<Book> books;
-    private final List<Member> members;
-    private final List<Transaction> transactions;
+    private static final int DEFAULT_LOCK_STRIPES = 1024;
+    private static final int DEFAULT_LOAN_DAYS = 14;
+    private static final int DEFAULT_HOLD_PICKUP_DAYS = 7;
+    
+    // Ordered by ID for paging
+    private final ConcurrentNavigableMap<String, Book> books;
+    private final ConcurrentNavigableMap<String, Member> members;
+    // Every loan not archived, open or closed, in compact columnar form; open loans are also kept as objects
+    // below. Both are replaced by archiveReturnedLoans, the archive first; readers take the history first,
+    // so they may see a loan in both, never in neither
+    private volatile TransactionHistory history;
+    private volatile TransactionArchive archive;
+    
+    // Primary-key indexes kept in sync with the collections above
+    private final Map<String, Book> booksById;
+    private final Map<String, Member> membersById;
+    // Open loans by copy ID (see Book); copy 1 goes by the title's ID
+    private final Map<String, Transaction> activeTransactionsByCopyId;
+    private final Map<String, MemberLoans> loansByMemberId;
+    // Members waiting for each title, changed under the title's stripe; and holds whose copy is lent out awaiting
+    // pickup, by copy ID
+    private final Map<String, HoldQueue> holdsByBookId;
+    private final Map<String, Hold> pickupsByCopyId;
+    // Every change that becomes visible is stamped with a commit version, so snapshots can read as of one.
+    // Removed books are kept here, by ID, for as long as a snapshot from before their removal may read them
+    private final VersionClock versions;
+    private final ConcurrentNavigableMap<String, Book[]> removedBooks;
+    // One copy of each author in the catalog, shared by their books and dropped with the last of them
+    private final StringPool authors;
+    
+    // Changes to the same copy (or member, for adds) are serialized on its stripe; different IDs run in parallel.
+    // Which copies of a title are free is tracked by the Book itself without locks, so checkouts of different
+    // copies of one title do not wait for each other
+    private final ReentrantLock[] stripeLocks;
+    private final TransactionIdAllocator transactionIdAllocator;
+    private final List<CirculationListener> listeners;
+    private final BookSearchIndex searchIndex;
+    private final OverdueTracker overdueTracker;
+    private final LibraryMetrics metrics;
+    // Replaced wholesale by rebuildStatistics
+    private volatile CirculationStatistics statistics;
+    private volatile int memberLoanLimit;
+    private volatile LoanPolicy loanPolicy;
+    private volatile int holdPickupDays;
+    private volatile Clock clock;
+    // Finds members of the other branches of a ShardedLibrary, who borrow and place holds here as visitors
+    private volatile Function<String, Member> visitors;
+    // Counts a member's loans in every branch of a ShardedLibrary, for the limit on copies lent off holds
+    private volatile ToIntFunction<String> loanCounts;
     
     public LibraryService() {
-        this.books = new ArrayList<>();
-        this.members = new ArrayList<>();
-        this.transactions = new ArrayList<>();
+        this(DEFAULT_LOCK_STRIPES);
+    }
+    
+    public LibraryService(TransactionIdAllocator transactionIdAllocator) {
+        this(DEFAULT_LOCK_STRIPES, transactionIdAllocator);
+    }
+    
+    public LibraryService(int lockStripes) {
+        this(lockStripes, new SequentialTransactionIdAllocator());
+    }
+    
+    public LibraryService(int lockStripes, TransactionIdAllocator transactionIdAllocator) {
+        if (lockStripes <= 0) {
+            throw new IllegalArgumentException("lockStripes must be positive");
+        }
+        if (transactionIdAllocator == null) {
+            throw new IllegalArgumentException("transactionIdAllocator must not be null");
+        }
+        this.books = new ConcurrentSkipListMap<>();
+        this.members = new ConcurrentSkipListMap<>();
+        this.history = new TransactionHistory();
+        this.archive = new TransactionArchive(null);
+        this.booksById = new ConcurrentHashMap<>();
+        this.membersById = new ConcurrentHashMap<>();
+        this.activeTransactionsByCopyId = new ConcurrentHashMap<>();
+        this.loansByMemberId = new ConcurrentHashMap<>();
+        this.holdsByBookId = new ConcurrentHashMap<>();
+        this.pickupsByCopyId = new ConcurrentHashMap<>();
+        this.versions = new VersionClock();
+        this.removedBooks = new ConcurrentSkipListMap<>();
+        this.authors = new StringPool();
+        int stripes = 1;
+        while (stripes < lockStripes) {
+            stripes <<= 1;
+        }
+        this.stripeLocks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripeLocks.length; i++) {
+            stripeLocks[i] = new ReentrantLock();
+        }
+        this.transactionIdAllocator = transactionIdAllocator;
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.searchIndex = new BookSearchIndex();
+        this.memberLoanLimit = Integer.MAX_VALUE;
+        this.loanPolicy = LoanPolicy.fixed(DEFAULT_LOAN_DAYS);
+        this.holdPickupDays = DEFAULT_HOLD_PICKUP_DAYS;
+        this.clock = Clock.systemDefaultZone();
+        this.overdueTracker = new OverdueTracker(LocalDate.now(clock));
+        this.metrics = new LibraryMetrics();
+        this.statistics = new CirculationStatistics();
+    }
+    
+    public void addListener(CirculationListener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+    }
+    
+    public void removeListener(CirculationListener listener) {
+        listeners.remove(listener);
+    }
+    
+    // Tells every listener about a change about to be made; if one throws, they all hear it was called off
+    private void notifyListeners(Consumer<CirculationListener> callback) {
+        try {
+            for (CirculationListener listener : listeners) {
+                callback.accept(listener);
+            }
+        } catch (RuntimeException e) {
+            for (CirculationListener listener : listeners) {
+                listener.changeAborted();
+            }
+            throw e;
+        }
+    }
+    
+    // Called with the change's locks still held, so listeners hear of changes to a book in order
+    private void changeCommitted() {
+        for (CirculationListener listener : listeners) {
+            listener.changeCommitted();
+        }
+    }
+    
+    // Most books one member may have out at once; unlimited by default
+    public void setMemberLoanLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        memberLoanLimit = limit;
+    }
+    
+    public int getMemberLoanLimit() {
+        return memberLoanLimit;
+    }
+    
+    // Sets the due date of loans made from now on; defaults to 14 days for every loan
+    public void setLoanPolicy(LoanPolicy loanPolicy) {
+        if (loanPolicy == null) {
+            throw new IllegalArgumentException("loanPolicy must not be null");
+        }
+        this.loanPolicy = loanPolicy;
+    }
+    
+    // Days a member has to collect a copy lent to them off a hold; 7 by default
+    public void setHoldPickupDays(int days) {
+        if (days <= 0) {
+            throw new IllegalArgumentException("days must be positive");
+        }
+        holdPickupDays = days;
+    }
+    
+    public int getHoldPickupDays() {
+        return holdPickupDays;
+    }
+    
+    // Source of "today" for borrow, return and due dates; replaceable so tests can move time
+    public void setClock(Clock clock) {
+        if (clock == null) {
+            throw new IllegalArgumentException("clock must not be null");
+        }
+        this.clock = clock;
+        overdueTracker.reset(LocalDate.now(clock));
+    }
+    
+    public Clock getClock() {
+        return clock;
+    }
+    
+    // Visitors may borrow and place holds, but are not members: listings, snapshots and adds never see them
+    void setVisitorLookup(Function<String, Member> visitors) {
+        this.visitors = visitors;
+    }
+    
+    // Replaces this branch's own count when a returned copy goes to the next hold in line
+    void setLoanCountLookup(ToIntFunction<String> loanCounts) {
+        this.loanCounts = loanCounts;
     }
     
-    public void addBook(Book book) {
-        if (book != null) {
-            books.add(book);
+    // False if the ID is taken, or contains the '#' that copy IDs use
+    public boolean addBook(Book book) {
+        if (book == null || !isValidBookId(book.getId())) {
+            return false;
+        }
+        ReentrantLock lock = lockFor(book.getId());
+        lock.lock();
+        try {
+            if (booksById.containsKey(book.getId())) {
+                return false;
+            }
+            notifyListeners(listener -> listener.bookAdded(book));
+            long version = versions.begin();
+            try {
+                stamp(book, version);
+                booksById.put(book.getId(), book);
+                books.put(book.getId(), book);
+            } finally {
+                versions.end(version);
+            }
+            searchIndex.add(book);
+            changeCommitted();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean addMember(Member member) {
+        if (member == null || member.getId() == null) {
+            return false;
+        }
+        ReentrantLock lock = lockFor(member.getId());
+        lock.lock();
+        try {
+            if (membersById.containsKey(member.getId())) {
+                return false;
+            }
+            notifyListeners(listener -> listener.memberAdded(member));
+            long version = versions.begin();
+            try {
+                member.addedVersion = version;
+                membersById.put(member.getId(), member);
+                members.put(member.getId(), member);
+            } finally {
+                versions.end(version);
+            }
+            changeCommitted();
+            return true;
+        } finally {
+            lock.unlock();
         }
     }
     
-    public void addMember(Member member) {
-        if (member != null) {
-            members.add(member);
+    // Bulk variants: each lock stripe is taken once per batch and listeners get one call per stripe.
+    // Null entries, IDs already present and repeats within the batch are skipped; returns how many were added.
+    public int addBooks(Collection<Book> batch) {
+        return addAll(batch, book -> isValidBookId(book.getId()) ? book.getId() : null, booksById, books,
+            this::stamp, CirculationListener::booksAdded, searchIndex::addAll);
+    }
+    
+    public int addMembers(Collection<Member> batch) {
+        return addAll(batch, Member::getId, membersById, members, (member, version) -> member.addedVersion = version,
+            CirculationListener::membersAdded, added -> { });
+    }
+    
+    /**
+     * Takes a title out of the catalog, as when it moves to another branch.
+     * Refused while any copy is out or anyone is waiting for it. Its past
+     * loans stay in the history. The removed Book keeps every copy off the
+     * shelf, so a caller still holding it can never lend one; to put the
+     * title back, add a new Book.
+     */
+    public boolean removeBook(String bookId) {
+        Book book = findBookById(bookId);
+        if (book == null) {
+            return false;
+        }
+        String[] ids = new String[book.getCopies() + 1];
+        for (int copy = 1; copy <= book.getCopies(); copy++) {
+            ids[copy - 1] = book.getCopyId(copy);
+        }
+        ids[ids.length - 1] = bookId;
+        ReentrantLock[] locks = lockStripes(ids);
+        int taken = 0;
+        boolean removed = false;
+        try {
+            if (booksById.get(bookId) != book || getHoldQueueLength(bookId) > 0) {
+                return false;
+            }
+            // Taking every copy off the shelf turns away borrowers that found the book before it went
+            while (taken < book.getCopies() && book.takeCopy(taken + 1)) {
+                taken++;
+            }
+            if (taken < book.getCopies()) {
+                return false;
+            }
+            notifyListeners(listener -> listener.bookRemoved(book));
+            long version = versions.begin();
+            try {
+                // Kept for snapshots before it leaves the catalog, so a snapshot that misses it there finds it here
+                book.removedVersion = version;
+                removedBooks.merge(bookId, new Book[] {book}, LibraryService::concat);
+                booksById.remove(bookId);
+                books.remove(bookId);
+            } finally {
+                versions.end(version);
+            }
+            holdsByBookId.remove(bookId);
+            searchIndex.remove(book);
+            authors.release(book.getAuthor());
+            removed = true;
+            changeCommitted();
+            return true;
+        } finally {
+            if (!removed) {
+                for (int copy = 1; copy <= taken; copy++) {
+                    book.releaseCopy(copy);
+                }
+            }
+            unlockStripes(locks);
+            if (removed) {
+                dropUnreadableRemovedBooks();
+            }
         }
     }
     
+    /**
+     * Lends the member a copy of a book: any copy on the shelf for a title ID,
+     * or that copy for a copy ID such as {@code B001#2}. A member with a copy
+     * awaiting pickup off a hold on the title collects that one instead.
+     */
     public boolean borrowBook(String bookId, String memberId) {
+        return tryBorrowBook(bookId, memberId) == null;
+    }
+    
+    // The try* variants say why nothing changed, or return null on success; package-private for the HTTP API
+    LibraryMetrics.Failure tryBorrowBook(String bookId, String memberId) {
+        long start = metrics.start();
+        LibraryMetrics.Failure failure = LibraryMetrics.Failure.REJECTED;
+        try {
+            failure = borrow(bookId, memberId);
+            return failure;
+        } finally {
+            metrics.record(LibraryMetrics.Operation.BORROW, failure, start);
+        }
+    }
+    
+    // Closes the open loan of a copy; a title ID stands for its first copy
+    public boolean returnBook(String bookId) {
+        return tryReturnBook(bookId) == null;
+    }
+    
+    LibraryMetrics.Failure tryReturnBook(String bookId) {
+        long start = metrics.start();
+        LibraryMetrics.Failure failure = LibraryMetrics.Failure.REJECTED;
+        try {
+            failure = giveBack(bookId);
+            return failure;
+        } finally {
+            metrics.record(LibraryMetrics.Operation.RETURN, failure, start);
+        }
+    }
+    
+    /**
+     * Checks out every book in {@code bookIds} to one member, or none of them:
+     * if any book is missing or already out, an ID repeats, or the member
+     * would go over the loan limit, nothing changes and false is returned.
+     * Listeners see the whole checkout in one {@code booksBorrowed} call.
+     */
+    public boolean borrowBooks(String memberId, Collection<String> bookIds) {
+        return tryBorrowBooks(memberId, bookIds) == null;
+    }
+    
+    LibraryMetrics.Failure tryBorrowBooks(String memberId, Collection<String> bookIds) {
+        long start = metrics.start();
+        LibraryMetrics.Failure failure = LibraryMetrics.Failure.REJECTED;
+        try {
+            failure = borrowAll(memberId, bookIds);
+            return failure;
+        } finally {
+            metrics.record(LibraryMetrics.Operation.BATCH_BORROW, failure, start);
+        }
+    }
+    
+    // All-or-nothing counterpart of returnBook: false, with nothing changed, unless every book is out
+    public boolean returnBooks(Collection<String> bookIds) {
+        return tryReturnBooks(bookIds) == null;
+    }
+    
+    LibraryMetrics.Failure tryReturnBooks(Collection<String> bookIds) {
+        long start = metrics.start();
+        LibraryMetrics.Failure failure = LibraryMetrics.Failure.REJECTED;
+        try {
+            failure = giveBackAll(bookIds);
+            return failure;
+        } finally {
+            metrics.record(LibraryMetrics.Operation.BATCH_RETURN, failure, start);
+        }
+    }
+    
+    /**
+     * Puts the member in line for a book that is out. When the copy comes
+     * back, the return lends it straight to the member at the front of the
+     * line, who then has the pickup window to collect it with borrowBook;
+     * after that, expireUncollectedHolds passes it on.
+     */
+    public boolean placeHold(String bookId, String memberId) {
+        return tryPlaceHold(bookId, memberId) == null;
+    }
+    
+    LibraryMetrics.Failure tryPlaceHold(String bookId, String memberId) {
+        long start = metrics.start();
+        LibraryMetrics.Failure failure = LibraryMetrics.Failure.REJECTED;
+        try {
+            failure = hold(bookId, memberId);
+            return failure;
+        } finally {
+            metrics.record(LibraryMetrics.Operation.HOLD, failure, start);
+        }
+    }
+    
+    // Withdraws a hold that is still waiting; a copy already lent off a hold is given up with returnBook
+    public boolean cancelHold(String bookId, String memberId) {
         if (bookId == null || memberId == null) {
             return false;
         }
+        ReentrantLock[] locks = lockStripes(bookId, memberId);
+        try {
+            HoldQueue queue = holdsByBookId.get(bookId);
+            Hold hold = queue == null ? null : queue.find(memberId);
+            if (hold == null) {
+                return false;
+            }
+            notifyListeners(listener -> listener.holdCancelled(hold));
+            dequeue(queue, hold, true);
+            changeCommitted();
+            return true;
+        } finally {
+            unlockStripes(locks);
+        }
+    }
+    
+    // Place in line for the book, 1 being next; 0 if the member is not waiting for it. O(log n) in the line length.
+    public int getHoldPosition(String bookId, String memberId) {
+        HoldQueue queue = bookId == null ? null : holdsByBookId.get(bookId);
+        return queue == null || memberId == null ? 0 : queue.position(memberId);
+    }
+    
+    public int getHoldQueueLength(String bookId) {
+        HoldQueue queue = bookId == null ? null : holdsByBookId.get(bookId);
+        return queue == null ? 0 : queue.size();
+    }
+    
+    // Members waiting for the book, front of the line first
+    List<String> getWaitingMembers(String bookId) {
+        HoldQueue queue = bookId == null ? null : holdsByBookId.get(bookId);
+        List<String> memberIds = new ArrayList<>();
+        if (queue != null) {
+            for (Hold hold : queue.list()) {
+                memberIds.add(hold.getMemberId());
+            }
+        }
+        return memberIds;
+    }
+    
+    // The member's hold on the book, waiting or ready for pickup, or null
+    public Hold getHold(String bookId, String memberId) {
+        MemberLoans loans = memberId == null ? null : loansByMemberId.get(memberId);
+        return loans == null || bookId == null ? null : loans.holds.get(bookId);
+    }
+    
+    // The member's holds, waiting or ready for pickup, oldest first
+    public List<Hold> getHolds(String memberId) {
+        MemberLoans loans = memberId == null ? null : loansByMemberId.get(memberId);
+        if (loans == null) {
+            return new ArrayList<>();
+        }
+        List<Hold> result = new ArrayList<>(loans.holds.values());
+        result.sort(Comparator.comparing(Hold::getPlacedDate).thenComparing(Hold::getBookId));
+        return result;
+    }
+    
+    /**
+     * Takes back every copy lent off a hold that was not collected by its
+     * pickup deadline, lending it on to the next member in line, if any, and
+     * returns the lapsed holds. Meant to run daily, like checkOverdue; the
+     * cost is proportional to the copies awaiting pickup.
+     */
+    public List<Hold> expireUncollectedHolds() {
+        LocalDate today = LocalDate.now(clock);
+        List<Hold> expired = new ArrayList<>();
+        for (Map.Entry<String, Hold> pickup : pickupsByCopyId.entrySet()) {
+            Hold hold = pickup.getValue();
+            if (!hold.getPickupDeadline().isBefore(today)) {
+                continue;
+            }
+            // Skipped if the member collected the copy or returned it in the meantime
+            if (closeLoans(List.of(pickup.getKey()), false, hold) == null) {
+                expired.add(hold);
+            }
+        }
+        return expired;
+    }
+    
+    public LibraryMetrics getMetrics() {
+        return metrics;
+    }
+    
+    public CirculationStatistics getStatistics() {
+        return statistics;
+    }
+    
+    /**
+     * Recounts the statistics from the loan history and replaces the running
+     * ones, for when they cannot be trusted. Changes wait for every stripe
+     * lock meanwhile, so this stops circulation for one pass over the history.
+     */
+    public void rebuildStatistics() {
+        for (ReentrantLock lock : stripeLocks) {
+            lock.lock();
+        }
+        try {
+            statistics = CirculationStatistics.rebuild(streamTransactions().iterator(), booksById::get);
+        } finally {
+            for (ReentrantLock lock : stripeLocks) {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Moves every returned loan out of memory into a new segment of the
+     * archive and returns how many moved, so the heap holds open loans and
+     * recent returns rather than the whole history. The segment is written
+     * without locks, since a returned loan never changes; swapping in the
+     * smaller history then holds every stripe lock for one pass over the
+     * loans left in memory. LibraryStore runs this before each snapshot,
+     * which records the archive; the archive must have a directory.
+     */
+    synchronized int archiveReturnedLoans() throws IOException {
+        TransactionHistory current = history;
+        LongStream.Builder moved = LongStream.builder();
+        TransactionArchive next = archive.append(current.stream()
+            .filter(Transaction::isReturned)
+            .peek(transaction -> moved.add(TransactionIdAllocator.parse(transaction.getId())))
+            .iterator());
+        long[] ids = moved.build().toArray();
+        if (ids.length == 0) {
+            return 0;
+        }
+        for (ReentrantLock lock : stripeLocks) {
+            lock.lock();
+        }
+        try {
+            archive = next;
+            history = current.without(ids);
+            for (MemberLoans loans : loansByMemberId.values()) {
+                loans.forget(ids);
+            }
+        } finally {
+            for (ReentrantLock lock : stripeLocks) {
+                lock.unlock();
+            }
+        }
+        return ids.length;
+    }
+    
+    // The circulation operations below return null on success or why nothing changed
+    private LibraryMetrics.Failure borrow(String bookId, String memberId) {
+        if (bookId == null || memberId == null) {
+            return LibraryMetrics.Failure.INVALID_REQUEST;
+        }
         
-        Book book = findBookById(bookId);
-        Member member = findMemberById(memberId);
+        Book book = findBookByCopyId(bookId);
+        int requested = book == null ? -1 : requestedCopy(book, bookId);
+        if (requested < 0) {
+            return LibraryMetrics.Failure.BOOK_NOT_FOUND;
+        }
+        Member member = findBorrower(memberId);
+        if (member == null) {
+            return LibraryMetrics.Failure.MEMBER_NOT_FOUND;
+        }
         
-        if (book != null && member != null && book.isAvailable()) {
-            book.setAvailable(false);
-            String transactionId = generateTransactionId();
-            Transaction transaction = new Transaction(
-                transactionId, 
-                bookId, 
-                memberId, 
-                LocalDate.now()
-            );
-            transactions.add(transaction);
-            return true;
+        // A copy lent to the member off their hold is theirs to collect, rather than another one
+        Hold pickup = getHold(book.getId(), member.getId());
+        if (pickup != null && pickup.isReady() && (requested == 0 || requested == pickup.getCopy())
+                && collect(pickup)) {
+            return null;
+        }
+        int copy = takeCopy(book, requested);
+        if (copy == 0) {
+            return LibraryMetrics.Failure.NOT_AVAILABLE;
+        }
+        String copyId = book.getCopyId(copy);
+        boolean lent = false;
+        // The member's stripe is held too, so the loan limit check and the loan itself are atomic
+        ReentrantLock[] locks = lockStripes(copyId, memberId);
+        try {
+            if (getActiveLoanCount(memberId) >= memberLoanLimit) {
+                return LibraryMetrics.Failure.LOAN_LIMIT_REACHED;
+            }
+            LocalDate today = LocalDate.now(clock);
+            LocalDate dueDate = today.plusDays(loanPolicy.loanDays(book, member));
+            // The catalog's ID strings rather than the caller's, so the loan shares them instead of keeping copies
+            int row = history.append(transactionIdAllocator::nextId, book.getId(), copy, member.getId(), today,
+                dueDate);
+            Transaction transaction = history.get(row);
+            // If a listener throws, the row is never committed and stays invisible
+            notifyListeners(listener -> listener.bookBorrowed(transaction));
+            long version = versions.begin();
+            try {
+                history.commit(row, version);
+            } finally {
+                versions.end(version);
+            }
+            lent = true;
+            activeTransactionsByCopyId.put(copyId, transaction);
+            loansOf(transaction.getMemberId()).opened(copyId, transaction);
+            overdueTracker.add(transaction);
+            statistics.loanOpened(transaction, book);
+            changeCommitted();
+            return null;
+        } finally {
+            unlockStripes(locks);
+            if (!lent) {
+                book.releaseCopy(copy);
+            }
         }
-        return false;
     }
     
-    public boolean returnBook(String bookId) {
+    private LibraryMetrics.Failure giveBack(String bookId) {
         if (bookId == null) {
-            return false;
+            return LibraryMetrics.Failure.INVALID_REQUEST;
         }
         
-        Book book = findBookById(bookId);
-        Transaction transaction = findActiveTransactionByBookId(bookId);
+        Book book = findBookByCopyId(bookId);
+        int copy = book == null ? -1 : requestedCopy(book, bookId);
+        if (copy < 0) {
+            return LibraryMetrics.Failure.BOOK_NOT_FOUND;
+        }
+        return closeLoans(List.of(book.getCopyId(Math.max(copy, 1))), false, null);
+    }
+    
+    private LibraryMetrics.Failure borrowAll(String memberId, Collection<String> bookIds) {
+        if (memberId == null || bookIds == null || bookIds.isEmpty()) {
+            return LibraryMetrics.Failure.INVALID_REQUEST;
+        }
+        Member member = findBorrower(memberId);
+        if (member == null) {
+            return LibraryMetrics.Failure.MEMBER_NOT_FOUND;
+        }
+        List<Book> batch = new ArrayList<>(bookIds.size());
+        int[] copies = new int[bookIds.size()];
+        LibraryMetrics.Failure failure = collectBooks(bookIds, batch, copies);
+        if (failure != null) {
+            return failure;
+        }
+        // Checked again under the member's stripe; this only saves taking copies off the shelf for nothing
+        if (getActiveLoanCount(memberId) + batch.size() > memberLoanLimit) {
+            return LibraryMetrics.Failure.LOAN_LIMIT_REACHED;
+        }
         
-        if (book != null && transaction != null && !transaction.isReturned()) {
-            book.setAvailable(true);
+        // Copies come off the shelf before any lock is taken and go back if the checkout does not go through
+        String[] ids = new String[batch.size() + 1];
+        ids[ids.length - 1] = memberId;
+        int taken = 0;
+        boolean lent = false;
+        ReentrantLock[] locks = null;
+        try {
+            for (; taken < batch.size(); taken++) {
+                int copy = takeCopy(batch.get(taken), copies[taken]);
+                if (copy == 0) {
+                    return LibraryMetrics.Failure.NOT_AVAILABLE;
+                }
+                copies[taken] = copy;
+                ids[taken] = batch.get(taken).getCopyId(copy);
+            }
+            locks = lockStripes(ids);
+            if (getActiveLoanCount(memberId) + batch.size() > memberLoanLimit) {
+                return LibraryMetrics.Failure.LOAN_LIMIT_REACHED;
+            }
+            LocalDate today = LocalDate.now(clock);
+            LoanPolicy policy = loanPolicy;
+            int[] rows = new int[batch.size()];
+            List<Transaction> transactions = new ArrayList<>(batch.size());
+            for (int i = 0; i < rows.length; i++) {
+                LocalDate dueDate = today.plusDays(policy.loanDays(batch.get(i), member));
+                rows[i] = history.append(transactionIdAllocator::nextId, batch.get(i).getId(), copies[i],
+                    member.getId(), today, dueDate);
+                transactions.add(history.get(rows[i]));
+            }
+            // If a listener throws, none of the rows is committed
+            notifyListeners(listener -> listener.booksBorrowed(transactions));
+            lent = true;
+            // One version for the whole batch, so a snapshot sees all of it or none
+            long version = versions.begin();
+            try {
+                for (int row : rows) {
+                    history.commit(row, version);
+                }
+            } finally {
+                versions.end(version);
+            }
+            MemberLoans loans = loansOf(member.getId());
+            for (int i = 0; i < rows.length; i++) {
+                Transaction transaction = transactions.get(i);
+                activeTransactionsByCopyId.put(ids[i], transaction);
+                loans.opened(ids[i], transaction);
+                overdueTracker.add(transaction);
+                statistics.loanOpened(transaction, batch.get(i));
+            }
+            changeCommitted();
+            return null;
+        } finally {
+            if (locks != null) {
+                unlockStripes(locks);
+            }
+            for (int i = 0; i < taken && !lent; i++) {
+                batch.get(i).releaseCopy(copies[i]);
+            }
+        }
+    }
+    
+    private LibraryMetrics.Failure giveBackAll(Collection<String> bookIds) {
+        if (bookIds == null || bookIds.isEmpty()) {
+            return LibraryMetrics.Failure.INVALID_REQUEST;
+        }
+        List<Book> batch = new ArrayList<>(bookIds.size());
+        int[] copies = new int[bookIds.size()];
+        LibraryMetrics.Failure failure = collectBooks(bookIds, batch, copies);
+        if (failure != null) {
+            return failure;
+        }
+        
+        Set<String> copyIds = new LinkedHashSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            // A title ID and its first copy's ID are the same copy
+            if (!copyIds.add(batch.get(i).getCopyId(Math.max(copies[i], 1)))) {
+                return LibraryMetrics.Failure.INVALID_REQUEST;
+            }
+        }
+        return closeLoans(new ArrayList<>(copyIds), true, null);
+    }
+    
+    /**
+     * Closes the open loan of every copy in the batch, all or none, and lends
+     * each copy straight on to the member at the front of its title's hold
+     * line, so nobody else can take it in between. With {@code uncollected}
+     * set, only goes ahead if that hold is still awaiting pickup. Listeners
+     * hear of a batched return as one, even of a single book.
+     */
+    private LibraryMetrics.Failure closeLoans(List<String> copyIds, boolean batched, Hold uncollected) {
+        // The titles' stripes guard their hold lines
+        String[] ids = new String[copyIds.size() * 2];
+        for (int i = 0; i < copyIds.size(); i++) {
+            ids[2 * i] = copyIds.get(i);
+            ids[2 * i + 1] = Book.titleIdOf(copyIds.get(i));
+        }
+        Set<String> holders = new HashSet<>();
+        ReentrantLock[] locks = lockStripes(ids);
+        try {
+            while (true) {
+                List<Transaction> transactions = new ArrayList<>(copyIds.size());
+                for (String copyId : copyIds) {
+                    Transaction transaction = activeTransactionsByCopyId.get(copyId);
+                    if (transaction == null || transaction.isReturned()) {
+                        return LibraryMetrics.Failure.NO_ACTIVE_LOAN;
+                    }
+                    transactions.add(transaction);
+                }
+                if (uncollected != null && pickupsByCopyId.get(uncollected.getCopyId()) != uncollected) {
+                    return LibraryMetrics.Failure.NO_ACTIVE_LOAN;
+                }
+                List<Hold> next = nextHolds(transactions, holders);
+                if (next == null) {
+                    // A holder's stripe is missing; stripes are only taken in order, so let go and take them all again
+                    unlockStripes(locks);
+                    String[] all = Arrays.copyOf(ids, ids.length + holders.size());
+                    int i = ids.length;
+                    for (String holder : holders) {
+                        all[i++] = holder;
+                    }
+                    locks = lockStripes(all);
+                    continue;
+                }
+                commitReturns(copyIds, batched, transactions, next);
+                return null;
+            }
+        } finally {
+            unlockStripes(locks);
+        }
+    }
+    
+    /**
+     * Picks who each returned copy goes to: the member at the front of its
+     * title's line who is not already getting another copy in this batch,
+     * passing over (and cancelling) the holds of members at the loan limit.
+     * Opening a loan needs the member's stripe, so when a holder turns up who
+     * is not in {@code holders}, they are added and null is returned for the
+     * caller to lock them and try again.
+     */
+    private List<Hold> nextHolds(List<Transaction> transactions, Set<String> holders) {
+        List<Hold> next = new ArrayList<>(transactions.size());
+        Map<String, Integer> planned = new HashMap<>();
+        Set<Hold> chosen = new HashSet<>();
+        for (Transaction transaction : transactions) {
+            HoldQueue queue = holdsByBookId.get(transaction.getBookId());
+            Hold hold = queue == null ? null : nextInLine(queue, chosen);
+            while (hold != null) {
+                if (holders.add(hold.getMemberId())) {
+                    return null;
+                }
+                int loans = loansTowardLimit(hold.getMemberId()) + planned.getOrDefault(hold.getMemberId(), 0);
+                if (loans < memberLoanLimit) {
+                    break;
+                }
+                Hold passedOver = hold;
+                notifyListeners(listener -> listener.holdCancelled(passedOver));
+                dequeue(queue, hold, true);
+                changeCommitted();
+                hold = nextInLine(queue, chosen);
+            }
+            if (hold != null) {
+                planned.merge(hold.getMemberId(), 1, Integer::sum);
+                chosen.add(hold);
+            }
+            next.add(hold);
+        }
+        return next;
+    }
+    
+    // The first hold in line not already given a copy; only a batch returning several copies of a title looks past the front
+    private static Hold nextInLine(HoldQueue queue, Set<Hold> chosen) {
+        Hold hold = queue.peek();
+        if (hold == null || !chosen.contains(hold)) {
+            return hold;
+        }
+        for (Hold waiting : queue.list()) {
+            if (!chosen.contains(waiting)) {
+                return waiting;
+            }
+        }
+        return null;
+    }
+    
+    // Called with the stripes of the copies, their titles and every member in next held
+    private void commitReturns(List<String> copyIds, boolean batched, List<Transaction> transactions,
+            List<Hold> next) {
+        LocalDate today = LocalDate.now(clock);
+        LocalDate pickupDeadline = today.plusDays(holdPickupDays);
+        LoanPolicy policy = loanPolicy;
+        int[] rows = new int[transactions.size()];
+        int[] loanRows = new int[transactions.size()];
+        List<Transaction> loans = new ArrayList<>();
+        List<Hold> filled = new ArrayList<>();
+        int[] filledCopies = new int[transactions.size()];
+        LocalDate[] filledDeadlines = new LocalDate[transactions.size()];
+        for (int i = 0; i < rows.length; i++) {
+            Transaction transaction = transactions.get(i);
+            rows[i] = history.findRow(TransactionIdAllocator.parse(transaction.getId()));
+            transaction.setReturnDate(today);
             transaction.setReturned(true);
-            transaction.setReturnDate(LocalDate.now());
+            Hold hold = next.get(i);
+            if (hold != null) {
+                Book book = booksById.get(transaction.getBookId());
+                LocalDate dueDate = today.plusDays(policy.loanDays(book, findBorrower(hold.getMemberId())));
+                loanRows[i] = history.append(transactionIdAllocator::nextId, book.getId(), transaction.getCopy(),
+                    hold.getMemberId(), today, dueDate);
+                loans.add(history.get(loanRows[i]));
+                filledCopies[filled.size()] = hold.getCopy();
+                filledDeadlines[filled.size()] = hold.getPickupDeadline();
+                hold.setCopy(transaction.getCopy());
+                hold.setPickupDeadline(pickupDeadline);
+                filled.add(hold);
+            }
+        }
+        // If a listener throws, the returns are undone and the new loans' rows are never committed
+        try {
+            notifyListeners(listener -> {
+                if (!filled.isEmpty()) {
+                    listener.holdsFilled(transactions, loans, filled);
+                } else if (batched) {
+                    listener.booksReturned(transactions);
+                } else {
+                    listener.bookReturned(transactions.get(0));
+                }
+            });
+        } catch (RuntimeException e) {
+            for (Transaction transaction : transactions) {
+                transaction.setReturned(false);
+                transaction.setReturnDate(null);
+            }
+            for (int i = 0; i < filled.size(); i++) {
+                filled.get(i).setCopy(filledCopies[i]);
+                filled.get(i).setPickupDeadline(filledDeadlines[i]);
+            }
+            throw e;
+        }
+        // The returns and the loans handed on to holders share one version
+        long version = versions.begin();
+        try {
+            for (int i = 0; i < rows.length; i++) {
+                history.markReturned(rows[i], today, version);
+                if (next.get(i) != null) {
+                    history.commit(loanRows[i], version);
+                }
+            }
+        } finally {
+            versions.end(version);
+        }
+        int loan = 0;
+        for (int i = 0; i < rows.length; i++) {
+            Transaction transaction = transactions.get(i);
+            String copyId = copyIds.get(i);
+            Book book = booksById.get(transaction.getBookId());
+            activeTransactionsByCopyId.remove(copyId);
+            loansOf(transaction.getMemberId()).closed(copyId, transaction);
+            overdueTracker.remove(transaction.getId());
+            statistics.loanClosed(book);
+            clearPickup(copyId);
+            Hold hold = next.get(i);
+            if (hold == null) {
+                book.releaseCopy(transaction.getCopy());
+                continue;
+            }
+            Transaction handedOff = loans.get(loan++);
+            dequeue(holdsByBookId.get(book.getId()), hold, false);
+            activeTransactionsByCopyId.put(copyId, handedOff);
+            loansOf(hold.getMemberId()).opened(copyId, handedOff);
+            overdueTracker.add(handedOff);
+            statistics.loanOpened(handedOff, book);
+            pickupsByCopyId.put(copyId, hold);
+        }
+        changeCommitted();
+    }
+    
+    private LibraryMetrics.Failure hold(String bookId, String memberId) {
+        if (bookId == null || memberId == null) {
+            return LibraryMetrics.Failure.INVALID_REQUEST;
+        }
+        Book book = findBookById(bookId);
+        if (book == null) {
+            return LibraryMetrics.Failure.BOOK_NOT_FOUND;
+        }
+        Member member = findBorrower(memberId);
+        if (member == null) {
+            return LibraryMetrics.Failure.MEMBER_NOT_FOUND;
+        }
+        
+        ReentrantLock[] locks = lockStripes(bookId, memberId);
+        try {
+            if (booksById.get(bookId) != book) {
+                return LibraryMetrics.Failure.BOOK_NOT_FOUND;
+            }
+            // While every copy is out, nobody can take a returned one off the shelf ahead of the line
+            if (book.isAvailable()) {
+                return LibraryMetrics.Failure.BOOK_AVAILABLE;
+            }
+            MemberLoans loans = loansOf(member.getId());
+            if (loans.holds.containsKey(bookId) || loans.hasCopyOf(bookId)) {
+                return LibraryMetrics.Failure.ALREADY_HELD;
+            }
+            Hold hold = new Hold(book.getId(), member.getId(), LocalDate.now(clock));
+            notifyListeners(listener -> listener.holdPlaced(hold));
+            holdsByBookId.computeIfAbsent(hold.getBookId(), id -> new HoldQueue()).add(hold);
+            loans.holds.put(hold.getBookId(), hold);
+            changeCommitted();
+            return null;
+        } finally {
+            unlockStripes(locks);
+        }
+    }
+    
+    // The member picking up the copy lent to them off their hold; false if it no longer awaits them
+    private boolean collect(Hold pickup) {
+        String copyId = pickup.getCopyId();
+        ReentrantLock[] locks = lockStripes(copyId, pickup.getMemberId());
+        try {
+            if (pickupsByCopyId.get(copyId) != pickup) {
+                return false;
+            }
+            notifyListeners(listener -> listener.holdCollected(pickup));
+            clearPickup(copyId);
+            changeCommitted();
             return true;
+        } finally {
+            unlockStripes(locks);
+        }
+    }
+    
+    private void clearPickup(String copyId) {
+        Hold pickup = pickupsByCopyId.remove(copyId);
+        if (pickup != null) {
+            loansOf(pickup.getMemberId()).holds.remove(pickup.getBookId(), pickup);
+        }
+    }
+    
+    // Takes a waiting hold out of its line, dropping the line once it is empty; called with the book's stripe held.
+    // The member keeps the hold unless forgetHold is set, i.e. unless it was cancelled rather than filled.
+    private void dequeue(HoldQueue queue, Hold hold, boolean forgetHold) {
+        if (queue.peek() == hold) {
+            queue.poll();
+        } else {
+            queue.remove(hold.getMemberId());
+        }
+        if (queue.isEmpty()) {
+            holdsByBookId.remove(hold.getBookId(), queue);
+        }
+        if (forgetHold) {
+            loansOf(hold.getMemberId()).holds.remove(hold.getBookId(), hold);
+        }
+    }
+    
+    // Resolves a batch of title or copy IDs in order into books and the copy each names, 0 for a title ID
+    private LibraryMetrics.Failure collectBooks(Collection<String> bookIds, List<Book> batch, int[] copies) {
+        Set<String> seen = new HashSet<>();
+        for (String bookId : bookIds) {
+            if (bookId == null || !seen.add(bookId)) {
+                return LibraryMetrics.Failure.INVALID_REQUEST;
+            }
+            Book book = findBookByCopyId(bookId);
+            int copy = book == null ? -1 : requestedCopy(book, bookId);
+            if (copy < 0) {
+                return LibraryMetrics.Failure.BOOK_NOT_FOUND;
+            }
+            copies[batch.size()] = copy;
+            batch.add(book);
+        }
+        return null;
+    }
+    
+    // Any copy for 0, else that one; 0 if none could be taken
+    private static int takeCopy(Book book, int copy) {
+        if (copy == 0) {
+            return book.takeAnyCopy();
+        }
+        return book.takeCopy(copy) ? copy : 0;
+    }
+    
+    // The copy a copy ID names, 0 for the title ID itself, or -1 if the book has no such copy
+    private static int requestedCopy(Book book, String bookId) {
+        if (bookId.length() == book.getId().length()) {
+            return 0;
+        }
+        int copy = Book.copyNumberOf(bookId);
+        return copy >= 2 && copy <= book.getCopies() ? copy : -1;
+    }
+    
+    // The copy a copy ID names, 1 for the title ID, or 0 if the book has no such copy
+    private static int copyNumber(Book book, String copyId) {
+        int copy = requestedCopy(book, copyId);
+        return copy == 0 ? 1 : Math.max(copy, 0);
+    }
+    
+    // Recovery entry points: re-apply a logged change with its original IDs and dates. Each one
+    // leaves the book in the state the record describes, so a log can be replayed over a snapshot
+    // that already contains part of it (or was taken mid-change) and still converge. Loans are
+    // logged by copy ID.
+    void restoreBorrow(String transactionId, String bookId, String memberId, LocalDate borrowDate,
+            LocalDate dueDate) {
+        Book book = findBookByCopyId(bookId);
+        int copy = book == null ? 0 : copyNumber(book, bookId);
+        if (copy == 0) {
+            return;
+        }
+        String copyId = book.getCopyId(copy);
+        ReentrantLock[] locks = lockStripes(copyId, memberId);
+        try {
+            long id = TransactionIdAllocator.parse(transactionId);
+            int row = history.findRow(id);
+            if (row >= 0) {
+                if (!history.isReturned(row)) {
+                    Transaction existing = history.get(row);
+                    activeTransactionsByCopyId.put(copyId, existing);
+                    loansOf(memberId).active.put(copyId, existing);
+                    overdueTracker.add(existing);
+                    book.takeCopy(copy);
+                }
+                return;
+            }
+            if (archive.contains(id)) {
+                return;
+            }
+            Transaction transaction = new Transaction(transactionId, book.getId(), copy, catalogMemberId(memberId),
+                borrowDate, dueDate);
+            transactionIdAllocator.advancePast(id);
+            notifyListeners(listener -> listener.bookBorrowed(transaction));
+            long version = versions.begin();
+            try {
+                history.insert(id, transaction.getBookId(), copy, transaction.getMemberId(), borrowDate, dueDate, null,
+                    version);
+            } finally {
+                versions.end(version);
+            }
+            book.takeCopy(copy);
+            activeTransactionsByCopyId.put(copyId, transaction);
+            loansOf(transaction.getMemberId()).opened(copyId, transaction);
+            overdueTracker.add(transaction);
+            statistics.loanOpened(transaction, book);
+            changeCommitted();
+        } finally {
+            unlockStripes(locks);
+        }
+    }
+    
+    void restoreReturn(String transactionId, String bookId, LocalDate returnDate) {
+        Book book = findBookByCopyId(bookId);
+        int copy = book == null ? 0 : copyNumber(book, bookId);
+        if (copy == 0) {
+            return;
+        }
+        String copyId = book.getCopyId(copy);
+        ReentrantLock lock = lockFor(copyId);
+        lock.lock();
+        try {
+            int row = history.findRow(TransactionIdAllocator.parse(transactionId));
+            if (row < 0) {
+                return;
+            }
+            Transaction transaction = history.get(row);
+            boolean closed = !transaction.isReturned();
+            if (closed) {
+                transaction.setReturnDate(returnDate);
+                transaction.setReturned(true);
+                notifyListeners(listener -> listener.bookReturned(transaction));
+                long version = versions.begin();
+                try {
+                    history.markReturned(row, returnDate, version);
+                } finally {
+                    versions.end(version);
+                }
+                statistics.loanClosed(book);
+            }
+            Transaction active = activeTransactionsByCopyId.get(copyId);
+            if (active != null && active.getId().equals(transactionId)) {
+                activeTransactionsByCopyId.remove(copyId);
+            }
+            loansOf(transaction.getMemberId()).closed(copyId, transaction);
+            overdueTracker.remove(transactionId);
+            Hold pickup = pickupsByCopyId.get(copyId);
+            if (pickup != null && pickup.getMemberId().equals(transaction.getMemberId())) {
+                clearPickup(copyId);
+            }
+            if (!activeTransactionsByCopyId.containsKey(copyId)) {
+                book.releaseCopy(copy);
+            }
+            if (closed) {
+                changeCommitted();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    void restoreHold(Hold hold) {
+        if (findBookById(hold.getBookId()) == null) {
+            return;
+        }
+        ReentrantLock[] locks = lockStripes(hold.getBookId(), hold.getMemberId());
+        try {
+            MemberLoans loans = loansOf(hold.getMemberId());
+            if (loans.holds.containsKey(hold.getBookId())) {
+                return;
+            }
+            notifyListeners(listener -> listener.holdPlaced(hold));
+            holdsByBookId.computeIfAbsent(hold.getBookId(), id -> new HoldQueue()).add(hold);
+            loans.holds.put(hold.getBookId(), hold);
+            changeCommitted();
+        } finally {
+            unlockStripes(locks);
+        }
+    }
+    
+    void restoreHoldCancelled(String bookId, String memberId) {
+        ReentrantLock[] locks = lockStripes(bookId, memberId);
+        try {
+            HoldQueue queue = holdsByBookId.get(bookId);
+            Hold hold = queue == null ? null : queue.find(memberId);
+            if (hold == null) {
+                return;
+            }
+            notifyListeners(listener -> listener.holdCancelled(hold));
+            dequeue(queue, hold, true);
+            changeCommitted();
+        } finally {
+            unlockStripes(locks);
+        }
+    }
+    
+    // The loan made off a hold: restored like any loan, then the hold leaves the line and awaits pickup
+    void restoreHoldFilled(String transactionId, String bookId, String memberId, LocalDate borrowDate,
+            LocalDate dueDate, LocalDate placedDate, LocalDate pickupDeadline) {
+        restoreBorrow(transactionId, bookId, memberId, borrowDate, dueDate);
+        Book book = findBookByCopyId(bookId);
+        int copy = book == null ? 0 : copyNumber(book, bookId);
+        if (copy == 0) {
+            return;
+        }
+        String titleId = book.getId();
+        String copyId = book.getCopyId(copy);
+        ReentrantLock[] locks = lockStripes(titleId, copyId, memberId);
+        try {
+            MemberLoans loans = loansOf(memberId);
+            HoldQueue queue = holdsByBookId.get(titleId);
+            Hold hold = queue == null ? null : queue.find(memberId);
+            if (hold != null) {
+                dequeue(queue, hold, false);
+            } else {
+                hold = loans.holds.getOrDefault(titleId, new Hold(titleId, memberId, placedDate));
+            }
+            Transaction active = activeTransactionsByCopyId.get(copyId);
+            if (active != null && active.getId().equals(transactionId)) {
+                hold.setCopy(copy);
+                hold.setPickupDeadline(pickupDeadline);
+                loans.holds.put(titleId, hold);
+                pickupsByCopyId.put(copyId, hold);
+            } else {
+                // Already returned again in the state being replayed onto
+                loans.holds.remove(titleId, hold);
+            }
+        } finally {
+            unlockStripes(locks);
+        }
+    }
+    
+    void restoreHoldCollected(String bookId, String memberId) {
+        Hold pickup = getHold(bookId, memberId);
+        if (pickup == null || !pickup.isReady()) {
+            return;
+        }
+        String copyId = pickup.getCopyId();
+        ReentrantLock[] locks = lockStripes(copyId, memberId);
+        try {
+            if (pickupsByCopyId.get(copyId) != pickup) {
+                return;
+            }
+            notifyListeners(listener -> listener.holdCollected(pickup));
+            clearPickup(copyId);
+            changeCommitted();
+        } finally {
+            unlockStripes(locks);
+        }
+    }
+    
+    // Returns once every change that was already in progress when it was called has finished
+    void awaitInFlightChanges() {
+        for (ReentrantLock lock : stripeLocks) {
+            lock.lock();
+            lock.unlock();
+        }
+    }
+    
+    // Snapshot loading: installs records directly, without locks or listeners, before the service is shared
+    void loadBook(Book book) {
+        shareAuthor(book);
+        booksById.put(book.getId(), book);
+        books.put(book.getId(), book);
+        searchIndex.add(book);
+    }
+    
+    void loadMember(Member member) {
+        membersById.put(member.getId(), member);
+        members.put(member.getId(), member);
+    }
+    
+    // Not counted in the statistics; the loader calls rebuildStatistics once everything is in
+    void loadTransaction(Transaction loaded) {
+        Book book = booksById.get(loaded.getBookId());
+        // Kept as stored, with the catalog's ID strings in place of the copies read from the snapshot
+        int row = history.insert(TransactionIdAllocator.parse(loaded.getId()),
+            book == null ? loaded.getBookId() : book.getId(), loaded.getCopy(), catalogMemberId(loaded.getMemberId()),
+            loaded.getBorrowDate(), loaded.getDueDate(), loaded.isReturned() ? loaded.getReturnDate() : null);
+        Transaction transaction = history.get(row);
+        MemberLoans loans = loansOf(transaction.getMemberId());
+        loans.addHistory(TransactionIdAllocator.parse(transaction.getId()));
+        if (!transaction.isReturned()) {
+            String copyId = transaction.getCopyId();
+            activeTransactionsByCopyId.put(copyId, transaction);
+            loans.active.put(copyId, transaction);
+            overdueTracker.add(transaction);
+            if (book != null) {
+                book.takeCopy(transaction.getCopy());
+            }
         }
-        return false;
+        transactionIdAllocator.advancePast(TransactionIdAllocator.parse(transaction.getId()));
+    }
+    
+    // Before the transactions
+    void loadArchive(TransactionArchive loaded) {
+        archive = loaded;
+        transactionIdAllocator.advancePast(loaded.getLastId());
+    }
+    
+    // After the transactions, so a hold awaiting pickup finds its loan; waiting holds arrive front first
+    void loadHold(Hold hold) {
+        loansOf(hold.getMemberId()).holds.put(hold.getBookId(), hold);
+        if (hold.isReady()) {
+            pickupsByCopyId.put(hold.getCopyId(), hold);
+        } else {
+            holdsByBookId.computeIfAbsent(hold.getBookId(), id -> new HoldQueue()).add(hold);
+        }
+    }
+    
+    // Snapshot writing: every waiting hold, each line front first, then the holds awaiting pickup
+    List<Hold> getAllHolds() {
+        List<Hold> holds = new ArrayList<>();
+        for (HoldQueue queue : holdsByBookId.values()) {
+            holds.addAll(queue.list());
+        }
+        holds.addAll(pickupsByCopyId.values());
+        return holds;
     }
     
     public List<Book> getAllBooks() {
-        return new ArrayList<>(books);
+        return new ArrayList<>(books.values());
     }
     
     public List<Member> getAllMembers() {
-        return new ArrayList<>(members);
+        return new ArrayList<>(members.values());
+    }
+    
+    // Snapshot writing: the archive and the loans still in memory, which together make up the history
+    TransactionArchive getArchive() {
+        return archive;
+    }
+    
+    Stream<Transaction> streamTransactionsInMemory() {
+        return history.stream();
     }
     
     public List<Transaction> getAllTransactions() {
-        return new ArrayList<>(transactions);
+        TransactionHistory hot = history;
+        TransactionArchive cold = archive;
+        if (cold.isEmpty()) {
+            return hot.list();
+        }
+        List<Transaction> result = new ArrayList<>();
+        TransactionArchive.merge(List.of(hot.iterator(-1), cold.iterator(-1))).forEachRemaining(result::add);
+        return result;
     }
     
-    private String generateTransactionId() {
-        return String.format("TXN%03d", transactions.size() + 1);
+    // Open loans of one member, oldest first; cost depends only on that member's loans
+    public List<Transaction> getActiveLoans(String memberId) {
+        MemberLoans loans = memberId == null ? null : loansByMemberId.get(memberId);
+        if (loans == null) {
+            return new ArrayList<>();
+        }
+        List<Transaction> result = new ArrayList<>(loans.active.values());
+        result.sort(Comparator.comparing(Transaction::getId));
+        return result;
     }
     
-    private Book findBookById(String id) {
+    public int getActiveLoanCount(String memberId) {
+        MemberLoans loans = memberId == null ? null : loansByMemberId.get(memberId);
+        return loans == null ? 0 : loans.active.size();
+    }
+    
+    /**
+     * Every loan one member has made, open or returned, oldest first. The
+     * loans in memory are found through the member's index; archived ones
+     * through each segment's member index, which reads only the blocks
+     * holding them.
+     */
+    public List<Transaction> getLoanHistory(String memberId) {
+        MemberLoans loans = memberId == null ? null : loansByMemberId.get(memberId);
+        if (loans == null) {
+            return new ArrayList<>();
+        }
+        TransactionHistory hot = history;
+        TransactionArchive cold = archive;
+        long[] transactionIds = loans.history();
+        List<Transaction> result = new ArrayList<>(transactionIds.length);
+        for (long transactionId : transactionIds) {
+            int row = hot.findRow(transactionId);
+            if (row >= 0) {
+                result.add(hot.get(row));
+            }
+        }
+        if (cold.isEmpty()) {
+            return result;
+        }
+        Iterator<Transaction> archived = cold.iterator(memberId);
+        List<Transaction> merged = new ArrayList<>(result.size());
+        TransactionArchive.merge(List.of(result.iterator(), archived)).forEachRemaining(merged::add);
+        return merged;
+    }
+    
+    /**
+     * Brings overdue tracking up to today's date on the service clock and
+     * returns the loans that became overdue since the last check, oldest due
+     * date first. Listeners get a {@code loanOverdue} call for each one; if
+     * one throws, that loan and the ones after it stay off the overdue list
+     * and come back on the next check. Meant to be called periodically, e.g.
+     * once a day or at start-up.
+     */
+    public List<Transaction> checkOverdue() {
+        List<Transaction> newlyOverdue = overdueTracker.advanceTo(LocalDate.now(clock));
+        int notified = 0;
+        try {
+            for (; notified < newlyOverdue.size(); notified++) {
+                Transaction transaction = newlyOverdue.get(notified);
+                notifyListeners(listener -> listener.loanOverdue(transaction));
+                changeCommitted();
+            }
+        } catch (RuntimeException e) {
+            // The vetoed loan and those after it fire again on the next check
+            overdueTracker.unfire(newlyOverdue.subList(notified, newlyOverdue.size()));
+            throw e;
+        }
+        return newlyOverdue;
+    }
+    
+    // Open loans past their due date as of the last checkOverdue, oldest due date first
+    public List<Transaction> getOverdueLoans() {
+        return overdueTracker.getOverdue();
+    }
+    
+    // Ranked full-text search over titles and authors, with prefix and single-typo matching
+    public List<Book> searchBooks(String query, int limit) {
+        return searchIndex.search(query, limit);
+    }
+    
+    public Page<Book> getBooksPage(String afterId, int limit) {
+        return page(books, afterId, limit);
+    }
+    
+    public Page<Member> getMembersPage(String afterId, int limit) {
+        return page(members, afterId, limit);
+    }
+    
+    public Page<Transaction> getTransactionsPage(String afterId, int limit) {
+        TransactionHistory hot = history;
+        TransactionArchive cold = archive;
+        if (cold.isEmpty()) {
+            return hot.page(afterId, limit);
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        long after = afterId == null ? -1 : TransactionIdAllocator.parse(afterId);
+        Iterator<Transaction> transactions = TransactionArchive.merge(List.of(hot.iterator(after), cold.iterator(after)));
+        List<Transaction> items = new ArrayList<>(Math.min(limit, 1024));
+        while (transactions.hasNext()) {
+            if (items.size() == limit) {
+                return new Page<>(items, items.get(limit - 1).getId());
+            }
+            items.add(transactions.next());
+        }
+        return new Page<>(items, null);
+    }
+    
+    // Lazy views in ID order; nothing is copied up front
+    public Stream<Book> streamBooks() {
+        return books.values().stream();
+    }
+    
+    public Stream<Member> streamMembers() {
+        return members.values().stream();
+    }
+    
+    // Archived loans are read back block by block, merged into ID order with the ones in memory
+    public Stream<Transaction> streamTransactions() {
+        TransactionHistory hot = history;
+        TransactionArchive cold = archive;
+        if (cold.isEmpty()) {
+            return hot.stream();
+        }
+        Iterator<Transaction> merged = TransactionArchive.merge(List.of(hot.iterator(-1), cold.iterator(-1)));
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged,
+            Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+    
+    /**
+     * Pins a point-in-time view of the books, members and loans for a long
+     * report; see {@link LibrarySnapshot}. Close it when done.
+     */
+    public LibrarySnapshot openSnapshot() {
+        // Taken before the version is pinned, so every loan the archive took from the history is returned as of it
+        TransactionHistory hot = history;
+        TransactionArchive cold = archive;
+        return new LibrarySnapshot(this, versions.pin(), books, members, removedBooks, hot, cold);
+    }
+    
+    void closeSnapshot(long version) {
+        versions.unpin(version);
+        dropUnreadableRemovedBooks();
+    }
+    
+    // Distinct authors of the books in the catalog
+    int getAuthorCount() {
+        return authors.size();
+    }
+    
+    // Snapshot reclamation: removed books kept for snapshots, counting every version of an ID
+    int getRetainedRemovedBookCount() {
+        int count = 0;
+        for (Book[] removed : removedBooks.values()) {
+            count += removed.length;
+        }
+        return count;
+    }
+    
+    // A removed book is dropped once every snapshot that may still read it is closed
+    private void dropUnreadableRemovedBooks() {
+        long oldest = versions.getOldestReadableVersion();
+        for (String bookId : removedBooks.keySet()) {
+            removedBooks.computeIfPresent(bookId, (id, removed) -> {
+                List<Book> kept = new ArrayList<>(removed.length);
+                for (Book book : removed) {
+                    if (book.removedVersion > oldest) {
+                        kept.add(book);
+                    }
+                }
+                return kept.isEmpty() ? null : kept.toArray(new Book[0]);
+            });
+        }
+    }
+    
+    private static Book[] concat(Book[] older, Book[] newer) {
+        Book[] all = Arrays.copyOf(older, older.length + newer.length);
+        System.arraycopy(newer, 0, all, older.length, newer.length);
+        return all;
+    }
+    
+    // A book about to join the catalog: the version that adds it, and the catalog's copy of its author
+    private void stamp(Book book, long version) {
+        book.addedVersion = version;
+        shareAuthor(book);
+    }
+    
+    private void shareAuthor(Book book) {
+        if (book.getAuthor() != null) {
+            book.shareAuthor(authors.acquire(book.getAuthor()));
+        }
+    }
+    
+    private <T> int addAll(Collection<T> batch, Function<T, String> idOf, Map<String, T> index,
+            Map<String, T> ordered, ObjLongConsumer<T> stamp, BiConsumer<CirculationListener, List<T>> notifier,
+            Consumer<List<T>> onAdded) {
+        if (batch == null || batch.isEmpty()) {
+            return 0;
+        }
+        Map<Integer, List<T>> byStripe = new HashMap<>();
+        for (T item : batch) {
+            if (item != null && idOf.apply(item) != null) {
+                byStripe.computeIfAbsent(stripeIndex(idOf.apply(item)), stripe -> new ArrayList<>()).add(item);
+            }
+        }
+        int added = 0;
+        for (Map.Entry<Integer, List<T>> group : byStripe.entrySet()) {
+            ReentrantLock lock = stripeLocks[group.getKey()];
+            lock.lock();
+            try {
+                List<T> fresh = new ArrayList<>(group.getValue().size());
+                Set<String> ids = new HashSet<>();
+                for (T item : group.getValue()) {
+                    String id = idOf.apply(item);
+                    if (!index.containsKey(id) && ids.add(id)) {
+                        fresh.add(item);
+                    }
+                }
+                if (fresh.isEmpty()) {
+                    continue;
+                }
+                notifyListeners(listener -> notifier.accept(listener, fresh));
+                long version = versions.begin();
+                try {
+                    for (T item : fresh) {
+                        stamp.accept(item, version);
+                        index.put(idOf.apply(item), item);
+                        ordered.put(idOf.apply(item), item);
+                    }
+                } finally {
+                    versions.end(version);
+                }
+                onAdded.accept(fresh);
+                changeCommitted();
+                added += fresh.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return added;
+    }
+    
+    private static <T> Page<T> page(ConcurrentNavigableMap<String, T> source, String afterId, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        NavigableMap<String, T> tail = afterId == null ? source : source.tailMap(afterId, false);
+        List<T> items = new ArrayList<>(Math.min(limit, 1024));
+        String lastId = null;
+        for (Map.Entry<String, T> entry : tail.entrySet()) {
+            if (items.size() == limit) {
+                return new Page<>(items, lastId);
+            }
+            items.add(entry.getValue());
+            lastId = entry.getKey();
+        }
+        return new Page<>(items, null);
+    }
+    
+    private String catalogMemberId(String memberId) {
+        Member member = membersById.get(memberId);
+        return member == null ? memberId : member.getId();
+    }
+    
+    private MemberLoans loansOf(String memberId) {
+        return loansByMemberId.computeIfAbsent(memberId, id -> new MemberLoans());
+    }
+    
+    // Locks the stripes of all the IDs in ascending stripe order; every caller that holds more
+    // than one stripe goes through here, so they can never wait on each other in a cycle
+    private ReentrantLock[] lockStripes(String... ids) {
+        int[] indexes = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            indexes[i] = stripeIndex(ids[i]);
+        }
+        Arrays.sort(indexes);
+        int count = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (i == 0 || indexes[i] != indexes[i - 1]) {
+                indexes[count++] = indexes[i];
+            }
+        }
+        ReentrantLock[] locks = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = stripeLocks[indexes[i]];
+            locks[i].lock();
+        }
+        return locks;
+    }
+    
+    private static void unlockStripes(ReentrantLock[] locks) {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+    
+    private ReentrantLock lockFor(String id) {
+        return stripeLocks[stripeIndex(id)];
+    }
+    
+    private int stripeIndex(String id) {
+        int hash = id.hashCode();
+        return (hash ^ (hash >>> 16)) & (stripeLocks.length - 1);
+    }
+    
+    // Package-private for the HTTP API and the JMH benchmarks
+    Book findBookById(String id) {
         if (id == null) {
             return null;
         }
-        
-        return books.stream()
-            .filter(book -> id.equals(book.getId()))
-            .findFirst()
-            .orElse(null);
+        return booksById.get(id);
     }
     
-    private Member findMemberById(String id) {
+    Member findMemberById(String id) {
         if (id == null) {
             return null;
         }
-        
-        return members.stream()
-            .filter(member -> id.equals(member.getId()))
-            .findFirst()
-            .orElse(null);
+        return membersById.get(id);
+    }
+    
+    // Open loans that count against the member's limit: in this branch, or in every branch of a ShardedLibrary
+    private int loansTowardLimit(String memberId) {
+        ToIntFunction<String> lookup = loanCounts;
+        return lookup == null ? getActiveLoanCount(memberId) : lookup.applyAsInt(memberId);
+    }
+    
+    // A member, or else a visitor from another branch
+    private Member findBorrower(String id) {
+        Member member = findMemberById(id);
+        Function<String, Member> lookup = visitors;
+        return member != null || lookup == null || id == null ? member : lookup.apply(id);
     }
     
-    private Transaction findActiveTransactionByBookId(String bookId) {
+    // By copy ID; a title ID finds the loan of its first copy
+    Transaction findActiveTransactionByBookId(String bookId) {
         if (bookId == null) {
             return null;
         }
+        return activeTransactionsByCopyId.get(bookId);
+    }
+    
+    // The title part of a copy ID names the book
+    private Book findBookByCopyId(String copyId) {
+        return findBookById(Book.titleIdOf(copyId));
+    }
+    
+    private static boolean isValidBookId(String id) {
+        return id != null && id.indexOf(Book.COPY_SEPARATOR) < 0;
+    }
+    
+    // One member's open loans by copy ID and holds by title ID, plus the IDs of every loan they made (appended under the member's stripe)
+    private static final class MemberLoans {
+        private final Map<String, Transaction> active = new ConcurrentHashMap<>();
+        private final Map<String, Hold> holds = new ConcurrentHashMap<>();
+        private volatile long[] transactionIds = new long[4];
+        private volatile int size;
+        
+        void opened(String copyId, Transaction transaction) {
+            active.put(copyId, transaction);
+            addHistory(TransactionIdAllocator.parse(transaction.getId()));
+        }
         
-        return transactions.stream()
-            .filter(transaction -> bookId.equals(transaction.getBookId()) && !transaction.isReturned())
-            .findFirst()
-            .orElse(null);
+        void closed(String copyId, Transaction transaction) {
+            Transaction current = active.get(copyId);
+            if (current != null && current.getId().equals(transaction.getId())) {
+                active.remove(copyId);
+            }
+        }
+        
+        // Whether the member has any copy of the title out; members have few loans, so a scan will do
+        boolean hasCopyOf(String bookId) {
+            for (Transaction transaction : active.values()) {
+                if (transaction.getBookId().equals(bookId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        void addHistory(long transactionId) {
+            long[] current = transactionIds;
+            int count = size;
+            if (count == current.length) {
+                current = Arrays.copyOf(current, count * 2);
+            }
+            // Recovery can replay loans slightly out of ID order
+            int position = count;
+            while (position > 0 && current[position - 1] > transactionId) {
+                current[position] = current[position - 1];
+                position--;
+            }
+            current[position] = transactionId;
+            transactionIds = current;
+            size = count + 1;
+        }
+        
+        long[] history() {
+            int count = size;
+            return Arrays.copyOf(transactionIds, count);
+        }
+        
+        // Drops the archived IDs; the array is published before the size, so a reader sees at worst trailing zeros
+        void forget(long[] sortedIds) {
+            long[] current = transactionIds;
+            int count = size;
+            long[] kept = new long[Math.max(4, count)];
+            int keptCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (Arrays.binarySearch(sortedIds, current[i]) < 0) {
+                    kept[keptCount++] = current[i];
+                }
+            }
+            transactionIds = kept;
+            size = keptCount;
+        }
     }
 }
\ No newline at end of file
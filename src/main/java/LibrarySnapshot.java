@@ -0,0 +1,236 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A point-in-time view of a {@link LibraryService} for long reports and
+ * exports, from {@link LibraryService#openSnapshot}. It pins the service's
+ * stable {@link VersionClock} version and reads the live catalog and loan
+ * history as of it, skipping anything stamped later. Reads take no locks
+ * and circulation carries on committing newer versions meanwhile.
+ *
+ * <p>Books come back as copies whose available copies are worked out from
+ * the loans open as of the snapshot, so a book and its loans always agree:
+ * a copy is off the shelf exactly when the snapshot holds an open loan for
+ * it. Working that out reads the loans in memory once, on the first book
+ * read.
+ *
+ * <p>Nothing is copied when a snapshot is taken. Books removed since stay
+ * with the service until every snapshot that may read them is closed; the
+ * loan history a snapshot started from is kept for as long as the snapshot
+ * is reachable, so close it when done.
+ */
+public final class LibrarySnapshot implements AutoCloseable {
+    private final LibraryService service;
+    private final long version;
+    private final NavigableMap<String, Book> books;
+    private final NavigableMap<String, Member> members;
+    private final NavigableMap<String, Book[]> removedBooks;
+    private final TransactionHistory history;
+    private final TransactionArchive archive;
+    // Copy numbers out on loan as of the snapshot, by title; built on first use
+    private Map<String, List<Integer>> lentCopies;
+    private boolean closed;
+    
+    LibrarySnapshot(LibraryService service, long version, NavigableMap<String, Book> books,
+            NavigableMap<String, Member> members, NavigableMap<String, Book[]> removedBooks,
+            TransactionHistory history, TransactionArchive archive) {
+        this.service = service;
+        this.version = version;
+        this.books = books;
+        this.members = members;
+        this.removedBooks = removedBooks;
+        this.history = history;
+        this.archive = archive;
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    // The book as of the snapshot, or null
+    public Book getBook(String bookId) {
+        checkOpen();
+        Book book = bookId == null ? null : visibleBook(books.get(bookId), removedBooks.get(bookId));
+        return book == null ? null : copyOf(book);
+    }
+    
+    public Member getMember(String memberId) {
+        checkOpen();
+        Member member = memberId == null ? null : members.get(memberId);
+        return member != null && member.addedVersion <= version ? member : null;
+    }
+    
+    // Lazy views in ID order, like the service's
+    public Stream<Book> streamBooks() {
+        return stream(bookIterator(null));
+    }
+    
+    public Stream<Member> streamMembers() {
+        return stream(memberIterator(null));
+    }
+    
+    public Stream<Transaction> streamTransactions() {
+        return stream(transactionIterator(-1));
+    }
+    
+    public Page<Book> getBooksPage(String afterId, int limit) {
+        return page(bookIterator(afterId), limit, Book::getId);
+    }
+    
+    public Page<Member> getMembersPage(String afterId, int limit) {
+        return page(memberIterator(afterId), limit, Member::getId);
+    }
+    
+    public Page<Transaction> getTransactionsPage(String afterId, int limit) {
+        return page(transactionIterator(afterId == null ? -1 : TransactionIdAllocator.parse(afterId)), limit,
+            Transaction::getId);
+    }
+    
+    // Releases the snapshot's pin; it cannot be read afterwards
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            service.closeSnapshot(version);
+        }
+    }
+    
+    /**
+     * Books in ID order after afterId. The catalog and the removed books are
+     * walked side by side: before each catalog entry is taken, the removed
+     * books up to its ID are looked up afresh. A book is put among the
+     * removed ones before it leaves the catalog, so one removed while the
+     * walk goes on is found in one place or the other.
+     */
+    private Iterator<Book> bookIterator(String afterId) {
+        checkOpen();
+        Iterator<Map.Entry<String, Book>> catalog = (afterId == null ? books : books.tailMap(afterId, false))
+            .entrySet().iterator();
+        return new Iterator<>() {
+            private String lastId = afterId;
+            // The catalog entry taken but not yet reached, as removed books before it come first
+            private Map.Entry<String, Book> pending;
+            private Book next;
+            
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    if (pending == null && catalog.hasNext()) {
+                        pending = catalog.next();
+                    }
+                    String limit = pending == null ? null : pending.getKey();
+                    Map.Entry<String, Book[]> removed = lastId == null ? removedBooks.firstEntry()
+                        : removedBooks.higherEntry(lastId);
+                    if (removed != null && (limit == null || removed.getKey().compareTo(limit) < 0)) {
+                        next = visibleBook(null, removed.getValue());
+                        lastId = removed.getKey();
+                        continue;
+                    }
+                    if (pending == null) {
+                        return false;
+                    }
+                    next = visibleBook(pending.getValue(), removedBooks.get(limit));
+                    lastId = limit;
+                    pending = null;
+                }
+                return true;
+            }
+            
+            @Override
+            public Book next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Book book = next;
+                next = null;
+                return copyOf(book);
+            }
+        };
+    }
+    
+    private Iterator<Member> memberIterator(String afterId) {
+        checkOpen();
+        return (afterId == null ? members : members.tailMap(afterId, false)).values().stream()
+            .filter(member -> member.addedVersion <= version)
+            .iterator();
+    }
+    
+    private Iterator<Transaction> transactionIterator(long afterId) {
+        checkOpen();
+        Iterator<Transaction> hot = history.iterator(afterId, version);
+        return archive.isEmpty() ? hot : TransactionArchive.merge(List.of(hot, archive.iterator(afterId)));
+    }
+    
+    // The one of these that exists as of the snapshot, if any
+    private Book visibleBook(Book current, Book[] removed) {
+        if (current != null && isVisible(current)) {
+            return current;
+        }
+        if (removed != null) {
+            for (Book book : removed) {
+                if (isVisible(book)) {
+                    return book;
+                }
+            }
+        }
+        return null;
+    }
+    
+    private boolean isVisible(Book book) {
+        return book.addedVersion <= version && book.removedVersion > version;
+    }
+    
+    private synchronized Book copyOf(Book book) {
+        if (lentCopies == null) {
+            lentCopies = new HashMap<>();
+            // Archived loans are all returned, so the open ones are all in memory
+            Iterator<Transaction> loans = history.iterator(-1, version);
+            while (loans.hasNext()) {
+                Transaction loan = loans.next();
+                if (!loan.isReturned()) {
+                    lentCopies.computeIfAbsent(loan.getBookId(), id -> new ArrayList<>()).add(loan.getCopy());
+                }
+            }
+        }
+        Book copy = new Book(book.getId(), book.getTitle(), book.getAuthor(), book.getCopies());
+        for (int lent : lentCopies.getOrDefault(book.getId(), List.of())) {
+            copy.takeCopy(lent);
+        }
+        return copy;
+    }
+    
+    private synchronized void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+    
+    private static <T> Stream<T> stream(Iterator<T> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+            Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+    
+    private static <T> Page<T> page(Iterator<T> items, int limit, Function<T, String> idOf) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        List<T> page = new ArrayList<>(Math.min(limit, 1024));
+        while (items.hasNext()) {
+            if (page.size() == limit) {
+                return new Page<>(page, idOf.apply(page.get(limit - 1)));
+            }
+            page.add(items.next());
+        }
+        return new Page<>(page, null);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,184 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable home of a {@link LibraryService} in a data directory: the newest
+ * snapshot plus the write-ahead log generations written since it.
+ *
+ * <p>Taking a snapshot rolls the log to a new generation first, so the
+ * snapshot only has to record "replay from generation N". It also moves the
+ * loans returned since the last one into the {@link TransactionArchive} in
+ * the {@value TransactionArchive#DIRECTORY} subdirectory, so the snapshot and
+ * the heap only hold the rest. Older log generations, snapshots and archive
+ * segments are deleted once the new snapshot is on disk.
+ */
+public class LibraryStore implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(LibraryStore.class.getName());
+    private static final String LOG_PREFIX = "library-";
+    private static final String LOG_SUFFIX = ".wal";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    
+    private final Path dataDir;
+    private final LibraryService service;
+    private final WriteAheadLog writeAheadLog;
+    private final boolean fresh;
+    private ScheduledExecutorService snapshotScheduler;
+    // Guarded by this
+    private long currentGeneration;
+    
+    private LibraryStore(Path dataDir, LibraryService service, WriteAheadLog writeAheadLog,
+            long currentGeneration, boolean fresh) {
+        this.dataDir = dataDir;
+        this.service = service;
+        this.writeAheadLog = writeAheadLog;
+        this.currentGeneration = currentGeneration;
+        this.fresh = fresh;
+    }
+    
+    /**
+     * Restores {@code service} (which must be empty) from the newest snapshot in
+     * {@code dataDir} and the log written after it, then logs every further change.
+     */
+    public static LibraryStore open(Path dataDir, LibraryService service,
+            WriteAheadLog.Durability durability, long batchIntervalMillis) throws IOException {
+        Files.createDirectories(dataDir);
+        long startGeneration = 0;
+        boolean restored = false;
+        List<Long> snapshots = generations(dataDir, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        if (!snapshots.isEmpty()) {
+            Path snapshot = snapshotFile(dataDir, snapshots.get(snapshots.size() - 1));
+            long started = System.nanoTime();
+            startGeneration = SnapshotFile.load(snapshot, service);
+            restored = true;
+            LOGGER.log(Level.INFO, "Loaded snapshot {0} in {1} ms",
+                new Object[] {snapshot, (System.nanoTime() - started) / 1_000_000});
+        } else {
+            service.loadArchive(TransactionArchive.open(dataDir.resolve(TransactionArchive.DIRECTORY), List.of()));
+        }
+        // Segments written by a snapshot that did not complete
+        service.getArchive().deleteUnusedSegments();
+        
+        long lastGeneration = startGeneration;
+        long replayed = 0;
+        for (long generation : generations(dataDir, LOG_PREFIX, LOG_SUFFIX)) {
+            if (generation >= startGeneration) {
+                replayed += WriteAheadLog.recover(logFile(dataDir, generation), service);
+                lastGeneration = generation;
+            }
+        }
+        LOGGER.log(Level.INFO, "Replayed {0} log records", replayed);
+        
+        WriteAheadLog writeAheadLog = new WriteAheadLog(logFile(dataDir, lastGeneration), durability, batchIntervalMillis);
+        service.addListener(writeAheadLog);
+        return new LibraryStore(dataDir, service, writeAheadLog, lastGeneration, !restored && replayed == 0);
+    }
+    
+    // True when nothing was restored, i.e. the data directory was new or empty
+    public boolean isFresh() {
+        return fresh;
+    }
+    
+    public WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+    
+    /**
+     * Writes a snapshot of the current state and drops the log generations it
+     * covers. Circulation keeps running while the snapshot is written.
+     */
+    public synchronized void snapshot() throws IOException {
+        long nextGeneration = currentGeneration + 1;
+        writeAheadLog.rollTo(logFile(dataDir, nextGeneration));
+        currentGeneration = nextGeneration;
+        // Changes already logged to the old generation must be visible before the state is read
+        service.awaitInFlightChanges();
+        int archived = service.archiveReturnedLoans();
+        SnapshotFile.write(service, nextGeneration, snapshotFile(dataDir, nextGeneration));
+        LOGGER.log(Level.FINE, "Archived {0} returned loans", archived);
+        
+        for (long generation : generations(dataDir, LOG_PREFIX, LOG_SUFFIX)) {
+            if (generation < nextGeneration) {
+                Files.deleteIfExists(logFile(dataDir, generation));
+            }
+        }
+        for (long generation : generations(dataDir, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (generation < nextGeneration) {
+                Files.deleteIfExists(snapshotFile(dataDir, generation));
+            }
+        }
+        service.getArchive().deleteUnusedSegments();
+    }
+    
+    public synchronized void scheduleSnapshots(long interval, TimeUnit unit) {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdown();
+        }
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "library-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Scheduled snapshot failed", e);
+            }
+        }, interval, interval, unit);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService scheduler;
+        synchronized (this) {
+            scheduler = snapshotScheduler;
+            snapshotScheduler = null;
+        }
+        if (scheduler != null) {
+            // No interrupts: interrupting a thread in FileChannel I/O closes the channel
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        service.removeListener(writeAheadLog);
+        writeAheadLog.close();
+    }
+    
+    static Path logFile(Path dataDir, long generation) {
+        return dataDir.resolve(String.format("%s%010d%s", LOG_PREFIX, generation, LOG_SUFFIX));
+    }
+    
+    static Path snapshotFile(Path dataDir, long generation) {
+        return dataDir.resolve(String.format("%s%010d%s", SNAPSHOT_PREFIX, generation, SNAPSHOT_SUFFIX));
+    }
+    
+    private static List<Long> generations(Path dataDir, String prefix, String suffix) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dataDir, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring unexpected file {0}", file);
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,15 @@
+/**
+ * Decides how long a loan runs. Consulted once per loan, under the book's
+ * lock, so implementations must be thread-safe and quick.
+ */
+public interface LoanPolicy {
+    // Days from the borrow date until the book is due back
+    int loanDays(Book book, Member member);
+    
+    static LoanPolicy fixed(int days) {
+        if (days <= 0) {
+            throw new IllegalArgumentException("days must be positive");
+        }
+        return (book, member) -> days;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,221 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes every change as a {@link WriteAheadLog} record and hands it to
+ * {@link #append}: the log writes it to disk, and {@link ReplicationPrimary}
+ * ships it to replicas, which apply it just as recovery does.
+ */
+abstract class LogRecordListener implements CirculationListener {
+    static final byte BOOK_ADDED = 1;
+    static final byte MEMBER_ADDED = 2;
+    static final byte BOOK_BORROWED = 3;
+    static final byte BOOK_RETURNED = 4;
+    // A count followed by that many unframed records, applied all together or not at all
+    static final byte BATCH = 5;
+    // BOOK_BORROWED plus the due date; logs written before due dates only have BOOK_BORROWED
+    static final byte BOOK_BORROWED_DUE = 6;
+    static final byte HOLD_PLACED = 7;
+    static final byte HOLD_CANCELLED = 8;
+    // BOOK_BORROWED_DUE for a loan made off a hold, plus the hold's placed date and pickup deadline
+    static final byte HOLD_FILLED = 9;
+    static final byte HOLD_COLLECTED = 10;
+    // BOOK_ADDED plus the number of copies, for titles with more than one
+    static final byte BOOK_ADDED_COPIES = 11;
+    static final byte BOOK_REMOVED = 12;
+    
+    static final int HEADER_BYTES = 8;
+    
+    // One or more complete records; changes to the same book arrive in the order they were made
+    abstract void append(byte[] records);
+    
+    @Override
+    public void bookAdded(Book book) {
+        append(encodeBook(book));
+    }
+    
+    @Override
+    public void memberAdded(Member member) {
+        append(encodeMember(member));
+    }
+    
+    // A batch is appended as one unit, so it is written and forced together
+    @Override
+    public void booksAdded(List<Book> books) {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(books.size() * 64);
+        for (Book book : books) {
+            batch.writeBytes(encodeBook(book));
+        }
+        append(batch.toByteArray());
+    }
+    
+    @Override
+    public void membersAdded(List<Member> members) {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(members.size() * 64);
+        for (Member member : members) {
+            batch.writeBytes(encodeMember(member));
+        }
+        append(batch.toByteArray());
+    }
+    
+    @Override
+    public void bookRemoved(Book book) {
+        append(encode(BOOK_REMOVED, out -> writeString(out, book.getId())));
+    }
+    
+    @Override
+    public void bookBorrowed(Transaction transaction) {
+        append(encode(BOOK_BORROWED_DUE, out -> writeBorrow(out, transaction)));
+    }
+    
+    @Override
+    public void bookReturned(Transaction transaction) {
+        append(encode(BOOK_RETURNED, out -> writeReturn(out, transaction)));
+    }
+    
+    // Checkouts and returns of several books share one checksum, so a torn write loses all of them
+    @Override
+    public void booksBorrowed(List<Transaction> transactions) {
+        append(encode(BATCH, out -> {
+            out.writeInt(transactions.size());
+            for (Transaction transaction : transactions) {
+                out.writeByte(BOOK_BORROWED_DUE);
+                writeBorrow(out, transaction);
+            }
+        }));
+    }
+    
+    @Override
+    public void booksReturned(List<Transaction> transactions) {
+        append(encode(BATCH, out -> {
+            out.writeInt(transactions.size());
+            for (Transaction transaction : transactions) {
+                out.writeByte(BOOK_RETURNED);
+                writeReturn(out, transaction);
+            }
+        }));
+    }
+    
+    @Override
+    public void holdPlaced(Hold hold) {
+        append(encode(HOLD_PLACED, out -> {
+            writeString(out, hold.getBookId());
+            writeString(out, hold.getMemberId());
+            out.writeLong(hold.getPlacedDate().toEpochDay());
+        }));
+    }
+    
+    @Override
+    public void holdCancelled(Hold hold) {
+        append(encode(HOLD_CANCELLED, out -> {
+            writeString(out, hold.getBookId());
+            writeString(out, hold.getMemberId());
+        }));
+    }
+    
+    // The returns and the loans they were handed to share one record, so neither survives a torn write alone
+    @Override
+    public void holdsFilled(List<Transaction> returned, List<Transaction> loans, List<Hold> holds) {
+        append(encode(BATCH, out -> {
+            out.writeInt(returned.size() + loans.size());
+            for (Transaction transaction : returned) {
+                out.writeByte(BOOK_RETURNED);
+                writeReturn(out, transaction);
+            }
+            for (int i = 0; i < loans.size(); i++) {
+                out.writeByte(HOLD_FILLED);
+                writeBorrow(out, loans.get(i));
+                out.writeLong(holds.get(i).getPlacedDate().toEpochDay());
+                out.writeLong(holds.get(i).getPickupDeadline().toEpochDay());
+            }
+        }));
+    }
+    
+    @Override
+    public void holdCollected(Hold hold) {
+        append(encode(HOLD_COLLECTED, out -> {
+            writeString(out, hold.getBookId());
+            writeString(out, hold.getMemberId());
+        }));
+    }
+    
+    interface RecordWriter {
+        void write(DataOutput out) throws IOException;
+    }
+    
+    private static byte[] encodeBook(Book book) {
+        return encode(book.getCopies() == 1 ? BOOK_ADDED : BOOK_ADDED_COPIES, out -> {
+            writeString(out, book.getId());
+            writeString(out, book.getTitle());
+            writeString(out, book.getAuthor());
+            if (book.getCopies() != 1) {
+                out.writeInt(book.getCopies());
+            }
+        });
+    }
+    
+    // Loans name the copy lent, by copy ID, which for the first copy is just the book ID as in older logs
+    private static void writeBorrow(DataOutput out, Transaction transaction) throws IOException {
+        writeString(out, transaction.getId());
+        writeString(out, transaction.getCopyId());
+        writeString(out, transaction.getMemberId());
+        out.writeLong(transaction.getBorrowDate().toEpochDay());
+        writeDate(out, transaction.getDueDate());
+    }
+    
+    private static void writeReturn(DataOutput out, Transaction transaction) throws IOException {
+        writeString(out, transaction.getId());
+        writeString(out, transaction.getCopyId());
+        out.writeLong(transaction.getReturnDate().toEpochDay());
+    }
+    
+    private static byte[] encodeMember(Member member) {
+        return encode(MEMBER_ADDED, out -> {
+            writeString(out, member.getId());
+            writeString(out, member.getName());
+            writeString(out, member.getEmail());
+        });
+    }
+    
+    // Frames a record as [payload length][CRC32 of payload][type][fields]
+    static byte[] encode(byte type, RecordWriter writer) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(type);
+            writer.write(out);
+            out.flush();
+            byte[] record = bytes.toByteArray();
+            int length = record.length - HEADER_BYTES;
+            CRC32 crc = new CRC32();
+            crc.update(record, HEADER_BYTES, length);
+            ByteBuffer.wrap(record).putInt(length).putInt((int) crc.getValue());
+            return record;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+    
+    static void writeDate(DataOutput out, LocalDate value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.toEpochDay());
+        }
+    }
+}
\ No newline at end of file
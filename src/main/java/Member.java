@@ -2,6 +2,8 @@ public class Member {
     private String id;
     private String name;
     private String email;
+    // VersionClock version of the change that added it, for point-in-time reads; 0 when loaded
+    long addedVersion;
     
     public Member(String id, String name, String email) {
         this.id = id;
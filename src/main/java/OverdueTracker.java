@@ -0,0 +1,250 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Open loans ordered by due date in a hierarchical timing wheel with one-day
+ * ticks. Each level has 64 slots; level 0 holds loans due within 64 days and
+ * each level above covers 64 times the span of the one below, so four levels
+ * reach any date before the year 45,000.
+ *
+ * <p>A loan is filed under the first day it is overdue. Advancing the clock
+ * walks one slot per day, moves a higher-level slot down each time a lower
+ * level wraps, and fires the loans in the slot for the day, so the work is
+ * proportional to the days passed plus the loans that expire; a loan moves
+ * down at most three times. Loans that have fired stay on an overdue list
+ * until they are returned, or until {@link #unfire} puts them back to fire
+ * again. Removing a loan, whether pending or overdue, is a hash lookup and an
+ * unlink.
+ *
+ * <p>All methods are synchronized; each holds the lock for O(1) work except
+ * {@link #advanceTo} and the listing methods.
+ */
+public class OverdueTracker {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final Comparator<Transaction> DUE_ORDER =
+        Comparator.comparing(Transaction::getDueDate).thenComparing(Transaction::getId);
+    
+    private final Node[][] wheel;
+    // Loans that became overdue when they were added, fired on the next advance
+    private final Node expired;
+    // Loans due beyond the reach of the top level; refiled each time the top level wraps
+    private final Node overflow;
+    private final Node overdue;
+    private final Map<String, Node> nodesByTransactionId;
+    private long currentDay;
+    private int overdueCount;
+    
+    public OverdueTracker(LocalDate today) {
+        this.wheel = new Node[LEVELS][SLOTS];
+        for (Node[] level : wheel) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                level[slot] = Node.sentinel();
+            }
+        }
+        this.expired = Node.sentinel();
+        this.overflow = Node.sentinel();
+        this.overdue = Node.sentinel();
+        this.nodesByTransactionId = new HashMap<>();
+        this.currentDay = today.toEpochDay();
+    }
+    
+    // Starts tracking an open loan; loans without a due date are ignored
+    public synchronized void add(Transaction transaction) {
+        if (transaction.getDueDate() == null || nodesByTransactionId.containsKey(transaction.getId())) {
+            return;
+        }
+        Node node = new Node(transaction, transaction.getDueDate().toEpochDay() + 1);
+        nodesByTransactionId.put(transaction.getId(), node);
+        file(node);
+    }
+    
+    // Stops tracking a loan, e.g. because it was returned; returns whether it was tracked
+    public synchronized boolean remove(String transactionId) {
+        Node node = nodesByTransactionId.remove(transactionId);
+        if (node == null) {
+            return false;
+        }
+        if (node.overdue) {
+            overdueCount--;
+        }
+        node.unlink();
+        return true;
+    }
+    
+    /**
+     * Moves the tracker's clock forward to {@code today} and returns the loans
+     * that became overdue on the way, in due date order. A loan is returned
+     * once; it then stays in {@link #getOverdue()} until removed. Moving
+     * backwards does nothing.
+     */
+    public synchronized List<Transaction> advanceTo(LocalDate today) {
+        List<Transaction> fired = new ArrayList<>();
+        drain(expired, fired);
+        long target = today.toEpochDay();
+        while (currentDay < target) {
+            long day = ++currentDay;
+            if ((day & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0) {
+                refile(overflow);
+            }
+            // Move the slots of higher levels that begin today down, highest first
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((day & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    refile(wheel[level][(int) (day >>> (SLOT_BITS * level)) & SLOT_MASK]);
+                }
+            }
+            drain(wheel[0][(int) day & SLOT_MASK], fired);
+        }
+        return fired;
+    }
+    
+    /**
+     * Takes loans that {@link #advanceTo} fired back off the overdue list, so
+     * that the next advance fires them again. Loans no longer tracked, or not
+     * overdue, are skipped.
+     */
+    public synchronized void unfire(List<Transaction> transactions) {
+        for (Transaction transaction : transactions) {
+            Node node = nodesByTransactionId.get(transaction.getId());
+            if (node != null && node.overdue) {
+                node.unlink();
+                node.overdue = false;
+                overdueCount--;
+                expired.append(node);
+            }
+        }
+    }
+    
+    // Open loans that are past due, oldest due date first
+    public synchronized List<Transaction> getOverdue() {
+        List<Transaction> result = new ArrayList<>(overdueCount);
+        for (Node node = overdue.next; node != overdue; node = node.next) {
+            result.add(node.transaction);
+        }
+        result.sort(DUE_ORDER);
+        return result;
+    }
+    
+    public synchronized int getOverdueCount() {
+        return overdueCount;
+    }
+    
+    // Loans tracked, pending or overdue
+    public synchronized int size() {
+        return nodesByTransactionId.size();
+    }
+    
+    public synchronized LocalDate getCurrentDate() {
+        return LocalDate.ofEpochDay(currentDay);
+    }
+    
+    /**
+     * Re-files every pending loan relative to {@code today}, which may be in
+     * the past (used when the clock is replaced). Loans already overdue stay
+     * overdue.
+     */
+    public synchronized void reset(LocalDate today) {
+        List<Node> pending = new ArrayList<>();
+        for (Node node : nodesByTransactionId.values()) {
+            if (!node.overdue) {
+                node.unlink();
+                pending.add(node);
+            }
+        }
+        currentDay = today.toEpochDay();
+        for (Node node : pending) {
+            file(node);
+        }
+    }
+    
+    private void file(Node node) {
+        // Today's slot has already been drained
+        if (node.fireDay <= currentDay) {
+            expired.append(node);
+            return;
+        }
+        place(node);
+    }
+    
+    private void place(Node node) {
+        // The level is the highest 6-bit digit in which the fire day differs from today
+        long differing = node.fireDay ^ currentDay;
+        int level = (63 - Long.numberOfLeadingZeros(differing)) / SLOT_BITS;
+        if (level >= LEVELS) {
+            overflow.append(node);
+            return;
+        }
+        wheel[level][(int) (node.fireDay >>> (SLOT_BITS * level)) & SLOT_MASK].append(node);
+    }
+    
+    // Called before today's slot is drained, so a loan that fires today still lands in it
+    private void refile(Node head) {
+        // Detached first: a loan beyond the top level goes straight back onto the overflow list
+        List<Node> nodes = new ArrayList<>();
+        for (Node node = head.next; node != head; node = node.next) {
+            nodes.add(node);
+        }
+        for (Node node : nodes) {
+            node.unlink();
+            place(node);
+        }
+    }
+    
+    // Fires every loan in the list: adds it to the result and moves it to the overdue list
+    private void drain(Node head, List<Transaction> fired) {
+        int start = fired.size();
+        Node node = head.next;
+        while (node != head) {
+            Node next = node.next;
+            node.unlink();
+            node.overdue = true;
+            overdueCount++;
+            overdue.append(node);
+            fired.add(node.transaction);
+            node = next;
+        }
+        // A wheel slot holds a single day, but the expired list can hold any mix
+        fired.subList(start, fired.size()).sort(DUE_ORDER);
+    }
+    
+    // Intrusive doubly-linked list node; each slot is a circular list with a sentinel head
+    private static final class Node {
+        final Transaction transaction;
+        final long fireDay;
+        Node previous;
+        Node next;
+        boolean overdue;
+        
+        Node(Transaction transaction, long fireDay) {
+            this.transaction = transaction;
+            this.fireDay = fireDay;
+        }
+        
+        static Node sentinel() {
+            Node head = new Node(null, 0);
+            head.previous = head;
+            head.next = head;
+            return head;
+        }
+        
+        void append(Node node) {
+            node.previous = previous;
+            node.next = this;
+            previous.next = node;
+            previous = node;
+        }
+        
+        void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = this;
+            next = this;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,28 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of results in ID order. Pass {@link #getNextCursor()} as the
+ * {@code afterId} of the next request; it is null on the last page.
+ */
+public class Page<T> {
+    private final List<T> items;
+    private final String nextCursor;
+    
+    public Page(List<T> items, String nextCursor) {
+        this.items = Collections.unmodifiableList(items);
+        this.nextCursor = nextCursor;
+    }
+    
+    public List<T> getItems() {
+        return items;
+    }
+    
+    public String getNextCursor() {
+        return nextCursor;
+    }
+    
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
\ No newline at end of file
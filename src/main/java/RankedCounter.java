@@ -0,0 +1,209 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Exact per-key counts that go up and down by one, kept ranked so the
+ * top k can be read without looking at the other keys.
+ *
+ * <p>Keys are spread over stripes, each locked on its own. Within a stripe,
+ * keys with the same count share a bucket, and the buckets form a list in
+ * count order, so moving a key up or down by one is a step to the
+ * neighbouring bucket. Reading the top k walks the k best of each stripe
+ * and merges them: O(k) per stripe. Keys whose count drops to zero are
+ * forgotten. Ties rank by key.
+ */
+public class RankedCounter {
+    private static final Comparator<Map.Entry<String, Long>> RANK =
+        Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey());
+    
+    private final Stripe[] stripes;
+    
+    // The stripe count is rounded up to a power of two
+    public RankedCounter(int stripeCount) {
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+    
+    /**
+     * Sets the counts of keys this counter has not seen, all at once; far
+     * cheaper than stepping each key up one at a time. Counts of zero are
+     * skipped.
+     */
+    public void load(Map<String, Long> counts) {
+        List<List<Map.Entry<String, Long>>> byStripe = new ArrayList<>(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            byStripe.add(new ArrayList<>());
+        }
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            if (entry.getValue() < 0) {
+                throw new IllegalArgumentException("Count of " + entry.getKey() + " is below zero");
+            }
+            if (entry.getValue() > 0) {
+                byStripe.get(stripeIndex(entry.getKey())).add(entry);
+            }
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i].load(byStripe.get(i));
+        }
+    }
+    
+    public void increment(String key) {
+        stripeFor(key).add(key, 1);
+    }
+    
+    public void decrement(String key) {
+        stripeFor(key).add(key, -1);
+    }
+    
+    public long get(String key) {
+        return stripeFor(key).get(key);
+    }
+    
+    // Keys with a count above zero
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+    
+    // Up to k keys with the highest counts, highest first
+    public List<Map.Entry<String, Long>> top(int k) {
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        List<Map.Entry<String, Long>> candidates = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.top(k, candidates);
+        }
+        candidates.sort(RANK);
+        return new ArrayList<>(candidates.subList(0, Math.min(k, candidates.size())));
+    }
+    
+    private Stripe stripeFor(String key) {
+        return stripes[stripeIndex(key)];
+    }
+    
+    private int stripeIndex(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+    }
+    
+    private static final class Stripe {
+        // Circular list of buckets in ascending count order; head.next is the lowest, head.previous the highest
+        private final Bucket head;
+        private final Map<String, Bucket> bucketsByKey;
+        
+        Stripe() {
+            this.head = new Bucket(0);
+            head.next = head;
+            head.previous = head;
+            this.bucketsByKey = new HashMap<>();
+        }
+        
+        synchronized void add(String key, int delta) {
+            Bucket current = bucketsByKey.getOrDefault(key, head);
+            long count = current.count + delta;
+            if (count < 0) {
+                throw new IllegalStateException("Count of " + key + " would go below zero");
+            }
+            if (count == 0) {
+                bucketsByKey.remove(key);
+            } else {
+                Bucket neighbour = delta > 0 ? current.next : current.previous;
+                Bucket target = neighbour != head && neighbour.count == count ? neighbour : null;
+                if (target == null) {
+                    target = new Bucket(count);
+                    if (delta > 0) {
+                        target.linkAfter(current);
+                    } else {
+                        target.linkAfter(current.previous);
+                    }
+                }
+                target.keys.add(key);
+                bucketsByKey.put(key, target);
+            }
+            if (current != head) {
+                current.keys.remove(key);
+                if (current.keys.isEmpty()) {
+                    current.unlink();
+                }
+            }
+        }
+        
+        // Sorted by count, then appended to the top of the list bucket by bucket
+        synchronized void load(List<Map.Entry<String, Long>> counts) {
+            counts.sort(Map.Entry.comparingByValue());
+            for (Map.Entry<String, Long> entry : counts) {
+                if (bucketsByKey.containsKey(entry.getKey())) {
+                    throw new IllegalStateException("Count of " + entry.getKey() + " is already set");
+                }
+                Bucket top = head.previous;
+                if (top == head || top.count != entry.getValue()) {
+                    if (top != head && top.count > entry.getValue()) {
+                        throw new IllegalStateException("Counts can only be loaded into an empty stripe");
+                    }
+                    top = new Bucket(entry.getValue());
+                    top.linkAfter(head.previous);
+                }
+                top.keys.add(entry.getKey());
+                bucketsByKey.put(entry.getKey(), top);
+            }
+        }
+        
+        synchronized long get(String key) {
+            return bucketsByKey.getOrDefault(key, head).count;
+        }
+        
+        synchronized int size() {
+            return bucketsByKey.size();
+        }
+        
+        synchronized void top(int k, List<Map.Entry<String, Long>> into) {
+            int taken = 0;
+            for (Bucket bucket = head.previous; bucket != head && taken < k; bucket = bucket.previous) {
+                Iterator<String> keys = bucket.keys.iterator();
+                while (keys.hasNext() && taken < k) {
+                    into.add(Map.entry(keys.next(), bucket.count));
+                    taken++;
+                }
+            }
+        }
+    }
+    
+    private static final class Bucket {
+        final long count;
+        final TreeSet<String> keys;
+        Bucket previous;
+        Bucket next;
+        
+        Bucket(long count) {
+            this.count = count;
+            this.keys = new TreeSet<>();
+        }
+        
+        void linkAfter(Bucket bucket) {
+            previous = bucket;
+            next = bucket.next;
+            bucket.next.previous = this;
+            bucket.next = this;
+        }
+        
+        void unlink() {
+            previous.next = next;
+            next.previous = previous;
+        }
+    }
+}
\ No newline at end of file
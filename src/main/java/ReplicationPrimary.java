@@ -0,0 +1,269 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Primary side of log shipping: streams every change made to a
+ * {@link LibraryService} over TCP to read-only {@link ReplicationReplica}s.
+ * It registers with the service as a listener; register any listener that
+ * can veto a change, such as the write-ahead log, before starting it, so
+ * that only changes that go through are shipped.
+ *
+ * <p>Each change is encoded as the write-ahead log would encode it,
+ * numbered, and kept in a backlog of the latest ones. A replica connects
+ * with the last sequence it applied and is streamed the records after it.
+ * If the backlog no longer holds them, or the replica has never synced, it
+ * is first sent a standalone snapshot together with the sequence the
+ * snapshot covers. Replaying a record the snapshot already reflects
+ * changes nothing, as in recovery. Every replica has its own sender
+ * thread, so a slow one only holds itself back. When idle, senders send
+ * heartbeats carrying the latest sequence, from which replicas tell how
+ * far behind they are.
+ */
+public class ReplicationPrimary extends LogRecordListener implements Closeable {
+    static final long MAGIC = 0x4C49425245504C31L;
+    // Messages to replicas: a snapshot, one appended record batch, or a heartbeat
+    static final byte SNAPSHOT = 1;
+    static final byte RECORDS = 2;
+    static final byte HEARTBEAT = 3;
+    static final long HEARTBEAT_MILLIS = 100;
+    
+    private static final Logger LOGGER = Logger.getLogger(ReplicationPrimary.class.getName());
+    private static final int DEFAULT_BACKLOG = 1 << 16;
+    private static final int MAX_RECORDS_PER_SEND = 1024;
+    private static final int BUFFER_BYTES = 64 << 10;
+    
+    private final LibraryService service;
+    private final ServerSocket serverSocket;
+    private final Path snapshotDirectory;
+    // Identifies this run of the primary; sequences start over with each one
+    private final long epoch;
+    private final Set<Socket> replicas;
+    private final AtomicInteger senderCount;
+    private final ReentrantLock lock;
+    private final Condition appended;
+    
+    // Guarded by lock: ring of the latest record batches by sequence, and when each was appended
+    private final byte[][] backlog;
+    private final long[] appendedMillis;
+    private long lastSequence;
+    private boolean closed;
+    
+    private ReplicationPrimary(LibraryService service, ServerSocket serverSocket, Path snapshotDirectory,
+            int backlogSize) {
+        this.service = service;
+        this.serverSocket = serverSocket;
+        this.snapshotDirectory = snapshotDirectory;
+        this.epoch = ThreadLocalRandom.current().nextLong();
+        this.replicas = ConcurrentHashMap.newKeySet();
+        this.senderCount = new AtomicInteger();
+        this.lock = new ReentrantLock();
+        this.appended = lock.newCondition();
+        this.backlog = new byte[backlogSize][];
+        this.appendedMillis = new long[backlogSize];
+    }
+    
+    public static ReplicationPrimary start(LibraryService service, int port, Path snapshotDirectory)
+            throws IOException {
+        return start(service, port, snapshotDirectory, DEFAULT_BACKLOG);
+    }
+    
+    /**
+     * Listens for replicas on {@code port}, 0 for any free one, and ships
+     * every change made to {@code service} from now on. Snapshots for
+     * replicas are written to {@code snapshotDirectory} while they are sent.
+     */
+    public static ReplicationPrimary start(LibraryService service, int port, Path snapshotDirectory, int backlogSize)
+            throws IOException {
+        if (service == null || snapshotDirectory == null) {
+            throw new IllegalArgumentException("service and snapshotDirectory must not be null");
+        }
+        if (backlogSize <= 0) {
+            throw new IllegalArgumentException("backlogSize must be positive");
+        }
+        Files.createDirectories(snapshotDirectory);
+        ReplicationPrimary primary = new ReplicationPrimary(service, new ServerSocket(port), snapshotDirectory,
+            backlogSize);
+        service.addListener(primary);
+        Thread acceptor = new Thread(primary::acceptReplicas, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return primary;
+    }
+    
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+    
+    // Sequence of the latest change; replicas that have applied it are caught up
+    public long getLastSequence() {
+        lock.lock();
+        try {
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+    
+    // Never throws: a replica that cannot keep up is sent a snapshot later rather than holding up the change
+    @Override
+    void append(byte[] records) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            long sequence = ++lastSequence;
+            int slot = (int) (sequence % backlog.length);
+            backlog[slot] = records;
+            appendedMillis[slot] = System.currentTimeMillis();
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        service.removeListener(this);
+        lock.lock();
+        try {
+            closed = true;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        serverSocket.close();
+        for (Socket replica : replicas) {
+            replica.close();
+        }
+    }
+    
+    private void acceptReplicas() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                replicas.add(socket);
+                Thread sender = new Thread(() -> serve(socket), "replication-sender-" + senderCount.incrementAndGet());
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.log(Level.WARNING, "Failed to accept a replica", e);
+                }
+            }
+        }
+    }
+    
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                BUFFER_BYTES));
+            if (in.readLong() != MAGIC) {
+                return;
+            }
+            long replicaEpoch = in.readLong();
+            long applied = in.readLong();
+            // Sequence 0 is never used, so a replica from another run, or none, starts from a snapshot
+            long next = replicaEpoch == epoch ? applied + 1 : 0;
+            List<byte[]> batch = new ArrayList<>();
+            long[] millis = new long[MAX_RECORDS_PER_SEND];
+            while (true) {
+                long first = next;
+                long latest;
+                boolean lapped;
+                lock.lock();
+                try {
+                    if (next > lastSequence && !closed) {
+                        appended.await(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    latest = lastSequence;
+                    lapped = next == 0 || next <= lastSequence - backlog.length || next > lastSequence + 1;
+                    for (long sequence = next; !lapped && sequence <= latest && batch.size() < millis.length;
+                            sequence++) {
+                        int slot = (int) (sequence % backlog.length);
+                        millis[batch.size()] = appendedMillis[slot];
+                        batch.add(backlog[slot]);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (lapped) {
+                    next = sendSnapshot(out) + 1;
+                    continue;
+                }
+                if (batch.isEmpty()) {
+                    out.writeByte(HEARTBEAT);
+                    out.writeLong(latest);
+                } else {
+                    for (int i = 0; i < batch.size(); i++) {
+                        out.writeByte(RECORDS);
+                        out.writeLong(first + i);
+                        out.writeLong(millis[i]);
+                        out.writeInt(batch.get(i).length);
+                        out.write(batch.get(i));
+                    }
+                    next = first + batch.size();
+                    batch.clear();
+                    // Tells the replica how far behind it still is
+                    out.writeByte(HEARTBEAT);
+                    out.writeLong(latest);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Replica disconnected", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            replicas.remove(socket);
+        }
+    }
+    
+    // Returns the sequence the snapshot covers: every change up to it is in the snapshot, some later ones may be too
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        long covered = getLastSequence();
+        // Changes already numbered must be visible before the state is read
+        service.awaitInFlightChanges();
+        Path file = Files.createTempFile(snapshotDirectory, "replica-", ".snap");
+        try {
+            SnapshotFile.writeStandalone(service, file);
+            out.writeByte(SNAPSHOT);
+            out.writeLong(epoch);
+            out.writeLong(covered);
+            out.writeLong(Files.size(file));
+            Files.copy(file, out);
+            out.flush();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        return covered;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,411 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read-only copy of a library kept up to date from a
+ * {@link ReplicationPrimary}. A receiver thread connects to the primary,
+ * loads the snapshot it is sent, if any, into a fresh service and applies
+ * the records that follow the way recovery replays the write-ahead log.
+ * It reconnects whenever the connection drops, carrying on from the last
+ * record it applied.
+ *
+ * <p>Reads go to {@link #getService()}, which returns a new service after
+ * each snapshot, so callers should not hold on to it. Any change made to
+ * it other than by the receiver is refused with an
+ * {@link IllegalStateException}.
+ *
+ * <p>Lag is reported two ways: in records, as the primary's latest
+ * sequence less the one applied here, and in milliseconds, as how long ago
+ * the primary appended the oldest change not yet applied here, or 0 when
+ * caught up. The latter compares the primary's clock with this one, so it
+ * is only as accurate as the two are in step.
+ */
+public class ReplicationReplica implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(ReplicationReplica.class.getName());
+    private static final long RECONNECT_MILLIS = 200;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    // Long enough for the primary to write a large snapshot before it sends anything
+    private static final int READ_TIMEOUT_MILLIS = 30_000;
+    
+    private final String host;
+    private final int port;
+    private final Path snapshotDirectory;
+    private final Supplier<LibraryService> serviceFactory;
+    private final ReentrantLock lock;
+    private final Condition progressed;
+    private final Thread receiver;
+    
+    private volatile LibraryService service;
+    private volatile Socket socket;
+    private volatile boolean closed;
+    private volatile boolean connected;
+    
+    // Guarded by lock
+    private long epoch;
+    private long appliedSequence;
+    private long primarySequence;
+    private long appliedMillis;
+    
+    private ReplicationReplica(String host, int port, Path snapshotDirectory,
+            Supplier<LibraryService> serviceFactory) {
+        this.host = host;
+        this.port = port;
+        this.snapshotDirectory = snapshotDirectory;
+        this.serviceFactory = serviceFactory;
+        this.lock = new ReentrantLock();
+        this.progressed = lock.newCondition();
+        this.receiver = new Thread(this::receive, "replication-receiver-" + host + ":" + port);
+        receiver.setDaemon(true);
+        this.service = newService();
+    }
+    
+    public static ReplicationReplica start(String host, int port, Path snapshotDirectory) throws IOException {
+        return start(host, port, snapshotDirectory, LibraryService::new);
+    }
+    
+    /**
+     * Starts replicating from the primary at {@code host} and {@code port}.
+     * Every service the replica serves comes from {@code serviceFactory},
+     * which should return an empty one configured like the primary, with
+     * the same loan policy and hold pickup days. Snapshots received are
+     * staged in {@code snapshotDirectory}.
+     */
+    public static ReplicationReplica start(String host, int port, Path snapshotDirectory,
+            Supplier<LibraryService> serviceFactory) throws IOException {
+        if (host == null || snapshotDirectory == null || serviceFactory == null) {
+            throw new IllegalArgumentException("host, snapshotDirectory and serviceFactory must not be null");
+        }
+        Files.createDirectories(snapshotDirectory);
+        ReplicationReplica replica = new ReplicationReplica(host, port, snapshotDirectory, serviceFactory);
+        replica.receiver.start();
+        return replica;
+    }
+    
+    // The library as of the last applied record
+    public LibraryService getService() {
+        return service;
+    }
+    
+    public boolean isConnected() {
+        return connected;
+    }
+    
+    public long getAppliedSequence() {
+        lock.lock();
+        try {
+            return appliedSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Changes made on the primary and not applied here yet, as of its last message
+    public long getLagRecords() {
+        lock.lock();
+        try {
+            return Math.max(0, primarySequence - appliedSequence);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getLagMillis() {
+        lock.lock();
+        try {
+            return appliedMillis == 0 ? 0 : Math.max(0, System.currentTimeMillis() - appliedMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Waits until the record with this sequence has been applied; returns false on timeout
+    public boolean awaitSequence(long sequence, long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (appliedSequence < sequence) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = progressed.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        receiver.interrupt();
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+        try {
+            receiver.join(CONNECT_TIMEOUT_MILLIS + RECONNECT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private LibraryService newService() {
+        LibraryService created = serviceFactory.get();
+        created.addListener(new ReadOnlyGuard(receiver));
+        return created;
+    }
+    
+    private void receive() {
+        while (!closed) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                connection.setSoTimeout(READ_TIMEOUT_MILLIS);
+                connection.setTcpNoDelay(true);
+                follow(connection);
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.log(Level.FINE, "Lost the primary at " + host + ":" + port, e);
+                }
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    
+    private void follow(Socket connection) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+        lock.lock();
+        try {
+            out.writeLong(ReplicationPrimary.MAGIC);
+            out.writeLong(epoch);
+            out.writeLong(appliedSequence);
+        } finally {
+            lock.unlock();
+        }
+        out.flush();
+        connected = true;
+        while (!closed) {
+            byte type = in.readByte();
+            switch (type) {
+                case ReplicationPrimary.SNAPSHOT:
+                    loadSnapshot(in);
+                    break;
+                case ReplicationPrimary.RECORDS:
+                    applyRecords(in);
+                    break;
+                case ReplicationPrimary.HEARTBEAT:
+                    heartbeat(in.readLong());
+                    break;
+                default:
+                    throw new IOException("Unknown replication message " + type);
+            }
+        }
+    }
+    
+    private void loadSnapshot(DataInputStream in) throws IOException {
+        long snapshotEpoch = in.readLong();
+        long covered = in.readLong();
+        long length = in.readLong();
+        Path file = Files.createTempFile(snapshotDirectory, "replica-", ".snap");
+        try {
+            Files.copy(new BoundedInputStream(in, length), file, StandardCopyOption.REPLACE_EXISTING);
+            LibraryService loaded = newService();
+            SnapshotFile.load(file, loaded);
+            service = loaded;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        lock.lock();
+        try {
+            epoch = snapshotEpoch;
+            appliedSequence = covered;
+            primarySequence = Math.max(primarySequence, covered);
+            appliedMillis = 0;
+            progressed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void applyRecords(DataInputStream in) throws IOException {
+        long sequence = in.readLong();
+        long appended = in.readLong();
+        byte[] records = new byte[in.readInt()];
+        in.readFully(records);
+        if (sequence != getAppliedSequence() + 1) {
+            throw new IOException("Expected record " + (getAppliedSequence() + 1) + " but got " + sequence);
+        }
+        DataInputStream frames = new DataInputStream(new ByteArrayInputStream(records));
+        byte[] payload;
+        while ((payload = WriteAheadLog.readRecord(frames)) != null) {
+            WriteAheadLog.apply(payload, service);
+        }
+        if (frames.available() > 0) {
+            throw new IOException("Corrupt replication record " + sequence);
+        }
+        lock.lock();
+        try {
+            appliedSequence = sequence;
+            primarySequence = Math.max(primarySequence, sequence);
+            appliedMillis = appended;
+            progressed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void heartbeat(long latest) {
+        lock.lock();
+        try {
+            primarySequence = latest;
+            if (appliedSequence >= latest) {
+                appliedMillis = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Refuses changes made by anything but the receiver; listeners run before a change is made, so throwing vetoes it
+    private static final class ReadOnlyGuard implements CirculationListener {
+        private final Thread receiver;
+        
+        ReadOnlyGuard(Thread receiver) {
+            this.receiver = receiver;
+        }
+        
+        private void check() {
+            if (Thread.currentThread() != receiver) {
+                throw new IllegalStateException("This library is a read-only replica");
+            }
+        }
+        
+        @Override
+        public void bookAdded(Book book) {
+            check();
+        }
+        
+        @Override
+        public void memberAdded(Member member) {
+            check();
+        }
+        
+        @Override
+        public void booksAdded(List<Book> books) {
+            check();
+        }
+        
+        @Override
+        public void membersAdded(List<Member> members) {
+            check();
+        }
+        
+        @Override
+        public void bookRemoved(Book book) {
+            check();
+        }
+        
+        @Override
+        public void bookBorrowed(Transaction transaction) {
+            check();
+        }
+        
+        @Override
+        public void bookReturned(Transaction transaction) {
+            check();
+        }
+        
+        @Override
+        public void booksBorrowed(List<Transaction> transactions) {
+            check();
+        }
+        
+        @Override
+        public void booksReturned(List<Transaction> transactions) {
+            check();
+        }
+        
+        @Override
+        public void holdPlaced(Hold hold) {
+            check();
+        }
+        
+        @Override
+        public void holdCancelled(Hold hold) {
+            check();
+        }
+        
+        @Override
+        public void holdsFilled(List<Transaction> returned, List<Transaction> loans, List<Hold> holds) {
+            check();
+        }
+        
+        @Override
+        public void holdCollected(Hold hold) {
+            check();
+        }
+    }
+    
+    // Reads at most length bytes of the underlying stream and leaves it open
+    private static final class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+        
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Snapshot cut short");
+            }
+            remaining--;
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read < 0) {
+                throw new IOException("Snapshot cut short");
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+}
\ No newline at end of file
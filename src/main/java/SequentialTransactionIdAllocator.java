@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free sequential allocator. IDs come from a single atomic counter, so
+ * they are strictly increasing in allocation order. When a high-water file
+ * is configured the allocator reserves IDs in blocks: the end of the current
+ * block is persisted before any ID inside it is handed out, and a restart
+ * resumes after the last persisted block. Only the thread that crosses a
+ * block boundary touches the disk.
+ */
+public class SequentialTransactionIdAllocator implements TransactionIdAllocator {
+    private static final int DEFAULT_BLOCK_SIZE = 100_000;
+    
+    private final AtomicLong lastId;
+    private final Path highWaterFile;
+    private final long blockSize;
+    private volatile long reservedUpTo;
+    
+    // In-memory allocator, starting at 1
+    public SequentialTransactionIdAllocator() {
+        this.lastId = new AtomicLong();
+        this.highWaterFile = null;
+        this.blockSize = 0;
+        this.reservedUpTo = Long.MAX_VALUE;
+    }
+    
+    public SequentialTransactionIdAllocator(Path highWaterFile) {
+        this(highWaterFile, DEFAULT_BLOCK_SIZE);
+    }
+    
+    public SequentialTransactionIdAllocator(Path highWaterFile, long blockSize) {
+        if (highWaterFile == null) {
+            throw new IllegalArgumentException("highWaterFile must not be null");
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        this.highWaterFile = highWaterFile;
+        this.blockSize = blockSize;
+        long highWater = readHighWater(highWaterFile);
+        this.lastId = new AtomicLong(highWater);
+        this.reservedUpTo = highWater;
+    }
+    
+    @Override
+    public long nextId() {
+        long id = lastId.incrementAndGet();
+        if (id > reservedUpTo) {
+            reserve(id);
+        }
+        return id;
+    }
+    
+    @Override
+    public void advancePast(long id) {
+        long current = lastId.get();
+        while (current < id && !lastId.compareAndSet(current, id)) {
+            current = lastId.get();
+        }
+        if (id > reservedUpTo) {
+            reserve(id);
+        }
+    }
+    
+    public long getLastId() {
+        return lastId.get();
+    }
+    
+    private synchronized void reserve(long id) {
+        if (id <= reservedUpTo) {
+            return;
+        }
+        long newHighWater = id + blockSize;
+        writeHighWater(newHighWater);
+        reservedUpTo = newHighWater;
+    }
+    
+    private void writeHighWater(long highWater) {
+        Path temp = highWaterFile.resolveSibling(highWaterFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Long.toString(highWater).getBytes(StandardCharsets.US_ASCII)));
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to persist transaction ID high-water mark", e);
+        }
+        try {
+            Files.move(temp, highWaterFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to persist transaction ID high-water mark", e);
+        }
+    }
+    
+    private static long readHighWater(Path highWaterFile) {
+        if (!Files.exists(highWaterFile)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(highWaterFile), StandardCharsets.US_ASCII).trim());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read transaction ID high-water mark", e);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,559 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * A library of several branches, each a {@link LibraryService} of its own
+ * (a shard) with its own catalog, indexes, locks and executor, so branches
+ * do not contend with each other and throughput grows with cores.
+ *
+ * <p>Every book and member lives in exactly one shard: the branch it was
+ * added to, or else the one its ID hashes to. Only IDs placed away from
+ * their hash are kept in a routing table. Loans, holds and returns go to
+ * the shard holding the book. A member borrows from and places holds in
+ * other branches as a visitor: those look the member up in their home
+ * branch, so the loan stays with the book while only the home branch lists
+ * the member. Lookups of a member's loans and holds ask every shard. The
+ * loan limit counts the member's loans in every shard, both for a checkout
+ * and for a returned copy lent to the next member waiting for it.
+ *
+ * <p>{@link #transferBook} moves a title to another branch. Every routed
+ * operation holds its title's stripe of a read-write lock, which a transfer
+ * holds for writing while it adds the title to one shard, removes it from
+ * the other and updates the route, so no operation sees the title in both
+ * shards or in neither. Transaction IDs stay unique across shards: shard s
+ * hands out IDs that are s + 1 modulo the shard count. They increase in time
+ * within a shard but not across shards, so listings that gather loans from
+ * every shard order them by borrow date, then ID.
+ *
+ * <p>A library from {@link #open} keeps each branch in a {@link LibraryStore}
+ * of its own. The routing table is not stored: every book and member is in
+ * the catalog of the branch holding it, so the table is rebuilt from the
+ * catalogs on open, and titles placed or moved away from their hash are
+ * found where they are after a restart.
+ */
+public class ShardedLibrary implements Closeable {
+    private static final int LOCK_STRIPES = 1024;
+    private static final String BRANCH_PREFIX = "branch-";
+    
+    private final LibraryService[] shards;
+    private final ExecutorService[] executors;
+    // Null for a library kept in memory only
+    private final LibraryStore[] stores;
+    // Books and members placed away from the shard their ID hashes to
+    private final Map<String, Integer> bookRoutes;
+    private final Map<String, Integer> memberRoutes;
+    // Routed operations on a title hold its stripe's read lock; transfers and adds hold the write lock
+    private final ReentrantReadWriteLock[] titleLocks;
+    // Serializes a member's checkouts while the loan limit is counted across shards, and their adds
+    private final ReentrantLock[] memberLocks;
+    private volatile int memberLoanLimit;
+    
+    // One executor thread per shard
+    public ShardedLibrary(int shardCount) {
+        this(shardCount, 1);
+    }
+    
+    public ShardedLibrary(int shardCount, int threadsPerShard) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        if (threadsPerShard <= 0) {
+            throw new IllegalArgumentException("threadsPerShard must be positive");
+        }
+        this.shards = new LibraryService[shardCount];
+        this.executors = new ExecutorService[shardCount];
+        this.stores = new LibraryStore[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            shards[shard] = new LibraryService(new ShardTransactionIdAllocator(shard, shardCount));
+            String name = "library-shard-" + shard;
+            AtomicInteger threads = new AtomicInteger();
+            executors[shard] = Executors.newFixedThreadPool(threadsPerShard, runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.bookRoutes = new ConcurrentHashMap<>();
+        this.memberRoutes = new ConcurrentHashMap<>();
+        this.titleLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+        this.memberLocks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            titleLocks[i] = new ReentrantReadWriteLock();
+            memberLocks[i] = new ReentrantLock();
+        }
+        this.memberLoanLimit = Integer.MAX_VALUE;
+        for (LibraryService shard : shards) {
+            shard.setVisitorLookup(this::getMember);
+            shard.setLoanCountLookup(this::getActiveLoanCount);
+        }
+    }
+    
+    /**
+     * Opens a durable library of {@code shardCount} branches, each restored
+     * from and logged to the {@code branch-N} subdirectory of {@code dataDir}.
+     * The shard count must be the one the data was written with, as it
+     * decides both the routes and the transaction IDs.
+     */
+    public static ShardedLibrary open(Path dataDir, int shardCount, WriteAheadLog.Durability durability,
+            long batchIntervalMillis) throws IOException {
+        Files.createDirectories(dataDir);
+        int existing = 0;
+        try (DirectoryStream<Path> branches = Files.newDirectoryStream(dataDir, BRANCH_PREFIX + "*")) {
+            for (Path ignored : branches) {
+                existing++;
+            }
+        }
+        if (existing != 0 && existing != shardCount) {
+            throw new IllegalArgumentException(dataDir + " holds " + existing + " branches, not " + shardCount);
+        }
+        ShardedLibrary library = new ShardedLibrary(shardCount);
+        try {
+            for (int shard = 0; shard < shardCount; shard++) {
+                library.stores[shard] = LibraryStore.open(dataDir.resolve(BRANCH_PREFIX + shard),
+                    library.shards[shard], durability, batchIntervalMillis);
+            }
+        } catch (IOException | RuntimeException e) {
+            library.close();
+            throw e;
+        }
+        library.rebuildRoutes();
+        return library;
+    }
+    
+    public int getShardCount() {
+        return shards.length;
+    }
+    
+    // The branch itself, for settings such as the clock or loan policy and for its own listeners
+    public LibraryService getShard(int shard) {
+        return shards[shard];
+    }
+    
+    // The shard holding the title a book or copy ID names
+    public int shardOfBook(String bookId) {
+        String titleId = Book.titleIdOf(bookId);
+        Integer routed = bookRoutes.get(titleId);
+        return routed != null ? routed : hashShard(titleId);
+    }
+    
+    // The member's home shard, where they were added
+    public int shardOfMember(String memberId) {
+        Integer routed = memberRoutes.get(memberId);
+        return routed != null ? routed : hashShard(memberId);
+    }
+    
+    // Most books one member may have out at once across all branches; unlimited by default
+    public void setMemberLoanLimit(int limit) {
+        for (LibraryService shard : shards) {
+            // The branches check copies lent off holds on return, counting through getActiveLoanCount
+            shard.setMemberLoanLimit(limit);
+        }
+        memberLoanLimit = limit;
+    }
+    
+    public boolean addBook(Book book) {
+        return book != null && book.getId() != null && addBook(hashShard(book.getId()), book);
+    }
+    
+    // False if the ID is taken in any branch
+    public boolean addBook(int branch, Book book) {
+        if (book == null || book.getId() == null || !isBranch(branch)) {
+            return false;
+        }
+        ReentrantReadWriteLock.WriteLock lock = titleLock(book.getId()).writeLock();
+        lock.lock();
+        try {
+            if (getBook(book.getId()) != null) {
+                return false;
+            }
+            // Routed first, so a lookup that finds the book finds it where it is
+            route(bookRoutes, book.getId(), branch);
+            if (!shards[branch].addBook(book)) {
+                bookRoutes.remove(book.getId());
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean addMember(Member member) {
+        return member != null && member.getId() != null && addMember(hashShard(member.getId()), member);
+    }
+    
+    // False if the ID is taken in any branch
+    public boolean addMember(int branch, Member member) {
+        if (member == null || member.getId() == null || !isBranch(branch)) {
+            return false;
+        }
+        ReentrantLock lock = memberLock(member.getId());
+        lock.lock();
+        try {
+            if (getMember(member.getId()) != null) {
+                return false;
+            }
+            route(memberRoutes, member.getId(), branch);
+            if (!shards[branch].addMember(member)) {
+                memberRoutes.remove(member.getId());
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public Book getBook(String bookId) {
+        return bookId == null ? null : shards[shardOfBook(bookId)].findBookById(Book.titleIdOf(bookId));
+    }
+    
+    public Member getMember(String memberId) {
+        return memberId == null ? null : shards[shardOfMember(memberId)].findMemberById(memberId);
+    }
+    
+    // Lends a copy from whichever branch holds the book, to a member of any branch
+    public boolean borrowBook(String bookId, String memberId) {
+        return tryBorrowBook(bookId, memberId) == null;
+    }
+    
+    LibraryMetrics.Failure tryBorrowBook(String bookId, String memberId) {
+        if (bookId == null || memberId == null) {
+            return LibraryMetrics.Failure.INVALID_REQUEST;
+        }
+        if (getMember(memberId) == null) {
+            return LibraryMetrics.Failure.MEMBER_NOT_FOUND;
+        }
+        ReentrantReadWriteLock.ReadLock lock = titleLock(Book.titleIdOf(bookId)).readLock();
+        lock.lock();
+        try {
+            LibraryService shard = shards[shardOfBook(bookId)];
+            if (memberLoanLimit == Integer.MAX_VALUE) {
+                return shard.tryBorrowBook(bookId, memberId);
+            }
+            ReentrantLock limitLock = memberLock(memberId);
+            limitLock.lock();
+            try {
+                if (getActiveLoanCount(memberId) >= memberLoanLimit) {
+                    return LibraryMetrics.Failure.LOAN_LIMIT_REACHED;
+                }
+                return shard.tryBorrowBook(bookId, memberId);
+            } finally {
+                limitLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean returnBook(String bookId) {
+        return tryReturnBook(bookId) == null;
+    }
+    
+    LibraryMetrics.Failure tryReturnBook(String bookId) {
+        if (bookId == null) {
+            return LibraryMetrics.Failure.INVALID_REQUEST;
+        }
+        String titleId = Book.titleIdOf(bookId);
+        if (memberLoanLimit == Integer.MAX_VALUE) {
+            ReentrantReadWriteLock.ReadLock lock = titleLock(titleId).readLock();
+            lock.lock();
+            try {
+                return shards[shardOfBook(bookId)].tryReturnBook(bookId);
+            } finally {
+                lock.unlock();
+            }
+        }
+        // The copy may go to someone waiting for it, which counts against their limit like a checkout. With the
+        // title's write lock nobody joins the line, so everyone it may go to is locked as a borrow locks them.
+        ReentrantReadWriteLock.WriteLock lock = titleLock(titleId).writeLock();
+        lock.lock();
+        try {
+            LibraryService shard = shards[shardOfBook(bookId)];
+            ReentrantLock[] limitLocks = memberLocks(shard.getWaitingMembers(titleId));
+            try {
+                return shard.tryReturnBook(bookId);
+            } finally {
+                for (ReentrantLock limitLock : limitLocks) {
+                    limitLock.unlock();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean placeHold(String bookId, String memberId) {
+        return tryPlaceHold(bookId, memberId) == null;
+    }
+    
+    LibraryMetrics.Failure tryPlaceHold(String bookId, String memberId) {
+        if (bookId == null || memberId == null) {
+            return LibraryMetrics.Failure.INVALID_REQUEST;
+        }
+        if (getMember(memberId) == null) {
+            return LibraryMetrics.Failure.MEMBER_NOT_FOUND;
+        }
+        ReentrantReadWriteLock.ReadLock lock = titleLock(Book.titleIdOf(bookId)).readLock();
+        lock.lock();
+        try {
+            return shards[shardOfBook(bookId)].tryPlaceHold(bookId, memberId);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean cancelHold(String bookId, String memberId) {
+        if (bookId == null || memberId == null) {
+            return false;
+        }
+        ReentrantReadWriteLock.ReadLock lock = titleLock(Book.titleIdOf(bookId)).readLock();
+        lock.lock();
+        try {
+            return shards[shardOfBook(bookId)].cancelHold(bookId, memberId);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Moves a title, with every copy, to another branch. Refused with
+     * NOT_AVAILABLE while a copy is out or anyone is waiting for it, as
+     * {@link LibraryService#removeBook} is. The title's past loans stay in
+     * the branch it leaves. Moving a title to the branch it is in does nothing.
+     */
+    public boolean transferBook(String bookId, int toBranch) {
+        return tryTransferBook(bookId, toBranch) == null;
+    }
+    
+    LibraryMetrics.Failure tryTransferBook(String bookId, int toBranch) {
+        if (bookId == null || !isBranch(toBranch)) {
+            return LibraryMetrics.Failure.INVALID_REQUEST;
+        }
+        ReentrantReadWriteLock.WriteLock lock = titleLock(bookId).writeLock();
+        lock.lock();
+        try {
+            int from = shardOfBook(bookId);
+            Book book = shards[from].findBookById(bookId);
+            if (book == null) {
+                return LibraryMetrics.Failure.BOOK_NOT_FOUND;
+            }
+            if (from == toBranch) {
+                return null;
+            }
+            // Nothing routed can reach the title meanwhile, so the new branch cannot lend it before a rollback
+            Book moved = new Book(book.getId(), book.getTitle(), book.getAuthor(), book.getCopies());
+            if (!shards[toBranch].addBook(moved)) {
+                return LibraryMetrics.Failure.REJECTED;
+            }
+            if (!shards[from].removeBook(bookId)) {
+                shards[toBranch].removeBook(bookId);
+                return LibraryMetrics.Failure.NOT_AVAILABLE;
+            }
+            route(bookRoutes, bookId, toBranch);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Runs a checkout on the executor of the branch holding the book
+    public CompletableFuture<Boolean> borrowBookAsync(String bookId, String memberId) {
+        return submit(bookId == null ? 0 : shardOfBook(bookId), () -> borrowBook(bookId, memberId));
+    }
+    
+    public CompletableFuture<Boolean> returnBookAsync(String bookId) {
+        return submit(bookId == null ? 0 : shardOfBook(bookId), () -> returnBook(bookId));
+    }
+    
+    public <T> CompletableFuture<T> submit(int shard, Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, executors[shard]);
+    }
+    
+    // Open loans of one member in every branch, oldest first
+    public List<Transaction> getActiveLoans(String memberId) {
+        List<Transaction> result = new ArrayList<>();
+        for (LibraryService shard : shards) {
+            result.addAll(shard.getActiveLoans(memberId));
+        }
+        result.sort(Comparator.comparing(Transaction::getBorrowDate).thenComparing(Transaction::getId));
+        return result;
+    }
+    
+    // Every loan the member has made in any branch, oldest first
+    public List<Transaction> getLoanHistory(String memberId) {
+        List<Transaction> result = new ArrayList<>();
+        for (LibraryService shard : shards) {
+            result.addAll(shard.getLoanHistory(memberId));
+        }
+        result.sort(Comparator.comparing(Transaction::getBorrowDate).thenComparing(Transaction::getId));
+        return result;
+    }
+    
+    public int getActiveLoanCount(String memberId) {
+        int count = 0;
+        for (LibraryService shard : shards) {
+            count += shard.getActiveLoanCount(memberId);
+        }
+        return count;
+    }
+    
+    // The member's holds in every branch, oldest first
+    public List<Hold> getHolds(String memberId) {
+        List<Hold> result = new ArrayList<>();
+        for (LibraryService shard : shards) {
+            result.addAll(shard.getHolds(memberId));
+        }
+        result.sort(Comparator.comparing(Hold::getPlacedDate).thenComparing(Hold::getBookId));
+        return result;
+    }
+    
+    // Snapshots every branch of a library from open, dropping the log each snapshot covers
+    public void snapshot() throws IOException {
+        for (LibraryStore store : stores) {
+            if (store == null) {
+                throw new IllegalStateException("This library is kept in memory only");
+            }
+            store.snapshot();
+        }
+    }
+    
+    // Shuts the executors down after the tasks already submitted have run, then closes the branch logs
+    @Override
+    public void close() {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+        for (ExecutorService executor : executors) {
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        IOException failure = null;
+        for (LibraryStore store : stores) {
+            try {
+                if (store != null) {
+                    store.close();
+                }
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("Failed to close a branch log", failure);
+        }
+    }
+    
+    // Routes every book and member to the branch whose catalog holds it
+    private void rebuildRoutes() {
+        for (int shard = 0; shard < shards.length; shard++) {
+            for (Book book : shards[shard].getAllBooks()) {
+                int placed = shardOfBook(book.getId());
+                // A transfer cut short leaves the title in two branches. It stays where a copy is out or held, or
+                // else in either, as neither lends anything; removing the other is logged there like any removal
+                if (placed != shard && shards[placed].findBookById(book.getId()) != null
+                        && !shards[placed].removeBook(book.getId())) {
+                    shards[shard].removeBook(book.getId());
+                    continue;
+                }
+                route(bookRoutes, book.getId(), shard);
+            }
+            for (Member member : shards[shard].getAllMembers()) {
+                route(memberRoutes, member.getId(), shard);
+            }
+        }
+    }
+    
+    private void route(Map<String, Integer> routes, String id, int shard) {
+        if (shard == hashShard(id)) {
+            routes.remove(id);
+        } else {
+            routes.put(id, shard);
+        }
+    }
+    
+    private boolean isBranch(int branch) {
+        return branch >= 0 && branch < shards.length;
+    }
+    
+    private int hashShard(String id) {
+        return Math.floorMod(spread(id), shards.length);
+    }
+    
+    private ReentrantReadWriteLock titleLock(String titleId) {
+        return titleLocks[spread(titleId) & (LOCK_STRIPES - 1)];
+    }
+    
+    private ReentrantLock memberLock(String memberId) {
+        return memberLocks[spread(memberId) & (LOCK_STRIPES - 1)];
+    }
+    
+    // Locks the stripes of the members in stripe order, as every caller holding more than one takes them
+    private ReentrantLock[] memberLocks(List<String> memberIds) {
+        int[] stripes = memberIds.stream().mapToInt(id -> spread(id) & (LOCK_STRIPES - 1)).distinct().sorted().toArray();
+        ReentrantLock[] locks = new ReentrantLock[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i] = memberLocks[stripes[i]];
+            locks[i].lock();
+        }
+        return locks;
+    }
+    
+    private static int spread(String id) {
+        int hash = id.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+    
+    // IDs shard + 1, shard + 1 + count, shard + 1 + 2 * count, ...: increasing within a shard, never shared between shards
+    private static final class ShardTransactionIdAllocator implements TransactionIdAllocator {
+        private final long first;
+        private final long stride;
+        private final AtomicLong lastId;
+        
+        ShardTransactionIdAllocator(int shard, int shardCount) {
+            this.first = shard + 1;
+            this.stride = shardCount;
+            this.lastId = new AtomicLong(first - stride);
+        }
+        
+        @Override
+        public long nextId() {
+            return lastId.addAndGet(stride);
+        }
+        
+        @Override
+        public void advancePast(long id) {
+            // The smallest of this shard's IDs above id, less one stride
+            long floor = id + 1 + Math.floorMod(first - (id + 1), stride) - stride;
+            long current = lastId.get();
+            while (current < floor && !lastId.compareAndSet(current, floor)) {
+                current = lastId.get();
+            }
+        }
+    }
+}
\ No newline at end of file
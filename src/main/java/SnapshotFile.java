@@ -0,0 +1,281 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Compact binary image of a {@link LibraryService}: books, members, the
+ * transactions held in memory and holds, plus the log generation that replay
+ * has to start from and the archive segments holding the other transactions.
+ *
+ * <p>Layout: magic, version, log generation, the archive segment names, then
+ * four sections (books, members, transactions, holds) and a trailing magic
+ * that marks a complete file. Strings are length-prefixed UTF-8 (-1 for
+ * null), dates are epoch days and transaction IDs are stored as their numeric
+ * value. Version 2 added the due date of each transaction (Long.MIN_VALUE when
+ * there is none), version 3 the holds and version 4 the archive segments,
+ * which live in the {@value TransactionArchive#DIRECTORY} directory next to
+ * the snapshot; older files still load, without them. Version 5 replaced each
+ * book's availability flag with its number of copies, since which copies are
+ * on the shelf follows from the open loans, and added the copy lent off each
+ * hold awaiting pickup; transactions name the copy by copy ID.
+ */
+public final class SnapshotFile {
+    private static final long MAGIC = 0x4C49425241525931L;
+    private static final int VERSION = 5;
+    private static final long NO_DATE = Long.MIN_VALUE;
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+    // Mapped in windows so files larger than 2 GB can be read
+    private static final long MAP_WINDOW_BYTES = 256L << 20;
+    
+    private SnapshotFile() {
+        // Private constructor to hide implicit public one
+    }
+    
+    /**
+     * Writes the current state of {@code service} to {@code file} atomically.
+     * The state may change while it is being written; replaying the log from
+     * {@code logGeneration} on top of the snapshot brings it up to date.
+     */
+    public static void write(LibraryService service, long logGeneration, Path file) throws IOException {
+        write(service, logGeneration, file, false);
+    }
+    
+    /**
+     * Writes a snapshot that names no archive segments and holds every loan
+     * instead, archived or not, so it loads on a machine without the
+     * archive directory, such as a replica. There is no log to replay.
+     */
+    public static void writeStandalone(LibraryService service, Path file) throws IOException {
+        write(service, 0, file, true);
+    }
+    
+    private static void write(LibraryService service, long logGeneration, Path file, boolean inlineArchive)
+            throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream stream = Channels.newOutputStream(channel);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, WRITE_BUFFER_BYTES));
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(logGeneration);
+            List<String> segmentNames = inlineArchive ? List.of() : service.getArchive().getSegmentNames();
+            out.writeInt(segmentNames.size());
+            for (String name : segmentNames) {
+                writeString(out, name);
+            }
+            
+            // Counts are only known after iterating, so each section ends with a -1 marker instead
+            Iterator<Book> books = service.streamBooks().iterator();
+            while (books.hasNext()) {
+                Book book = books.next();
+                out.writeByte(1);
+                writeString(out, book.getId());
+                writeString(out, book.getTitle());
+                writeString(out, book.getAuthor());
+                out.writeInt(book.getCopies());
+            }
+            out.writeByte(-1);
+            
+            Iterator<Member> members = service.streamMembers().iterator();
+            while (members.hasNext()) {
+                Member member = members.next();
+                out.writeByte(1);
+                writeString(out, member.getId());
+                writeString(out, member.getName());
+                writeString(out, member.getEmail());
+            }
+            out.writeByte(-1);
+            
+            Iterator<Transaction> transactions = (inlineArchive ? service.streamTransactions()
+                : service.streamTransactionsInMemory()).iterator();
+            while (transactions.hasNext()) {
+                Transaction transaction = transactions.next();
+                LocalDate returnDate = transaction.getReturnDate();
+                boolean returned = transaction.isReturned() && returnDate != null;
+                out.writeByte(returned ? 2 : 1);
+                out.writeLong(TransactionIdAllocator.parse(transaction.getId()));
+                writeString(out, transaction.getCopyId());
+                writeString(out, transaction.getMemberId());
+                out.writeLong(transaction.getBorrowDate().toEpochDay());
+                out.writeLong(transaction.getDueDate() == null ? NO_DATE : transaction.getDueDate().toEpochDay());
+                if (returned) {
+                    out.writeLong(returnDate.toEpochDay());
+                }
+            }
+            out.writeByte(-1);
+            
+            // Waiting holds in line order, then those awaiting pickup with their deadline and copy
+            for (Hold hold : service.getAllHolds()) {
+                LocalDate pickupDeadline = hold.getPickupDeadline();
+                out.writeByte(pickupDeadline == null ? 1 : 2);
+                writeString(out, hold.getBookId());
+                writeString(out, hold.getMemberId());
+                out.writeLong(hold.getPlacedDate().toEpochDay());
+                if (pickupDeadline != null) {
+                    out.writeLong(pickupDeadline.toEpochDay());
+                    out.writeInt(hold.getCopy());
+                }
+            }
+            out.writeByte(-1);
+            out.writeLong(MAGIC);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Loads {@code file} into an empty {@code service} through a memory mapping
+     * and returns the log generation replay should start from.
+     */
+    public static long load(Path file, LibraryService service) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedReader in = new MappedReader(channel);
+            if (in.getLong() != MAGIC) {
+                throw new IOException("Not a library snapshot: " + file);
+            }
+            int version = in.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            long logGeneration = in.getLong();
+            List<String> segmentNames = new ArrayList<>();
+            for (int count = version >= 4 ? in.getInt() : 0; count > 0; count--) {
+                segmentNames.add(in.getString());
+            }
+            TransactionArchive archive = TransactionArchive.open(file.resolveSibling(TransactionArchive.DIRECTORY),
+                segmentNames);
+            service.loadArchive(archive);
+            
+            while (in.getByte() == 1) {
+                String id = in.getString();
+                String title = in.getString();
+                String author = in.getString();
+                if (version >= 5) {
+                    service.loadBook(new Book(id, title, author, in.getInt()));
+                } else {
+                    Book book = new Book(id, title, author);
+                    book.setAvailable(in.getByte() != 0);
+                    service.loadBook(book);
+                }
+            }
+            while (in.getByte() == 1) {
+                service.loadMember(new Member(in.getString(), in.getString(), in.getString()));
+            }
+            byte marker;
+            while ((marker = in.getByte()) > 0) {
+                String id = TransactionIdAllocator.format(in.getLong());
+                String copyId = in.getString();
+                String memberId = in.getString();
+                LocalDate borrowDate = LocalDate.ofEpochDay(in.getLong());
+                long dueDay = version >= 2 ? in.getLong() : NO_DATE;
+                Transaction transaction = new Transaction(id, Book.titleIdOf(copyId), Book.copyNumberOf(copyId),
+                    memberId, borrowDate, dueDay == NO_DATE ? null : LocalDate.ofEpochDay(dueDay));
+                if (marker == 2) {
+                    transaction.setReturnDate(LocalDate.ofEpochDay(in.getLong()));
+                    transaction.setReturned(true);
+                }
+                service.loadTransaction(transaction);
+            }
+            while (version >= 3 && (marker = in.getByte()) > 0) {
+                Hold hold = new Hold(in.getString(), in.getString(), LocalDate.ofEpochDay(in.getLong()));
+                if (marker == 2) {
+                    hold.setPickupDeadline(LocalDate.ofEpochDay(in.getLong()));
+                    hold.setCopy(version >= 5 ? in.getInt() : 1);
+                }
+                service.loadHold(hold);
+            }
+            if (in.getLong() != MAGIC) {
+                throw new IOException("Snapshot is incomplete: " + file);
+            }
+            // Counted in one pass over the archive and the loans loaded above
+            service.rebuildStatistics();
+            return logGeneration;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Snapshot is truncated: " + file, e);
+        }
+    }
+    
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    // Sequential reader over a file mapped one window at a time
+    private static final class MappedReader {
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer window;
+        private byte[] scratch = new byte[256];
+        
+        MappedReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0);
+        }
+        
+        byte getByte() throws IOException {
+            ensure(1);
+            return window.get();
+        }
+        
+        int getInt() throws IOException {
+            ensure(Integer.BYTES);
+            return window.getInt();
+        }
+        
+        long getLong() throws IOException {
+            ensure(Long.BYTES);
+            return window.getLong();
+        }
+        
+        String getString() throws IOException {
+            int length = getInt();
+            if (length < 0) {
+                return null;
+            }
+            ensure(length);
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            window.get(scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+        
+        private void ensure(int bytes) throws IOException {
+            if (window.remaining() < bytes) {
+                long position = windowStart + window.position();
+                if (position + bytes > size) {
+                    throw new BufferUnderflowException();
+                }
+                map(position);
+            }
+        }
+        
+        private void map(long position) throws IOException {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_BYTES, size - position));
+        }
+    }
+}
\ No newline at end of file
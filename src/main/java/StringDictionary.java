@@ -0,0 +1,56 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns each distinct string a dense int code, so records can store an int
+ * instead of their own copy of a repeated string. Codes are never reused.
+ * Encoding is thread-safe; decoding takes no locks.
+ */
+public class StringDictionary {
+    private final Map<String, Integer> codes;
+    private volatile String[] values;
+    // Guarded by this
+    private int size;
+    
+    public StringDictionary() {
+        this.codes = new ConcurrentHashMap<>();
+        this.values = new String[1024];
+    }
+    
+    public int encode(String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value must not be null");
+        }
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size] = value;
+            codes.put(value, size);
+            return size++;
+        }
+    }
+    
+    // Returns the code of a string already in the dictionary, or -1
+    public int lookup(String value) {
+        Integer code = value == null ? null : codes.get(value);
+        return code == null ? -1 : code;
+    }
+    
+    public String decode(int code) {
+        return values[code];
+    }
+    
+    public synchronized int size() {
+        return size;
+    }
+}
\ No newline at end of file
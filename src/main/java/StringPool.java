@@ -0,0 +1,52 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One shared copy of each distinct string in use, so that records can hold a
+ * reference to it rather than their own copy. Each user of a string acquires
+ * it and releases it when done; the pool forgets a string once its last user
+ * has released it, while records still holding the copy keep it alive.
+ * Thread-safe.
+ */
+public class StringPool {
+    private final Map<String, Entry> entries;
+    
+    public StringPool() {
+        this.entries = new ConcurrentHashMap<>();
+    }
+    
+    // The shared copy of value, counting one more user of it
+    public String acquire(String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value must not be null");
+        }
+        return entries.compute(value, (key, entry) -> entry == null ? new Entry(key) : entry.retain()).value;
+    }
+    
+    public void release(String value) {
+        if (value != null) {
+            entries.computeIfPresent(value, (key, entry) -> --entry.users == 0 ? null : entry);
+        }
+    }
+    
+    // Distinct strings in use
+    public int size() {
+        return entries.size();
+    }
+    
+    // Changed only inside the map's compute calls, which hold the entry's bin
+    private static final class Entry {
+        private final String value;
+        private int users;
+        
+        Entry(String value) {
+            this.value = value;
+            this.users = 1;
+        }
+        
+        Entry retain() {
+            users++;
+            return this;
+        }
+    }
+}
\ No newline at end of file
@@ -3,16 +3,28 @@ import java.time.LocalDate;
 public class Transaction {
     private String id;
     private String bookId;
+    private final int copy;
     private String memberId;
     private LocalDate borrowDate;
-    private LocalDate returnDate;
-    private boolean isReturned;
+    private LocalDate dueDate;
+    private volatile LocalDate returnDate;
+    private volatile boolean isReturned;
     
     public Transaction(String id, String bookId, String memberId, LocalDate borrowDate) {
+        this(id, bookId, memberId, borrowDate, null);
+    }
+    
+    public Transaction(String id, String bookId, String memberId, LocalDate borrowDate, LocalDate dueDate) {
+        this(id, bookId, 1, memberId, borrowDate, dueDate);
+    }
+    
+    public Transaction(String id, String bookId, int copy, String memberId, LocalDate borrowDate, LocalDate dueDate) {
         this.id = id;
         this.bookId = bookId;
+        this.copy = copy;
         this.memberId = memberId;
         this.borrowDate = borrowDate;
+        this.dueDate = dueDate;
         this.isReturned = false;
     }
     
@@ -24,6 +36,15 @@ public class Transaction {
         return bookId;
     }
     
+    // Which physical copy of the book was lent, numbered from 1
+    public int getCopy() {
+        return copy;
+    }
+    
+    public String getCopyId() {
+        return copy == 1 ? bookId : bookId + Book.COPY_SEPARATOR + copy;
+    }
+    
     public String getMemberId() {
         return memberId;
     }
@@ -32,6 +53,11 @@ public class Transaction {
         return borrowDate;
     }
     
+    // Null for loans made before due dates were recorded
+    public LocalDate getDueDate() {
+        return dueDate;
+    }
+    
     public LocalDate getReturnDate() {
         return returnDate;
     }
@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Returned loans moved out of memory into compressed, append-only
+ * {@link ArchiveSegment} files in one directory. Only each segment's block
+ * index and the blocks it has per member stay on the heap; reads stream the
+ * rows back in ID order.
+ *
+ * <p>An archive is immutable: {@link #append} writes a new segment and
+ * returns a new archive, so a reader keeps a consistent view while the
+ * service moves on to the next one. Segments hold overlapping ID ranges,
+ * since loans are returned in any order, so a scan merges them. To keep
+ * their number down they are merged size-tiered: after an append, the two
+ * newest are merged for as long as the newer is at least half the size of
+ * the older, which leaves O(log n) segments and copies each row O(log n)
+ * times. Files an archive no longer uses are left in place until
+ * {@link #deleteUnusedSegments}, since an older snapshot may still name them.
+ */
+public final class TransactionArchive {
+    static final String DIRECTORY = "archive";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    
+    private final Path directory;
+    // Oldest first
+    private final List<ArchiveSegment> segments;
+    private final long nextSegmentNumber;
+    
+    // An empty archive that keeps its segments in directory; null for one that cannot be appended to
+    public TransactionArchive(Path directory) {
+        this(directory, Collections.emptyList(), 1);
+    }
+    
+    private TransactionArchive(Path directory, List<ArchiveSegment> segments, long nextSegmentNumber) {
+        this.directory = directory;
+        this.segments = segments;
+        this.nextSegmentNumber = nextSegmentNumber;
+    }
+    
+    // The archive made of the named segments in directory, as recorded by getSegmentNames
+    public static TransactionArchive open(Path directory, List<String> segmentNames) throws IOException {
+        List<ArchiveSegment> segments = new ArrayList<>(segmentNames.size());
+        for (String name : segmentNames) {
+            segments.add(ArchiveSegment.open(directory.resolve(name)));
+        }
+        long next = 1;
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+                for (Path file : files) {
+                    next = Math.max(next, segmentNumber(file) + 1);
+                }
+            }
+        }
+        return new TransactionArchive(directory, Collections.unmodifiableList(segments), next);
+    }
+    
+    /**
+     * Writes {@code transactions}, which must be in ascending ID order and
+     * not in the archive yet, as a new segment, merges segments as needed
+     * and returns the resulting archive. This archive is unchanged.
+     */
+    public TransactionArchive append(Iterator<Transaction> transactions) throws IOException {
+        if (directory == null) {
+            throw new IllegalStateException("This archive has no directory to write to");
+        }
+        Files.createDirectories(directory);
+        long number = nextSegmentNumber;
+        ArchiveSegment written = ArchiveSegment.write(segmentFile(number++), transactions);
+        if (written == null) {
+            return this;
+        }
+        List<ArchiveSegment> next = new ArrayList<>(segments);
+        next.add(written);
+        while (next.size() >= 2 && next.get(next.size() - 1).getRowCount() * 2 >= next.get(next.size() - 2).getRowCount()) {
+            ArchiveSegment newer = next.remove(next.size() - 1);
+            ArchiveSegment older = next.remove(next.size() - 1);
+            next.add(ArchiveSegment.write(segmentFile(number++),
+                merge(List.of(older.iterator(Long.MIN_VALUE), newer.iterator(Long.MIN_VALUE)))));
+        }
+        return new TransactionArchive(directory, Collections.unmodifiableList(next), number);
+    }
+    
+    /**
+     * Deletes the segment files in the directory this archive does not use,
+     * left over from merges or from a pass whose snapshot never completed.
+     * Only call it once no snapshot that names them is needed any more.
+     */
+    public void deleteUnusedSegments() throws IOException {
+        if (directory == null || !Files.isDirectory(directory)) {
+            return;
+        }
+        Set<Path> used = new HashSet<>();
+        for (ArchiveSegment segment : segments) {
+            used.add(segment.getFile().getFileName());
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path file : files) {
+                if (!used.contains(file.getFileName())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+    
+    public List<String> getSegmentNames() {
+        List<String> names = new ArrayList<>(segments.size());
+        for (ArchiveSegment segment : segments) {
+            names.add(segment.getFile().getFileName().toString());
+        }
+        return names;
+    }
+    
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+    
+    public long count() {
+        long count = 0;
+        for (ArchiveSegment segment : segments) {
+            count += segment.getRowCount();
+        }
+        return count;
+    }
+    
+    // Highest archived loan ID, or -1 when empty
+    public long getLastId() {
+        long last = -1;
+        for (ArchiveSegment segment : segments) {
+            last = Math.max(last, segment.getLastId());
+        }
+        return last;
+    }
+    
+    // The archived loan with this ID, or null; reads one block of each segment whose range covers it
+    public Transaction find(long id) {
+        try {
+            for (ArchiveSegment segment : segments) {
+                Transaction transaction = segment.find(id);
+                if (transaction != null) {
+                    return transaction;
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public boolean contains(long id) {
+        return find(id) != null;
+    }
+    
+    // Archived loans with an ID above afterId, in ID order, read block by block as the iterator advances
+    public Iterator<Transaction> iterator(long afterId) {
+        List<Iterator<Transaction>> sources = new ArrayList<>(segments.size());
+        for (ArchiveSegment segment : segments) {
+            if (segment.getLastId() > afterId) {
+                sources.add(segment.iterator(afterId));
+            }
+        }
+        return sources.size() == 1 ? sources.get(0) : merge(sources);
+    }
+    
+    // One member's archived loans in ID order; reads only the blocks holding them, in segments that have any
+    public Iterator<Transaction> iterator(String memberId) {
+        List<Iterator<Transaction>> sources = new ArrayList<>();
+        try {
+            for (ArchiveSegment segment : segments) {
+                List<Transaction> loans = segment.findByMember(memberId);
+                if (!loans.isEmpty()) {
+                    sources.add(loans.iterator());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return merge(sources);
+    }
+    
+    public Stream<Transaction> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(Long.MIN_VALUE),
+            Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+    
+    /**
+     * Merges sources that are each in ascending ID order into one, in ID
+     * order. A loan found in more than one source comes out once, from the
+     * source listed first.
+     */
+    static Iterator<Transaction> merge(List<Iterator<Transaction>> sources) {
+        PriorityQueue<Source> queue = new PriorityQueue<>(Comparator.<Source>comparingLong(source -> source.id)
+            .thenComparingInt(source -> source.order));
+        for (int i = 0; i < sources.size(); i++) {
+            Source source = new Source(sources.get(i), i);
+            if (source.advance()) {
+                queue.add(source);
+            }
+        }
+        return new Iterator<>() {
+            private long lastId = Long.MIN_VALUE;
+            
+            @Override
+            public boolean hasNext() {
+                while (!queue.isEmpty() && queue.peek().id == lastId) {
+                    skip();
+                }
+                return !queue.isEmpty();
+            }
+            
+            @Override
+            public Transaction next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Transaction transaction = queue.peek().current;
+                lastId = queue.peek().id;
+                skip();
+                return transaction;
+            }
+            
+            private void skip() {
+                Source source = queue.poll();
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            }
+        };
+    }
+    
+    private Path segmentFile(long number) {
+        return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+    
+    // Leftover temporary files count too, so their numbers are not reused
+    private static long segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        int end = name.indexOf('.');
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), end < 0 ? name.length() : end));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+    
+    private static final class Source {
+        final Iterator<Transaction> rows;
+        final int order;
+        Transaction current;
+        long id;
+        
+        Source(Iterator<Transaction> rows, int order) {
+            this.rows = rows;
+            this.order = order;
+        }
+        
+        boolean advance() {
+            if (!rows.hasNext()) {
+                return false;
+            }
+            current = rows.next();
+            id = TransactionIdAllocator.parse(current.getId());
+            return true;
+        }
+    }
+}
\ No newline at end of file
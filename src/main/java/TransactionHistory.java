@@ -0,0 +1,352 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Column store for the loans held in memory, in transaction ID order: every
+ * loan ever made, or once returned loans go to a {@link TransactionArchive},
+ * the ones not moved there yet.
+ *
+ * <p>A row is about 48 bytes: the numeric transaction ID, dictionary codes for
+ * the book and member IDs, the copy number, borrow, due and return dates as
+ * epoch days, the {@link VersionClock} versions it was committed and returned
+ * at, and one bit each for "returned" and "committed". Rows live in fixed-size chunks of
+ * primitive arrays, so growing never copies existing rows. Callers get
+ * {@link Transaction} views built on demand; changing a view does not change
+ * the store.
+ *
+ * <p>Appends are serialized; reads take no locks. A row is hidden from
+ * readers until it is committed, so a change that is rolled back never shows.
+ * Reads at a version see a row only if it was committed at or before that
+ * version, and as returned only if it was returned by then.
+ */
+public class TransactionHistory {
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+    
+    private final StringDictionary bookIds;
+    private final StringDictionary memberIds;
+    private final ReentrantLock appendLock;
+    private volatile Chunk[] chunks;
+    // Rows below this are fully written
+    private volatile int size;
+    
+    public TransactionHistory() {
+        this(new StringDictionary(), new StringDictionary());
+    }
+    
+    private TransactionHistory(StringDictionary bookIds, StringDictionary memberIds) {
+        this.bookIds = bookIds;
+        this.memberIds = memberIds;
+        this.appendLock = new ReentrantLock();
+        this.chunks = new Chunk[0];
+    }
+    
+    /**
+     * Appends an uncommitted loan under the next ID from {@code nextId} and
+     * returns its row. The ID is taken under the append lock, so rows stay in
+     * ID order.
+     */
+    public int append(LongSupplier nextId, String bookId, int copy, String memberId, LocalDate borrowDate,
+            LocalDate dueDate) {
+        int book = bookIds.encode(bookId);
+        int member = memberIds.encode(memberId);
+        appendLock.lock();
+        try {
+            int row = size;
+            write(row, nextId.getAsLong(), book, copy, member, (int) borrowDate.toEpochDay(), epochDay(dueDate));
+            size = row + 1;
+            return row;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+    
+    // Version 0 is seen at every version, as for loans loaded before the service is shared
+    public int insert(long id, String bookId, int copy, String memberId, LocalDate borrowDate, LocalDate dueDate,
+            LocalDate returnDate) {
+        return insert(id, bookId, copy, memberId, borrowDate, dueDate, returnDate, 0);
+    }
+    
+    /**
+     * Inserts a loan with a known ID, committed at {@code version}, for recovery. Records replayed
+     * from a log can be slightly out of ID order; the newer rows are shifted up
+     * to make room, which concurrent readers may observe mid-way, so this is
+     * only for a service that is not yet shared.
+     */
+    public int insert(long id, String bookId, int copy, String memberId, LocalDate borrowDate, LocalDate dueDate,
+            LocalDate returnDate, long version) {
+        int book = bookIds.encode(bookId);
+        int member = memberIds.encode(memberId);
+        appendLock.lock();
+        try {
+            int row = size;
+            while (row > 0 && getId(row - 1) > id) {
+                move(row - 1, row);
+                row--;
+            }
+            write(row, id, book, copy, member, (int) borrowDate.toEpochDay(), epochDay(dueDate));
+            Chunk chunk = chunks[row >>> CHUNK_BITS];
+            chunk.versions[row & CHUNK_MASK] = version;
+            if (returnDate != null) {
+                chunk.returnDays[row & CHUNK_MASK] = (int) returnDate.toEpochDay();
+                chunk.returnVersions[row & CHUNK_MASK] = version;
+                setBit(chunk.returned, row & CHUNK_MASK, true);
+            }
+            setBit(chunk.committed, row & CHUNK_MASK, true);
+            size = size + 1;
+            return row;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+    
+    public void commit(int row) {
+        commit(row, 0);
+    }
+    
+    public void commit(int row, long version) {
+        Chunk chunk = chunks[row >>> CHUNK_BITS];
+        // The version is written first; readers check the bit before reading it
+        chunk.versions[row & CHUNK_MASK] = version;
+        setBit(chunk.committed, row & CHUNK_MASK, true);
+    }
+    
+    public void markReturned(int row, LocalDate returnDate) {
+        markReturned(row, returnDate, 0);
+    }
+    
+    public void markReturned(int row, LocalDate returnDate, long version) {
+        Chunk chunk = chunks[row >>> CHUNK_BITS];
+        // The date and version are written first; readers check the bit before reading them
+        chunk.returnDays[row & CHUNK_MASK] = (int) returnDate.toEpochDay();
+        chunk.returnVersions[row & CHUNK_MASK] = version;
+        setBit(chunk.returned, row & CHUNK_MASK, true);
+    }
+    
+    // Row of the committed loan with this ID, or -1
+    public int findRow(long id) {
+        int end = size;
+        int row = firstRowAfter(id - 1, end);
+        return row < end && getId(row) == id && isCommitted(row) ? row : -1;
+    }
+    
+    // Number of rows, including ones not committed yet
+    public int size() {
+        return size;
+    }
+    
+    public int count() {
+        int end = size;
+        int count = 0;
+        for (int row = 0; row < end; row++) {
+            if (isCommitted(row)) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    public long getId(int row) {
+        return chunks[row >>> CHUNK_BITS].ids[row & CHUNK_MASK];
+    }
+    
+    public boolean isCommitted(int row) {
+        return isSet(chunks[row >>> CHUNK_BITS].committed, row & CHUNK_MASK);
+    }
+    
+    public boolean isReturned(int row) {
+        return isSet(chunks[row >>> CHUNK_BITS].returned, row & CHUNK_MASK);
+    }
+    
+    // Whether the row was committed at or before this version
+    public boolean isVisible(int row, long version) {
+        return isCommitted(row) && chunks[row >>> CHUNK_BITS].versions[row & CHUNK_MASK] <= version;
+    }
+    
+    public boolean isReturned(int row, long version) {
+        Chunk chunk = chunks[row >>> CHUNK_BITS];
+        int index = row & CHUNK_MASK;
+        return isSet(chunk.returned, index) && chunk.returnVersions[index] <= version;
+    }
+    
+    public Transaction get(int row) {
+        return get(row, Long.MAX_VALUE);
+    }
+    
+    // The loan as of this version: not yet returned if it was returned after it
+    public Transaction get(int row, long version) {
+        Chunk chunk = chunks[row >>> CHUNK_BITS];
+        int index = row & CHUNK_MASK;
+        Transaction transaction = new Transaction(
+            TransactionIdAllocator.format(chunk.ids[index]),
+            bookIds.decode(chunk.books[index]),
+            chunk.copies[index],
+            memberIds.decode(chunk.members[index]),
+            LocalDate.ofEpochDay(chunk.borrowDays[index]),
+            chunk.dueDays[index] == NO_DATE ? null : LocalDate.ofEpochDay(chunk.dueDays[index])
+        );
+        if (isSet(chunk.returned, index) && chunk.returnVersions[index] <= version) {
+            transaction.setReturnDate(LocalDate.ofEpochDay(chunk.returnDays[index]));
+            transaction.setReturned(true);
+        }
+        return transaction;
+    }
+    
+    public List<Transaction> list() {
+        int end = size;
+        List<Transaction> result = new ArrayList<>(end);
+        for (int row = 0; row < end; row++) {
+            if (isCommitted(row)) {
+                result.add(get(row));
+            }
+        }
+        return result;
+    }
+    
+    // Lazy: views are built as the stream is consumed
+    public Stream<Transaction> stream() {
+        return IntStream.range(0, size).filter(this::isCommitted).mapToObj(this::get);
+    }
+    
+    // Committed loans with an ID above afterId, in ID order
+    public Iterator<Transaction> iterator(long afterId) {
+        int end = size;
+        return IntStream.range(firstRowAfter(afterId, end), end).filter(this::isCommitted).mapToObj(this::get)
+            .iterator();
+    }
+    
+    // The same as of a version: loans committed by then, returned only if they were by then
+    public Iterator<Transaction> iterator(long afterId, long version) {
+        int end = size;
+        return IntStream.range(firstRowAfter(afterId, end), end).filter(row -> isVisible(row, version))
+            .mapToObj(row -> get(row, version)).iterator();
+    }
+    
+    /**
+     * A copy holding the committed rows whose IDs are not in {@code sortedIds},
+     * sharing this history's dictionaries. Rows changed while it is taken may
+     * be copied either way, so callers stop changes first.
+     */
+    public TransactionHistory without(long[] sortedIds) {
+        TransactionHistory copy = new TransactionHistory(bookIds, memberIds);
+        int end = size;
+        for (int row = 0; row < end; row++) {
+            if (isCommitted(row) && Arrays.binarySearch(sortedIds, getId(row)) < 0) {
+                copy.copyRow(this, row, copy.size);
+                copy.size = copy.size + 1;
+            }
+        }
+        return copy;
+    }
+    
+    public Page<Transaction> page(String afterId, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        int end = size;
+        int row = afterId == null ? 0 : firstRowAfter(TransactionIdAllocator.parse(afterId), end);
+        List<Transaction> items = new ArrayList<>(Math.min(limit, 1024));
+        for (; row < end; row++) {
+            if (!isCommitted(row)) {
+                continue;
+            }
+            if (items.size() == limit) {
+                return new Page<>(items, items.get(limit - 1).getId());
+            }
+            items.add(get(row));
+        }
+        return new Page<>(items, null);
+    }
+    
+    // First row whose ID is greater than id
+    private int firstRowAfter(long id, int end) {
+        int low = 0;
+        int high = end;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getId(middle) <= id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    private void write(int row, long id, int book, int copy, int member, int borrowDay, int dueDay) {
+        int chunkIndex = row >>> CHUNK_BITS;
+        if (chunkIndex == chunks.length) {
+            Chunk[] grown = Arrays.copyOf(chunks, chunkIndex + 1);
+            grown[chunkIndex] = new Chunk();
+            chunks = grown;
+        }
+        Chunk chunk = chunks[chunkIndex];
+        int index = row & CHUNK_MASK;
+        chunk.ids[index] = id;
+        chunk.books[index] = book;
+        chunk.copies[index] = copy;
+        chunk.members[index] = member;
+        chunk.borrowDays[index] = borrowDay;
+        chunk.dueDays[index] = dueDay;
+        chunk.returnDays[index] = 0;
+        chunk.versions[index] = 0;
+        chunk.returnVersions[index] = 0;
+        setBit(chunk.returned, index, false);
+        setBit(chunk.committed, index, false);
+    }
+    
+    private void move(int from, int to) {
+        copyRow(this, from, to);
+    }
+    
+    private void copyRow(TransactionHistory origin, int from, int to) {
+        Chunk source = origin.chunks[from >>> CHUNK_BITS];
+        int index = from & CHUNK_MASK;
+        write(to, source.ids[index], source.books[index], source.copies[index], source.members[index],
+            source.borrowDays[index], source.dueDays[index]);
+        Chunk target = chunks[to >>> CHUNK_BITS];
+        target.returnDays[to & CHUNK_MASK] = source.returnDays[index];
+        target.versions[to & CHUNK_MASK] = source.versions[index];
+        target.returnVersions[to & CHUNK_MASK] = source.returnVersions[index];
+        setBit(target.returned, to & CHUNK_MASK, isSet(source.returned, index));
+        setBit(target.committed, to & CHUNK_MASK, isSet(source.committed, index));
+    }
+    
+    private static int epochDay(LocalDate date) {
+        return date == null ? NO_DATE : (int) date.toEpochDay();
+    }
+    
+    private static boolean isSet(AtomicLongArray bits, int index) {
+        return (bits.get(index >>> 6) & (1L << index)) != 0;
+    }
+    
+    private static void setBit(AtomicLongArray bits, int index, boolean value) {
+        long mask = 1L << index;
+        bits.getAndUpdate(index >>> 6, word -> value ? word | mask : word & ~mask);
+    }
+    
+    private static final class Chunk {
+        final long[] ids = new long[CHUNK_SIZE];
+        final int[] books = new int[CHUNK_SIZE];
+        final int[] copies = new int[CHUNK_SIZE];
+        final int[] members = new int[CHUNK_SIZE];
+        final int[] borrowDays = new int[CHUNK_SIZE];
+        final int[] dueDays = new int[CHUNK_SIZE];
+        final int[] returnDays = new int[CHUNK_SIZE];
+        final long[] versions = new long[CHUNK_SIZE];
+        final long[] returnVersions = new long[CHUNK_SIZE];
+        // Bit sets; atomic because neighbouring rows are updated by different threads
+        final AtomicLongArray returned = new AtomicLongArray(CHUNK_SIZE / 64);
+        final AtomicLongArray committed = new AtomicLongArray(CHUNK_SIZE / 64);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,38 @@
+/**
+ * Hands out transaction IDs. Implementations must be thread-safe, never
+ * return the same ID twice and return IDs in increasing order so that the
+ * formatted IDs sort in the order the loans were made.
+ */
+public interface TransactionIdAllocator {
+    String PREFIX = "TXN";
+    int DIGITS = 12;
+    
+    long nextId();
+    
+    // Ensures every ID handed out from now on is greater than the given one (used on recovery)
+    void advancePast(long id);
+    
+    static String format(long id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Transaction ID must not be negative: " + id);
+        }
+        char[] chars = new char[PREFIX.length() + DIGITS];
+        PREFIX.getChars(0, PREFIX.length(), chars, 0);
+        long value = id;
+        for (int i = chars.length - 1; i >= PREFIX.length(); i--) {
+            chars[i] = (char) ('0' + (value % 10));
+            value /= 10;
+        }
+        if (value != 0) {
+            throw new IllegalArgumentException("Transaction ID out of range: " + id);
+        }
+        return new String(chars);
+    }
+    
+    static long parse(String transactionId) {
+        if (transactionId == null || !transactionId.startsWith(PREFIX)) {
+            throw new IllegalArgumentException("Not a transaction ID: " + transactionId);
+        }
+        return Long.parseLong(transactionId.substring(PREFIX.length()));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,79 @@
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Commit versions for point-in-time reads. A change takes the next version
+ * with {@link #begin}, stamps what it writes with it and calls {@link #end}.
+ * The stable version is the newest one at or below which every change has
+ * ended; a reader pins it and sees exactly the changes stamped up to it.
+ * Version 0 stands for state loaded before the service was shared, which
+ * every reader sees.
+ *
+ * <p>Writers never wait for readers, and only rarely for each other: taking
+ * a version is an atomic increment, and ending one marks its slot in a ring
+ * and moves the stable version over every ended slot in a row by
+ * compare-and-set. A change waits only when the ring's worth of versions
+ * before its own has not ended yet. Readers register their pins, so that
+ * state kept only for them can be dropped once no pin is older than it.
+ */
+public class VersionClock {
+    private static final int RING_BITS = 14;
+    private static final int RING_SIZE = 1 << RING_BITS;
+    private static final int RING_MASK = RING_SIZE - 1;
+    
+    private final AtomicLong latest;
+    private final AtomicLong stable;
+    // Slot v & RING_MASK holds v once version v has ended
+    private final AtomicLongArray ended;
+    // Pinned versions and how many readers hold each; guarded by this
+    private final TreeMap<Long, Integer> pins;
+    
+    public VersionClock() {
+        this.latest = new AtomicLong();
+        this.stable = new AtomicLong();
+        this.ended = new AtomicLongArray(RING_SIZE);
+        this.pins = new TreeMap<>();
+    }
+    
+    // The version for a change about to be made visible; it must be ended, even if the change fails
+    public long begin() {
+        return latest.incrementAndGet();
+    }
+    
+    public void end(long version) {
+        // The slot is still needed until the version a ring before this one is stable
+        while (version - stable.get() > RING_SIZE) {
+            Thread.yield();
+        }
+        ended.set((int) (version & RING_MASK), version);
+        long current = stable.get();
+        while (ended.get((int) ((current + 1) & RING_MASK)) == current + 1) {
+            if (stable.compareAndSet(current, current + 1)) {
+                current++;
+            } else {
+                current = stable.get();
+            }
+        }
+    }
+    
+    public long getStableVersion() {
+        return stable.get();
+    }
+    
+    // Pins the stable version for a reader until unpin
+    public synchronized long pin() {
+        long version = stable.get();
+        pins.merge(version, 1, Integer::sum);
+        return version;
+    }
+    
+    public synchronized void unpin(long version) {
+        pins.computeIfPresent(version, (pinned, count) -> count == 1 ? null : count - 1);
+    }
+    
+    // The oldest version a reader may still read: the oldest pin, or the stable version when nothing is pinned
+    public synchronized long getOldestReadableVersion() {
+        return pins.isEmpty() ? stable.get() : pins.firstKey();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,397 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every change made to a {@link LibraryService}. Attach it
+ * with {@link LibraryService#addListener} after {@link #recover} has replayed
+ * the existing log.
+ *
+ * <p>Records are appended to an in-memory buffer and written out in groups:
+ * whichever caller finds no write in progress writes (and, if needed, forces)
+ * everything buffered so far, so one fsync covers every operation that arrived
+ * while the previous one was running.
+ */
+public class WriteAheadLog extends LogRecordListener implements Closeable {
+    public enum Durability {
+        // Every operation waits until its record is on disk
+        SYNC,
+        // Operations return immediately; the buffer is forced to disk every batch interval
+        BATCHED,
+        // Operations return immediately; the buffer is handed to the OS every batch interval, never forced
+        ASYNC
+    }
+    
+    static final int MAX_RECORD_BYTES = 16 << 20;
+    private static final int INITIAL_BUFFER_BYTES = 64 << 10;
+    private static final int MAX_PENDING_BYTES = 4 << 20;
+    
+    private final Durability durability;
+    private final ScheduledExecutorService flusher;
+    private final ReentrantLock lock;
+    private final Condition flushDone;
+    
+    // Guarded by lock
+    private FileChannel channel;
+    private ByteBuffer pending;
+    private ByteBuffer spare;
+    private long appendedSequence;
+    private long writtenSequence;
+    private long durableSequence;
+    private boolean flushing;
+    private boolean closed;
+    private IOException failure;
+    
+    public WriteAheadLog(Path file, Durability durability, long batchIntervalMillis) throws IOException {
+        if (file == null || durability == null) {
+            throw new IllegalArgumentException("file and durability must not be null");
+        }
+        if (durability != Durability.SYNC && batchIntervalMillis <= 0) {
+            throw new IllegalArgumentException("batchIntervalMillis must be positive");
+        }
+        this.channel = openForAppend(file);
+        this.durability = durability;
+        this.lock = new ReentrantLock();
+        this.flushDone = lock.newCondition();
+        this.pending = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+        this.spare = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+        if (durability == Durability.SYNC) {
+            this.flusher = null;
+        } else {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.flusher.scheduleWithFixedDelay(this::flushPending,
+                batchIntervalMillis, batchIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    public Durability getDurability() {
+        return durability;
+    }
+    
+    // Forces everything appended so far to disk, whatever the durability level
+    public void sync() {
+        long upTo;
+        lock.lock();
+        try {
+            upTo = appendedSequence;
+        } finally {
+            lock.unlock();
+        }
+        flush(upTo, true);
+    }
+    
+    /**
+     * Switches appends to {@code nextFile}. Everything appended before the
+     * switch is forced into the current file first, so a reader that starts
+     * at {@code nextFile} misses nothing that was not already in the old one.
+     */
+    public void rollTo(Path nextFile) throws IOException {
+        FileChannel next = openForAppend(nextFile);
+        FileChannel previous;
+        lock.lock();
+        try {
+            while (flushing) {
+                flushDone.awaitUninterruptibly();
+            }
+            if (closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+            if (failure != null) {
+                throw new IOException("Write-ahead log failed earlier", failure);
+            }
+            pending.flip();
+            while (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+            pending.clear();
+            channel.force(false);
+            writtenSequence = appendedSequence;
+            durableSequence = appendedSequence;
+            previous = channel;
+            channel = next;
+            flushDone.signalAll();
+        } catch (IOException e) {
+            failure = e;
+            next.close();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+        previous.close();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flush(Long.MAX_VALUE, true);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            lock.lock();
+            try {
+                channel.close();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    @Override
+    void append(byte[] record) {
+        long sequence;
+        boolean mustFlush;
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed earlier", failure);
+            }
+            if (pending.remaining() < record.length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + record.length));
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            pending.put(record);
+            sequence = ++appendedSequence;
+            mustFlush = durability == Durability.SYNC || pending.position() >= MAX_PENDING_BYTES;
+        } finally {
+            lock.unlock();
+        }
+        if (mustFlush) {
+            flush(sequence, durability != Durability.ASYNC);
+        }
+    }
+    
+    private void flushPending() {
+        try {
+            long upTo;
+            lock.lock();
+            try {
+                upTo = appendedSequence;
+            } finally {
+                lock.unlock();
+            }
+            flush(upTo, durability == Durability.BATCHED);
+        } catch (UncheckedIOException e) {
+            // Recorded in failure; the next append reports it to its caller
+        }
+    }
+    
+    // Group commit: the first caller to find no write in progress writes everything buffered
+    // so far; later callers wait for that write and only start another if it did not cover them.
+    private void flush(long upTo, boolean force) {
+        lock.lock();
+        try {
+            while (true) {
+                if (failure != null) {
+                    throw new UncheckedIOException("Write-ahead log failed", failure);
+                }
+                long reached = force ? durableSequence : writtenSequence;
+                if (reached >= Math.min(upTo, appendedSequence)) {
+                    return;
+                }
+                if (flushing) {
+                    flushDone.awaitUninterruptibly();
+                    continue;
+                }
+                flushing = true;
+                ByteBuffer batch = pending;
+                pending = spare;
+                spare = null;
+                long batchEnd = appendedSequence;
+                FileChannel target = channel;
+                IOException error = null;
+                lock.unlock();
+                try {
+                    batch.flip();
+                    while (batch.hasRemaining()) {
+                        target.write(batch);
+                    }
+                    if (force) {
+                        target.force(false);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                }
+                batch.clear();
+                spare = batch.capacity() > MAX_PENDING_BYTES * 2 ? ByteBuffer.allocate(INITIAL_BUFFER_BYTES) : batch;
+                flushing = false;
+                if (error != null) {
+                    failure = error;
+                } else {
+                    writtenSequence = batchEnd;
+                    if (force) {
+                        durableSequence = batchEnd;
+                    }
+                }
+                flushDone.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private static FileChannel openForAppend(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+    
+    /**
+     * Replays the log at {@code file} into {@code service} and cuts off a torn
+     * tail left by a crash, so new records follow the last complete one.
+     * Returns the number of records replayed.
+     */
+    public static long recover(Path file, LibraryService service) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long replayed = 0;
+        long validEnd = 0;
+        try (FileChannel recoveryChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(recoveryChannel), INITIAL_BUFFER_BYTES));
+            byte[] payload;
+            while ((payload = readRecord(in)) != null) {
+                apply(payload, service);
+                validEnd += HEADER_BYTES + payload.length;
+                replayed++;
+            }
+            if (validEnd < recoveryChannel.size()) {
+                recoveryChannel.truncate(validEnd);
+                recoveryChannel.force(true);
+            }
+        }
+        return replayed;
+    }
+    
+    // Returns the next record's payload, or null at the end of the log or at a torn/corrupt record
+    static byte[] readRecord(DataInput in) throws IOException {
+        int length;
+        int checksum;
+        try {
+            length = in.readInt();
+            checksum = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_RECORD_BYTES) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        try {
+            in.readFully(payload);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue() == checksum ? payload : null;
+    }
+    
+    static void apply(byte[] payload, LibraryService service) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        applyRecord(in.readByte(), in, service);
+    }
+    
+    static void applyRecord(byte type, DataInput in, LibraryService service) throws IOException {
+        switch (type) {
+            case BOOK_ADDED:
+                service.addBook(new Book(readString(in), readString(in), readString(in)));
+                break;
+            case BOOK_ADDED_COPIES:
+                service.addBook(new Book(readString(in), readString(in), readString(in), in.readInt()));
+                break;
+            case BOOK_REMOVED:
+                service.removeBook(readString(in));
+                break;
+            case MEMBER_ADDED:
+                service.addMember(new Member(readString(in), readString(in), readString(in)));
+                break;
+            case BOOK_BORROWED:
+                service.restoreBorrow(readString(in), readString(in), readString(in),
+                    LocalDate.ofEpochDay(in.readLong()), null);
+                break;
+            case BOOK_BORROWED_DUE:
+                service.restoreBorrow(readString(in), readString(in), readString(in),
+                    LocalDate.ofEpochDay(in.readLong()), readDate(in));
+                break;
+            case BOOK_RETURNED:
+                service.restoreReturn(readString(in), readString(in), LocalDate.ofEpochDay(in.readLong()));
+                break;
+            case HOLD_PLACED:
+                service.restoreHold(new Hold(readString(in), readString(in), LocalDate.ofEpochDay(in.readLong())));
+                break;
+            case HOLD_CANCELLED:
+                service.restoreHoldCancelled(readString(in), readString(in));
+                break;
+            case HOLD_FILLED:
+                service.restoreHoldFilled(readString(in), readString(in), readString(in),
+                    LocalDate.ofEpochDay(in.readLong()), readDate(in), LocalDate.ofEpochDay(in.readLong()),
+                    LocalDate.ofEpochDay(in.readLong()));
+                break;
+            case HOLD_COLLECTED:
+                service.restoreHoldCollected(readString(in), readString(in));
+                break;
+            case BATCH:
+                for (int count = in.readInt(); count > 0; count--) {
+                    applyRecord(in.readByte(), in, service);
+                }
+                break;
+            default:
+                throw new IOException("Unknown log record type " + type);
+        }
+    }
+    
+    static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+    
+    static LocalDate readDate(DataInput in) throws IOException {
+        return in.readBoolean() ? LocalDate.ofEpochDay(in.readLong()) : null;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,907 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Quick, dependency-free timing harness for LibraryService hot paths.
+ * Not picked up by Surefire; run it from the test classpath, e.g.
+ * {@code java -cp target/classes:target/test-classes LibraryBenchmark lookups}.
+ */
+public class LibraryBenchmark {
+    private static final int LOOKUPS = 200_000;
+    
+    private LibraryBenchmark() {
+        // Private constructor to hide implicit public one
+    }
+    
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final long RUN_MILLIS = 3_000;
+    
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "all";
+        if ("all".equals(scenario) || "lookups".equals(scenario)) {
+            lookups();
+        }
+        if ("all".equals(scenario) || "wal".equals(scenario)) {
+            writeAheadLog();
+        }
+        if ("all".equals(scenario) || "search".equals(scenario)) {
+            search(args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000);
+        }
+        if ("all".equals(scenario) || "import".equals(scenario)) {
+            bulkImport(args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000);
+        }
+        if ("all".equals(scenario) || "checkout".equals(scenario)) {
+            checkout(args.length > 1 ? Integer.parseInt(args[1]) : 10);
+        }
+        if ("all".equals(scenario) || "history".equals(scenario)) {
+            historyMemory(args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000);
+        }
+        if ("all".equals(scenario) || "report".equals(scenario)) {
+            reportDump(args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000);
+        }
+        if ("all".equals(scenario) || "feed".equals(scenario)) {
+            eventFeed();
+        }
+        if ("all".equals(scenario) || "catalog".equals(scenario)) {
+            catalogMemory(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+        }
+        if ("all".equals(scenario) || "tiering".equals(scenario)) {
+            tiering(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+        }
+        if ("all".equals(scenario) || "restore".equals(scenario)) {
+            restore(args.length > 1 ? Integer.parseInt(args[1]) : 30_000_000);
+        }
+        if ("all".equals(scenario) || "contention".equals(scenario)) {
+            contention(args.length > 1 ? Integer.parseInt(args[1]) : 64);
+        }
+        if ("all".equals(scenario) || "shards".equals(scenario)) {
+            shards(args.length > 1 ? Integer.parseInt(args[1]) : 16);
+        }
+        if ("all".equals(scenario) || "snapshots".equals(scenario)) {
+            snapshotReads(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+        }
+        // Not part of "all": it needs a file descriptor limit above the client count
+        if ("http".equals(scenario)) {
+            httpLoad(args.length > 1 ? Integer.parseInt(args[1]) : 10_000, args.length > 2 ? Integer.parseInt(args[2]) : 30);
+        }
+    }
+    
+    // Borrow/return latency should stay flat as the catalog and history grow
+    private static void lookups() {
+        System.out.println("=== borrow/return latency by catalog size ===");
+        for (int size : new int[] {10_000, 100_000, 1_000_000, 2_000_000}) {
+            LibraryService service = new LibraryService();
+            for (int i = 0; i < size; i++) {
+                service.addBook(new Book(bookId(i), "Title " + i, "Author " + (i % 1000)));
+                service.addMember(new Member(memberId(i), "Member " + i, "m" + i + "@email.com"));
+            }
+            // Warm up and build some history so returns have to find their loan
+            runBorrowReturn(service, size, LOOKUPS);
+            long start = System.nanoTime();
+            runBorrowReturn(service, size, LOOKUPS);
+            long elapsed = System.nanoTime() - start;
+            System.out.printf(Locale.ROOT, "books=%,d  %.1f ns per borrow+return%n",
+                size, (double) elapsed / LOOKUPS);
+        }
+    }
+    
+    // Borrow+return throughput from all cores for each durability level, plus an unlogged baseline
+    private static void writeAheadLog() throws Exception {
+        System.out.printf(Locale.ROOT, "=== write-ahead log throughput, %d threads ===%n", THREADS);
+        System.out.printf(Locale.ROOT, "%-10s %,14.0f ops/sec%n", "none", timedBorrowReturn(null));
+        for (WriteAheadLog.Durability durability : WriteAheadLog.Durability.values()) {
+            System.out.printf(Locale.ROOT, "%-10s %,14.0f ops/sec%n", durability, timedBorrowReturn(durability));
+        }
+    }
+    
+    private static double timedBorrowReturn(WriteAheadLog.Durability durability) throws Exception {
+        Path dir = Files.createTempDirectory("library-wal-bench");
+        Path logFile = dir.resolve("library.wal");
+        LibraryService service = new LibraryService();
+        int booksPerThread = 1_000;
+        for (int i = 0; i < THREADS * booksPerThread; i++) {
+            service.addBook(new Book(bookId(i), "Title " + i, "Author"));
+        }
+        for (int t = 0; t < THREADS; t++) {
+            service.addMember(new Member(memberId(t), "Member " + t, "m" + t + "@email.com"));
+        }
+        WriteAheadLog log = durability == null ? null : new WriteAheadLog(logFile, durability, 10);
+        service.addListener(log);
+        try {
+            return runForDuration(THREADS, thread -> {
+                int index = thread * booksPerThread + (int) (System.nanoTime() % booksPerThread);
+                service.borrowBook(bookId(index), memberId(thread));
+                service.returnBook(bookId(index));
+                return 2;
+            });
+        } finally {
+            if (log != null) {
+                log.close();
+            }
+            Files.deleteIfExists(logFile);
+            Files.deleteIfExists(dir);
+        }
+    }
+    
+    // Kiosk checkouts of batchSize books and their returns: one call per book versus one batch call
+    private static void checkout(int batchSize) throws Exception {
+        System.out.printf(Locale.ROOT, "=== checkout of %d books, %d threads (books/sec) ===%n", batchSize, THREADS);
+        System.out.printf(Locale.ROOT, "%-10s %14s %14s%n", "log", "per-item", "batch");
+        for (WriteAheadLog.Durability durability : new WriteAheadLog.Durability[] {null, WriteAheadLog.Durability.SYNC}) {
+            System.out.printf(Locale.ROOT, "%-10s %,14.0f %,14.0f%n", durability == null ? "none" : durability,
+                timedCheckout(durability, batchSize, false), timedCheckout(durability, batchSize, true));
+        }
+    }
+    
+    private static double timedCheckout(WriteAheadLog.Durability durability, int batchSize, boolean batched)
+            throws Exception {
+        Path dir = Files.createTempDirectory("library-checkout-bench");
+        Path logFile = dir.resolve("library.wal");
+        LibraryService service = new LibraryService();
+        List<List<String>> baskets = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            service.addMember(new Member(memberId(t), "Member " + t, "m" + t + "@email.com"));
+            List<String> basket = new ArrayList<>();
+            for (int i = 0; i < batchSize; i++) {
+                String bookId = bookId(t * batchSize + i);
+                service.addBook(new Book(bookId, "Title " + bookId, "Author"));
+                basket.add(bookId);
+            }
+            baskets.add(basket);
+        }
+        WriteAheadLog log = durability == null ? null : new WriteAheadLog(logFile, durability, 10);
+        service.addListener(log);
+        try {
+            return runForDuration(THREADS, thread -> {
+                List<String> basket = baskets.get(thread);
+                if (batched) {
+                    service.borrowBooks(memberId(thread), basket);
+                    service.returnBooks(basket);
+                } else {
+                    for (String bookId : basket) {
+                        service.borrowBook(bookId, memberId(thread));
+                    }
+                    for (String bookId : basket) {
+                        service.returnBook(bookId);
+                    }
+                }
+                return basket.size();
+            });
+        } finally {
+            if (log != null) {
+                log.close();
+            }
+            Files.deleteIfExists(logFile);
+            Files.deleteIfExists(dir);
+        }
+    }
+    
+    // Query latency over a generated catalog with a realistic-sized vocabulary
+    private static void search(int books) {
+        String[] words = new String[20_000];
+        Random random = new Random(42);
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int length = 4 + random.nextInt(6); word.length() < length; ) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+        LibraryService service = new LibraryService();
+        List<Book> batch = new ArrayList<>();
+        for (int i = 0; i < books; i++) {
+            String title = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)]
+                + " " + words[random.nextInt(words.length)];
+            batch.add(new Book(bookId(i), title, words[random.nextInt(2_000)] + " " + words[random.nextInt(2_000)]));
+            if (batch.size() == 10_000) {
+                service.addBooks(batch);
+                batch.clear();
+            }
+        }
+        service.addBooks(batch);
+        
+        String[][] queries = new String[1_000][];
+        for (int i = 0; i < queries.length; i++) {
+            String exact = words[random.nextInt(words.length)];
+            String typo = exact.substring(0, 2) + exact.substring(3);
+            queries[i] = new String[] {exact, exact.substring(0, 3), typo, exact + " " + words[random.nextInt(2_000)]};
+        }
+        System.out.printf(Locale.ROOT, "=== search latency, %,d books ===%n", books);
+        String[] kinds = {"exact", "prefix", "typo", "two words"};
+        for (int kind = 0; kind < kinds.length; kind++) {
+            for (String[] query : queries) {
+                service.searchBooks(query[kind], 10);
+            }
+            long start = System.nanoTime();
+            for (String[] query : queries) {
+                service.searchBooks(query[kind], 10);
+            }
+            System.out.printf(Locale.ROOT, "%-10s %8.3f ms per query%n", kinds[kind],
+                (System.nanoTime() - start) / 1e6 / queries.length);
+        }
+    }
+    
+    // Rows/sec and peak heap for importing a generated CSV catalog
+    private static void bulkImport(int rows) throws IOException {
+        Path file = Files.createTempFile("library-import", ".csv");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+                writer.write("id,title,author\n");
+                for (int i = 0; i < rows; i++) {
+                    writer.write(bookId(i) + ",\"Title " + i + ", Volume " + (i % 7) + "\",Author " + (i % 50_000) + "\n");
+                }
+            }
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            LibraryService service = new LibraryService();
+            ImportResult result = new CatalogImporter(service).importBooks(file);
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+            System.out.printf(Locale.ROOT, "=== bulk import, %,d rows (%,d MB file) ===%n", rows, Files.size(file) >> 20);
+            System.out.printf(Locale.ROOT, "imported %,d in %.1f s: %,.0f rows/sec, peak heap %,d MB%n",
+                result.getImported(), result.getElapsedNanos() / 1e9, result.getRowsPerSecond(), peakHeap >> 20);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    // Retained heap of a loan history held as Transaction objects versus the column store
+    private static void historyMemory(int loans) {
+        LocalDate start = LocalDate.of(2020, 1, 1);
+        long baseline = usedHeapAfterGc();
+        List<Transaction> objects = new ArrayList<>();
+        for (int i = 0; i < loans; i++) {
+            // Fresh ID strings per loan, as they arrive from callers
+            Transaction transaction = new Transaction(TransactionIdAllocator.format(i + 1L),
+                bookId(i % 100_000), memberId(i % 50_000), start.plusDays(i % 2_000), start.plusDays(i % 2_000 + 14));
+            transaction.setReturnDate(start.plusDays(i % 2_000 + 14));
+            transaction.setReturned(true);
+            objects.add(transaction);
+        }
+        long objectBytes = usedHeapAfterGc() - baseline;
+        // Read after measuring so the list is still reachable while it is measured
+        int objectCount = objects.size();
+        objects = null;
+        
+        baseline = usedHeapAfterGc();
+        TransactionHistory history = new TransactionHistory();
+        for (int i = 0; i < loans; i++) {
+            history.insert(i + 1L, bookId(i % 100_000), 1, memberId(i % 50_000), start.plusDays(i % 2_000),
+                start.plusDays(i % 2_000 + 14), start.plusDays(i % 2_000 + 14));
+        }
+        long columnBytes = usedHeapAfterGc() - baseline;
+        
+        System.out.printf(Locale.ROOT, "=== history memory, %,d returned loans ===%n", loans);
+        System.out.printf(Locale.ROOT, "%-24s %,8d MB  %6.1f bytes per loan%n", "ArrayList<Transaction>",
+            objectBytes >> 20, (double) objectBytes / loans);
+        System.out.printf(Locale.ROOT, "%-24s %,8d MB  %6.1f bytes per loan%n", "TransactionHistory",
+            columnBytes >> 20, (double) columnBytes / loans);
+        if (history.count() != loans || objectCount != loans) {
+            throw new IllegalStateException("history lost loans");
+        }
+    }
+    
+    /**
+     * Heap taken by a catalog loaded the way an import or the HTTP API loads
+     * it, each field a fresh string: one author per twenty books, one member
+     * per five books with e-mail at a handful of domains, and a tenth of the
+     * books out on loan, borrowed by fresh ID strings.
+     */
+    private static void catalogMemory(int books) {
+        String[] domains = {"gmail.com", "yahoo.com", "outlook.com", "library.org", "university.edu"};
+        int authors = Math.max(1, books / 20);
+        int members = Math.max(1, books / 5);
+        long baseline = usedHeapAfterGc();
+        LibraryService service = new LibraryService();
+        List<Book> bookBatch = new ArrayList<>();
+        for (int i = 0; i < books; i++) {
+            bookBatch.add(new Book(bookId(i), "Collected Works Volume " + i, "Author Surname" + (i * 7_919L % authors)));
+            if (bookBatch.size() == 10_000 || i == books - 1) {
+                service.addBooks(bookBatch);
+                bookBatch.clear();
+            }
+        }
+        List<Member> memberBatch = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            memberBatch.add(new Member(memberId(i), "Member Name " + i, "member" + i + "@" + domains[i % domains.length]));
+            if (memberBatch.size() == 10_000 || i == members - 1) {
+                service.addMembers(memberBatch);
+                memberBatch.clear();
+            }
+        }
+        for (int i = 0; i < books / 10; i++) {
+            service.borrowBook(bookId(i * 10), memberId(i % members));
+        }
+        long bytes = usedHeapAfterGc() - baseline;
+        System.out.printf(Locale.ROOT, "=== catalog memory, %,d books, %,d authors, %,d members, %,d loans ===%n",
+            books, authors, members, service.getStatistics().getActiveLoans());
+        System.out.printf(Locale.ROOT, "%,d MB, %.1f bytes per book%n", bytes >> 20, (double) bytes / books);
+    }
+    
+    /**
+     * Dumping the transaction list to a file: one printf per row through a
+     * stream set up like System.out (128-byte buffer, flushed at every line
+     * end) versus a batch script writing CSV through one 1 MB buffer.
+     */
+    private static void reportDump(int loans) throws IOException {
+        LibraryService service = new LibraryService();
+        LocalDate start = LocalDate.of(2020, 1, 1);
+        for (int i = 0; i < loans; i++) {
+            Transaction transaction = new Transaction(TransactionIdAllocator.format(i + 1L),
+                bookId(i % 100_000), memberId(i % 50_000), start.plusDays(i % 2_000), start.plusDays(i % 2_000 + 14));
+            transaction.setReturnDate(start.plusDays(i % 2_000 + 14));
+            transaction.setReturned(true);
+            service.loadTransaction(transaction);
+        }
+        Path file = Files.createTempFile("library-report", ".csv");
+        try {
+            System.out.printf(Locale.ROOT, "=== report dump, %,d transactions ===%n", loans);
+            long startNanos = System.nanoTime();
+            try (PrintStream console = new PrintStream(new BufferedOutputStream(Files.newOutputStream(file), 128), true)) {
+                service.streamTransactions().forEach(transaction ->
+                    console.printf("%s - Book: %s, Member: %s, Borrowed: %s, Returned: %s%n",
+                        transaction.getId(), transaction.getBookId(), transaction.getMemberId(),
+                        transaction.getBorrowDate(), transaction.isReturned()));
+            }
+            printDumpRate("printf per row", loans, System.nanoTime() - startNanos, Files.size(file));
+            
+            for (LibraryScript.Format format : LibraryScript.Format.values()) {
+                startNanos = System.nanoTime();
+                try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file),
+                        StandardCharsets.UTF_8), 1 << 20)) {
+                    new LibraryScript(service, out, format).run(new BufferedReader(new StringReader("transactions")));
+                }
+                printDumpRate("script " + format.name().toLowerCase(Locale.ROOT), loans, System.nanoTime() - startNanos,
+                    Files.size(file));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    private static void printDumpRate(String label, int rows, long nanos, long bytes) {
+        double seconds = nanos / 1e9;
+        System.out.printf(Locale.ROOT, "%-16s %8.2f s  %,12.0f rows/sec  %8.1f MB/s%n", label, seconds,
+            rows / seconds, bytes / seconds / (1 << 20));
+    }
+    
+    /**
+     * Event feed throughput: every thread borrows and returns its own book
+     * while 1, 4 or 16 subscribers drain the feed, each on its own thread.
+     * Reports the changes made per second and how many events the slowest
+     * subscriber read, or lost to DROP_OLDEST.
+     */
+    private static void eventFeed() throws Exception {
+        System.out.printf(Locale.ROOT, "=== event feed, %d producer threads (changes/sec) ===%n", THREADS);
+        System.out.printf(Locale.ROOT, "%-12s %10s %14s %14s %12s%n", "policy", "consumers", "changes", "slowest read",
+            "dropped");
+        System.out.printf(Locale.ROOT, "%-12s %10s %,14.0f%n", "no feed", "-", timedFeed(null, 0));
+        for (CirculationEventFeed.OverflowPolicy policy : new CirculationEventFeed.OverflowPolicy[] {
+                CirculationEventFeed.OverflowPolicy.BLOCK, CirculationEventFeed.OverflowPolicy.DROP_OLDEST}) {
+            for (int consumers : new int[] {1, 4, 16}) {
+                timedFeed(policy, consumers);
+            }
+        }
+    }
+    
+    private static double timedFeed(CirculationEventFeed.OverflowPolicy policy, int consumers) throws Exception {
+        LibraryService service = new LibraryService();
+        for (int t = 0; t < THREADS; t++) {
+            service.addBook(new Book(bookId(t), "Title " + t, "Author"));
+            service.addMember(new Member(memberId(t), "Member " + t, "m" + t + "@email.com"));
+        }
+        if (policy == null) {
+            return runForDuration(THREADS, thread -> borrowAndReturn(service, thread));
+        }
+        CirculationEventFeed feed = new CirculationEventFeed(1 << 16, policy);
+        service.addListener(feed);
+        AtomicBoolean draining = new AtomicBoolean(true);
+        ExecutorService readers = Executors.newFixedThreadPool(consumers);
+        List<Future<Long>> counts = new ArrayList<>();
+        List<CirculationEventFeed.Subscription> subscriptions = new ArrayList<>();
+        for (int c = 0; c < consumers; c++) {
+            CirculationEventFeed.Subscription subscription = feed.subscribe();
+            subscriptions.add(subscription);
+            counts.add(readers.submit(() -> {
+                long[] sum = new long[1];
+                while (draining.get()) {
+                    // Yield rather than spin, so idle readers do not starve the producers of cores
+                    if (subscription.poll(event -> sum[0] += event.getSequence(), 1024) == 0) {
+                        Thread.yield();
+                    }
+                }
+                return sum[0];
+            }));
+        }
+        double rate = runForDuration(THREADS, thread -> borrowAndReturn(service, thread));
+        draining.set(false);
+        long slowest = Long.MAX_VALUE;
+        long dropped = 0;
+        for (int c = 0; c < consumers; c++) {
+            counts.get(c).get();
+            slowest = Math.min(slowest, subscriptions.get(c).getPosition() - subscriptions.get(c).getDroppedCount());
+            dropped = Math.max(dropped, subscriptions.get(c).getDroppedCount());
+        }
+        readers.shutdown();
+        System.out.printf(Locale.ROOT, "%-12s %10d %,14.0f %,14d %,12d%n", policy, consumers, rate, slowest, dropped);
+        return rate;
+    }
+    
+    /**
+     * Many threads checking out and returning copies of one popular title.
+     * "lock-free" is the service as is; "one lock" runs every checkout and
+     * return of the title under a single lock, as when a title's
+     * availability is guarded by its lock stripe.
+     */
+    private static void contention(int threads) throws Exception {
+        System.out.printf(Locale.ROOT, "=== %d threads checking out one title, %d cores (loans/sec) ===%n", threads,
+            THREADS);
+        System.out.printf(Locale.ROOT, "%-8s %14s %9s %14s %9s%n", "copies", "lock-free", "refused", "one lock",
+            "refused");
+        for (int copies : new int[] {threads / 4, threads, threads * 2}) {
+            AtomicLong refusedLockFree = new AtomicLong();
+            AtomicLong refusedLocked = new AtomicLong();
+            double lockFree = timedContention(threads, copies, null, refusedLockFree);
+            double locked = timedContention(threads, copies, new ReentrantLock(), refusedLocked);
+            System.out.printf(Locale.ROOT, "%-8d %,14.0f %8.1f%% %,14.0f %8.1f%%%n", copies,
+                lockFree, percent(refusedLockFree.get(), lockFree), locked, percent(refusedLocked.get(), locked));
+        }
+    }
+    
+    private static double timedContention(int threads, int copies, ReentrantLock titleLock, AtomicLong refused)
+            throws Exception {
+        LibraryService service = new LibraryService();
+        service.addBook(new Book("POPULAR", "Popular Title", "Author", copies));
+        for (int t = 0; t < threads; t++) {
+            service.addMember(new Member(memberId(t), "Member " + t, "m" + t + "@email.com"));
+        }
+        return runForDuration(threads, thread -> {
+            String memberId = memberId(thread);
+            if (titleLock != null) {
+                titleLock.lock();
+            }
+            try {
+                if (!service.borrowBook("POPULAR", memberId)) {
+                    refused.incrementAndGet();
+                    return 0;
+                }
+            } finally {
+                if (titleLock != null) {
+                    titleLock.unlock();
+                }
+            }
+            String copyId = service.getActiveLoans(memberId).get(0).getCopyId();
+            if (titleLock != null) {
+                titleLock.lock();
+            }
+            try {
+                service.returnBook(copyId);
+            } finally {
+                if (titleLock != null) {
+                    titleLock.unlock();
+                }
+            }
+            return 1;
+        });
+    }
+    
+    // Refused attempts per RUN_MILLIS run, as a share of all attempts
+    private static double percent(long refused, double loansPerSecond) {
+        double loans = loansPerSecond * RUN_MILLIS / 1000;
+        return refused == 0 ? 0 : 100.0 * refused / (refused + loans);
+    }
+    
+    /**
+     * Borrow/return throughput of a ShardedLibrary as the shard count grows,
+     * each thread with its own book. "home branch" members borrow from the
+     * branch they belong to; "other branch" members from the next one over,
+     * as visitors.
+     */
+    private static void shards(int threads) throws Exception {
+        System.out.printf(Locale.ROOT, "=== %d threads over 1-16 shards, %d cores (ops/sec) ===%n", threads, THREADS);
+        // Discarded: the first run pays for JIT compilation
+        timedShards(threads, 1, 0);
+        System.out.printf(Locale.ROOT, "%-8s %14s %14s%n", "shards", "home branch", "other branch");
+        for (int shards = 1; shards <= 16; shards *= 2) {
+            System.out.printf(Locale.ROOT, "%-8d %,14.0f %,14.0f%n", shards, timedShards(threads, shards, 0),
+                timedShards(threads, shards, 1));
+        }
+    }
+    
+    private static double timedShards(int threads, int shards, int branchOffset) throws Exception {
+        try (ShardedLibrary library = new ShardedLibrary(shards)) {
+            for (int t = 0; t < threads; t++) {
+                library.addBook(t % shards, new Book(bookId(t), "Title " + t, "Author"));
+                library.addMember((t + branchOffset) % shards, new Member(memberId(t), "Member " + t,
+                    "m" + t + "@email.com"));
+            }
+            return runForDuration(threads, thread -> {
+                library.borrowBook(bookId(thread), memberId(thread));
+                library.returnBook(bookId(thread));
+                return 2;
+            });
+        }
+    }
+    
+    /**
+     * Borrow/return throughput while one more thread reads full reports of the
+     * books and loans back to back: with no reports, with reports read from
+     * snapshots, and with each report holding a lock that circulation takes
+     * shared, the way a consistent report could be read without snapshots.
+     */
+    private static void snapshotReads(int loans) throws Exception {
+        LibraryService service = new LibraryService();
+        LocalDate start = LocalDate.of(2020, 1, 1);
+        for (int i = 0; i < loans; i++) {
+            Transaction transaction = new Transaction(TransactionIdAllocator.format(i + 1L),
+                bookId(i % 100_000), memberId(i % 50_000), start.plusDays(i % 2_000), start.plusDays(i % 2_000 + 14));
+            transaction.setReturnDate(start.plusDays(i % 2_000 + 14));
+            transaction.setReturned(true);
+            service.loadTransaction(transaction);
+        }
+        for (int t = 0; t < THREADS; t++) {
+            service.addBook(new Book(bookId(t), "Title " + t, "Author"));
+            service.addMember(new Member(memberId(t), "Member " + t, "m" + t + "@email.com"));
+        }
+        System.out.printf(Locale.ROOT, "=== borrow/return during reports over %,d loans, %d cores ===%n", loans, THREADS);
+        System.out.printf(Locale.ROOT, "%-16s %14s %12s%n", "reports", "ops/sec", "reports/sec");
+        for (String mode : new String[] {"none", "snapshot", "exclusive lock"}) {
+            ReentrantReadWriteLock reportLock = new ReentrantReadWriteLock();
+            AtomicBoolean reading = new AtomicBoolean(!"none".equals(mode));
+            AtomicLong reports = new AtomicLong();
+            Thread reader = new Thread(() -> {
+                while (reading.get()) {
+                    if ("snapshot".equals(mode)) {
+                        try (LibrarySnapshot snapshot = service.openSnapshot()) {
+                            snapshot.streamBooks().count();
+                            snapshot.streamTransactions().count();
+                        }
+                    } else {
+                        reportLock.writeLock().lock();
+                        try {
+                            service.streamBooks().count();
+                            service.streamTransactions().count();
+                        } finally {
+                            reportLock.writeLock().unlock();
+                        }
+                    }
+                    reports.incrementAndGet();
+                }
+            });
+            if (reading.get()) {
+                reader.start();
+            }
+            long startNanos = System.nanoTime();
+            double throughput = runForDuration(THREADS, thread -> {
+                reportLock.readLock().lock();
+                try {
+                    service.borrowBook(bookId(thread), memberId(thread));
+                    service.returnBook(bookId(thread));
+                } finally {
+                    reportLock.readLock().unlock();
+                }
+                return 2;
+            });
+            reading.set(false);
+            reader.join();
+            System.out.printf(Locale.ROOT, "%-16s %,14.0f %,12.1f%n", mode, throughput,
+                reports.get() * 1e9 / (System.nanoTime() - startNanos));
+        }
+    }
+    
+    /**
+     * Heap and borrow/return latency with a long history in memory, then
+     * after a snapshot has moved the returned loans to the archive, plus the
+     * archive's size on disk and how fast it streams back.
+     */
+    private static void tiering(int loans) throws IOException {
+        int books = 10_000;
+        Path dataDir = Files.createTempDirectory("library-tiering");
+        try {
+            LibraryService service = new LibraryService();
+            try (LibraryStore store = LibraryStore.open(dataDir, service, WriteAheadLog.Durability.ASYNC, 10)) {
+                for (int i = 0; i < books; i++) {
+                    service.addBook(new Book(bookId(i), "Title " + i, "Author " + (i % 500)));
+                }
+                for (int i = 0; i < 1_000; i++) {
+                    service.addMember(new Member(memberId(i), "Member " + i, "m" + i + "@example.com"));
+                }
+                for (int i = 0; i < loans; i++) {
+                    // Every book stays out once lent; each loan after the first round closes the previous one
+                    service.returnBook(bookId(i % books));
+                    service.borrowBook(bookId(i % books), memberId(i % 1_000));
+                }
+                System.out.printf(Locale.ROOT, "=== tiering, %,d loans, %,d open ===%n", loans,
+                    service.getStatistics().getActiveLoans());
+                printTier("all in memory", service, books);
+                long started = System.nanoTime();
+                store.snapshot();
+                long snapshotMillis = (System.nanoTime() - started) / 1_000_000;
+                printTier("returned archived", service, books);
+                long archiveBytes;
+                try (Stream<Path> files = Files.list(dataDir.resolve(TransactionArchive.DIRECTORY))) {
+                    archiveBytes = files.mapToLong(file -> file.toFile().length()).sum();
+                }
+                started = System.nanoTime();
+                long streamed = service.streamTransactions().count();
+                long streamNanos = System.nanoTime() - started;
+                System.out.printf(Locale.ROOT, "snapshot with archive pass %,d ms; archive %,d KB, %.1f bytes per loan;"
+                    + " streamed %,d loans in %,d ms%n", snapshotMillis, archiveBytes >> 10,
+                    (double) archiveBytes / service.getArchive().count(), streamed, streamNanos / 1_000_000);
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dataDir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+    
+    /**
+     * Time to load a snapshot of one book per 15 loans, the shape of the
+     * 2M-book, 30M-loan library meant to restore in a few seconds. Half the
+     * books are out; every other loan has been returned.
+     */
+    private static void restore(int loans) throws IOException {
+        int books = Math.max(2, loans / 15);
+        int members = Math.max(1, books / 10);
+        Path dataDir = Files.createTempDirectory("library-restore");
+        try {
+            Path snapshot = dataDir.resolve("library.snap");
+            LibraryService original = new LibraryService();
+            for (int i = 0; i < books; i++) {
+                original.addBook(new Book(bookId(i), "Title " + i, "Author " + (i % 5_000)));
+            }
+            for (int i = 0; i < members; i++) {
+                original.addMember(new Member(memberId(i), "Member " + i, "m" + i + "@example.com"));
+            }
+            LocalDate start = LocalDate.of(2020, 1, 1);
+            int returned = loans - books / 2;
+            for (int i = 0; i < returned; i++) {
+                Transaction transaction = new Transaction(TransactionIdAllocator.format(i + 1L), bookId(i % books),
+                    memberId(i % members), start.plusDays(i % 2_000), start.plusDays(i % 2_000 + 14));
+                transaction.setReturnDate(start.plusDays(i % 2_000 + 10));
+                transaction.setReturned(true);
+                original.loadTransaction(transaction);
+            }
+            for (int i = 0; i < books / 2; i++) {
+                original.borrowBook(bookId(i), memberId(i % members));
+            }
+            SnapshotFile.write(original, 1, snapshot);
+            original = null;
+            usedHeapAfterGc();
+            
+            long started = System.nanoTime();
+            LibraryService restored = new LibraryService();
+            SnapshotFile.load(snapshot, restored);
+            long nanos = System.nanoTime() - started;
+            System.out.printf(Locale.ROOT, "=== restore, %,d books, %,d loans ===%n", books, loans);
+            System.out.printf(Locale.ROOT, "snapshot %,d MB loaded in %,d ms, %.0f ns per loan; heap %,d MB%n",
+                Files.size(snapshot) >> 20, nanos / 1_000_000, (double) nanos / loans, usedHeapAfterGc() >> 20);
+            if (restored.getAllBooks().size() != books) {
+                throw new IllegalStateException("Restored " + restored.getAllBooks().size() + " books");
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dataDir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+    
+    private static void printTier(String label, LibraryService service, int books) {
+        long heap = usedHeapAfterGc();
+        long inMemory = service.streamTransactionsInMemory().count();
+        int operations = 200_000;
+        long started = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            // Each book is out, so return it and lend it straight back
+            service.returnBook(bookId(i % books));
+            service.borrowBook(bookId(i % books), memberId(i % 1_000));
+        }
+        long nanos = System.nanoTime() - started;
+        System.out.printf(Locale.ROOT, "%-20s heap %,6d MB, %,d loans in memory, return+borrow %,6.0f ns%n", label,
+            heap >> 20, inMemory, (double) nanos / operations);
+    }
+    
+    private static int borrowAndReturn(LibraryService service, int thread) {
+        service.borrowBook(bookId(thread), memberId(thread));
+        service.returnBook(bookId(thread));
+        return 2;
+    }
+    
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    /**
+     * Loopback load test of the HTTP API. A server JVM is started as a child
+     * process (headless LibraryApp on the same Java and classpath), so client
+     * and server sockets do not share one process's descriptor limit. Each
+     * client holds one keep-alive connection and loops over borrow, return and
+     * lookup of its own book. Latencies are measured from the second third of
+     * the run on, once every client has connected.
+     */
+    private static void httpLoad(int clients, int seconds) throws Exception {
+        System.out.printf(Locale.ROOT, "=== HTTP API, %,d concurrent clients, Java %s ===%n",
+            clients, Runtime.version().feature());
+        String java = ProcessHandle.current().info().command().orElse("java");
+        Process server = new ProcessBuilder(java, "-Dlibrary.http.port=0", "-Dlibrary.http.headless=true",
+            "-Dsun.net.httpserver.maxIdleConnections=" + clients, "-cp", System.getProperty("java.class.path"),
+            "LibraryApp")
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            String base = awaitListening(server);
+            HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(executor)
+                .build();
+            for (int from = 0; from < clients; from += 1_000) {
+                StringBuilder books = new StringBuilder("[");
+                StringBuilder members = new StringBuilder("[");
+                for (int i = from; i < Math.min(clients, from + 1_000); i++) {
+                    String separator = i == from ? "" : ",";
+                    books.append(separator).append(String.format(
+                        "{\"id\":\"%s\",\"title\":\"Title %d\",\"author\":\"Author\"}", bookId(i), i));
+                    members.append(separator).append(String.format(
+                        "{\"id\":\"%s\",\"name\":\"Member %d\",\"email\":\"m%d@email.com\"}", memberId(i), i, i));
+                }
+                client.send(post(base + "/books", books.append(']').toString()), HttpResponse.BodyHandlers.discarding());
+                client.send(post(base + "/members", members.append(']').toString()), HttpResponse.BodyHandlers.discarding());
+            }
+            
+            LatencyHistogram latencies = new LatencyHistogram();
+            AtomicLong errors = new AtomicLong();
+            long start = System.nanoTime();
+            long measureFrom = start + TimeUnit.SECONDS.toNanos(seconds) / 3;
+            long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            List<CompletableFuture<Void>> running = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                HttpRequest[] cycle = {
+                    post(base + "/loans", "{\"memberId\":\"" + memberId(i) + "\",\"bookId\":\"" + bookId(i) + "\"}"),
+                    post(base + "/returns", "{\"bookId\":\"" + bookId(i) + "\"}"),
+                    HttpRequest.newBuilder(URI.create(base + "/books/" + bookId(i))).build()
+                };
+                running.add(httpClientLoop(client, cycle, 0, measureFrom, end, latencies, errors));
+            }
+            CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+            double measuredSeconds = (end - measureFrom) / 1e9;
+            System.out.printf(Locale.ROOT, "%,.0f requests/sec  p50 %.1f ms  p99 %.1f ms  p99.9 %.1f ms  max %.1f ms"
+                + "  errors %,d%n", latencies.getCount() / measuredSeconds,
+                latencies.getValueAtPercentile(50) / 1e6, latencies.getValueAtPercentile(99) / 1e6,
+                latencies.getValueAtPercentile(99.9) / 1e6, latencies.getMax() / 1e6, errors.get());
+        } finally {
+            executor.shutdownNow();
+            server.destroy();
+            server.waitFor();
+        }
+    }
+    
+    // Sends the cycle's requests one after another until the end time; never completes exceptionally
+    private static CompletableFuture<Void> httpClientLoop(HttpClient client, HttpRequest[] cycle, int step,
+            long measureFrom, long end, LatencyHistogram latencies, AtomicLong errors) {
+        long start = System.nanoTime();
+        if (start >= end) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return client.sendAsync(cycle[step % cycle.length], HttpResponse.BodyHandlers.discarding())
+            .handle((response, failure) -> {
+                if (failure != null || response.statusCode() >= 300) {
+                    errors.incrementAndGet();
+                } else if (start >= measureFrom) {
+                    latencies.record(System.nanoTime() - start);
+                }
+                return null;
+            })
+            .thenCompose(ignored -> httpClientLoop(client, cycle, step + 1, measureFrom, end, latencies, errors));
+    }
+    
+    private static String awaitListening(Process server) throws IOException {
+        BufferedReader output = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = output.readLine()) != null) {
+            int url = line.indexOf("http://");
+            if (line.startsWith("HTTP API listening on") && url >= 0) {
+                return line.substring(url);
+            }
+        }
+        throw new IOException("Server exited before it started listening");
+    }
+    
+    private static HttpRequest post(String uri, String json) {
+        return HttpRequest.newBuilder(URI.create(uri))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(json))
+            .build();
+    }
+    
+    interface Operation {
+        // Runs one unit of work on the given thread and returns how many operations it counted
+        int run(int thread) throws Exception;
+    }
+    
+    // Runs the operation on each thread for RUN_MILLIS and returns total operations per second
+    static double runForDuration(int threads, Operation operation) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Future<Long>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                long count = 0;
+                while (running.get()) {
+                    count += operation.run(thread);
+                }
+                return count;
+            }));
+        }
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        long total = 0;
+        for (Future<Long> future : futures) {
+            total += future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        return total * 1e9 / elapsed;
+    }
+    
+    private static void runBorrowReturn(LibraryService service, int size, int operations) {
+        for (int i = 0; i < operations; i++) {
+            int index = (int) ((i * 2654435761L) % size);
+            service.borrowBook(bookId(index), memberId(index));
+            service.returnBook(bookId(index));
+        }
+    }
+    
+    static String bookId(int index) {
+        return "B" + index;
+    }
+    
+    static String memberId(int index) {
+        return "M" + index;
+    }
+}
\ No newline at end of file
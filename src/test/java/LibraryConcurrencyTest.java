@@ -0,0 +1,635 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.io.TempDir;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.Collectors;
+
+public class LibraryConcurrencyTest {
+    private static final int THREADS = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+    private static final int BOOKS = 16;
+    private static final int OPERATIONS_PER_THREAD = 20_000;
+    
+    @Test
+    void testConcurrentBorrowReturnNeverDoubleChecksOut() throws Exception {
+        LibraryService libraryService = new LibraryService(8);
+        for (int i = 0; i < BOOKS; i++) {
+            libraryService.addBook(new Book("B" + i, "Book " + i, "Author"));
+        }
+        for (int i = 0; i < THREADS; i++) {
+            libraryService.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        
+        AtomicIntegerArray holders = new AtomicIntegerArray(BOOKS);
+        AtomicInteger successfulBorrows = new AtomicInteger();
+        AtomicInteger doubleCheckouts = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        
+        for (int t = 0; t < THREADS; t++) {
+            String memberId = "M" + t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    int index = random.nextInt(BOOKS);
+                    String bookId = "B" + index;
+                    if (libraryService.borrowBook(bookId, memberId)) {
+                        successfulBorrows.incrementAndGet();
+                        if (holders.incrementAndGet(index) != 1) {
+                            doubleCheckouts.incrementAndGet();
+                        }
+                        holders.decrementAndGet(index);
+                        assertTrue(libraryService.returnBook(bookId));
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        
+        assertEquals(0, doubleCheckouts.get());
+        List<Transaction> transactions = libraryService.getAllTransactions();
+        assertEquals(successfulBorrows.get(), transactions.size());
+        Set<String> transactionIds = new HashSet<>();
+        for (Transaction transaction : transactions) {
+            assertTrue(transaction.isReturned());
+            assertTrue(transactionIds.add(transaction.getId()));
+        }
+        for (Book book : libraryService.getAllBooks()) {
+            assertTrue(book.isAvailable());
+        }
+        assertEquals(successfulBorrows.get(), libraryService.getStatistics().getTotalLoans());
+        assertEquals(0, libraryService.getStatistics().getActiveLoans());
+        LibraryTest.assertStatisticsMatchHistory(libraryService);
+    }
+    
+    @Test
+    void testConcurrentBatchCheckoutsDoNotDeadlockOrOverlap() throws Exception {
+        LibraryService libraryService = new LibraryService(8);
+        for (int i = 0; i < BOOKS; i++) {
+            libraryService.addBook(new Book("B" + i, "Book " + i, "Author"));
+        }
+        for (int i = 0; i < THREADS; i++) {
+            libraryService.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        
+        AtomicIntegerArray holders = new AtomicIntegerArray(BOOKS);
+        AtomicInteger doubleCheckouts = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            String memberId = "M" + t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < OPERATIONS_PER_THREAD / 10; i++) {
+                    // Random overlapping sets, in random order, so lock order depends on the service alone
+                    Set<Integer> picked = new HashSet<>();
+                    while (picked.size() < 3) {
+                        picked.add(random.nextInt(BOOKS));
+                    }
+                    List<String> bookIds = new ArrayList<>();
+                    for (int index : picked) {
+                        bookIds.add("B" + index);
+                    }
+                    Collections.shuffle(bookIds, random);
+                    if (libraryService.borrowBooks(memberId, bookIds)) {
+                        for (int index : picked) {
+                            if (holders.incrementAndGet(index) != 1) {
+                                doubleCheckouts.incrementAndGet();
+                            }
+                        }
+                        for (int index : picked) {
+                            holders.decrementAndGet(index);
+                        }
+                        assertTrue(libraryService.returnBooks(bookIds));
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        
+        assertEquals(0, doubleCheckouts.get());
+        assertTrue(libraryService.streamTransactions().allMatch(Transaction::isReturned));
+        for (Book book : libraryService.getAllBooks()) {
+            assertTrue(book.isAvailable());
+        }
+    }
+    
+    @Test
+    void testConcurrentBorrowOfSameBookHasSingleWinner() throws Exception {
+        LibraryService libraryService = new LibraryService();
+        libraryService.addBook(new Book("B001", "Popular Book", "Author"));
+        for (int i = 0; i < THREADS; i++) {
+            libraryService.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        
+        AtomicInteger winners = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            String memberId = "M" + t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                if (libraryService.borrowBook("B001", memberId)) {
+                    winners.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        
+        assertEquals(1, winners.get());
+        assertEquals(1, libraryService.getAllTransactions().size());
+    }
+    
+    @Test
+    void testTransfersDuringCheckoutsKeepEachCopyInOneBranch() throws Exception {
+        int shards = 4;
+        int copies = 2;
+        try (ShardedLibrary library = new ShardedLibrary(shards)) {
+            library.addBook(0, new Book("B001", "Travelling Book", "Author", copies));
+            for (int i = 0; i < THREADS; i++) {
+                library.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+            }
+            // Borrowers holding each copy right now, which must never exceed one
+            AtomicInteger[] holders = new AtomicInteger[copies + 1];
+            for (int copy = 1; copy <= copies; copy++) {
+                holders[copy] = new AtomicInteger();
+            }
+            AtomicInteger transfers = new AtomicInteger();
+            AtomicBoolean running = new AtomicBoolean(true);
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+            Future<?> mover = executor.submit(() -> {
+                start.await();
+                for (int i = 1; running.get(); i++) {
+                    if (library.transferBook("B001", i % shards)) {
+                        transfers.incrementAndGet();
+                    }
+                    Thread.yield();
+                }
+                return null;
+            });
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                String memberId = "M" + t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 2_000; i++) {
+                        if (!library.borrowBook("B001", memberId)) {
+                            continue;
+                        }
+                        List<Transaction> loans = library.getActiveLoans(memberId);
+                        assertEquals(1, loans.size());
+                        int copy = loans.get(0).getCopy();
+                        assertEquals(1, holders[copy].incrementAndGet(), "copy " + copy + " lent twice");
+                        holders[copy].decrementAndGet();
+                        assertTrue(library.returnBook(loans.get(0).getCopyId()));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            running.set(false);
+            mover.get(10, TimeUnit.SECONDS);
+            executor.shutdown();
+            
+            assertTrue(transfers.get() > 0);
+            int found = 0;
+            Set<String> ids = new HashSet<>();
+            for (int shard = 0; shard < shards; shard++) {
+                if (library.getShard(shard).findBookById("B001") != null) {
+                    found++;
+                    assertEquals(shard, library.shardOfBook("B001"));
+                }
+                for (Transaction transaction : library.getShard(shard).getAllTransactions()) {
+                    assertTrue(transaction.isReturned());
+                    assertTrue(ids.add(transaction.getId()));
+                }
+            }
+            assertEquals(1, found);
+            assertEquals(copies, library.getBook("B001").getAvailableCopies());
+        }
+    }
+    
+    @Test
+    void testReturnedCopyGoesToHolderDespiteConcurrentBorrowers() throws Exception {
+        LibraryService libraryService = new LibraryService();
+        for (int i = 0; i < BOOKS; i++) {
+            libraryService.addBook(new Book("B" + i, "Book " + i, "Author"));
+        }
+        libraryService.addMember(new Member("LENDER", "Lender", "lender@email.com"));
+        libraryService.addMember(new Member("HOLDER", "Holder", "holder@email.com"));
+        for (int i = 0; i < THREADS; i++) {
+            libraryService.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        for (int i = 0; i < BOOKS; i++) {
+            assertTrue(libraryService.borrowBook("B" + i, "LENDER"));
+            assertTrue(libraryService.placeHold("B" + i, "HOLDER"));
+        }
+        
+        AtomicInteger stolen = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            String memberId = "M" + t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < OPERATIONS_PER_THREAD / 10; i++) {
+                    if (libraryService.borrowBook("B" + (i % BOOKS), memberId)) {
+                        stolen.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        futures.add(executor.submit(() -> {
+            start.await();
+            for (int i = 0; i < BOOKS; i++) {
+                assertTrue(libraryService.returnBook("B" + i));
+            }
+            return null;
+        }));
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        
+        assertEquals(0, stolen.get());
+        assertEquals(BOOKS, libraryService.getActiveLoans("HOLDER").size());
+        for (int i = 0; i < BOOKS; i++) {
+            assertTrue(libraryService.getHold("B" + i, "HOLDER").isReady());
+        }
+    }
+    
+    @Test
+    void testConcurrentCheckoutsOfOneTitleNeverLendACopyTwice() throws Exception {
+        LibraryService libraryService = new LibraryService(8);
+        int copies = THREADS / 2;
+        // More than 64 copies, so the free-copy bitset spans several words
+        int shelved = 150;
+        libraryService.addBook(new Book("POPULAR", "Popular Title", "Author", copies));
+        libraryService.addBook(new Book("SHELVED", "Shelved Title", "Author", shelved));
+        for (int i = 0; i < THREADS; i++) {
+            libraryService.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        
+        AtomicIntegerArray holders = new AtomicIntegerArray(copies + 1);
+        AtomicInteger successfulBorrows = new AtomicInteger();
+        AtomicInteger doubleCheckouts = new AtomicInteger();
+        Set<String> shelvedCopies = Collections.synchronizedSet(new HashSet<>());
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            String memberId = "M" + t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    if (!libraryService.borrowBook("POPULAR", memberId)) {
+                        continue;
+                    }
+                    successfulBorrows.incrementAndGet();
+                    Transaction loan = libraryService.getActiveLoans(memberId).get(0);
+                    if (holders.incrementAndGet(loan.getCopy()) != 1) {
+                        doubleCheckouts.incrementAndGet();
+                    }
+                    holders.decrementAndGet(loan.getCopy());
+                    assertTrue(libraryService.returnBook(loan.getCopyId()));
+                }
+                while (libraryService.borrowBook("SHELVED", memberId)) {
+                    List<Transaction> loans = libraryService.getActiveLoans(memberId);
+                    if (!shelvedCopies.add(loans.get(loans.size() - 1).getCopyId())) {
+                        doubleCheckouts.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        
+        assertEquals(0, doubleCheckouts.get());
+        assertTrue(successfulBorrows.get() >= OPERATIONS_PER_THREAD);
+        assertEquals(copies, libraryService.findBookById("POPULAR").getAvailableCopies());
+        assertEquals(shelved, shelvedCopies.size());
+        assertEquals(0, libraryService.findBookById("SHELVED").getAvailableCopies());
+        assertEquals(successfulBorrows.get() + shelved, libraryService.getAllTransactions().size());
+        LibraryTest.assertStatisticsMatchHistory(libraryService);
+    }
+    
+    @Test
+    void testEventFeedDeliversEveryEventToEverySubscriber() throws Exception {
+        for (CirculationEventFeed.OverflowPolicy policy : List.of(CirculationEventFeed.OverflowPolicy.BLOCK,
+                CirculationEventFeed.OverflowPolicy.DROP_OLDEST)) {
+            LibraryService libraryService = new LibraryService();
+            for (int i = 0; i < BOOKS; i++) {
+                libraryService.addBook(new Book("B" + i, "Book " + i, "Author"));
+            }
+            for (int i = 0; i < THREADS; i++) {
+                libraryService.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+            }
+            CirculationEventFeed feed = new CirculationEventFeed(64, policy);
+            libraryService.addListener(feed);
+            int consumers = 4;
+            List<CirculationEventFeed.Subscription> subscriptions = new ArrayList<>();
+            for (int c = 0; c < consumers; c++) {
+                subscriptions.add(feed.subscribe());
+            }
+            
+            AtomicInteger producersLeft = new AtomicInteger(THREADS);
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS + consumers);
+            List<Future<long[]>> readers = new ArrayList<>();
+            for (CirculationEventFeed.Subscription subscription : subscriptions) {
+                readers.add(executor.submit(() -> {
+                    // Received count, then any sequence out of order
+                    long[] result = new long[2];
+                    long[] last = {-1};
+                    start.await();
+                    while (true) {
+                        boolean done = producersLeft.get() == 0;
+                        int read = subscription.poll(event -> {
+                            if (event.getSequence() <= last[0]) {
+                                result[1]++;
+                            }
+                            last[0] = event.getSequence();
+                            result[0]++;
+                        }, 256);
+                        if (read == 0 && done) {
+                            return result;
+                        }
+                        if (read == 0) {
+                            Thread.onSpinWait();
+                        }
+                    }
+                }));
+            }
+            List<Future<?>> producers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                String memberId = "M" + t;
+                producers.add(executor.submit(() -> {
+                    start.await();
+                    try {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (int i = 0; i < OPERATIONS_PER_THREAD / 4; i++) {
+                            String bookId = "B" + random.nextInt(BOOKS);
+                            if (libraryService.borrowBook(bookId, memberId)) {
+                                libraryService.returnBook(bookId);
+                            }
+                        }
+                    } finally {
+                        producersLeft.decrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> producer : producers) {
+                producer.get(60, TimeUnit.SECONDS);
+            }
+            long published = feed.getEventCount();
+            for (int c = 0; c < consumers; c++) {
+                long[] result = readers.get(c).get(60, TimeUnit.SECONDS);
+                assertEquals(0, result[1], policy.name());
+                assertEquals(published, result[0] + subscriptions.get(c).getDroppedCount(), policy.name());
+                if (policy == CirculationEventFeed.OverflowPolicy.BLOCK) {
+                    assertEquals(published, result[0]);
+                }
+            }
+            executor.shutdown();
+            assertEquals(libraryService.getAllTransactions().size() * 2L, published);
+        }
+    }
+    
+    @Test
+    void testConcurrentTransactionIdsAreUniqueAndIncreasing(@TempDir Path tempDir) throws Exception {
+        SequentialTransactionIdAllocator allocator =
+            new SequentialTransactionIdAllocator(tempDir.resolve("txn-id.hwm"), 1000);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<long[]>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                long[] ids = new long[OPERATIONS_PER_THREAD];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = allocator.nextId();
+                }
+                return ids;
+            }));
+        }
+        start.countDown();
+        Set<Long> seen = new HashSet<>();
+        for (Future<long[]> future : futures) {
+            long[] ids = future.get(30, TimeUnit.SECONDS);
+            for (int i = 0; i < ids.length; i++) {
+                assertTrue(seen.add(ids[i]));
+                if (i > 0) {
+                    assertTrue(ids[i] > ids[i - 1]);
+                }
+            }
+        }
+        executor.shutdown();
+        
+        assertEquals((long) THREADS * OPERATIONS_PER_THREAD, seen.size());
+        assertTrue(new SequentialTransactionIdAllocator(tempDir.resolve("txn-id.hwm")).nextId()
+            > (long) THREADS * OPERATIONS_PER_THREAD);
+    }
+    
+    @Test
+    void testReplicaStartedDuringCirculationConvergesWithPrimary(@TempDir Path tempDir) throws Exception {
+        LibraryService primaryService = new LibraryService(8);
+        for (int i = 0; i < BOOKS; i++) {
+            primaryService.addBook(new Book("B" + i, "Book " + i, "Author " + (i % 3), 1 + i % 3));
+        }
+        for (int i = 0; i < THREADS; i++) {
+            primaryService.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        
+        // A small backlog, so the replica is lapped now and then and has to resync from a snapshot taken mid-traffic
+        try (ReplicationPrimary primary = ReplicationPrimary.start(primaryService, 0, tempDir.resolve("primary"), 64)) {
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                String memberId = "M" + t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < OPERATIONS_PER_THREAD / 10; i++) {
+                        String bookId = "B" + random.nextInt(BOOKS);
+                        if (!primaryService.borrowBook(bookId, memberId)) {
+                            primaryService.returnBook(bookId);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            try (ReplicationReplica replica = ReplicationReplica.start("localhost", primary.getPort(),
+                    tempDir.resolve("replica"))) {
+                for (Future<?> future : futures) {
+                    future.get(60, TimeUnit.SECONDS);
+                }
+                executor.shutdown();
+                
+                assertTrue(replica.awaitSequence(primary.getLastSequence(), 30, TimeUnit.SECONDS));
+                LibraryPersistenceTest.assertSameState(primaryService, replica.getService());
+            }
+        }
+    }
+    
+    @Test
+    void testSnapshotsStayConsistentWhileCirculationCarriesOn() throws Exception {
+        LibraryService libraryService = new LibraryService(8);
+        for (int i = 0; i < BOOKS; i++) {
+            libraryService.addBook(new Book("B" + i, "Book " + i, "Author", 1 + i % 3));
+        }
+        for (int i = 0; i < THREADS; i++) {
+            libraryService.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger operations = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            String memberId = "M" + t;
+            writers.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < OPERATIONS_PER_THREAD / 4; i++) {
+                    String bookId = "B" + random.nextInt(BOOKS);
+                    if (!libraryService.borrowBook(bookId, memberId)) {
+                        libraryService.returnBook(bookId);
+                    }
+                    operations.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        // A title leaving and coming back, so snapshots also read books removed after they were taken
+        Future<?> churn = executor.submit(() -> {
+            while (!done.get()) {
+                libraryService.addBook(new Book("SPARE", "Spare", "Author"));
+                libraryService.removeBook("SPARE");
+            }
+            return null;
+        });
+        
+        int checked = 0;
+        while (writers.stream().anyMatch(writer -> !writer.isDone()) || checked == 0) {
+            try (LibrarySnapshot snapshot = libraryService.openSnapshot()) {
+                Map<String, Integer> openLoans = new HashMap<>();
+                Set<String> lentCopies = new HashSet<>();
+                for (Transaction loan : snapshot.streamTransactions().collect(Collectors.toList())) {
+                    if (!loan.isReturned()) {
+                        openLoans.merge(loan.getBookId(), 1, Integer::sum);
+                        assertTrue(lentCopies.add(loan.getCopyId()), "copy lent twice: " + loan.getCopyId());
+                    }
+                }
+                List<Book> books = snapshot.streamBooks().collect(Collectors.toList());
+                assertTrue(books.size() == BOOKS || books.size() == BOOKS + 1);
+                for (Book book : books) {
+                    assertEquals(book.getCopies() - openLoans.getOrDefault(book.getId(), 0), book.getAvailableCopies(),
+                        "torn state for " + book.getId());
+                }
+                
+                // Writers carry on while the snapshot is held, and it does not move
+                int before = operations.get();
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (operations.get() == before && writers.stream().anyMatch(writer -> !writer.isDone())) {
+                    assertTrue(System.nanoTime() < deadline, "writers stalled behind a snapshot");
+                    Thread.yield();
+                }
+                assertEquals(books.stream().map(Book::getId).collect(Collectors.toList()),
+                    snapshot.streamBooks().map(Book::getId).collect(Collectors.toList()));
+                assertEquals(openLoans.values().stream().mapToInt(Integer::intValue).sum(),
+                    snapshot.streamTransactions().filter(loan -> !loan.isReturned()).count());
+            }
+            checked++;
+        }
+        for (Future<?> writer : writers) {
+            writer.get(60, TimeUnit.SECONDS);
+        }
+        done.set(true);
+        churn.get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+        
+        assertTrue(checked > 0);
+        // Nothing is kept for snapshots once they are all closed
+        assertEquals(0, libraryService.getRetainedRemovedBookCount());
+        try (LibrarySnapshot snapshot = libraryService.openSnapshot()) {
+            assertEquals(libraryService.getAllTransactions().size(), snapshot.streamTransactions().count());
+        }
+    }
+    
+    @Test
+    void testConcurrentAddBookRejectsDuplicates() throws Exception {
+        LibraryService libraryService = new LibraryService();
+        AtomicInteger added = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < 1000; i++) {
+                    if (libraryService.addBook(new Book("B" + i, "Book " + i, "Author"))) {
+                        added.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        
+        assertEquals(1000, added.get());
+        assertEquals(1000, libraryService.getAllBooks().size());
+    }
+}
\ No newline at end of file
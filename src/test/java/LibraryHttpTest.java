@@ -0,0 +1,235 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+public class LibraryHttpTest {
+    private LibraryService libraryService;
+    private LibraryHttpServer server;
+    private HttpClient client;
+    
+    @BeforeEach
+    void setUp() throws Exception {
+        libraryService = new LibraryService();
+        server = LibraryHttpServer.start(libraryService, new InetSocketAddress("127.0.0.1", 0));
+        client = HttpClient.newHttpClient();
+    }
+    
+    @AfterEach
+    void tearDown() {
+        server.stop();
+    }
+    
+    @Test
+    void testAddAndListBooksAndMembers() throws Exception {
+        HttpResponse<String> added = send("POST", "/books",
+            "{\"id\": \"B001\", \"title\": \"Java \\\"Programming\\\"\", \"author\": \"John Doe\"}");
+        assertEquals(201, added.statusCode());
+        assertEquals(409, send("POST", "/books", "{\"id\": \"B001\", \"title\": \"Again\", \"author\": \"X\"}").statusCode());
+        assertEquals(201, send("POST", "/books",
+            "[{\"id\": \"B002\", \"title\": \"Two\", \"author\": \"A\"}, {\"id\": \"B003\", \"title\": \"Three\", \"author\": \"A\"}]")
+            .statusCode());
+        assertEquals(201, send("POST", "/members", "{\"id\": \"M001\", \"name\": \"Alice\", \"email\": \"a@x.com\"}")
+            .statusCode());
+        
+        Map<String, Object> book = object(send("GET", "/books/B001", null));
+        assertEquals("Java \"Programming\"", book.get("title"));
+        assertEquals(Boolean.TRUE, book.get("available"));
+        assertEquals("Alice", object(send("GET", "/members/M001", null)).get("name"));
+        assertEquals(404, send("GET", "/books/B404", null).statusCode());
+        
+        Map<String, Object> first = object(send("GET", "/books?limit=2", null));
+        assertEquals(2, ((List<?>) first.get("items")).size());
+        Map<String, Object> second = object(send("GET", "/books?limit=2&after=" + first.get("next"), null));
+        assertEquals(1, ((List<?>) second.get("items")).size());
+        assertNull(second.get("next"));
+        
+        List<?> results = (List<?>) Json.parse(send("GET", "/search?q=progr", null).body());
+        assertEquals("B001", ((Map<?, ?>) results.get(0)).get("id"));
+    }
+    
+    @Test
+    void testRequestsRunOnVirtualThreadsWhereTheJvmHasThem() throws Exception {
+        ExecutorService executor = LibraryHttpServer.newRequestExecutor();
+        try {
+            Thread thread = executor.submit(Thread::currentThread).get();
+            boolean virtual = Runtime.version().feature() >= 21
+                && (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+            assertEquals(Runtime.version().feature() >= 21, virtual);
+            if (!virtual) {
+                assertTrue(executor instanceof ThreadPoolExecutor);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    void testOverdueIsReadWithGetAndCheckedWithPost() throws Exception {
+        Instant borrowed = Instant.parse("2024-01-01T00:00:00Z");
+        libraryService.setClock(Clock.fixed(borrowed, ZoneOffset.UTC));
+        libraryService.addBook(new Book("B001", "Java Programming", "John Doe"));
+        libraryService.addMember(new Member("M001", "Alice", "a@x.com"));
+        List<String> notified = new CopyOnWriteArrayList<>();
+        libraryService.addListener(new CirculationListener() {
+            @Override
+            public void loanOverdue(Transaction transaction) {
+                notified.add(transaction.getBookId());
+            }
+        });
+        assertTrue(libraryService.borrowBook("B001", "M001"));
+        libraryService.setClock(Clock.fixed(borrowed.plusSeconds(30 * 86_400), ZoneOffset.UTC));
+        
+        // Reading changes nothing; only the check moves tracking on and notifies listeners
+        assertTrue(((List<?>) Json.parse(send("GET", "/overdue", null).body())).isEmpty());
+        assertTrue(notified.isEmpty());
+        HttpResponse<String> checked = send("POST", "/overdue/check", null);
+        assertEquals(200, checked.statusCode());
+        assertEquals(1, ((List<?>) Json.parse(checked.body())).size());
+        assertEquals(List.of("B001"), notified);
+        assertEquals(1, ((List<?>) Json.parse(send("GET", "/overdue", null).body())).size());
+        assertTrue(((List<?>) Json.parse(send("POST", "/overdue/check", null).body())).isEmpty());
+        assertEquals(404, send("GET", "/overdue/check", null).statusCode());
+        assertEquals(List.of("B001"), notified);
+    }
+    
+    @Test
+    void testBorrowAndReturnOverHttp() throws Exception {
+        libraryService.addBook(new Book("B001", "Java Programming", "John Doe"));
+        libraryService.addBook(new Book("B002", "Data Structures", "Jane Smith"));
+        libraryService.addMember(new Member("M001", "Alice", "a@x.com"));
+        
+        HttpResponse<String> borrowed = send("POST", "/loans", "{\"memberId\": \"M001\", \"bookId\": \"B001\"}");
+        assertEquals(201, borrowed.statusCode());
+        Map<String, Object> loan = object(borrowed);
+        assertEquals("B001", loan.get("bookId"));
+        assertNotNull(loan.get("dueDate"));
+        
+        assertError(409, "NOT_AVAILABLE", send("POST", "/loans", "{\"memberId\": \"M001\", \"bookId\": \"B001\"}"));
+        assertError(404, "MEMBER_NOT_FOUND", send("POST", "/loans", "{\"memberId\": \"M404\", \"bookId\": \"B002\"}"));
+        assertError(404, "BOOK_NOT_FOUND", send("POST", "/loans", "{\"memberId\": \"M001\", \"bookId\": \"B404\"}"));
+        assertEquals(1, ((List<?>) Json.parse(send("GET", "/members/M001/loans", null).body())).size());
+        
+        assertEquals(200, send("POST", "/returns", "{\"bookId\": \"B001\"}").statusCode());
+        assertError(409, "NO_ACTIVE_LOAN", send("POST", "/returns", "{\"bookId\": \"B001\"}"));
+        
+        assertEquals(201, send("POST", "/loans", "{\"memberId\": \"M001\", \"bookIds\": [\"B001\", \"B002\"]}").statusCode());
+        assertEquals(200, send("POST", "/returns", "{\"bookIds\": [\"B001\", \"B002\"]}").statusCode());
+        assertEquals(3, ((List<?>) object(send("GET", "/transactions", null)).get("items")).size());
+        
+        Map<?, ?> successes = (Map<?, ?>) object(send("GET", "/metrics", null)).get("successes");
+        assertEquals(new BigDecimal(1), successes.get("BORROW"));
+        
+        Map<String, Object> stats = object(send("GET", "/stats?limit=1", null));
+        assertEquals(new BigDecimal(3), stats.get("totalLoans"));
+        assertEquals(new BigDecimal(0), stats.get("activeLoans"));
+        Map<?, ?> top = (Map<?, ?>) ((List<?>) stats.get("mostBorrowedBooks")).get(0);
+        assertEquals("B001", top.get("bookId"));
+        assertEquals("Java Programming", top.get("title"));
+        assertEquals(new BigDecimal(2), top.get("loans"));
+        assertEquals(1, ((List<?>) stats.get("mostActiveMembers")).size());
+        assertEquals(new BigDecimal(3), ((Map<?, ?>) stats.get("loansPerDay")).values().iterator().next());
+        assertEquals(400, send("GET", "/stats?days=0", null).statusCode());
+    }
+    
+    @Test
+    void testHoldsOverHttp() throws Exception {
+        libraryService.addBook(new Book("B001", "Java Programming", "John Doe"));
+        libraryService.addMember(new Member("M001", "Alice", "a@x.com"));
+        libraryService.addMember(new Member("M002", "Bob", "b@x.com"));
+        
+        assertError(409, "BOOK_AVAILABLE", send("POST", "/holds", "{\"memberId\": \"M002\", \"bookId\": \"B001\"}"));
+        assertTrue(libraryService.borrowBook("B001", "M001"));
+        HttpResponse<String> placed = send("POST", "/holds", "{\"memberId\": \"M002\", \"bookId\": \"B001\"}");
+        assertEquals(201, placed.statusCode());
+        assertEquals(new BigDecimal(1), object(placed).get("position"));
+        assertError(409, "ALREADY_HELD", send("POST", "/holds", "{\"memberId\": \"M002\", \"bookId\": \"B001\"}"));
+        assertEquals(1, ((List<?>) Json.parse(send("GET", "/members/M002/holds", null).body())).size());
+        
+        assertEquals(200, send("POST", "/returns", "{\"bookId\": \"B001\"}").statusCode());
+        Map<String, Object> ready = object(send("GET", "/holds/B001/M002", null));
+        assertEquals(Boolean.TRUE, ready.get("ready"));
+        assertNotNull(ready.get("pickupDeadline"));
+        assertError(404, "NO_HOLD", send("DELETE", "/holds/B001/M002", null));
+        
+        assertEquals(201, send("POST", "/holds", "{\"memberId\": \"M001\", \"bookId\": \"B001\"}").statusCode());
+        assertEquals(200, send("DELETE", "/holds/B001/M001", null).statusCode());
+        assertError(404, "NO_HOLD", send("GET", "/holds/B001/M001", null));
+    }
+    
+    @Test
+    void testMalformedRequestsAreRejected() throws Exception {
+        assertEquals(400, send("POST", "/books", "{\"id\": \"B001\"").statusCode());
+        assertEquals(400, send("POST", "/books", "{\"id\": \"B001\", \"title\": 7, \"author\": \"A\"}").statusCode());
+        assertEquals(400, send("POST", "/loans", "[]").statusCode());
+        assertEquals(400, send("GET", "/books?limit=0", null).statusCode());
+        assertEquals(400, send("GET", "/search", null).statusCode());
+        assertEquals(404, send("DELETE", "/books/B001", null).statusCode());
+        assertEquals(404, send("GET", "/booksX", null).statusCode());
+    }
+    
+    @Test
+    void testJsonRoundTrip() {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("text", "tab\there \"quoted\" \\ \u0001 \u00e9");
+        value.put("list", List.of(1, 2.5, true));
+        value.put("none", null);
+        
+        String json = Json.write(value);
+        Map<?, ?> parsed = (Map<?, ?>) Json.parse(json);
+        assertEquals(value.get("text"), parsed.get("text"));
+        assertEquals(List.of(new BigDecimal("1"), new BigDecimal("2.5"), true), parsed.get("list"));
+        assertTrue(parsed.containsKey("none"));
+        assertEquals("\u00e9/", Json.parse("\"\\u00e9\\/\""));
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("{\"a\": 1} x"));
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("[1, 2"));
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("\"\\q\""));
+    }
+    
+    @Test
+    void testRequestsRunOnVirtualThreadsWhenAvailable() throws Exception {
+        ExecutorService executor = LibraryHttpServer.newRequestExecutor();
+        try {
+            Thread thread = executor.submit(Thread::currentThread).get();
+            assertNotSame(Thread.currentThread(), thread);
+            if (Runtime.version().feature() >= 21) {
+                assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    private HttpResponse<String> send(String method, String path, String body) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getPort() + path));
+        request.method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body));
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> object(HttpResponse<String> response) {
+        assertTrue(response.statusCode() < 300, response.body());
+        assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("application/json"));
+        return (Map<String, Object>) Json.parse(response.body());
+    }
+    
+    private static void assertError(int status, String reason, HttpResponse<String> response) {
+        assertEquals(status, response.statusCode(), response.body());
+        assertEquals(reason, ((Map<?, ?>) Json.parse(response.body())).get("error"));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,864 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class LibraryPersistenceTest {
+    @TempDir
+    Path tempDir;
+    
+    @Test
+    void testRecoverReplaysEveryDurabilityLevel() throws IOException {
+        for (WriteAheadLog.Durability durability : WriteAheadLog.Durability.values()) {
+            Path logFile = tempDir.resolve(durability.name() + ".wal");
+            LibraryService original = new LibraryService();
+            try (WriteAheadLog log = new WriteAheadLog(logFile, durability, 5)) {
+                original.addListener(log);
+                populate(original);
+            }
+            
+            LibraryService recovered = new LibraryService();
+            assertEquals(9, WriteAheadLog.recover(logFile, recovered));
+            assertSameState(original, recovered);
+        }
+    }
+    
+    @Test
+    void testRecoveredServiceContinuesTransactionIds() throws IOException {
+        Path logFile = tempDir.resolve("library.wal");
+        LibraryService original = new LibraryService();
+        try (WriteAheadLog log = new WriteAheadLog(logFile, WriteAheadLog.Durability.SYNC, 0)) {
+            original.addListener(log);
+            populate(original);
+        }
+        
+        LibraryService recovered = new LibraryService();
+        WriteAheadLog.recover(logFile, recovered);
+        assertTrue(recovered.borrowBook("B003", "M001"));
+        List<Transaction> transactions = recovered.getAllTransactions();
+        assertEquals("TXN000000000004", transactions.get(transactions.size() - 1).getId());
+    }
+    
+    @Test
+    void testRecoverIsIdempotent() throws IOException {
+        Path logFile = tempDir.resolve("library.wal");
+        LibraryService original = new LibraryService();
+        try (WriteAheadLog log = new WriteAheadLog(logFile, WriteAheadLog.Durability.SYNC, 0)) {
+            original.addListener(log);
+            populate(original);
+        }
+        
+        LibraryService recovered = new LibraryService();
+        WriteAheadLog.recover(logFile, recovered);
+        WriteAheadLog.recover(logFile, recovered);
+        assertSameState(original, recovered);
+    }
+    
+    @Test
+    void testRecoverTruncatesTornTail() throws IOException {
+        Path logFile = tempDir.resolve("library.wal");
+        LibraryService original = new LibraryService();
+        try (WriteAheadLog log = new WriteAheadLog(logFile, WriteAheadLog.Durability.SYNC, 0)) {
+            original.addListener(log);
+            populate(original);
+        }
+        long validSize = Files.size(logFile);
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 40, 1, 2, 3}));
+        }
+        
+        LibraryService recovered = new LibraryService();
+        assertEquals(9, WriteAheadLog.recover(logFile, recovered));
+        assertEquals(validSize, Files.size(logFile));
+        
+        try (WriteAheadLog log = new WriteAheadLog(logFile, WriteAheadLog.Durability.SYNC, 0)) {
+            recovered.addListener(log);
+            assertTrue(recovered.returnBook("B002"));
+        }
+        LibraryService again = new LibraryService();
+        assertEquals(10, WriteAheadLog.recover(logFile, again));
+        assertSameState(recovered, again);
+    }
+    
+    @Test
+    void testBatchAddsAreLoggedAndRecovered() throws IOException {
+        Path logFile = tempDir.resolve("library.wal");
+        LibraryService original = new LibraryService();
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            books.add(new Book("B" + i, "Book " + i, "Author"));
+        }
+        try (WriteAheadLog log = new WriteAheadLog(logFile, WriteAheadLog.Durability.SYNC, 0)) {
+            original.addListener(log);
+            assertEquals(500, original.addBooks(books));
+            assertEquals(1, original.addMembers(List.of(new Member("M1", "Member", "m@email.com"))));
+        }
+        
+        LibraryService recovered = new LibraryService();
+        assertEquals(501, WriteAheadLog.recover(logFile, recovered));
+        assertSameState(original, recovered);
+    }
+    
+    @Test
+    void testBatchCheckoutIsOneRecordAndTornBatchIsDropped() throws IOException {
+        Path logFile = tempDir.resolve("library.wal");
+        LibraryService original = new LibraryService();
+        original.addBook(new Book("B1", "Book 1", "Author"));
+        original.addBook(new Book("B2", "Book 2", "Author"));
+        original.addBook(new Book("B3", "Book 3", "Author"));
+        original.addMember(new Member("M1", "Member", "m@email.com"));
+        try (WriteAheadLog log = new WriteAheadLog(logFile, WriteAheadLog.Durability.SYNC, 0)) {
+            original.addListener(log);
+            assertTrue(original.borrowBooks("M1", List.of("B1", "B2", "B3")));
+            assertTrue(original.returnBooks(List.of("B1", "B3")));
+        }
+        
+        LibraryService recovered = newCatalog();
+        assertEquals(2, WriteAheadLog.recover(logFile, recovered));
+        assertSameState(original, recovered);
+        
+        // Cut the return batch short: none of its returns may survive
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        LibraryService torn = newCatalog();
+        assertEquals(1, WriteAheadLog.recover(logFile, torn));
+        assertEquals(3, torn.getActiveLoanCount("M1"));
+        assertTrue(torn.streamTransactions().noneMatch(Transaction::isReturned));
+    }
+    
+    private static LibraryService newCatalog() {
+        LibraryService service = new LibraryService();
+        service.addBook(new Book("B1", "Book 1", "Author"));
+        service.addBook(new Book("B2", "Book 2", "Author"));
+        service.addBook(new Book("B3", "Book 3", "Author"));
+        service.addMember(new Member("M1", "Member", "m@email.com"));
+        return service;
+    }
+    
+    @Test
+    void testGroupCommitUnderConcurrency() throws Exception {
+        Path logFile = tempDir.resolve("library.wal");
+        int threads = 8;
+        int operations = 200;
+        LibraryService original = new LibraryService();
+        for (int i = 0; i < threads; i++) {
+            original.addBook(new Book("B" + i, "Book " + i, "Author"));
+            original.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        try (WriteAheadLog log = new WriteAheadLog(logFile, WriteAheadLog.Durability.SYNC, 0)) {
+            original.addListener(log);
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String bookId = "B" + t;
+                String memberId = "M" + t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < operations; i++) {
+                        assertTrue(original.borrowBook(bookId, memberId));
+                        assertTrue(original.returnBook(bookId));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            executor.shutdown();
+        }
+        
+        LibraryService recovered = new LibraryService();
+        for (int i = 0; i < threads; i++) {
+            recovered.addBook(new Book("B" + i, "Book " + i, "Author"));
+            recovered.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        assertEquals(2L * threads * operations, WriteAheadLog.recover(logFile, recovered));
+        assertSameState(original, recovered);
+    }
+    
+    @Test
+    void testLogFailureAbortsOperation() {
+        LibraryService service = new LibraryService();
+        service.addBook(new Book("B001", "Book", "Author"));
+        service.addMember(new Member("M001", "Member", "m@email.com"));
+        service.addListener(new CirculationListener() {
+            @Override
+            public void bookBorrowed(Transaction transaction) {
+                throw new IllegalStateException("log unavailable");
+            }
+        });
+        
+        assertThrows(IllegalStateException.class, () -> service.borrowBook("B001", "M001"));
+        assertTrue(service.getAllBooks().get(0).isAvailable());
+        assertEquals(0, service.getAllTransactions().size());
+    }
+    
+    @Test
+    void testLogFailureAbortsWholeBatch() {
+        LibraryService service = newCatalog();
+        assertTrue(service.borrowBook("B3", "M1"));
+        service.addListener(new CirculationListener() {
+            @Override
+            public void booksBorrowed(List<Transaction> transactions) {
+                throw new IllegalStateException("log unavailable");
+            }
+            
+            @Override
+            public void booksReturned(List<Transaction> transactions) {
+                throw new IllegalStateException("log unavailable");
+            }
+        });
+        
+        assertThrows(IllegalStateException.class, () -> service.borrowBooks("M1", List.of("B1", "B2")));
+        assertThrows(IllegalStateException.class, () -> service.returnBooks(List.of("B3")));
+        assertEquals(1, service.getAllTransactions().size());
+        assertEquals(1, service.getActiveLoanCount("M1"));
+        assertFalse(service.getAllTransactions().get(0).isReturned());
+        assertTrue(service.getAllBooks().get(0).isAvailable());
+    }
+    
+    @Test
+    void testClosedLogRejectsAppends() throws IOException {
+        WriteAheadLog log = new WriteAheadLog(tempDir.resolve("library.wal"), WriteAheadLog.Durability.ASYNC, 5);
+        log.close();
+        assertThrows(IllegalStateException.class, () -> log.bookAdded(new Book("B001", "Book", "Author")));
+    }
+    
+    @Test
+    void testStoreRestoresSnapshotPlusLogTail() throws IOException {
+        Path dataDir = tempDir.resolve("data");
+        LibraryService original = new LibraryService();
+        try (LibraryStore store = LibraryStore.open(dataDir, original, WriteAheadLog.Durability.SYNC, 0)) {
+            assertTrue(store.isFresh());
+            populate(original);
+            store.snapshot();
+            original.returnBook("B002");
+            original.addBook(new Book("B004", "Database Design", "Sarah Wilson"));
+            original.borrowBook("B004", "M001");
+        }
+        assertEquals(1, Files.list(dataDir).filter(file -> file.toString().endsWith(".snap")).count());
+        
+        LibraryService restored = new LibraryService();
+        try (LibraryStore store = LibraryStore.open(dataDir, restored, WriteAheadLog.Durability.SYNC, 0)) {
+            assertFalse(store.isFresh());
+            assertSameState(original, restored);
+            assertTrue(restored.borrowBook("B002", "M002"));
+            store.snapshot();
+            store.snapshot();
+        }
+        
+        LibraryService again = new LibraryService();
+        LibraryStore store = LibraryStore.open(dataDir, again, WriteAheadLog.Durability.SYNC, 0);
+        try (store) {
+            assertSameState(restored, again);
+        }
+        assertEquals(1, Files.list(dataDir).filter(file -> file.toString().endsWith(".wal")).count());
+    }
+    
+    @Test
+    void testDueDatesAndOverdueTrackingSurviveRestart() throws IOException {
+        Path dataDir = tempDir.resolve("data");
+        Clock borrowDay = Clock.fixed(Instant.parse("2024-03-01T10:00:00Z"), ZoneOffset.UTC);
+        LibraryService original = new LibraryService();
+        original.setClock(borrowDay);
+        original.setLoanPolicy(LoanPolicy.fixed(10));
+        try (LibraryStore store = LibraryStore.open(dataDir, original, WriteAheadLog.Durability.SYNC, 0)) {
+            populate(original);
+            store.snapshot();
+            assertTrue(original.borrowBook("B003", "M001"));
+        }
+        
+        LibraryService restored = new LibraryService();
+        restored.setClock(Clock.fixed(Instant.parse("2024-03-20T10:00:00Z"), ZoneOffset.UTC));
+        LibraryStore store = LibraryStore.open(dataDir, restored, WriteAheadLog.Durability.SYNC, 0);
+        try (store) {
+            assertSameState(original, restored);
+            List<Transaction> overdue = restored.checkOverdue();
+            assertEquals(List.of("B002", "B001", "B003"), overdue.stream().map(Transaction::getBookId).collect(Collectors.toList()));
+            assertEquals(LocalDate.of(2024, 3, 11), overdue.get(0).getDueDate());
+        }
+    }
+    
+    @Test
+    void testHoldsSurviveReplayAndSnapshot() throws IOException {
+        Path dataDir = tempDir.resolve("data");
+        Clock today = Clock.fixed(Instant.parse("2024-03-01T10:00:00Z"), ZoneOffset.UTC);
+        LibraryService original = new LibraryService();
+        original.setClock(today);
+        try (LibraryStore store = LibraryStore.open(dataDir, original, WriteAheadLog.Durability.SYNC, 0)) {
+            populate(original);
+            original.addMember(new Member("M003", "Carol White", "carol@email.com"));
+            // B002: M001 waits behind a cancelled hold; B001: returned to M001, who has not collected it yet
+            assertTrue(original.placeHold("B002", "M003"));
+            assertTrue(original.placeHold("B002", "M001"));
+            assertTrue(original.placeHold("B001", "M001"));
+            store.snapshot();
+            assertTrue(original.cancelHold("B002", "M003"));
+            assertTrue(original.placeHold("B001", "M003"));
+            assertTrue(original.returnBook("B001"));
+        }
+        
+        LibraryService replayed = new LibraryService();
+        replayed.setClock(today);
+        try (LibraryStore store = LibraryStore.open(dataDir, replayed, WriteAheadLog.Durability.SYNC, 0)) {
+            assertSameHolds(original, replayed);
+            store.snapshot();
+        }
+        LibraryService restored = new LibraryService();
+        restored.setClock(today);
+        LibraryStore store = LibraryStore.open(dataDir, restored, WriteAheadLog.Durability.SYNC, 0);
+        try (store) {
+            assertSameHolds(original, restored);
+            assertEquals(LocalDate.of(2024, 3, 8), restored.getHold("B001", "M001").getPickupDeadline());
+            assertEquals(1, restored.getHoldPosition("B002", "M001"));
+            assertEquals(1, restored.getHoldPosition("B001", "M003"));
+            assertTrue(restored.borrowBook("B001", "M001"));
+            assertTrue(restored.getHolds("M001").stream().noneMatch(Hold::isReady));
+        }
+    }
+    
+    @Test
+    void testCopiesSurviveReplaySnapshotAndArchive() throws IOException {
+        Path dataDir = tempDir.resolve("data");
+        Clock today = Clock.fixed(Instant.parse("2024-03-01T10:00:00Z"), ZoneOffset.UTC);
+        LibraryService original = new LibraryService();
+        original.setClock(today);
+        try (LibraryStore store = LibraryStore.open(dataDir, original, WriteAheadLog.Durability.SYNC, 0)) {
+            populate(original);
+            assertTrue(original.addBook(new Book("B010", "Popular Novel", "Ann Lee", 3)));
+            assertTrue(original.borrowBook("B010", "M001"));
+            assertTrue(original.borrowBook("B010#3", "M002"));
+            assertTrue(original.returnBook("B010"));
+            store.snapshot();
+            assertTrue(original.borrowBook("B010", "M001"));
+            assertTrue(original.borrowBook("B010", "M002"));
+            original.addMember(new Member("M003", "Carol White", "carol@email.com"));
+            assertTrue(original.placeHold("B010", "M003"));
+            assertTrue(original.returnBook("B010#2"));
+        }
+        
+        LibraryService replayed = new LibraryService();
+        replayed.setClock(today);
+        try (LibraryStore store = LibraryStore.open(dataDir, replayed, WriteAheadLog.Durability.SYNC, 0)) {
+            assertSameHolds(original, replayed);
+            assertEquals(3, replayed.findBookById("B010").getCopies());
+            assertEquals("B010#2", replayed.getHold("B010", "M003").getCopyId());
+            store.snapshot();
+        }
+        LibraryService restored = new LibraryService();
+        restored.setClock(today);
+        LibraryStore store = LibraryStore.open(dataDir, restored, WriteAheadLog.Durability.SYNC, 0);
+        try (store) {
+            assertSameHolds(original, restored);
+            assertTrue(restored.getArchive().count() > 0);
+            assertEquals(0, restored.findBookById("B010").getAvailableCopies());
+            assertTrue(restored.borrowBook("B010", "M003"));
+            assertEquals("B010#2", restored.findActiveTransactionByBookId("B010#2").getCopyId());
+            assertEquals("M003", restored.findActiveTransactionByBookId("B010#2").getMemberId());
+        }
+    }
+    
+    @Test
+    void testRemovedBookStaysRemovedAfterReplay() throws IOException {
+        Path dataDir = tempDir.resolve("data");
+        LibraryService original = new LibraryService();
+        LibraryStore store = LibraryStore.open(dataDir, original, WriteAheadLog.Durability.SYNC, 0);
+        try (store) {
+            populate(original);
+            assertTrue(original.addBook(new Book("B010", "Travelling Novel", "Ann Lee", 2)));
+            assertTrue(original.borrowBook("B010", "M001"));
+            assertTrue(original.returnBook("B010"));
+            assertTrue(original.removeBook("B010"));
+        }
+        
+        LibraryService replayed = new LibraryService();
+        LibraryStore replayStore = LibraryStore.open(dataDir, replayed, WriteAheadLog.Durability.SYNC, 0);
+        try (replayStore) {
+            assertNull(replayed.findBookById("B010"));
+            assertTrue(replayed.searchBooks("travelling", 10).isEmpty());
+            assertEquals(original.getAllTransactions().size(), replayed.getAllTransactions().size());
+            assertTrue(replayed.addBook(new Book("B010", "Travelling Novel", "Ann Lee")));
+        }
+    }
+    
+    @Test
+    void testShardedLibraryFindsPlacedAndTransferredTitlesAfterRestart() throws IOException {
+        Path dataDir = tempDir.resolve("branches");
+        int placed;
+        int moved;
+        int home;
+        int duplicated;
+        try (ShardedLibrary library = ShardedLibrary.open(dataDir, 3, WriteAheadLog.Durability.SYNC, 0)) {
+            placed = (library.shardOfBook("B001") + 1) % 3;
+            assertTrue(library.addBook(placed, new Book("B001", "Placed Book", "Ann Lee")));
+            assertTrue(library.addBook(new Book("B002", "Moved Book", "Bo Chen", 2)));
+            moved = (library.shardOfBook("B002") + 1) % 3;
+            assertTrue(library.transferBook("B002", moved));
+            home = (library.shardOfMember("M001") + 2) % 3;
+            assertTrue(library.addMember(home, new Member("M001", "Placed Member", "placed@email.com")));
+            assertTrue(library.borrowBook("B002", "M001"));
+            library.snapshot();
+            assertTrue(library.addBook(new Book("B003", "Half Moved Book", "Ann Lee")));
+            // A transfer cut short after adding the title to its new branch
+            duplicated = (library.shardOfBook("B003") + 1) % 3;
+            assertTrue(library.getShard(duplicated).addBook(new Book("B003", "Half Moved Book", "Ann Lee")));
+        }
+        
+        try (ShardedLibrary library = ShardedLibrary.open(dataDir, 3, WriteAheadLog.Durability.SYNC, 0)) {
+            assertEquals(placed, library.shardOfBook("B001"));
+            assertEquals("Placed Book", library.getBook("B001").getTitle());
+            assertEquals(moved, library.shardOfBook("B002#2"));
+            assertEquals(home, library.shardOfMember("M001"));
+            assertNotNull(library.getMember("M001"));
+            assertEquals(1, library.getActiveLoans("M001").size());
+            assertTrue(library.returnBook("B002"));
+            assertTrue(library.borrowBook("B001", "M001"));
+            
+            int holders = 0;
+            for (int shard = 0; shard < 3; shard++) {
+                holders += library.getShard(shard).findBookById("B003") == null ? 0 : 1;
+            }
+            assertEquals(1, holders);
+            assertNotNull(library.getBook("B003"));
+        }
+        
+        // The duplicate's removal was logged, and the shard count cannot change under the data
+        try (ShardedLibrary library = ShardedLibrary.open(dataDir, 3, WriteAheadLog.Durability.SYNC, 0)) {
+            int branch = library.shardOfBook("B003");
+            assertNotNull(library.getBook("B003"));
+            assertNull(library.getShard(branch == duplicated ? (branch + 1) % 3 : duplicated).findBookById("B003"));
+        }
+        assertThrows(IllegalArgumentException.class,
+            () -> ShardedLibrary.open(dataDir, 4, WriteAheadLog.Durability.SYNC, 0));
+    }
+    
+    @Test
+    void testSnapshotTakenDuringCirculationIsConsistentAfterReplay() throws Exception {
+        Path dataDir = tempDir.resolve("data");
+        int threads = 4;
+        LibraryService original = new LibraryService();
+        try (LibraryStore store = LibraryStore.open(dataDir, original, WriteAheadLog.Durability.BATCHED, 2)) {
+            for (int i = 0; i < threads * 10; i++) {
+                original.addBook(new Book("B" + i, "Book " + i, "Author"));
+            }
+            for (int t = 0; t < threads; t++) {
+                original.addMember(new Member("M" + t, "Member " + t, "m" + t + "@email.com"));
+            }
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 2000; i++) {
+                        String bookId = "B" + (thread * 10 + i % 10);
+                        original.borrowBook(bookId, "M" + thread);
+                        if (i % 3 != 0) {
+                            original.returnBook(bookId);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (int i = 0; i < 5; i++) {
+                store.snapshot();
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            executor.shutdown();
+        }
+        
+        LibraryService restored = new LibraryService();
+        LibraryStore store = LibraryStore.open(dataDir, restored, WriteAheadLog.Durability.SYNC, 0);
+        try (store) {
+            assertSameState(original, restored);
+        }
+    }
+    
+    @Test
+    void testSnapshotRestoreTime() throws IOException {
+        int bookCount = 100_000;
+        int loanCount = 500_000;
+        LibraryService original = new LibraryService();
+        for (int i = 0; i < bookCount; i++) {
+            original.addBook(new Book("B" + i, "Title " + i, "Author " + (i % 5000)));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            original.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        for (int i = 0; i < loanCount; i++) {
+            String bookId = "B" + (i % bookCount);
+            original.borrowBook(bookId, "M" + (i % 10_000));
+            if (i < loanCount - bookCount / 2) {
+                original.returnBook(bookId);
+            }
+        }
+        Path snapshot = tempDir.resolve("library.snap");
+        SnapshotFile.write(original, 7, snapshot);
+        
+        long started = System.nanoTime();
+        LibraryService restored = new LibraryService();
+        assertEquals(7, SnapshotFile.load(snapshot, restored));
+        long elapsedMillis = (System.nanoTime() - started) / 1_000_000;
+        
+        assertEquals(bookCount, restored.getAllBooks().size());
+        assertEquals(loanCount, restored.getAllTransactions().size());
+        assertEquals(loanCount, restored.getStatistics().getTotalLoans());
+        assertEquals(bookCount / 2, restored.getStatistics().getActiveLoans());
+        assertTrue(restored.returnBook("B" + (bookCount - 1)));
+        assertTrue(elapsedMillis < 8_000, elapsedMillis + " ms");
+    }
+    
+    @Test
+    void testTruncatedSnapshotIsRejected() throws IOException {
+        LibraryService original = new LibraryService();
+        populate(original);
+        Path snapshot = tempDir.resolve("library.snap");
+        SnapshotFile.write(original, 1, snapshot);
+        byte[] bytes = Files.readAllBytes(snapshot);
+        Files.write(snapshot, Arrays.copyOf(bytes, bytes.length - 4));
+        
+        assertThrows(IOException.class, () -> SnapshotFile.load(snapshot, new LibraryService()));
+    }
+    
+    @Test
+    void testSnapshotMovesReturnedLoansToArchive() throws IOException {
+        Path dataDir = tempDir.resolve("data");
+        Clock today = Clock.fixed(Instant.parse("2024-03-01T10:00:00Z"), ZoneOffset.UTC);
+        // The same changes go to a service that keeps everything in memory, to compare against
+        LibraryService reference = new LibraryService();
+        reference.setClock(today);
+        LibraryService original = new LibraryService();
+        original.setClock(today);
+        try (LibraryStore store = LibraryStore.open(dataDir, original, WriteAheadLog.Durability.ASYNC, 5)) {
+            for (LibraryService service : List.of(reference, original)) {
+                circulate(service, 0, 3);
+            }
+            store.snapshot();
+            assertEquals(200, original.getArchive().count());
+            assertEquals(100, original.streamTransactionsInMemory().count());
+            assertTrue(Files.isDirectory(dataDir.resolve(TransactionArchive.DIRECTORY)));
+            assertSameState(reference, original);
+            assertSamePages(reference, original);
+            
+            // Later passes add segments that are merged, and the merged-away files are deleted
+            for (int round = 0; round < 4; round++) {
+                for (LibraryService service : List.of(reference, original)) {
+                    circulate(service, 3 + round, 1);
+                }
+                store.snapshot();
+            }
+            assertEquals(600, original.getArchive().count());
+            assertEquals(100, original.streamTransactionsInMemory().count());
+            try (Stream<Path> files = Files.list(dataDir.resolve(TransactionArchive.DIRECTORY))) {
+                assertEquals(original.getArchive().getSegmentNames().size(), files.count());
+            }
+            assertSameState(reference, original);
+            
+            // Returned after the last snapshot: in memory until the next one
+            for (LibraryService service : List.of(reference, original)) {
+                assertTrue(service.returnBook("B0001"));
+            }
+        }
+        
+        LibraryService restored = new LibraryService();
+        restored.setClock(today);
+        LibraryStore store = LibraryStore.open(dataDir, restored, WriteAheadLog.Durability.ASYNC, 5);
+        try (store) {
+            assertSameState(reference, restored);
+            assertSamePages(reference, restored);
+            assertTrue(restored.borrowBook("B0001", "M001"));
+            assertTrue(reference.borrowBook("B0001", "M001"));
+            assertSameState(reference, restored);
+        }
+    }
+    
+    @Test
+    void testReplayedLoanAlreadyArchivedIsSkipped() throws IOException {
+        LibraryService service = new LibraryService();
+        populate(service);
+        service.loadArchive(new TransactionArchive(tempDir.resolve("archive")));
+        assertEquals(1, service.archiveReturnedLoans());
+        assertEquals(3, service.getAllTransactions().size());
+        
+        // The log tail replayed over a snapshot can hold the borrow and return of a loan the snapshot archived
+        Transaction archived = service.getArchive().find(1);
+        service.restoreBorrow(archived.getId(), archived.getBookId(), archived.getMemberId(), archived.getBorrowDate(),
+            archived.getDueDate());
+        service.restoreReturn(archived.getId(), archived.getBookId(), archived.getReturnDate());
+        assertEquals(3, service.getAllTransactions().size());
+        assertEquals(ids(service.getAllTransactions()), ids(service.streamTransactions().collect(Collectors.toList())));
+        assertEquals(List.of("TXN000000000001"), ids(service.getLoanHistory("M001")));
+        assertEquals(List.of("TXN000000000002", "TXN000000000003"), ids(service.getLoanHistory("M002")));
+        assertFalse(service.findBookById("B001").isAvailable());
+    }
+    
+    @Test
+    void testLoanHistoryReadsOnlySegmentsHoldingTheMember() throws IOException {
+        Path directory = tempDir.resolve("archive");
+        LibraryService service = new LibraryService();
+        service.loadArchive(new TransactionArchive(directory));
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(service.addBook(new Book("B" + i, "Book " + i, "Author")));
+        }
+        assertTrue(service.addMember(new Member("M001", "First Member", "first@email.com")));
+        assertTrue(service.addMember(new Member("M002", "Second Member", "second@email.com")));
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(service.borrowBook("B" + i, "M001"));
+            assertTrue(service.returnBook("B" + i));
+        }
+        assertEquals(10, service.archiveReturnedLoans());
+        assertTrue(service.borrowBook("B1", "M002"));
+        assertTrue(service.returnBook("B1"));
+        assertEquals(1, service.archiveReturnedLoans());
+        List<String> segments = service.getArchive().getSegmentNames();
+        assertEquals(2, segments.size());
+        
+        // Garbles the first block of M001's segment, so any read of it fails
+        try (FileChannel channel = FileChannel.open(directory.resolve(segments.get(0)), StandardOpenOption.WRITE)) {
+            byte[] garbage = new byte[16];
+            Arrays.fill(garbage, (byte) 0xFF);
+            channel.write(ByteBuffer.wrap(garbage), Long.BYTES + Integer.BYTES);
+        }
+        assertEquals(List.of("TXN000000000011"), ids(service.getLoanHistory("M002")));
+        assertThrows(UncheckedIOException.class, () -> service.getLoanHistory("M001"));
+    }
+    
+    @Test
+    void testTransactionArchiveMergesSegmentsInIdOrder() throws IOException {
+        Path directory = tempDir.resolve("archive");
+        TransactionArchive archive = new TransactionArchive(directory);
+        // Loans are returned in any order, so each batch's IDs overlap the earlier ones'
+        List<Transaction> all = new ArrayList<>();
+        for (int batch = 0; batch < 5; batch++) {
+            List<Transaction> transactions = new ArrayList<>();
+            for (long id = batch; id < 10_000; id += 5) {
+                Transaction transaction = new Transaction(TransactionIdAllocator.format(id), "B" + (id % 97),
+                    "M" + (id % 13), LocalDate.of(2020, 1, 1).plusDays(id / 50), LocalDate.of(2020, 1, 15).plusDays(id / 50));
+                transaction.setReturnDate(LocalDate.of(2020, 1, 10).plusDays(id / 40));
+                transaction.setReturned(true);
+                transactions.add(transaction);
+            }
+            archive = archive.append(transactions.iterator());
+            all.addAll(transactions);
+        }
+        all.sort(Comparator.comparing(Transaction::getId));
+        
+        assertEquals(10_000, archive.count());
+        assertEquals(9_999, archive.getLastId());
+        assertTrue(archive.getSegmentNames().size() <= 3);
+        List<Transaction> streamed = archive.stream().collect(Collectors.toList());
+        assertEquals(ids(all), ids(streamed));
+        for (int i = 0; i < all.size(); i += 997) {
+            Transaction expected = all.get(i);
+            Transaction actual = archive.find(TransactionIdAllocator.parse(expected.getId()));
+            assertEquals(expected.getBookId(), actual.getBookId());
+            assertEquals(expected.getMemberId(), actual.getMemberId());
+            assertEquals(expected.getBorrowDate(), actual.getBorrowDate());
+            assertEquals(expected.getDueDate(), actual.getDueDate());
+            assertEquals(expected.getReturnDate(), actual.getReturnDate());
+            assertTrue(actual.isReturned());
+        }
+        assertNull(archive.find(10_000));
+        List<Transaction> tail = new ArrayList<>();
+        archive.iterator(9_989).forEachRemaining(tail::add);
+        assertEquals(ids(all.subList(9_990, 10_000)), ids(tail));
+        
+        // Only the segments it names survive a reopen and a cleanup
+        TransactionArchive reopened = TransactionArchive.open(directory, archive.getSegmentNames());
+        reopened.deleteUnusedSegments();
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(archive.getSegmentNames().size(), files.count());
+        }
+        assertEquals(ids(all), ids(reopened.stream().collect(Collectors.toList())));
+    }
+    
+    @Test
+    void testReplicasFollowPrimaryAndCatchUpFromSnapshot() throws Exception {
+        LibraryService primaryService = new LibraryService();
+        populate(primaryService);
+        try (ReplicationPrimary primary = ReplicationPrimary.start(primaryService, 0, tempDir.resolve("primary"), 16);
+                ReplicationReplica early = ReplicationReplica.start("localhost", primary.getPort(),
+                    tempDir.resolve("early"))) {
+            // The early replica starts from a snapshot of what came before it, then follows the stream
+            assertTrue(early.awaitSequence(primary.getLastSequence(), 10, TimeUnit.SECONDS));
+            circulate(primaryService, 0, 3);
+            assertTrue(primaryService.addBook(new Book("B900", "Shared Shelf", "Ann Lee", 3)));
+            assertTrue(primaryService.borrowBook("B900", "M001"));
+            assertTrue(primaryService.placeHold("B0001", "M005"));
+            assertTrue(primaryService.removeBook("B003"));
+            assertTrue(primary.getLastSequence() > 16);
+            
+            // By now the backlog has moved past everything, so the late replica can only catch up from a snapshot
+            try (ReplicationReplica late = ReplicationReplica.start("localhost", primary.getPort(),
+                    tempDir.resolve("late"))) {
+                assertTrue(late.awaitSequence(primary.getLastSequence(), 10, TimeUnit.SECONDS));
+                assertTrue(primaryService.returnBook("B0002"));
+                assertTrue(primaryService.cancelHold("B0001", "M005"));
+                for (ReplicationReplica replica : List.of(early, late)) {
+                    assertTrue(replica.awaitSequence(primary.getLastSequence(), 10, TimeUnit.SECONDS));
+                    assertSameState(primaryService, replica.getService());
+                    assertSameHolds(primaryService, replica.getService());
+                    assertNull(replica.getService().findBookById("B003"));
+                    awaitCaughtUp(replica);
+                    assertTrue(replica.isConnected());
+                }
+                assertEquals(2, primary.getReplicaCount());
+                
+                LibraryService replicaService = late.getService();
+                assertThrows(IllegalStateException.class,
+                    () -> replicaService.addBook(new Book("B901", "Local Only", "Ann Lee")));
+                assertThrows(IllegalStateException.class, () -> replicaService.returnBook("B900"));
+                assertNull(replicaService.findBookById("B901"));
+                assertEquals(2, replicaService.findBookById("B900").getAvailableCopies());
+            }
+        }
+    }
+    
+    private static void populate(LibraryService service) {
+        service.addBook(new Book("B001", "Java Programming", "John Doe"));
+        service.addBook(new Book("B002", "Data Structures", null));
+        service.addBook(new Book("B003", "Clean Code", "Jennifer Garcia"));
+        service.addMember(new Member("M001", "Alice Johnson", "alice@email.com"));
+        service.addMember(new Member("M002", "Bob Wilson", "bob@email.com"));
+        service.borrowBook("B001", "M001");
+        service.borrowBook("B002", "M002");
+        service.returnBook("B001");
+        service.borrowBook("B001", "M002");
+    }
+    
+    // Members M001-M010 borrow books B0001-B0100 for the given rounds, returning all but the last round's loans
+    private static void circulate(LibraryService service, int firstRound, int rounds) {
+        for (int i = 1; i <= 100; i++) {
+            service.addBook(new Book(String.format("B%04d", i), "Title " + i, "Author " + (i % 7)));
+        }
+        for (int i = 1; i <= 10; i++) {
+            service.addMember(new Member(String.format("M%03d", i), "Member " + i, "m" + i + "@email.com"));
+        }
+        for (int round = firstRound; round < firstRound + rounds; round++) {
+            for (int i = 1; i <= 100; i++) {
+                String bookId = String.format("B%04d", i);
+                service.returnBook(bookId);
+                assertTrue(service.borrowBook(bookId, String.format("M%03d", (i + round) % 10 + 1)));
+            }
+        }
+    }
+    
+    private static void awaitCaughtUp(ReplicationReplica replica) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (replica.getLagRecords() != 0 || replica.getLagMillis() != 0) {
+            assertTrue(System.nanoTime() < deadline, "replica did not catch up");
+            Thread.sleep(10);
+        }
+    }
+    
+    private static void assertSamePages(LibraryService expected, LibraryService actual) {
+        String after = null;
+        do {
+            Page<Transaction> expectedPage = expected.getTransactionsPage(after, 37);
+            Page<Transaction> actualPage = actual.getTransactionsPage(after, 37);
+            assertEquals(ids(expectedPage.getItems()), ids(actualPage.getItems()));
+            assertEquals(expectedPage.getNextCursor(), actualPage.getNextCursor());
+            after = expectedPage.getNextCursor();
+        } while (after != null);
+    }
+    
+    private static void assertSameHolds(LibraryService expected, LibraryService actual) {
+        assertSameState(expected, actual);
+        for (Member member : expected.getAllMembers()) {
+            List<Hold> expectedHolds = expected.getHolds(member.getId());
+            List<Hold> actualHolds = actual.getHolds(member.getId());
+            assertEquals(expectedHolds.size(), actualHolds.size());
+            for (int i = 0; i < expectedHolds.size(); i++) {
+                Hold expectedHold = expectedHolds.get(i);
+                Hold actualHold = actualHolds.get(i);
+                assertEquals(expectedHold.getBookId(), actualHold.getBookId());
+                assertEquals(expectedHold.getPlacedDate(), actualHold.getPlacedDate());
+                assertEquals(expectedHold.getPickupDeadline(), actualHold.getPickupDeadline());
+                if (expectedHold.isReady()) {
+                    assertEquals(expectedHold.getCopyId(), actualHold.getCopyId());
+                }
+                assertEquals(expected.getHoldPosition(expectedHold.getBookId(), member.getId()),
+                    actual.getHoldPosition(actualHold.getBookId(), member.getId()));
+            }
+        }
+    }
+    
+    static void assertSameState(LibraryService expected, LibraryService actual) {
+        List<Book> expectedBooks = expected.getAllBooks();
+        List<Book> actualBooks = actual.getAllBooks();
+        assertEquals(expectedBooks.size(), actualBooks.size());
+        for (int i = 0; i < expectedBooks.size(); i++) {
+            assertEquals(expectedBooks.get(i).getId(), actualBooks.get(i).getId());
+            assertEquals(expectedBooks.get(i).getTitle(), actualBooks.get(i).getTitle());
+            assertEquals(expectedBooks.get(i).getAuthor(), actualBooks.get(i).getAuthor());
+            assertEquals(expectedBooks.get(i).isAvailable(), actualBooks.get(i).isAvailable());
+            assertEquals(expectedBooks.get(i).getCopies(), actualBooks.get(i).getCopies());
+            assertEquals(expectedBooks.get(i).getAvailableCopies(), actualBooks.get(i).getAvailableCopies());
+        }
+        List<Member> expectedMembers = expected.getAllMembers();
+        List<Member> actualMembers = actual.getAllMembers();
+        assertEquals(expectedMembers.size(), actualMembers.size());
+        for (int i = 0; i < expectedMembers.size(); i++) {
+            assertEquals(expectedMembers.get(i).getId(), actualMembers.get(i).getId());
+            assertEquals(expectedMembers.get(i).getName(), actualMembers.get(i).getName());
+            assertEquals(expectedMembers.get(i).getEmail(), actualMembers.get(i).getEmail());
+            String memberId = expectedMembers.get(i).getId();
+            assertEquals(ids(expected.getActiveLoans(memberId)), ids(actual.getActiveLoans(memberId)));
+            assertEquals(ids(expected.getLoanHistory(memberId)), ids(actual.getLoanHistory(memberId)));
+        }
+        List<Transaction> expectedTransactions = expected.getAllTransactions();
+        List<Transaction> actualTransactions = actual.getAllTransactions();
+        assertEquals(expectedTransactions.size(), actualTransactions.size());
+        for (int i = 0; i < expectedTransactions.size(); i++) {
+            Transaction expectedTransaction = expectedTransactions.get(i);
+            Transaction actualTransaction = actualTransactions.get(i);
+            assertEquals(expectedTransaction.getId(), actualTransaction.getId());
+            assertEquals(expectedTransaction.getBookId(), actualTransaction.getBookId());
+            assertEquals(expectedTransaction.getCopy(), actualTransaction.getCopy());
+            assertEquals(expectedTransaction.getMemberId(), actualTransaction.getMemberId());
+            assertEquals(expectedTransaction.getBorrowDate(), actualTransaction.getBorrowDate());
+            assertEquals(expectedTransaction.getDueDate(), actualTransaction.getDueDate());
+            assertEquals(expectedTransaction.getReturnDate(), actualTransaction.getReturnDate());
+            assertEquals(expectedTransaction.isReturned(), actualTransaction.isReturned());
+        }
+        CirculationStatistics expectedStatistics = expected.getStatistics();
+        CirculationStatistics actualStatistics = actual.getStatistics();
+        assertEquals(expectedStatistics.getTotalLoans(), actualStatistics.getTotalLoans());
+        assertEquals(expectedStatistics.getActiveLoans(), actualStatistics.getActiveLoans());
+        assertEquals(expectedStatistics.getMostBorrowedBooks(100), actualStatistics.getMostBorrowedBooks(100));
+        assertEquals(expectedStatistics.getMostActiveMembers(100), actualStatistics.getMostActiveMembers(100));
+        assertEquals(expectedStatistics.getAuthorsByActiveLoans(100), actualStatistics.getAuthorsByActiveLoans(100));
+    }
+    
+    private static List<String> ids(List<Transaction> transactions) {
+        return transactions.stream().map(Transaction::getId).collect(Collectors.toList());
+    }
+}
\ No newline at end of file
@@ -2,11 +2,39 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.AfterEach;
 import static org.junit.jupiter.api.Assertions.*;
+import java.time.Clock;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import org.junit.jupiter.api.io.TempDir;
 
 public class LibraryTest {
     private LibraryService libraryService;
@@ -88,6 +116,34 @@ public class LibraryTest {
         assertTrue(libraryService.getAllMembers().contains(member));
     }
     
+    @Test
+    void testAddBookDuplicateIdIgnored() {
+        assertTrue(libraryService.addBook(book));
+        assertFalse(libraryService.addBook(new Book("B001", "Duplicate", "Someone")));
+        assertEquals(1, libraryService.getAllBooks().size());
+        assertSame(book, libraryService.getAllBooks().get(0));
+    }
+    
+    @Test
+    void testAddMemberDuplicateIdIgnored() {
+        assertTrue(libraryService.addMember(member));
+        assertFalse(libraryService.addMember(new Member("M001", "Duplicate", "dup@email.com")));
+        assertEquals(1, libraryService.getAllMembers().size());
+    }
+    
+    @Test
+    void testBorrowAfterReturnUsesNewTransaction() {
+        libraryService.addBook(book);
+        libraryService.addMember(member);
+        assertTrue(libraryService.borrowBook("B001", "M001"));
+        assertTrue(libraryService.returnBook("B001"));
+        assertFalse(libraryService.returnBook("B001"));
+        assertTrue(libraryService.borrowBook("B001", "M001"));
+        assertEquals(2, libraryService.getAllTransactions().size());
+        assertTrue(libraryService.getAllTransactions().get(0).isReturned());
+        assertFalse(libraryService.getAllTransactions().get(1).isReturned());
+    }
+    
     @Test
     void testBorrowBookSuccess() {
         libraryService.addBook(book);
@@ -184,6 +240,1428 @@ public class LibraryTest {
         assertEquals(2, libraryService.getAllTransactions().size());
     }
     
+    @Test
+    void testBooksPageWalksInIdOrder() {
+        for (int i = 5; i >= 1; i--) {
+            libraryService.addBook(new Book("B00" + i, "Book " + i, "Author"));
+        }
+        Page<Book> first = libraryService.getBooksPage(null, 2);
+        assertEquals(List.of("B001", "B002"), first.getItems().stream().map(Book::getId).collect(Collectors.toList()));
+        assertTrue(first.hasMore());
+        
+        Page<Book> second = libraryService.getBooksPage(first.getNextCursor(), 2);
+        assertEquals(List.of("B003", "B004"), second.getItems().stream().map(Book::getId).collect(Collectors.toList()));
+        
+        Page<Book> last = libraryService.getBooksPage(second.getNextCursor(), 2);
+        assertEquals(1, last.getItems().size());
+        assertFalse(last.hasMore());
+        assertNull(last.getNextCursor());
+    }
+    
+    @Test
+    void testPageExactlyFullHasNoNextCursor() {
+        libraryService.addMember(member);
+        libraryService.addMember(new Member("M002", "Another Member", "another@email.com"));
+        Page<Member> page = libraryService.getMembersPage(null, 2);
+        assertEquals(2, page.getItems().size());
+        assertFalse(page.hasMore());
+        assertThrows(IllegalArgumentException.class, () -> libraryService.getMembersPage(null, 0));
+    }
+    
+    @Test
+    void testTransactionsPageAndStream() {
+        libraryService.addBook(book);
+        libraryService.addMember(member);
+        for (int i = 0; i < 3; i++) {
+            libraryService.borrowBook("B001", "M001");
+            libraryService.returnBook("B001");
+        }
+        Page<Transaction> page = libraryService.getTransactionsPage(null, 2);
+        assertEquals(2, page.getItems().size());
+        assertEquals(1, libraryService.getTransactionsPage(page.getNextCursor(), 2).getItems().size());
+        assertEquals(3, libraryService.streamTransactions().filter(Transaction::isReturned).count());
+        assertEquals(1, libraryService.streamBooks().count());
+        assertEquals(1, libraryService.streamMembers().count());
+    }
+    
+    @Test
+    void testTransactionHistoryKeepsIdOrderAndHidesUncommittedRows() {
+        TransactionHistory history = new TransactionHistory();
+        LocalDate day = LocalDate.of(2024, 3, 1);
+        history.insert(5, "B001", 1, "M001", day, day.plusDays(14), day.plusDays(3));
+        history.insert(3, "B002", 1, "M001", day, null, null);
+        int pending = history.append(() -> 7, "B003", 1, "M002", day, day.plusDays(21));
+        
+        assertEquals(2, history.count());
+        assertEquals(-1, history.findRow(7));
+        history.commit(pending);
+        history.markReturned(history.findRow(3), day.plusDays(1));
+        
+        List<Transaction> all = history.list();
+        assertEquals(List.of("TXN000000000003", "TXN000000000005", "TXN000000000007"),
+            all.stream().map(Transaction::getId).collect(Collectors.toList()));
+        assertEquals("B002", all.get(0).getBookId());
+        assertEquals(day.plusDays(1), all.get(0).getReturnDate());
+        assertTrue(all.get(1).isReturned());
+        assertFalse(all.get(2).isReturned());
+        assertEquals("M002", all.get(2).getMemberId());
+        assertEquals(day.plusDays(21), all.get(2).getDueDate());
+        assertNull(all.get(0).getDueDate());
+        assertEquals(1, history.page("TXN000000000003", 1).getItems().size());
+    }
+    
+    @Test
+    void testTransactionIdsSortInAllocationOrder() {
+        assertEquals("TXN000000000001", TransactionIdAllocator.format(1));
+        assertEquals(42L, TransactionIdAllocator.parse(TransactionIdAllocator.format(42)));
+        assertTrue(TransactionIdAllocator.format(9).compareTo(TransactionIdAllocator.format(10)) < 0);
+        assertThrows(IllegalArgumentException.class, () -> TransactionIdAllocator.format(-1));
+    }
+    
+    @Test
+    void testTransactionIdsUseAllocator() {
+        LibraryService service = new LibraryService(new SequentialTransactionIdAllocator());
+        service.addBook(book);
+        service.addMember(member);
+        service.borrowBook("B001", "M001");
+        service.returnBook("B001");
+        service.borrowBook("B001", "M001");
+        assertEquals("TXN000000000001", service.getAllTransactions().get(0).getId());
+        assertEquals("TXN000000000002", service.getAllTransactions().get(1).getId());
+    }
+    
+    @Test
+    void testTransactionIdAllocatorSurvivesRestart(@TempDir Path tempDir) {
+        Path highWaterFile = tempDir.resolve("txn-id.hwm");
+        SequentialTransactionIdAllocator allocator = new SequentialTransactionIdAllocator(highWaterFile, 10);
+        long last = 0;
+        for (int i = 0; i < 25; i++) {
+            last = allocator.nextId();
+        }
+        assertEquals(25, last);
+        
+        SequentialTransactionIdAllocator restarted = new SequentialTransactionIdAllocator(highWaterFile, 10);
+        assertTrue(restarted.nextId() > last);
+    }
+    
+    @Test
+    void testTransactionIdAllocatorAdvancePast() {
+        SequentialTransactionIdAllocator allocator = new SequentialTransactionIdAllocator();
+        allocator.advancePast(100);
+        assertEquals(101, allocator.nextId());
+        allocator.advancePast(50);
+        assertEquals(102, allocator.nextId());
+    }
+    
+    @Test
+    void testAddBooksBatchSkipsDuplicates() {
+        libraryService.addBook(book);
+        int added = libraryService.addBooks(List.of(
+            new Book("B001", "Duplicate", "Someone"),
+            new Book("B002", "Another Book", "Another Author"),
+            new Book("B002", "Repeated In Batch", "Someone"),
+            new Book("B003", "Third Book", "Third Author")));
+        assertEquals(2, added);
+        assertEquals(3, libraryService.getAllBooks().size());
+        assertEquals("Another Book", libraryService.getAllBooks().get(1).getTitle());
+    }
+    
+    @Test
+    void testCatalogImporterParsesCsvAndReportsBadRows(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("books.csv");
+        Files.write(file, List.of(
+            "id,title,author",
+            "B001,Java Programming,John Doe",
+            "B002,\"Data Structures, 2nd Edition\",\"Jane \"\"JS\"\" Smith\"",
+            "",
+            "B003,Missing Author",
+            ",No Id,Nobody",
+            "B001,Java Programming,John Doe",
+            "B004,\"Unterminated,Someone"));
+        
+        ImportResult result = new CatalogImporter(libraryService, ForkJoinPool.commonPool(), 2)
+            .importBooks(file);
+        assertEquals(6, result.getRowsRead());
+        assertEquals(2, result.getImported());
+        assertEquals(1, result.getDuplicates());
+        assertEquals(3, result.getInvalid());
+        assertEquals(3, result.getErrors().size());
+        assertTrue(result.getErrors().get(0).startsWith("line 5:"));
+        Book parsed = libraryService.getAllBooks().get(1);
+        assertEquals("Data Structures, 2nd Edition", parsed.getTitle());
+        assertEquals("Jane \"JS\" Smith", parsed.getAuthor());
+    }
+    
+    @Test
+    void testCatalogImporterReadsTsvMembersInParallelChunks(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("members.tsv");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            lines.add("M" + i + "\tMember " + i + "\tm" + i + "@email.com");
+        }
+        Files.write(file, lines);
+        
+        ImportResult result = new CatalogImporter(libraryService, ForkJoinPool.commonPool(), 500)
+            .importMembers(file);
+        assertEquals(10_000, result.getImported());
+        assertEquals(10_000, libraryService.getAllMembers().size());
+        assertEquals(0, result.getInvalid());
+        assertTrue(result.getRowsPerSecond() > 0);
+    }
+    
+    @Test
+    void testSearchBooksRanksExactPrefixAndFuzzyMatches() {
+        libraryService.addBook(new Book("B001", "Java Programming", "John Doe"));
+        libraryService.addBook(new Book("B002", "Advanced Java Concurrency", "Jane Smith"));
+        libraryService.addBook(new Book("B003", "Python Basics", "Emily Davis"));
+        libraryService.addBooks(List.of(new Book("B004", "Programming Pearls", "Jon Bentley")));
+        
+        List<Book> exact = libraryService.searchBooks("java programming", 10);
+        assertEquals("B001", exact.get(0).getId());
+        assertEquals(3, exact.size());
+        
+        assertEquals("B003", libraryService.searchBooks("pyth", 10).get(0).getId());
+        assertEquals("B002", libraryService.searchBooks("concurency", 10).get(0).getId());
+        assertEquals("B002", libraryService.searchBooks("smith", 10).get(0).getId());
+        assertEquals(1, libraryService.searchBooks("java", 1).size());
+        assertTrue(libraryService.searchBooks("   ", 10).isEmpty());
+        assertTrue(libraryService.searchBooks("zzzz", 10).isEmpty());
+    }
+    
+    @Test
+    void testSearchPrefersTitleOverAuthor() {
+        libraryService.addBook(new Book("B001", "Gardening", "Ruby Clarke"));
+        libraryService.addBook(new Book("B002", "Ruby On Rails", "Sam Ward"));
+        assertEquals("B002", libraryService.searchBooks("ruby", 10).get(0).getId());
+    }
+    
+    @Test
+    void testWithinOneEdit() {
+        assertTrue(BookSearchIndex.withinOneEdit("java", "java"));
+        assertTrue(BookSearchIndex.withinOneEdit("java", "jav"));
+        assertTrue(BookSearchIndex.withinOneEdit("java", "jaava"));
+        assertTrue(BookSearchIndex.withinOneEdit("java", "jeva"));
+        assertTrue(BookSearchIndex.withinOneEdit("java", "jvaa"));
+        assertFalse(BookSearchIndex.withinOneEdit("java", "jvav"));
+        assertFalse(BookSearchIndex.withinOneEdit("java", "ja"));
+    }
+    
+    @Test
+    void testLibraryAppSearchBooks() {
+        String input = "10\nclean cod\n8\n"; // Search, then exit
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(input.getBytes());
+        LibraryApp.setScanner(new Scanner(inputStream));
+        
+        assertDoesNotThrow(() -> LibraryApp.main(new String[]{}));
+        
+        String output = outputStreamCaptor.toString();
+        assertTrue(output.contains("=== Search Results ==="));
+        assertTrue(output.contains("B008 - Clean Code"));
+    }
+    
+    @Test
+    void testMemberActiveLoansAndHistory() {
+        Book book2 = new Book("B002", "Another Book", "Another Author");
+        libraryService.addBook(book);
+        libraryService.addBook(book2);
+        libraryService.addMember(member);
+        libraryService.addMember(new Member("M002", "Another Member", "another@email.com"));
+        
+        libraryService.borrowBook("B001", "M001");
+        libraryService.borrowBook("B002", "M002");
+        libraryService.returnBook("B001");
+        libraryService.borrowBook("B001", "M001");
+        
+        List<Transaction> active = libraryService.getActiveLoans("M001");
+        assertEquals(1, active.size());
+        assertEquals("B001", active.get(0).getBookId());
+        assertEquals(1, libraryService.getActiveLoanCount("M001"));
+        List<Transaction> history = libraryService.getLoanHistory("M001");
+        assertEquals(2, history.size());
+        assertTrue(history.get(0).isReturned());
+        assertFalse(history.get(1).isReturned());
+        assertEquals(1, libraryService.getLoanHistory("M002").size());
+        assertTrue(libraryService.getActiveLoans("M999").isEmpty());
+        assertTrue(libraryService.getLoanHistory(null).isEmpty());
+    }
+    
+    @Test
+    void testMemberLoanLimit() {
+        libraryService.addMember(member);
+        for (int i = 1; i <= 3; i++) {
+            libraryService.addBook(new Book("B00" + i, "Book " + i, "Author"));
+        }
+        libraryService.setMemberLoanLimit(2);
+        assertTrue(libraryService.borrowBook("B001", "M001"));
+        assertTrue(libraryService.borrowBook("B002", "M001"));
+        assertFalse(libraryService.borrowBook("B003", "M001"));
+        assertTrue(libraryService.returnBook("B001"));
+        assertTrue(libraryService.borrowBook("B003", "M001"));
+        assertThrows(IllegalArgumentException.class, () -> libraryService.setMemberLoanLimit(0));
+    }
+    
+    @Test
+    void testBorrowBooksIsAllOrNothing() {
+        libraryService.addMember(member);
+        for (int i = 1; i <= 4; i++) {
+            libraryService.addBook(new Book("B00" + i, "Book " + i, "Author"));
+        }
+        libraryService.addMember(new Member("M002", "Another Member", "another@email.com"));
+        libraryService.borrowBook("B004", "M002");
+        
+        assertFalse(libraryService.borrowBooks("M001", List.of("B001", "B002", "B004")));
+        assertFalse(libraryService.borrowBooks("M001", List.of("B001", "B001")));
+        assertFalse(libraryService.borrowBooks("M001", List.of("B001", "B999")));
+        assertFalse(libraryService.borrowBooks("M999", List.of("B001")));
+        assertEquals(1, libraryService.getAllTransactions().size());
+        assertTrue(libraryService.getAllBooks().get(0).isAvailable());
+        
+        assertTrue(libraryService.borrowBooks("M001", List.of("B001", "B002", "B003")));
+        assertEquals(3, libraryService.getActiveLoanCount("M001"));
+        assertEquals(4, libraryService.getAllTransactions().size());
+    }
+    
+    @Test
+    void testBorrowBooksRespectsLoanLimit() {
+        libraryService.addMember(member);
+        for (int i = 1; i <= 3; i++) {
+            libraryService.addBook(new Book("B00" + i, "Book " + i, "Author"));
+        }
+        libraryService.setMemberLoanLimit(2);
+        assertFalse(libraryService.borrowBooks("M001", List.of("B001", "B002", "B003")));
+        assertTrue(libraryService.borrowBooks("M001", List.of("B001", "B002")));
+        assertEquals(0, libraryService.getActiveLoans("M001").stream().filter(Transaction::isReturned).count());
+    }
+    
+    @Test
+    void testReturnBooksIsAllOrNothing() {
+        libraryService.addMember(member);
+        for (int i = 1; i <= 3; i++) {
+            libraryService.addBook(new Book("B00" + i, "Book " + i, "Author"));
+        }
+        assertTrue(libraryService.borrowBooks("M001", List.of("B001", "B002")));
+        
+        assertFalse(libraryService.returnBooks(List.of("B001", "B003")));
+        assertEquals(2, libraryService.getActiveLoanCount("M001"));
+        assertTrue(libraryService.returnBooks(List.of("B002", "B001")));
+        assertEquals(0, libraryService.getActiveLoanCount("M001"));
+        assertEquals(2, libraryService.streamTransactions().filter(Transaction::isReturned).count());
+        assertTrue(libraryService.getAllBooks().stream().allMatch(Book::isAvailable));
+        assertFalse(libraryService.returnBooks(List.of()));
+    }
+    
+    @Test
+    void testLoansGetDueDatesFromPolicy() {
+        libraryService.setClock(new TestClock(LocalDate.of(2024, 1, 10)));
+        ConfigurableLoanPolicy policy = new ConfigurableLoanPolicy(21,
+            loaned -> loaned.getId().startsWith("R") ? "reference" : null);
+        policy.setBookClassDays("reference", 3);
+        policy.setMemberDays("M002", 7);
+        libraryService.setLoanPolicy(policy);
+        libraryService.addBook(book);
+        libraryService.addBook(new Book("R001", "Atlas", "Cartographer"));
+        libraryService.addBook(new Book("B002", "Another Book", "Another Author"));
+        libraryService.addMember(member);
+        libraryService.addMember(new Member("M002", "Another Member", "another@email.com"));
+        
+        assertTrue(libraryService.borrowBook("B001", "M001"));
+        assertTrue(libraryService.borrowBooks("M001", List.of("R001")));
+        assertTrue(libraryService.borrowBook("B002", "M002"));
+        List<Transaction> loans = libraryService.getActiveLoans("M001");
+        assertEquals(LocalDate.of(2024, 1, 10), loans.get(0).getBorrowDate());
+        assertEquals(LocalDate.of(2024, 1, 31), loans.get(0).getDueDate());
+        assertEquals(LocalDate.of(2024, 1, 13), loans.get(1).getDueDate());
+        assertEquals(LocalDate.of(2024, 1, 17), libraryService.getActiveLoans("M002").get(0).getDueDate());
+        assertEquals(LocalDate.of(2024, 1, 31), libraryService.getAllTransactions().get(0).getDueDate());
+    }
+    
+    @Test
+    void testOverdueLoansFireOnceAndReturnsDropThem() {
+        TestClock clock = new TestClock(LocalDate.of(2024, 1, 1));
+        libraryService.setClock(clock);
+        List<String> notified = new ArrayList<>();
+        libraryService.addListener(new CirculationListener() {
+            @Override
+            public void loanOverdue(Transaction transaction) {
+                notified.add(transaction.getBookId());
+            }
+        });
+        libraryService.addBook(book);
+        libraryService.addBook(new Book("B002", "Another Book", "Another Author"));
+        libraryService.addMember(member);
+        
+        libraryService.borrowBook("B001", "M001");
+        clock.advanceDays(5);
+        libraryService.borrowBook("B002", "M001");
+        clock.advanceDays(9);
+        assertTrue(libraryService.checkOverdue().isEmpty());
+        clock.advanceDays(1);
+        assertEquals(List.of("B001"), bookIds(libraryService.checkOverdue()));
+        assertTrue(libraryService.checkOverdue().isEmpty());
+        assertEquals(List.of("B001"), bookIds(libraryService.getOverdueLoans()));
+        
+        assertTrue(libraryService.returnBook("B001"));
+        assertTrue(libraryService.getOverdueLoans().isEmpty());
+        clock.advanceDays(90);
+        assertEquals(List.of("B002"), bookIds(libraryService.checkOverdue()));
+        assertEquals(List.of("B001", "B002"), notified);
+    }
+    
+    @Test
+    void testVetoedOverdueLoansFireOnTheNextCheck() {
+        TestClock clock = new TestClock(LocalDate.of(2024, 1, 1));
+        libraryService.setClock(clock);
+        libraryService.addBook(book);
+        libraryService.addBook(new Book("B002", "Another Book", "Another Author"));
+        libraryService.addMember(member);
+        libraryService.borrowBook("B001", "M001");
+        clock.advanceDays(1);
+        libraryService.borrowBook("B002", "M001");
+        boolean[] veto = {true};
+        List<String> notified = new ArrayList<>();
+        libraryService.addListener(new CirculationListener() {
+            @Override
+            public void loanOverdue(Transaction transaction) {
+                if (veto[0] && transaction.getBookId().equals("B002")) {
+                    throw new IllegalStateException("veto");
+                }
+                notified.add(transaction.getBookId());
+            }
+        });
+        
+        clock.advanceDays(30);
+        assertThrows(IllegalStateException.class, libraryService::checkOverdue);
+        assertEquals(List.of("B001"), bookIds(libraryService.getOverdueLoans()));
+        veto[0] = false;
+        assertEquals(List.of("B002"), bookIds(libraryService.checkOverdue()));
+        assertEquals(List.of("B001", "B002"), bookIds(libraryService.getOverdueLoans()));
+        assertTrue(libraryService.checkOverdue().isEmpty());
+        assertEquals(List.of("B001", "B002"), notified);
+    }
+    
+    @Test
+    void testOverdueTrackerMatchesBruteForceOverYears() {
+        Random random = new Random(7);
+        LocalDate today = LocalDate.of(2024, 1, 1);
+        OverdueTracker tracker = new OverdueTracker(today);
+        Map<String, Transaction> open = new HashMap<>();
+        Set<String> fired = new HashSet<>();
+        int next = 0;
+        LocalDate end = today.plusDays(20 * 365);
+        while (today.isBefore(end)) {
+            // Some loans arrive already overdue, as restored loans can
+            for (int i = 0; i < 10; i++) {
+                Transaction loan = new Transaction("T" + next++, "B", "M", today,
+                    today.plusDays(random.nextInt(5_000) - 30));
+                tracker.add(loan);
+                open.put(loan.getId(), loan);
+            }
+            for (String id : new ArrayList<>(open.keySet())) {
+                if (random.nextInt(20) == 0) {
+                    assertTrue(tracker.remove(id));
+                    open.remove(id);
+                    fired.remove(id);
+                }
+            }
+            today = today.plusDays(1 + random.nextInt(60));
+            LocalDate previous = null;
+            for (Transaction loan : tracker.advanceTo(today)) {
+                assertTrue(loan.getDueDate().isBefore(today));
+                assertTrue(previous == null || !loan.getDueDate().isBefore(previous));
+                assertTrue(fired.add(loan.getId()));
+                previous = loan.getDueDate();
+            }
+            for (Transaction loan : open.values()) {
+                assertEquals(loan.getDueDate().isBefore(today), fired.contains(loan.getId()), loan.getId());
+            }
+        }
+        assertEquals(fired.size(), tracker.getOverdueCount());
+        assertEquals(open.size(), tracker.size());
+    }
+    
+    @Test
+    void testHoldQueuePositionsSkipCancelledHolds() {
+        HoldQueue queue = new HoldQueue();
+        LocalDate today = LocalDate.of(2024, 1, 1);
+        for (int i = 0; i < 40; i++) {
+            assertTrue(queue.add(new Hold("B001", "M" + i, today)));
+        }
+        assertFalse(queue.add(new Hold("B001", "M3", today)));
+        for (int i = 0; i < 40; i += 3) {
+            assertNotNull(queue.remove("M" + i));
+        }
+        assertNull(queue.remove("M0"));
+        assertEquals("M1", queue.poll().getMemberId());
+        
+        List<Hold> waiting = queue.list();
+        assertEquals(waiting.size(), queue.size());
+        for (int i = 0; i < waiting.size(); i++) {
+            assertEquals(i + 1, queue.position(waiting.get(i).getMemberId()));
+        }
+        assertEquals(0, queue.position("M0"));
+        
+        // Cycling members through keeps compacting the array under the positions
+        for (int i = 40; i < 200; i++) {
+            queue.poll();
+            assertTrue(queue.add(new Hold("B001", "M" + i, today)));
+            if (i % 5 == 0) {
+                queue.remove("M" + (i - 2));
+            }
+        }
+        waiting = queue.list();
+        for (int i = 0; i < waiting.size(); i++) {
+            assertEquals(i + 1, queue.position(waiting.get(i).getMemberId()));
+        }
+        assertEquals(waiting.get(0), queue.peek());
+    }
+    
+    @Test
+    void testReturnHandsCopyToNextHolder() {
+        TestClock clock = new TestClock(LocalDate.of(2024, 1, 1));
+        libraryService.setClock(clock);
+        libraryService.addBook(book);
+        libraryService.addMember(member);
+        libraryService.addMember(new Member("M002", "Second Member", "second@email.com"));
+        libraryService.addMember(new Member("M003", "Third Member", "third@email.com"));
+        
+        assertEquals(LibraryMetrics.Failure.BOOK_AVAILABLE, libraryService.tryPlaceHold("B001", "M002"));
+        assertTrue(libraryService.borrowBook("B001", "M001"));
+        assertEquals(LibraryMetrics.Failure.ALREADY_HELD, libraryService.tryPlaceHold("B001", "M001"));
+        assertTrue(libraryService.placeHold("B001", "M002"));
+        assertEquals(LibraryMetrics.Failure.ALREADY_HELD, libraryService.tryPlaceHold("B001", "M002"));
+        assertTrue(libraryService.placeHold("B001", "M003"));
+        assertEquals(2, libraryService.getHoldPosition("B001", "M003"));
+        assertEquals(2, libraryService.getHoldQueueLength("B001"));
+        
+        clock.advanceDays(3);
+        assertTrue(libraryService.returnBook("B001"));
+        assertFalse(book.isAvailable());
+        List<Transaction> loans = libraryService.getActiveLoans("M002");
+        assertEquals(1, loans.size());
+        assertEquals(LocalDate.of(2024, 1, 4), loans.get(0).getBorrowDate());
+        Hold ready = libraryService.getHold("B001", "M002");
+        assertTrue(ready.isReady());
+        assertEquals(LocalDate.of(2024, 1, 11), ready.getPickupDeadline());
+        assertEquals(0, libraryService.getHoldPosition("B001", "M002"));
+        assertEquals(1, libraryService.getHoldPosition("B001", "M003"));
+        
+        // Nobody else can take the copy, but the holder collects it with an ordinary borrow
+        assertEquals(LibraryMetrics.Failure.NOT_AVAILABLE, libraryService.tryBorrowBook("B001", "M001"));
+        assertEquals(LibraryMetrics.Failure.NOT_AVAILABLE, libraryService.tryBorrowBook("B001", "M003"));
+        assertTrue(libraryService.borrowBook("B001", "M002"));
+        assertNull(libraryService.getHold("B001", "M002"));
+        assertEquals(1, libraryService.getActiveLoans("M002").size());
+        assertEquals(2, libraryService.getAllTransactions().size());
+        
+        assertTrue(libraryService.cancelHold("B001", "M003"));
+        assertFalse(libraryService.cancelHold("B001", "M003"));
+        assertTrue(libraryService.getHolds("M003").isEmpty());
+        assertTrue(libraryService.returnBook("B001"));
+        assertTrue(book.isAvailable());
+    }
+    
+    @Test
+    void testBorrowTakesAnyFreeCopyAndRecordsWhichOne() {
+        Book copies = new Book("B010", "Popular Novel", "Ann Lee", 3);
+        assertTrue(libraryService.addBook(copies));
+        assertFalse(libraryService.addBook(new Book("B011#2", "Bad ID", "Nobody")));
+        for (int i = 1; i <= 4; i++) {
+            libraryService.addMember(new Member("M00" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        
+        assertTrue(libraryService.borrowBook("B010#2", "M001"));
+        assertEquals(LibraryMetrics.Failure.NOT_AVAILABLE, libraryService.tryBorrowBook("B010#2", "M002"));
+        assertEquals(LibraryMetrics.Failure.BOOK_NOT_FOUND, libraryService.tryBorrowBook("B010#4", "M002"));
+        assertTrue(libraryService.borrowBook("B010", "M002"));
+        assertTrue(libraryService.borrowBook("B010", "M003"));
+        assertEquals(0, copies.getAvailableCopies());
+        assertEquals(LibraryMetrics.Failure.NOT_AVAILABLE, libraryService.tryBorrowBook("B010", "M004"));
+        
+        Set<String> lent = new HashSet<>();
+        for (Transaction loan : libraryService.getAllTransactions()) {
+            assertEquals("B010", loan.getBookId());
+            assertTrue(lent.add(loan.getCopyId()));
+        }
+        assertEquals(Set.of("B010", "B010#2", "B010#3"), lent);
+        assertEquals("B010#2", libraryService.getActiveLoans("M001").get(0).getCopyId());
+        
+        // A title ID names the first copy when returning
+        String firstCopyHolder = libraryService.findActiveTransactionByBookId("B010").getMemberId();
+        assertTrue(libraryService.returnBook("B010"));
+        assertTrue(libraryService.getActiveLoans(firstCopyHolder).isEmpty());
+        assertTrue(copies.isCopyAvailable(1));
+        assertEquals(1, copies.getAvailableCopies());
+        assertTrue(libraryService.borrowBook("B010", "M004"));
+        assertEquals(1, libraryService.getActiveLoans("M004").get(0).getCopy());
+        assertTrue(libraryService.returnBooks(List.of("B010#2", "B010#3")));
+        assertEquals(LibraryMetrics.Failure.INVALID_REQUEST, libraryService.tryReturnBooks(List.of("B010", "B010")));
+        assertEquals(2, copies.getAvailableCopies());
+        assertTrue(libraryService.borrowBooks("M001", List.of("B010#2", "B010")));
+        assertEquals(0, copies.getAvailableCopies());
+        assertStatisticsMatchHistory(libraryService);
+    }
+    
+    @Test
+    void testReturnedCopyGoesToHoldOnTitle() {
+        Book copies = new Book("B010", "Popular Novel", "Ann Lee", 2);
+        libraryService.addBook(copies);
+        for (int i = 1; i <= 4; i++) {
+            libraryService.addMember(new Member("M00" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        assertTrue(libraryService.borrowBook("B010", "M001"));
+        assertEquals(LibraryMetrics.Failure.BOOK_AVAILABLE, libraryService.tryPlaceHold("B010", "M003"));
+        assertTrue(libraryService.borrowBook("B010", "M002"));
+        assertEquals(LibraryMetrics.Failure.ALREADY_HELD, libraryService.tryPlaceHold("B010", "M002"));
+        assertTrue(libraryService.placeHold("B010", "M003"));
+        assertTrue(libraryService.placeHold("B010", "M004"));
+        
+        // Both copies come back in one batch and go to the first two in line, one each
+        assertTrue(libraryService.returnBooks(List.of("B010#2", "B010")));
+        assertEquals(0, copies.getAvailableCopies());
+        Hold third = libraryService.getHold("B010", "M003");
+        Hold fourth = libraryService.getHold("B010", "M004");
+        assertTrue(third.isReady());
+        assertTrue(fourth.isReady());
+        assertEquals("B010#2", third.getCopyId());
+        assertEquals("B010", fourth.getCopyId());
+        
+        // The holder collects their own copy, even when naming the title
+        assertEquals(LibraryMetrics.Failure.NOT_AVAILABLE, libraryService.tryBorrowBook("B010", "M001"));
+        assertTrue(libraryService.borrowBook("B010", "M003"));
+        assertNull(libraryService.getHold("B010", "M003"));
+        assertEquals("B010#2", libraryService.getActiveLoans("M003").get(0).getCopyId());
+        assertEquals(1, libraryService.getActiveLoans("M003").size());
+    }
+    
+    @Test
+    void testRemoveBookOnlyWhileEveryCopyIsOnTheShelf() {
+        Book copies = new Book("B010", "Travelling Novel", "Ann Lee", 2);
+        libraryService.addBook(copies);
+        libraryService.addMember(member);
+        assertTrue(libraryService.borrowBook("B010#2", "M001"));
+        assertFalse(libraryService.removeBook("B010"));
+        assertEquals(1, copies.getAvailableCopies());
+        
+        assertTrue(libraryService.returnBook("B010#2"));
+        assertTrue(libraryService.removeBook("B010"));
+        assertNull(libraryService.findBookById("B010"));
+        assertTrue(libraryService.searchBooks("travelling", 10).isEmpty());
+        assertEquals(1, libraryService.getLoanHistory("M001").size());
+        // The removed Book lends nothing to a caller still holding it
+        assertEquals(0, copies.getAvailableCopies());
+        assertFalse(libraryService.borrowBook("B010", "M001"));
+        assertFalse(libraryService.removeBook("B010"));
+        assertTrue(libraryService.addBook(new Book("B010", "Travelling Novel", "Ann Lee")));
+    }
+    
+    @Test
+    void testShardedLibraryLendsAcrossBranchesAndTransfersTitles() throws Exception {
+        try (ShardedLibrary library = new ShardedLibrary(4)) {
+            assertTrue(library.addBook(0, new Book("B010", "Travelling Novel", "Ann Lee", 2)));
+            assertTrue(library.addMember(3, member));
+            assertFalse(library.addMember(1, new Member("M001", "Someone Else", "else@email.com")));
+            assertEquals(0, library.shardOfBook("B010#2"));
+            assertEquals(3, library.shardOfMember("M001"));
+            
+            // The loan is made in the book's branch, where the member is a visitor rather than a member
+            assertTrue(library.borrowBook("B010", "M001"));
+            assertEquals(1, library.getShard(0).getActiveLoanCount("M001"));
+            assertEquals(0, library.getShard(3).getActiveLoanCount("M001"));
+            assertTrue(library.getShard(0).getAllMembers().isEmpty());
+            assertEquals(List.of(member), library.getShard(3).getAllMembers());
+            // Visiting another branch leaves the home branch's record, and its snapshots, alone
+            try (LibrarySnapshot snapshot = library.getShard(3).openSnapshot()) {
+                assertSame(member, snapshot.getMember("M001"));
+            }
+            List<Transaction> loans = library.getActiveLoans("M001");
+            assertEquals(1, loans.size());
+            assertEquals(LibraryMetrics.Failure.NOT_AVAILABLE, library.tryTransferBook("B010", 2));
+            assertEquals(0, library.shardOfBook("B010"));
+            
+            assertTrue(library.returnBook(loans.get(0).getCopyId()));
+            assertTrue(library.transferBook("B010", 2));
+            assertEquals(2, library.shardOfBook("B010"));
+            assertNull(library.getShard(0).findBookById("B010"));
+            assertEquals(2, library.getBook("B010").getAvailableCopies());
+            assertFalse(library.addBook(1, new Book("B010", "Another Novel", "Bo Chen")));
+            assertEquals(LibraryMetrics.Failure.BOOK_NOT_FOUND, library.tryTransferBook("B999", 1));
+            assertEquals(LibraryMetrics.Failure.INVALID_REQUEST, library.tryTransferBook("B010", 4));
+            
+            assertTrue(library.borrowBookAsync("B010#2", "M001").get(10, TimeUnit.SECONDS));
+            assertEquals(1, library.getShard(2).getActiveLoanCount("M001"));
+            assertEquals("B010#2", library.getActiveLoans("M001").get(0).getCopyId());
+        }
+    }
+    
+    @Test
+    void testShardedLibraryLoanLimitAndTransactionIdsSpanBranches() {
+        try (ShardedLibrary library = new ShardedLibrary(3)) {
+            library.setMemberLoanLimit(2);
+            library.addMember(member);
+            library.addMember(new Member("M002", "Second Member", "second@email.com"));
+            for (int branch = 0; branch < 3; branch++) {
+                assertTrue(library.addBook(branch, new Book("B00" + branch, "Book " + branch, "Author")));
+            }
+            assertTrue(library.borrowBook("B000", "M001"));
+            assertTrue(library.borrowBook("B001", "M001"));
+            assertEquals(LibraryMetrics.Failure.LOAN_LIMIT_REACHED, library.tryBorrowBook("B002", "M001"));
+            assertTrue(library.borrowBook("B002", "M002"));
+            
+            Set<String> ids = new HashSet<>();
+            for (int branch = 0; branch < 3; branch++) {
+                for (Transaction transaction : library.getShard(branch).getAllTransactions()) {
+                    assertTrue(ids.add(transaction.getId()), transaction.getId());
+                }
+            }
+            assertEquals(3, ids.size());
+        }
+    }
+    
+    @Test
+    void testShardedLibraryHoldHandoffRespectsLoanLimitAcrossBranches() {
+        try (ShardedLibrary library = new ShardedLibrary(2)) {
+            library.setMemberLoanLimit(1);
+            library.addMember(member);
+            library.addMember(new Member("M002", "Second Member", "second@email.com"));
+            assertTrue(library.addBook(0, new Book("B000", "Book 0", "Author")));
+            assertTrue(library.addBook(1, new Book("B001", "Book 1", "Author")));
+            assertTrue(library.borrowBook("B000", "M002"));
+            assertTrue(library.placeHold("B000", "M001"));
+            assertTrue(library.borrowBook("B001", "M001"));
+            
+            // M001 is at the limit through a loan in the other branch, so the returned copy is not lent to them
+            assertTrue(library.returnBook("B000"));
+            assertEquals(1, library.getActiveLoanCount("M001"));
+            assertNull(library.getShard(0).getHold("B000", "M001"));
+            assertTrue(library.getBook("B000").isAvailable());
+        }
+    }
+    
+    @Test
+    void testShardedLibraryListsLoansByBorrowDateAcrossBranches() {
+        TestClock clock = new TestClock(LocalDate.of(2024, 1, 1));
+        try (ShardedLibrary library = new ShardedLibrary(2)) {
+            for (int branch = 0; branch < 2; branch++) {
+                library.getShard(branch).setClock(clock);
+                assertTrue(library.addBook(branch, new Book("B00" + branch, "Book " + branch, "Author")));
+            }
+            library.addMember(member);
+            // Branch 1's first ID is above branch 0's, though its loan comes first
+            assertTrue(library.borrowBook("B001", "M001"));
+            clock.advanceDays(1);
+            assertTrue(library.borrowBook("B000", "M001"));
+            
+            List<Transaction> active = library.getActiveLoans("M001");
+            assertEquals(List.of("B001", "B000"), bookIds(active));
+            assertTrue(active.get(0).getId().compareTo(active.get(1).getId()) > 0);
+            assertTrue(library.returnBook("B001"));
+            assertEquals(List.of("B001", "B000"), bookIds(library.getLoanHistory("M001")));
+        }
+    }
+    
+    @Test
+    void testSnapshotReadsTheLibraryAsOfWhenItWasTaken() {
+        libraryService.addBook(new Book("B001", "Test Book", "Test Author", 2));
+        libraryService.addBook(new Book("B002", "Second Book", "Test Author"));
+        libraryService.addBook(new Book("B004", "Leaving Book", "Other Author"));
+        libraryService.addMember(member);
+        libraryService.addMember(new Member("M002", "Second Member", "second@email.com"));
+        assertTrue(libraryService.borrowBook("B001", "M001"));
+        
+        try (LibrarySnapshot snapshot = libraryService.openSnapshot()) {
+            assertTrue(libraryService.removeBook("B004"));
+            assertTrue(libraryService.addBook(new Book("B003", "Later Book", "Test Author")));
+            libraryService.addMember(new Member("M003", "Later Member", "later@email.com"));
+            assertTrue(libraryService.borrowBook("B002", "M002"));
+            assertTrue(libraryService.returnBook("B001"));
+            assertEquals(1, libraryService.getRetainedRemovedBookCount());
+            
+            assertEquals(List.of("B001", "B002", "B004"),
+                snapshot.streamBooks().map(Book::getId).collect(Collectors.toList()));
+            assertEquals(1, snapshot.getBook("B001").getAvailableCopies());
+            assertTrue(snapshot.getBook("B002").isAvailable());
+            assertNotNull(snapshot.getBook("B004"));
+            assertNull(snapshot.getBook("B003"));
+            assertNull(snapshot.getMember("M003"));
+            assertEquals(List.of("M001", "M002"),
+                snapshot.streamMembers().map(Member::getId).collect(Collectors.toList()));
+            List<Transaction> loans = snapshot.streamTransactions().collect(Collectors.toList());
+            assertEquals(1, loans.size());
+            assertFalse(loans.get(0).isReturned());
+            assertEquals(2, libraryService.getAllTransactions().size());
+            
+            // Paging walks the removed book in its place too
+            List<String> paged = new ArrayList<>();
+            String cursor = null;
+            do {
+                Page<Book> page = snapshot.getBooksPage(cursor, 1);
+                page.getItems().forEach(item -> paged.add(item.getId()));
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+            assertEquals(List.of("B001", "B002", "B004"), paged);
+            
+            // A book put back under the same ID is a different one, which this snapshot does not see
+            assertTrue(libraryService.addBook(new Book("B004", "Returning Book", "Other Author")));
+            assertEquals("Leaving Book", snapshot.getBook("B004").getTitle());
+        }
+        
+        assertEquals(0, libraryService.getRetainedRemovedBookCount());
+        LibrarySnapshot latest = libraryService.openSnapshot();
+        try (LibrarySnapshot snapshot = latest) {
+            assertEquals(List.of("B001", "B002", "B003", "B004"),
+                snapshot.streamBooks().map(Book::getId).collect(Collectors.toList()));
+            assertEquals("Returning Book", snapshot.getBook("B004").getTitle());
+            assertEquals(2, snapshot.getBook("B001").getAvailableCopies());
+            assertFalse(snapshot.getBook("B002").isAvailable());
+            assertEquals(List.of(true, false), snapshot.streamTransactions().map(Transaction::isReturned)
+                .collect(Collectors.toList()));
+        }
+        assertThrows(IllegalStateException.class, latest::streamBooks);
+    }
+    
+    @Test
+    void testUncollectedHoldPassesToNextInLine() {
+        TestClock clock = new TestClock(LocalDate.of(2024, 1, 1));
+        libraryService.setClock(clock);
+        libraryService.setHoldPickupDays(2);
+        libraryService.addBook(book);
+        libraryService.addMember(member);
+        libraryService.addMember(new Member("M002", "Second Member", "second@email.com"));
+        libraryService.addMember(new Member("M003", "Third Member", "third@email.com"));
+        List<String> events = new ArrayList<>();
+        libraryService.addListener(new CirculationListener() {
+            @Override
+            public void holdsFilled(List<Transaction> returned, List<Transaction> loans, List<Hold> holds) {
+                events.add("filled " + holds.get(0).getMemberId());
+            }
+            
+            @Override
+            public void holdCancelled(Hold hold) {
+                events.add("cancelled " + hold.getMemberId());
+            }
+        });
+        libraryService.borrowBook("B001", "M001");
+        libraryService.placeHold("B001", "M002");
+        libraryService.placeHold("B001", "M003");
+        libraryService.returnBook("B001");
+        
+        clock.advanceDays(2);
+        assertTrue(libraryService.expireUncollectedHolds().isEmpty());
+        clock.advanceDays(1);
+        List<Hold> expired = libraryService.expireUncollectedHolds();
+        assertEquals(List.of("M002"), expired.stream().map(Hold::getMemberId).collect(Collectors.toList()));
+        assertTrue(libraryService.getActiveLoans("M002").isEmpty());
+        assertTrue(libraryService.getHolds("M002").isEmpty());
+        assertEquals(1, libraryService.getActiveLoans("M003").size());
+        assertEquals(LocalDate.of(2024, 1, 6), libraryService.getHold("B001", "M003").getPickupDeadline());
+        
+        // A holder already at the loan limit is passed over
+        libraryService.returnBook("B001");
+        libraryService.borrowBook("B001", "M001");
+        libraryService.setMemberLoanLimit(1);
+        libraryService.addBook(new Book("B002", "Another Book", "Another Author"));
+        libraryService.borrowBook("B002", "M002");
+        libraryService.placeHold("B001", "M002");
+        libraryService.placeHold("B001", "M003");
+        libraryService.returnBook("B001");
+        assertNull(libraryService.getHold("B001", "M002"));
+        assertEquals(1, libraryService.getActiveLoans("M003").size());
+        assertEquals(List.of("filled M002", "filled M003", "cancelled M002", "filled M003"), events);
+    }
+    
+    @Test
+    void testVetoedReturnLeavesWaitingHoldUntouched() {
+        libraryService.addBook(new Book("B001", "Test Book", "Test Author", 2));
+        libraryService.addMember(member);
+        libraryService.addMember(new Member("M002", "Second Member", "second@email.com"));
+        libraryService.borrowBook("B001", "M001");
+        libraryService.borrowBook("B001", "M001");
+        libraryService.placeHold("B001", "M002");
+        libraryService.addListener(new CirculationListener() {
+            @Override
+            public void holdsFilled(List<Transaction> returned, List<Transaction> loans, List<Hold> holds) {
+                throw new IllegalStateException("veto");
+            }
+        });
+        
+        assertThrows(IllegalStateException.class, () -> libraryService.returnBook("B001" + Book.COPY_SEPARATOR + 2));
+        Hold hold = libraryService.getHold("B001", "M002");
+        assertFalse(hold.isReady());
+        assertNull(hold.getPickupDeadline());
+        assertEquals(1, hold.getCopy());
+        assertEquals("B001", hold.getCopyId());
+        assertEquals(2, libraryService.getActiveLoans("M001").size());
+        assertTrue(libraryService.getActiveLoans("M002").isEmpty());
+    }
+    
+    @Test
+    void testLibraryScriptPlacesAndListsHolds() throws IOException {
+        libraryService.addBook(book);
+        libraryService.addMember(member);
+        libraryService.addMember(new Member("M002", "Second Member", "second@email.com"));
+        String script = "hold B001 M002\nborrow B001 M001\nhold B001 M002\nholds M002\ncancel-hold B001 M002\n"
+            + "cancel-hold B001 M002\n";
+        StringWriter out = new StringWriter();
+        
+        assertEquals(LibraryScript.FAILED, new LibraryScript(libraryService, out, LibraryScript.Format.CSV)
+            .run(new BufferedReader(new StringReader(script))));
+        String[] rows = out.toString().split("\n");
+        assertEquals("result,hold,B001,M002,BOOK_AVAILABLE", rows[0]);
+        assertEquals("result,hold,B001,M002,OK", rows[2]);
+        assertEquals("hold,B001,M002," + LocalDate.now() + ",1,", rows[3]);
+        assertEquals("result,cancel-hold,B001,M002,OK", rows[4]);
+        assertEquals("result,cancel-hold,B001,M002,NO_HOLD", rows[5]);
+    }
+    
+    @Test
+    void testEventFeedPublishesChangesInOrder() {
+        CirculationEventFeed feed = new CirculationEventFeed(5, CirculationEventFeed.OverflowPolicy.BLOCK);
+        assertEquals(8, feed.getCapacity());
+        libraryService.addListener(feed);
+        CirculationEventFeed.Subscription subscription = feed.subscribe();
+        libraryService.addBook(book);
+        libraryService.addBook(new Book("B002", "Another Book", "Another Author"));
+        libraryService.addMember(member);
+        libraryService.borrowBook("B001", "M001");
+        libraryService.borrowBooks("M001", List.of("B002"));
+        libraryService.returnBooks(List.of("B001", "B002"));
+        
+        List<String> events = new ArrayList<>();
+        assertEquals(4, subscription.poll(event -> events.add(event.getSequence() + " " + event.getType() + " "
+            + event.getBookId() + " " + event.getMemberId()), 4));
+        assertEquals(3, subscription.poll(event -> events.add(event.getSequence() + " " + event.getType() + " "
+            + event.getBookId() + " " + event.getMemberId()), 100));
+        assertEquals(List.of("0 BOOK_ADDED B001 null", "1 BOOK_ADDED B002 null", "2 MEMBER_ADDED null M001",
+            "3 BORROWED B001 M001", "4 BORROWED B002 M001", "5 RETURNED B001 M001", "6 RETURNED B002 M001"), events);
+        assertEquals(0, subscription.poll(event -> fail("no more events"), 100));
+        assertEquals(7, subscription.getPosition());
+        assertEquals(0, subscription.getLag());
+        
+        // A later subscriber only sees what comes after it
+        CirculationEventFeed.Subscription late = feed.subscribe();
+        libraryService.borrowBook("B001", "M001");
+        List<CirculationEvent.Type> types = new ArrayList<>();
+        assertEquals(1, late.poll(event -> types.add(event.getType()), 10));
+        assertEquals(List.of(CirculationEvent.Type.BORROWED), types);
+        assertEquals(1, subscription.getLag());
+    }
+    
+    @Test
+    void testEventFeedPublishesOnlyCommittedChanges() {
+        CirculationEventFeed feed = new CirculationEventFeed(8, CirculationEventFeed.OverflowPolicy.BLOCK);
+        libraryService.addListener(feed);
+        CirculationEventFeed.Subscription subscription = feed.subscribe();
+        // Registered after the feed, so the feed has already staged each change this vetoes
+        libraryService.addListener(new CirculationListener() {
+            @Override
+            public void bookBorrowed(Transaction transaction) {
+                if (transaction.getBookId().equals("B002")) {
+                    throw new IllegalStateException("vetoed");
+                }
+            }
+            
+            @Override
+            public void bookReturned(Transaction transaction) {
+                throw new IllegalStateException("vetoed");
+            }
+        });
+        libraryService.addBook(book);
+        libraryService.addBook(new Book("B002", "Another Book", "Another Author"));
+        libraryService.addMember(member);
+        assertTrue(libraryService.borrowBook("B001", "M001"));
+        assertThrows(IllegalStateException.class, () -> libraryService.borrowBook("B002", "M001"));
+        assertThrows(IllegalStateException.class, () -> libraryService.borrowBooks("M001", List.of("B002")));
+        assertThrows(IllegalStateException.class, () -> libraryService.returnBook("B001"));
+        
+        List<String> events = new ArrayList<>();
+        assertEquals(4, subscription.poll(event -> events.add(event.getSequence() + " " + event.getType() + " "
+            + event.getBookId()), 100));
+        assertEquals(List.of("0 BOOK_ADDED B001", "1 BOOK_ADDED B002", "2 MEMBER_ADDED null", "3 BORROWED B001"),
+            events);
+        assertEquals(4, feed.getEventCount());
+        
+        // Nothing staged for a vetoed change is left over for the next one on the thread
+        libraryService.addBook(new Book("B003", "Third Book", "Author"));
+        events.clear();
+        assertEquals(1, subscription.poll(event -> events.add(event.getType() + " " + event.getBookId()), 100));
+        assertEquals(List.of("BOOK_ADDED B003"), events);
+    }
+    
+    @Test
+    void testEventFeedOverflowPolicies() {
+        CirculationEventFeed dropping = new CirculationEventFeed(4, CirculationEventFeed.OverflowPolicy.DROP_OLDEST);
+        CirculationEventFeed.Subscription slow = dropping.subscribe();
+        for (int i = 0; i < 10; i++) {
+            dropping.bookAdded(new Book("B" + i, "Book " + i, "Author"));
+            dropping.changeCommitted();
+        }
+        List<String> seen = new ArrayList<>();
+        assertEquals(4, slow.poll(event -> seen.add(event.getBookId()), 100));
+        assertEquals(List.of("B6", "B7", "B8", "B9"), seen);
+        assertEquals(6, slow.getDroppedCount());
+        
+        CirculationEventFeed rejecting = new CirculationEventFeed(4, CirculationEventFeed.OverflowPolicy.REJECT);
+        libraryService.addListener(rejecting);
+        CirculationEventFeed.Subscription stalled = rejecting.subscribe();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(libraryService.addBook(new Book("B" + i, "Book " + i, "Author")));
+        }
+        assertThrows(IllegalStateException.class, () -> libraryService.addBook(book));
+        assertNull(libraryService.findBookById("B001"));
+        assertEquals(1, stalled.poll(event -> { }, 1));
+        assertTrue(libraryService.addBook(book));
+        stalled.close();
+        for (int i = 4; i < 20; i++) {
+            assertTrue(libraryService.addBook(new Book("B" + i, "Book " + i, "Author")));
+        }
+        assertThrows(IllegalArgumentException.class,
+            () -> new CirculationEventFeed(0, CirculationEventFeed.OverflowPolicy.BLOCK));
+    }
+    
+    @Test
+    void testRecordsShareRepeatedStrings() {
+        LibraryService service = new LibraryService();
+        // Fresh copies, as parsed from an import file or a request
+        Book first = new Book(new String("B100"), "First", new String("Shared Author"));
+        Book second = new Book(new String("B101"), "Second", new String("Shared Author"));
+        Member member = new Member(new String("M100"), "Reader", "reader@email.com");
+        assertTrue(service.addBook(first));
+        assertTrue(service.addBook(second));
+        assertTrue(service.addMember(member));
+        assertSame(first.getAuthor(), second.getAuthor());
+        assertNull(new Book("B102", "Anonymous", null).getAuthor());
+        // Each catalog keeps its own authors, and lets one go with their last book
+        LibraryService other = new LibraryService();
+        Book elsewhere = new Book("B100", "First", new String("Shared Author"));
+        assertEquals(1, other.addBooks(List.of(elsewhere)));
+        assertNotSame(first.getAuthor(), elsewhere.getAuthor());
+        assertEquals(1, service.getAuthorCount());
+        assertTrue(other.removeBook("B100"));
+        assertEquals(0, other.getAuthorCount());
+        assertEquals("Shared Author", elsewhere.getAuthor());
+        
+        assertTrue(service.borrowBook(new String("B100"), new String("M100")));
+        assertTrue(service.borrowBooks(new String("M100"), List.of(new String("B101"))));
+        for (Book book : List.of(first, second)) {
+            Transaction loan = service.findActiveTransactionByBookId(book.getId());
+            assertSame(book.getId(), loan.getBookId());
+            assertSame(member.getId(), loan.getMemberId());
+        }
+        for (Transaction loan : service.getAllTransactions()) {
+            assertSame(member.getId(), loan.getMemberId());
+        }
+    }
+    
+    @Test
+    void testRankedCounterMatchesRecount() {
+        RankedCounter counter = new RankedCounter(4);
+        Map<String, Long> expected = new HashMap<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 20_000; i++) {
+            String key = "K" + random.nextInt(50);
+            if (random.nextInt(3) == 0 && expected.getOrDefault(key, 0L) > 0) {
+                counter.decrement(key);
+                expected.merge(key, -1L, Long::sum);
+            } else {
+                counter.increment(key);
+                expected.merge(key, 1L, Long::sum);
+            }
+            if (i % 1_000 == 0) {
+                assertEquals(recountRanking(expected, 7), counter.top(7));
+            }
+        }
+        expected.values().removeIf(count -> count == 0);
+        assertEquals(recountRanking(expected, 100), counter.top(100));
+        assertEquals(expected.size(), counter.size());
+        assertEquals(0, counter.get("missing"));
+        assertThrows(IllegalStateException.class, () -> counter.decrement("missing"));
+        assertTrue(counter.top(0).isEmpty());
+        
+        RankedCounter loaded = new RankedCounter(4);
+        loaded.load(expected);
+        assertEquals(counter.top(100), loaded.top(100));
+        loaded.increment("K0");
+        counter.increment("K0");
+        assertEquals(counter.top(7), loaded.top(7));
+    }
+    
+    @Test
+    void testCirculationStatisticsMatchFullRecount() {
+        TestClock clock = new TestClock(LocalDate.of(2024, 1, 1));
+        libraryService.setClock(clock);
+        for (int i = 0; i < 30; i++) {
+            libraryService.addBook(new Book("B" + i, "Book " + i, i % 4 == 0 ? null : "Author " + (i % 5)));
+        }
+        for (int i = 0; i < 10; i++) {
+            libraryService.addMember(new Member("M" + i, "Member " + i, "m" + i + "@email.com"));
+        }
+        Random random = new Random(5);
+        for (int i = 0; i < 5_000; i++) {
+            String bookId = "B" + random.nextInt(30);
+            String memberId = "M" + random.nextInt(10);
+            switch (random.nextInt(5)) {
+                case 0:
+                    libraryService.borrowBooks(memberId, List.of(bookId, "B" + random.nextInt(30)));
+                    break;
+                case 1:
+                    libraryService.placeHold(bookId, memberId);
+                    break;
+                case 2:
+                    libraryService.returnBook(bookId);
+                    break;
+                default:
+                    libraryService.borrowBook(bookId, memberId);
+            }
+            if (random.nextInt(50) == 0) {
+                clock.advanceDays(1 + random.nextInt(10));
+                libraryService.expireUncollectedHolds();
+            }
+        }
+        
+        assertStatisticsMatchHistory(libraryService);
+        CirculationStatistics running = libraryService.getStatistics();
+        libraryService.rebuildStatistics();
+        assertNotSame(running, libraryService.getStatistics());
+        assertStatisticsMatchHistory(libraryService);
+        String report = libraryService.getStatistics().report(3, LocalDate.of(2024, 1, 1), LocalDate.now(clock));
+        assertTrue(report.contains("Most borrowed books:"), report);
+    }
+    
+    static void assertStatisticsMatchHistory(LibraryService service) {
+        Map<String, Long> borrows = new HashMap<>();
+        Map<String, Long> loansByMember = new HashMap<>();
+        Map<String, Long> activeByAuthor = new HashMap<>();
+        Map<LocalDate, Long> loansByDay = new HashMap<>();
+        long active = 0;
+        List<Transaction> transactions = service.getAllTransactions();
+        for (Transaction transaction : transactions) {
+            borrows.merge(transaction.getBookId(), 1L, Long::sum);
+            loansByMember.merge(transaction.getMemberId(), 1L, Long::sum);
+            loansByDay.merge(transaction.getBorrowDate(), 1L, Long::sum);
+            String author = service.findBookById(transaction.getBookId()).getAuthor();
+            if (!transaction.isReturned()) {
+                active++;
+                if (author != null) {
+                    activeByAuthor.merge(author, 1L, Long::sum);
+                }
+            }
+        }
+        CirculationStatistics statistics = service.getStatistics();
+        assertEquals(transactions.size(), statistics.getTotalLoans());
+        assertEquals(active, statistics.getActiveLoans());
+        assertEquals(recountRanking(borrows, 5), statistics.getMostBorrowedBooks(5));
+        assertEquals(recountRanking(loansByMember, 100), statistics.getMostActiveMembers(100));
+        assertEquals(recountRanking(activeByAuthor, 100), statistics.getAuthorsByActiveLoans(100));
+        for (Map.Entry<String, Long> entry : borrows.entrySet()) {
+            assertEquals(entry.getValue(), statistics.getBorrowCount(entry.getKey()));
+        }
+        assertEquals(new TreeMap<>(loansByDay), statistics.getLoansPerDay(LocalDate.MIN, LocalDate.MAX));
+    }
+    
+    private static List<Map.Entry<String, Long>> recountRanking(Map<String, Long> counts, int k) {
+        return counts.entrySet().stream()
+            .filter(entry -> entry.getValue() > 0)
+            .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+            .limit(k)
+            .map(entry -> Map.entry(entry.getKey(), entry.getValue()))
+            .collect(Collectors.toList());
+    }
+    
+    @Test
+    void testMetricsCountOperationsByFailureReason() {
+        libraryService.addBook(book);
+        libraryService.addBook(new Book("B002", "Other Book", "Other Author"));
+        libraryService.addMember(member);
+        libraryService.setMemberLoanLimit(1);
+        LibraryMetrics metrics = libraryService.getMetrics();
+        metrics.setLatencySampleInterval(1);
+        
+        assertTrue(libraryService.borrowBook("B001", "M001"));
+        assertFalse(libraryService.borrowBook("B001", "M001"));
+        assertFalse(libraryService.borrowBook("B002", "M001"));
+        assertFalse(libraryService.borrowBook("B404", "M001"));
+        assertFalse(libraryService.borrowBook("B002", "M404"));
+        assertFalse(libraryService.borrowBook(null, "M001"));
+        assertTrue(libraryService.returnBook("B001"));
+        assertFalse(libraryService.returnBook("B001"));
+        assertFalse(libraryService.borrowBooks("M001", List.of("B001", "B001")));
+        assertFalse(libraryService.returnBooks(List.of("B002")));
+        
+        assertEquals(1, metrics.getSuccessCount(LibraryMetrics.Operation.BORROW));
+        assertEquals(1, metrics.getFailureCount(LibraryMetrics.Operation.BORROW, LibraryMetrics.Failure.NOT_AVAILABLE));
+        assertEquals(1, metrics.getFailureCount(LibraryMetrics.Operation.BORROW,
+            LibraryMetrics.Failure.LOAN_LIMIT_REACHED));
+        assertEquals(1, metrics.getFailureCount(LibraryMetrics.Operation.BORROW, LibraryMetrics.Failure.BOOK_NOT_FOUND));
+        assertEquals(1, metrics.getFailureCount(LibraryMetrics.Operation.BORROW,
+            LibraryMetrics.Failure.MEMBER_NOT_FOUND));
+        assertEquals(1, metrics.getFailureCount(LibraryMetrics.Operation.BORROW,
+            LibraryMetrics.Failure.INVALID_REQUEST));
+        assertEquals(5, metrics.getFailureCount(LibraryMetrics.Operation.BORROW));
+        assertEquals(1, metrics.getSuccessCount(LibraryMetrics.Operation.RETURN));
+        assertEquals(1, metrics.getFailureCount(LibraryMetrics.Operation.RETURN, LibraryMetrics.Failure.NO_ACTIVE_LOAN));
+        assertEquals(1, metrics.getFailureCount(LibraryMetrics.Operation.BATCH_BORROW,
+            LibraryMetrics.Failure.INVALID_REQUEST));
+        assertEquals(1, metrics.getFailureCount(LibraryMetrics.Operation.BATCH_RETURN,
+            LibraryMetrics.Failure.NO_ACTIVE_LOAN));
+        assertEquals(6, metrics.getLatency(LibraryMetrics.Operation.BORROW).getCount());
+        
+        metrics.reset();
+        metrics.setEnabled(false);
+        assertTrue(libraryService.borrowBook("B001", "M001"));
+        assertEquals(0, metrics.getSuccessCount(LibraryMetrics.Operation.BORROW));
+        assertEquals(0, metrics.getLatency(LibraryMetrics.Operation.BORROW).getCount());
+    }
+    
+    @Test
+    void testMetricsCountRejectedChanges() {
+        libraryService.addBook(book);
+        libraryService.addMember(member);
+        libraryService.addListener(new CirculationListener() {
+            @Override
+            public void bookBorrowed(Transaction transaction) {
+                throw new IllegalStateException("log is full");
+            }
+        });
+        
+        assertThrows(IllegalStateException.class, () -> libraryService.borrowBook("B001", "M001"));
+        assertEquals(1, libraryService.getMetrics().getFailureCount(LibraryMetrics.Operation.BORROW,
+            LibraryMetrics.Failure.REJECTED));
+    }
+    
+    @Test
+    void testLatencyHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+        histogram.record(-5);
+        
+        assertEquals(100_001, histogram.getCount());
+        assertEquals(100_000, histogram.getMax(), 100_000 * 0.016);
+        assertEquals(0, histogram.getValueAtPercentile(0));
+        assertEquals(50_000, histogram.getValueAtPercentile(50), 50_000 * 0.016);
+        assertEquals(99_000, histogram.getValueAtPercentile(99), 99_000 * 0.016);
+        assertEquals(histogram.getMax(), histogram.getValueAtPercentile(100));
+        assertEquals(50_000, histogram.getMean(), 50_000 * 0.016);
+        
+        // Every bucket's highest value maps back to it, and the next value to the next bucket
+        for (int bucket = 0; bucket < LatencyHistogram.bucketOf(Long.MAX_VALUE >>> 24); bucket++) {
+            long highest = LatencyHistogram.highestValueIn(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(highest));
+            assertEquals(bucket + 1, LatencyHistogram.bucketOf(highest + 1));
+        }
+        
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+    
+    @Test
+    void testMetricsPublishedOverJmx() throws Exception {
+        libraryService.addBook(book);
+        libraryService.addMember(member);
+        libraryService.getMetrics().setLatencySampleInterval(1);
+        libraryService.borrowBook("B001", "M001");
+        libraryService.borrowBook("B001", "M001");
+        libraryService.getMetrics().registerMBean();
+        
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(LibraryMetrics.OBJECT_NAME);
+        try {
+            TabularData successes = (TabularData) server.getAttribute(name, "SuccessCounts");
+            assertEquals(1L, successes.get(new Object[]{"BORROW"}).get("value"));
+            TabularData failures = (TabularData) server.getAttribute(name, "FailureCounts");
+            assertEquals(1L, failures.get(new Object[]{"BORROW.NOT_AVAILABLE"}).get("value"));
+            TabularData latencies = (TabularData) server.getAttribute(name, "Latencies");
+            CompositeData borrow = (CompositeData) latencies.get(new Object[]{"BORROW"}).get("value");
+            assertEquals(2L, borrow.get("count"));
+            assertTrue((Long) borrow.get("p99Nanos") > 0);
+            server.setAttribute(name, new Attribute("LatencySampleInterval", 4));
+            assertEquals(4, libraryService.getMetrics().getLatencySampleInterval());
+            assertTrue(((String) server.invoke(name, "report", null, null)).contains("BORROW"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+    
+    private static List<String> bookIds(List<Transaction> transactions) {
+        return transactions.stream().map(Transaction::getBookId).collect(Collectors.toList());
+    }
+    
+    // Clock whose date the test moves by hand
+    private static final class TestClock extends Clock {
+        private LocalDate date;
+        
+        TestClock(LocalDate date) {
+            this.date = date;
+        }
+        
+        void advanceDays(long days) {
+            date = date.plusDays(days);
+        }
+        
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+        
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+        
+        @Override
+        public Instant instant() {
+            return date.atStartOfDay(ZoneOffset.UTC).toInstant();
+        }
+    }
+    
+    @Test
+    void testLibraryAppViewMemberLoans() {
+        String input = "11\nM002\n8\n"; // Member loans, then exit
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(input.getBytes());
+        LibraryApp.setScanner(new Scanner(inputStream));
+        
+        assertDoesNotThrow(() -> LibraryApp.main(new String[]{}));
+        
+        String output = outputStreamCaptor.toString();
+        assertTrue(output.contains("=== Books Out ("));
+        assertTrue(output.contains("=== Loan History ==="));
+        assertTrue(output.contains("Book: B003"));
+    }
+    
+    @Test
+    void testLibraryAppViewOverdueLoans() {
+        String input = "12\n15\n8\n"; // Overdue loans, check for new ones, then exit
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(input.getBytes());
+        LibraryApp.setScanner(new Scanner(inputStream));
+        
+        assertDoesNotThrow(() -> LibraryApp.main(new String[]{}));
+        
+        String output = outputStreamCaptor.toString();
+        assertTrue(output.contains("12. View Overdue Loans"));
+        assertTrue(output.contains("15. Check For Newly Overdue Loans"));
+        assertTrue(output.contains("No overdue loans."));
+    }
+    
+    @Test
+    void testLibraryAppViewMetrics() {
+        String input = "3\nB002\nM001\n13\n8\n"; // Borrow, metrics, then exit
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(input.getBytes());
+        LibraryApp.setScanner(new Scanner(inputStream));
+        
+        assertDoesNotThrow(() -> LibraryApp.main(new String[]{}));
+        
+        String output = outputStreamCaptor.toString();
+        assertTrue(output.contains("13. View Metrics"));
+        assertTrue(output.contains("=== Metrics (latencies in microseconds) ==="));
+        assertTrue(output.contains("BORROW"));
+    }
+    
+    @Test
+    void testLibraryAppViewStatistics() {
+        String input = "14\n8\n"; // Statistics, then exit
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(input.getBytes());
+        LibraryApp.setScanner(new Scanner(inputStream));
+        
+        assertDoesNotThrow(() -> LibraryApp.main(new String[]{}));
+        
+        String output = outputStreamCaptor.toString();
+        assertTrue(output.contains("14. View Circulation Statistics"));
+        assertTrue(output.contains("Most borrowed books:"));
+        assertTrue(output.contains("Loans per day:"));
+    }
+    
+    @Test
+    void testLibraryScriptWritesCsv() throws IOException {
+        libraryService.addMember(member);
+        String script = "# nightly job\n"
+            + "add-book B001 \"Java, \"\"The\"\" Book\" \"John Doe\"\n"
+            + "\n"
+            + "add-book B001 Again Someone\n"
+            + "borrow B001 M001\n"
+            + "borrow B001 M001\n"
+            + "return B404\n"
+            + "books\n"
+            + "transactions\n";
+        StringWriter out = new StringWriter();
+        LibraryScript runner = new LibraryScript(libraryService, out, LibraryScript.Format.CSV);
+        
+        assertEquals(LibraryScript.FAILED, runner.run(new BufferedReader(new StringReader(script))));
+        assertNull(runner.getError());
+        String[] rows = out.toString().split("\n");
+        assertEquals("result,add-book,B001,OK", rows[0]);
+        assertEquals("result,add-book,B001,DUPLICATE", rows[1]);
+        assertEquals("result,borrow,B001,M001,OK", rows[2]);
+        assertEquals("result,borrow,B001,M001,NOT_AVAILABLE", rows[3]);
+        assertEquals("result,return,B404,BOOK_NOT_FOUND", rows[4]);
+        assertEquals("book,B001,\"Java, \"\"The\"\" Book\",John Doe,false,1,0", rows[5]);
+        assertTrue(rows[6].startsWith("transaction,"));
+        assertTrue(rows[6].endsWith(",B001,M001," + LocalDate.now() + "," + LocalDate.now().plusDays(14) + ",,false"));
+        assertEquals(7, rows.length);
+    }
+    
+    @Test
+    void testLibraryScriptWritesJsonLines() throws IOException {
+        libraryService.addBook(book);
+        libraryService.addMember(member);
+        String script = "borrow B001 M001\nreturn B001\nmembers\nloans M001\nsearch test book\n";
+        StringWriter out = new StringWriter();
+        
+        assertEquals(LibraryScript.OK, new LibraryScript(libraryService, out, LibraryScript.Format.JSONL)
+            .run(new BufferedReader(new StringReader(script))));
+        String[] rows = out.toString().split("\n");
+        assertEquals(5, rows.length);
+        Map<?, ?> returned = (Map<?, ?>) Json.parse(rows[1]);
+        assertEquals("result", returned.get("type"));
+        assertEquals("return", returned.get("command"));
+        assertEquals("OK", returned.get("status"));
+        assertEquals("test@email.com", ((Map<?, ?>) Json.parse(rows[2])).get("email"));
+        Map<?, ?> loan = (Map<?, ?>) Json.parse(rows[3]);
+        assertEquals("transaction", loan.get("type"));
+        assertEquals(Boolean.TRUE, loan.get("returned"));
+        assertEquals(LocalDate.now().toString(), loan.get("returnDate"));
+        assertEquals("B001", ((Map<?, ?>) Json.parse(rows[4])).get("id"));
+    }
+    
+    @Test
+    void testLibraryScriptStopsAtBadLine() throws IOException {
+        String[] badLines = {"lend B001 M001", "borrow B001", "add-book B002 \"Unterminated", "search", "import cds x.csv"};
+        for (String badLine : badLines) {
+            StringWriter out = new StringWriter();
+            LibraryScript runner = new LibraryScript(new LibraryService(), out, LibraryScript.Format.CSV);
+            int status = runner.run(new BufferedReader(new StringReader("add-member M009 Ann ann@x.com\n"
+                + badLine + "\nbooks\n")));
+            
+            assertEquals(LibraryScript.BAD_SCRIPT, status, badLine);
+            assertTrue(runner.getError().startsWith("line 2: "), runner.getError());
+            assertEquals("result,add-member,M009,OK\n", out.toString());
+        }
+        assertThrows(IllegalArgumentException.class, () -> LibraryScript.parseFormat("xml"));
+        assertEquals(LibraryScript.Format.JSONL, LibraryScript.parseFormat("jsonl"));
+    }
+    
+    @Test
+    void testLibraryAppRunsScriptFile(@TempDir Path tempDir) throws IOException {
+        Path script = tempDir.resolve("nightly.txt");
+        Path output = tempDir.resolve("report.jsonl");
+        Files.write(script, List.of("add-book B990 \"Script Book\" Author", "add-member M990 Ann ann@x.com",
+            "borrow B990 M990", "members"));
+        
+        int status = LibraryApp.runScript(new String[]{"--script", script.toString(), "--format", "jsonl",
+            "--output", output.toString()});
+        
+        List<String> rows = Files.readAllLines(output);
+        assertEquals(LibraryScript.OK, status, String.join("\n", rows));
+        assertEquals("OK", ((Map<?, ?>) Json.parse(rows.get(2))).get("status"));
+        assertTrue(rows.stream().anyMatch(row -> row.contains("\"id\":\"M990\"")));
+        assertEquals("", outputStreamCaptor.toString());
+        assertEquals(LibraryScript.BAD_SCRIPT, LibraryApp.runScript(new String[]{"--verbose", "yes"}));
+        assertEquals(LibraryScript.BAD_SCRIPT, LibraryApp.runScript(new String[]{"--script"}));
+        assertEquals(LibraryScript.BAD_SCRIPT, LibraryApp.runScript(new String[]{"--script", tempDir.resolve("missing").toString()}));
+    }
+    
     @Test
     void testLibraryAppMainMethod() {
         String input = "8\n"; // Exit immediately